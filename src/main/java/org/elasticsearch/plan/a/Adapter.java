@@ -20,18 +20,14 @@ package org.elasticsearch.plan.a;
  */
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.tree.ParseTree;
-import org.objectweb.asm.Label;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
 
 import static org.elasticsearch.plan.a.Caster.*;
 import static org.elasticsearch.plan.a.Default.*;
@@ -109,24 +105,6 @@ class Adapter {
         }
     }
 
-    static class Branch {
-        final ParserRuleContext source;
-
-        Label begin;
-        Label end;
-        Label tru;
-        Label fals;
-
-        private Branch(final ParserRuleContext source) {
-            this.source = source;
-
-            begin = null;
-            end = null;
-            tru = null;
-            fals = null;
-        }
-    }
-
     static String error(final ParserRuleContext ctx) {
         return "Error [" + ctx.getStart().getLine() + ":" + ctx.getStart().getCharPositionInLine() + "]: ";
     }
@@ -137,16 +115,28 @@ class Adapter {
     final String source;
     final ParserRuleContext root;
 
-    private final Deque<Integer> scopes;
-    private final Deque<Variable> variables;
+    /** The input map, which the parameters of the schema are read from when the script starts. */
+    Variable input;
+
+    /** The variables declared by the schema, in the order they are read. */
+    final List<Variable> parameters;
+
+    /** The values computed ahead of the document stage, or null when every value is computed per document. */
+    IR.Stages stages;
+
+    /** True when the script may read the score, which is any time the input map is used for more than reads by name. */
+    boolean scores;
 
-    private final Map<ParserRuleContext, StatementMetadata> statementMetadata;
-    private final Map<ParserRuleContext, ExpressionMetadata> expressionMetadata;
-    private final Map<ParserRuleContext, External> externals;
+    /** The slot of each input bound by name, or null when the script reads the input map itself. */
+    Map<String, Integer> bindings;
 
-    private final Map<ParserRuleContext, Branch> branches;
-    private final Deque<Branch> jumps;
-    private final Set<ParserRuleContext> strings;
+    /** The slot of the doc values of each field read as a number, or null when nothing is bound. */
+    Map<String, Integer> fields;
+
+    private final Deque<Integer> scopes;
+    private final Deque<Variable> variables;
+    private final Map<String, Variable> names;
+    private int slots;
 
     Adapter(final Definition definition, final Standard standard, final Caster caster,
             final String source, final ParserRuleContext root) {
@@ -158,14 +148,23 @@ class Adapter {
 
         scopes = new ArrayDeque<>();
         variables = new ArrayDeque<>();
+        names = new HashMap<>();
+        slots = 0;
+
+        input = null;
+        parameters = new ArrayList<>();
+        scores = false;
+        stages = null;
+        bindings = null;
+        fields = null;
+    }
 
-        statementMetadata = new HashMap<>();
-        expressionMetadata = new HashMap<>();
-        externals = new HashMap<>();
-
-        branches = new HashMap<>();
-        jumps = new ArrayDeque<>();
-        strings = new HashSet<>();
+    /**
+     * Metadata is held directly on the parse tree nodes since every generated context extends
+     * {@link MetadataContext}, which avoids a hash lookup for each access during analysis and writing.
+     */
+    private static MetadataContext node(final ParserRuleContext source) {
+        return (MetadataContext)source;
     }
 
     void incrementScope() {
@@ -176,23 +175,18 @@ class Adapter {
         int remove = scopes.pop();
 
         while (remove > 0) {
-            variables.pop();
+            names.remove(variables.pop().name);
             --remove;
         }
     }
 
+    /**
+     * Variable names are unique across all the scopes currently in use since shadowing is not allowed,
+     * so a single map from name to variable is enough for lookup, and {@link #decrementScope()} removes
+     * the names along with the variables of the scope.
+     */
     Variable getVariable(final String name) {
-        final Iterator<Variable> itr = variables.iterator();
-
-        while (itr.hasNext()) {
-            final Variable variable = itr.next();
-
-            if (variable.name.equals(name)) {
-                return variable;
-            }
-        }
-
-        return null;
+        return names.get(name);
     }
 
      Variable addVariable(final ParserRuleContext source, final String name, final Type type) {
@@ -214,6 +208,8 @@ class Adapter {
 
          final Variable variable = new Variable(name, type, slot);
          variables.push(variable);
+         names.put(name, variable);
+         slots = Math.max(slots, slot + type.metadata.size);
 
          final int update = scopes.pop() + 1;
          scopes.push(update);
@@ -221,15 +217,31 @@ class Adapter {
          return variable;
     }
 
+    /**
+     * Adds a variable for a value computed by an optimization pass once analysis is complete.  It is given a
+     * slot past every slot used by the script, so it never shares a slot with a variable of the script.
+     */
+    Variable addTemporary(final String name, final Type type) {
+        final Variable variable = new Variable(name, type, slots);
+        slots += type.metadata.size;
+
+        return variable;
+    }
+
+    /** Returns the number of slots used by the variables of the script along with every temporary added so far. */
+    int getSlots() {
+        return slots;
+    }
+
     StatementMetadata createStatementMetadata(final ParserRuleContext source) {
         final StatementMetadata sourcesmd = new StatementMetadata(source);
-        statementMetadata.put(source, sourcesmd);
+        node(source).statementMetadata = sourcesmd;
 
         return sourcesmd;
     }
 
     StatementMetadata getStatementMetadata(final ParserRuleContext source) {
-        final StatementMetadata sourcesmd = statementMetadata.get(source);
+        final StatementMetadata sourcesmd = node(source).statementMetadata;
 
         if (sourcesmd == null) {
             throw new IllegalStateException(error(source) + "Statement metadata does not exist at" +
@@ -264,13 +276,13 @@ class Adapter {
 
     ExpressionMetadata createExpressionMetadata(ParserRuleContext source) {
         final ExpressionMetadata sourceemd = new ExpressionMetadata(source);
-        expressionMetadata.put(source, sourceemd);
+        node(source).expressionMetadata = sourceemd;
 
         return sourceemd;
     }
     
     ExpressionMetadata getExpressionMetadata(final ParserRuleContext source) {
-        final ExpressionMetadata sourceemd = expressionMetadata.get(source);
+        final ExpressionMetadata sourceemd = node(source).expressionMetadata;
 
         if (sourceemd == null) {
             throw new IllegalStateException(error(source) + "Expression metadata does not exist at" +
@@ -281,11 +293,11 @@ class Adapter {
     }
 
     void putExternal(final ParserRuleContext source, final External external) {
-        externals.put(source, external);
+        node(source).external = external;
     }
 
     External getExternal(final ParserRuleContext source) {
-        final External external = externals.get(source);
+        final External external = node(source).external;
 
         if (external == null) {
             throw new IllegalStateException(error(source) + "External data does not exist at" +
@@ -294,54 +306,4 @@ class Adapter {
 
         return external;
     }
-
-    Branch markBranch(final ParserRuleContext source, final ParserRuleContext... nodes) {
-        final Branch branch = new Branch(source);
-
-        for (final ParserRuleContext node : nodes) {
-            branches.put(node, branch);
-        }
-
-        return branch;
-    }
-
-    Branch getBranch(final ParserRuleContext source) {
-        return branches.get(source);
-    }
-
-    void checkWriteBranch(final MethodVisitor visitor, final ParserRuleContext source) {
-        final Branch branch = getBranch(source);
-
-        if (branch != null) {
-            if (branch.tru != null) {
-                visitor.visitJumpInsn(Opcodes.IFNE, branch.tru);
-            } else if (branch.fals != null) {
-                visitor.visitJumpInsn(Opcodes.IFEQ, branch.fals);
-            }
-        }
-    }
-
-    void pushJump(final Branch branch) {
-        jumps.push(branch);
-    }
-
-    Branch peekJump() {
-        return jumps.peek();
-    }
-
-    void popJump() {
-        jumps.pop();
-    }
-
-    void markStrings(final ParserRuleContext node) {
-        strings.add(node);
-    }
-
-    void unmarkStrings(final ParserRuleContext node) {
-        strings.remove(node);
-    }
-
-    boolean getStrings(final ParserRuleContext node) {
-        return strings.contains(node);
-    }
 }
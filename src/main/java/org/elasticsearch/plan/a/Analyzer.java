@@ -90,10 +90,6 @@ class Analyzer extends PlanABaseVisitor<Void> {
         expremd.to = standard.boolType;
         visit(exprctx);
 
-        if (expremd.postConst != null) {
-            throw new IllegalArgumentException(error(ctx) + "If statement is not necessary.");
-        }
-
         final BlockContext blockctx0 = ctx.block(0);
         final StatementMetadata blocksmd0 = adapter.createStatementMetadata(blockctx0);
         visit(blockctx0);
@@ -0,0 +1,35 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.elasticsearch.script.LeafSearchScript;
+
+/**
+ * A leaf script that scores a block of documents in a single call, for aggregations and rescoring that run
+ * a script over many documents of a segment at once.
+ */
+public interface BatchLeafSearchScript extends LeafSearchScript {
+    /**
+     * Scores the first count documents of docs, in the order given, into the same positions of out.  Each
+     * document is run as if it were set with {@link #setDocument(int)} and scored with {@link #runAsDouble()},
+     * and the script is left on the last document of the block.
+     */
+    void runAsDoubles(int[] docs, int count, double[] out);
+}
@@ -0,0 +1,195 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.plan.a.Definition.*;
+
+/**
+ * Gives each input a script reads by a constant name, as in {@code input.get("name")}, a fixed slot, so the
+ * script reads the input from the array of a {@link Bindings} instead of looking the name up in a map.  The
+ * inputs are only bound when the script uses the input map for nothing else, since any other use may read or
+ * change inputs the slots do not hold.  The reads of the stages are bound along with the rest of the script.
+ * Each field read by an {@link IR.DocValue} gets a slot of its own for its doc values, along with a slot for
+ * the doc input the field is read through when it has no doc values.  A read converted straight to a long or
+ * a double is bound as the number, so an input bound to a column of {@link Columns} is read without boxing.
+ */
+final class BindingPass extends PassManager.Pass {
+    static final String NAME = "bind";
+
+    BindingPass() {
+        super(NAME);
+    }
+
+    @Override
+    void run(final Adapter adapter, final IR.Block root, final CompilerStats stats) {
+        final List<IR.Statement> statements = new ArrayList<>();
+        statements.add(root);
+
+        if (adapter.stages != null) {
+            statements.addAll(adapter.stages.query);
+            statements.addAll(adapter.stages.segment);
+        }
+
+        final Finder finder = new Finder();
+
+        for (final IR.Statement statement : statements) {
+            statement.accept(finder);
+        }
+
+        if (!finder.bindable || finder.reads == 0) {
+            return;
+        }
+
+        final Map<String, Integer> bindings = new HashMap<>();
+        final Map<String, Integer> fields = new HashMap<>();
+
+        final IR.Rewriter binder = new IR.Rewriter() {
+            @Override
+            IR.Node visitCall(final IR.Call node) {
+                final String name = key(node);
+
+                if (name == null) {
+                    return super.visitCall(node);
+                }
+
+                return new IR.Bound(node.source, node.type, node.receiver, slot(bindings, name), name);
+            }
+
+            @Override
+            IR.Node visitConvert(final IR.Convert node) {
+                final TypeMetadata metadata = node.type.metadata;
+
+                if (node.cast instanceof Transform && node.cast.from.clazz.isAssignableFrom(Number.class) &&
+                        (metadata == TypeMetadata.LONG || metadata == TypeMetadata.DOUBLE)) {
+                    IR.Expression expression = node.expression;
+
+                    // a cast to number always succeeds for the value of a column
+                    while (expression instanceof IR.Convert && !(((IR.Convert)expression).cast instanceof Transform) &&
+                            expression.type.clazz.isAssignableFrom(Number.class)) {
+                        expression = ((IR.Convert)expression).expression;
+                    }
+
+                    final String name = expression instanceof IR.Call ? key((IR.Call)expression) : null;
+
+                    if (name != null) {
+                        final IR.Call call = (IR.Call)expression;
+
+                        return new IR.Bound(node.source, node.type, call.receiver, slot(bindings, name), name);
+                    }
+                }
+
+                return super.visitConvert(node);
+            }
+
+            @Override
+            IR.Node visitDocValue(final IR.DocValue node) {
+                slot(bindings, "doc");
+
+                return new IR.DocValue(node.source, node.type, node.input, node.field, slot(fields, node.field));
+            }
+        };
+
+        root.accept(binder);
+
+        if (adapter.stages != null) {
+            replace(binder, adapter.stages.query);
+            replace(binder, adapter.stages.segment);
+        }
+
+        adapter.bindings = bindings;
+        adapter.fields = fields;
+    }
+
+    private static int slot(final Map<String, Integer> slots, final String name) {
+        Integer slot = slots.get(name);
+
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
+        }
+
+        return slot;
+    }
+
+    private static void replace(final IR.Rewriter binder, final List<IR.Statement> statements) {
+        for (int index = 0; index < statements.size(); ++index) {
+            statements.set(index, binder.statement(statements.get(index)));
+        }
+    }
+
+    private static boolean isInput(final IR.Expression expression) {
+        return expression instanceof IR.Load && "input".equals(((IR.Load)expression).variable.name);
+    }
+
+    /** Returns the name of the input read by a call of the form {@code input.get("name")}, or null. */
+    private static String key(final IR.Call call) {
+        if (isInput(call.receiver) && "get".equals(call.method.jname) && call.arguments.size() == 1 &&
+                call.arguments.get(0) instanceof IR.Constant) {
+            final Object key = ((IR.Constant)call.arguments.get(0)).value;
+
+            return key instanceof String ? (String)key : null;
+        }
+
+        return null;
+    }
+
+    /** Finds whether every use of the input map is a read by a constant name. */
+    private static class Finder extends IR.Rewriter {
+        boolean bindable = true;
+        int reads = 0;
+
+        @Override
+        IR.Node visitCall(final IR.Call node) {
+            if (key(node) != null) {
+                ++reads;
+
+                return node;
+            }
+
+            return super.visitCall(node);
+        }
+
+        @Override
+        IR.Node visitDocValue(final IR.DocValue node) {
+            ++reads;
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitLoad(final IR.Load node) {
+            bindable &= !isInput(node);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitAssign(final IR.Assign node) {
+            bindable &= !isInput(node.target);
+
+            return super.visitAssign(node);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The inputs of a script held in the slots the compiler bound them to, so setting an input writes a slot and
+ * the script reads it by index instead of looking the name up.  Inputs the script never reads have no slot and
+ * are dropped when they are set, since nothing can read them back, and an input set to null is the same as one
+ * that is not set.  The doc values of the fields the script reads as numbers are bound to slots of their own
+ * once per segment, and are moved to each document along with the search lookup.  An input may instead be
+ * bound to a column of {@link Columns}, which is read at the current row.  Only the script the bindings were
+ * created for reads them by slot, and any other script reads them by name like any other input map.
+ */
+public final class Bindings extends AbstractMap<String, Object> {
+    /**
+     * Returns the input as the bindings of the script, or null when it is any other input map, including the
+     * bindings of another script, whose slots hold different inputs.
+     */
+    private static Bindings owned(final Map<String, Object> input, final Executable script) {
+        return input instanceof Bindings && ((Bindings)input).slots == script.getBindings() ? (Bindings)input : null;
+    }
+
+    /** Reads the input with the slot from the bindings of the script, or by the name from any other input map. */
+    public static Object get(final Map<String, Object> input, final Executable script, final int slot, final String name) {
+        final Bindings bindings = owned(input, script);
+
+        if (bindings != null) {
+            return bindings.value(slot);
+        }
+
+        return input.get(name);
+    }
+
+    /** Reads the input with the slot as a long, straight from its column when it is bound to one. */
+    public static long getLong(final Map<String, Object> input, final Executable script, final int slot, final String name) {
+        final Bindings bindings = owned(input, script);
+
+        if (bindings != null) {
+            final Columns.Column column = bindings.columns == null ? null : bindings.columns[slot];
+
+            return column == null ? ((Number)bindings.values[slot]).longValue() : column.longValue(bindings.row);
+        }
+
+        return ((Number)input.get(name)).longValue();
+    }
+
+    /** Reads the input with the slot as a double, straight from its column when it is bound to one. */
+    public static double getDouble(final Map<String, Object> input, final Executable script, final int slot,
+                                   final String name) {
+        final Bindings bindings = owned(input, script);
+
+        if (bindings != null) {
+            final Columns.Column column = bindings.columns == null ? null : bindings.columns[slot];
+
+            return column == null ? ((Number)bindings.values[slot]).doubleValue() : column.doubleValue(bindings.row);
+        }
+
+        return ((Number)input.get(name)).doubleValue();
+    }
+
+    /** Reads the first value of the field as a long from its doc values, or through the doc input without them. */
+    public static long longValue(final Map<String, Object> input, final Executable script, final int slot,
+                                 final String field) {
+        final Bindings bindings = slot >= 0 ? owned(input, script) : null;
+        final Object values = bindings == null ? null : bindings.fields[slot];
+
+        if (values instanceof ScriptDocValues.Longs) {
+            final ScriptDocValues.Longs longs = (ScriptDocValues.Longs)values;
+
+            if (!longs.isEmpty()) {
+                return longs.getValue();
+            }
+        } else if (values instanceof ScriptDocValues.Doubles) {
+            final ScriptDocValues.Doubles doubles = (ScriptDocValues.Doubles)values;
+
+            if (!doubles.isEmpty()) {
+                return (long)doubles.getValue();
+            }
+        }
+
+        return ((Number)read(input, field)).longValue();
+    }
+
+    /** Reads the first value of the field as a double from its doc values, or through the doc input without them. */
+    public static double doubleValue(final Map<String, Object> input, final Executable script, final int slot,
+                                     final String field) {
+        final Bindings bindings = slot >= 0 ? owned(input, script) : null;
+        final Object values = bindings == null ? null : bindings.fields[slot];
+
+        if (values instanceof ScriptDocValues.Doubles) {
+            final ScriptDocValues.Doubles doubles = (ScriptDocValues.Doubles)values;
+
+            if (!doubles.isEmpty()) {
+                return doubles.getValue();
+            }
+        } else if (values instanceof ScriptDocValues.Longs) {
+            final ScriptDocValues.Longs longs = (ScriptDocValues.Longs)values;
+
+            if (!longs.isEmpty()) {
+                return longs.getValue();
+            }
+        }
+
+        return ((Number)read(input, field)).doubleValue();
+    }
+
+    /** Reads the first value of the field through the doc input the same way the script does without doc values. */
+    private static Object read(final Map<String, Object> input, final String field) {
+        return ((List<?>)((Map<?, ?>)input.get("doc")).get(field)).get(0);
+    }
+
+    private final Map<String, Integer> slots;
+    private final Object[] values;
+    private final Map<String, Integer> names;
+    private final Object[] fields;
+
+    /** The column of each slot, or null until an input is bound to a column. */
+    private Columns.Column[] columns;
+    /** The row the columns are read at. */
+    int row;
+
+    /** Creates bindings for the script, which must read its input only by constant names. */
+    public Bindings(final Executable executable) {
+        this(slots(executable), executable.getFields());
+    }
+
+    private static Map<String, Integer> slots(final Executable executable) {
+        if (executable.getBindings() == null) {
+            throw new IllegalArgumentException(
+                    "Script [" + executable.getName() + "] must read its input only by constant names to be bound.");
+        }
+
+        return executable.getBindings();
+    }
+
+    Bindings(final Map<String, Integer> slots, final Map<String, Integer> names) {
+        this.slots = slots;
+        this.names = names;
+        values = new Object[slots.size()];
+        fields = new Object[names.size()];
+    }
+
+    /**
+     * Binds the doc values of each field from the doc input of a segment.  A field that fails to bind, such as
+     * one missing from the mapping, is left to be read through the doc input, so it fails only if it is read.
+     */
+    void bindFields(final Map<?, ?> doc) {
+        for (final Map.Entry<String, Integer> name : names.entrySet()) {
+            try {
+                fields[name.getValue()] = doc.get(name.getKey());
+            } catch (final RuntimeException exception) {
+                fields[name.getValue()] = null;
+            }
+        }
+    }
+
+    /** Binds the input to the column, or returns false if the script never reads the input. */
+    boolean bind(final String name, final Columns.Column column) {
+        final Integer slot = slots.get(name);
+
+        if (slot == null) {
+            return false;
+        }
+
+        if (columns == null) {
+            columns = new Columns.Column[values.length];
+        }
+
+        columns[slot] = column;
+        values[slot] = null;
+
+        return true;
+    }
+
+    /** Sets the input to the long, which the script reads without boxing when it reads the input as a number. */
+    public void setLong(final String name, final long value) {
+        final Integer slot = slots.get(name);
+
+        if (slot != null && columns != null && columns[slot] instanceof Columns.LongValue) {
+            ((Columns.LongValue)columns[slot]).value = value;
+        } else {
+            bind(name, new Columns.LongValue(value));
+        }
+    }
+
+    /** Sets the input to the double, which the script reads without boxing when it reads the input as a number. */
+    public void setDouble(final String name, final double value) {
+        final Integer slot = slots.get(name);
+
+        if (slot != null && columns != null && columns[slot] instanceof Columns.DoubleValue) {
+            ((Columns.DoubleValue)columns[slot]).value = value;
+        } else {
+            bind(name, new Columns.DoubleValue(value));
+        }
+    }
+
+    private Object value(final int slot) {
+        return columns == null || columns[slot] == null ? values[slot] : columns[slot].get(row);
+    }
+
+    /** Moves the doc values of each field to the document. */
+    void setDocument(final int doc) {
+        for (final Object values : fields) {
+            if (values instanceof ScriptDocValues) {
+                ((ScriptDocValues<?>)values).setNextDocId(doc);
+            }
+        }
+    }
+
+    @Override
+    public Object get(final Object name) {
+        final Integer slot = slots.get(name);
+
+        return slot == null ? null : value(slot);
+    }
+
+    @Override
+    public boolean containsKey(final Object name) {
+        return get(name) != null;
+    }
+
+    @Override
+    public Object put(final String name, final Object value) {
+        final Integer slot = slots.get(name);
+
+        if (slot == null) {
+            return null;
+        }
+
+        final Object previous = value(slot);
+        values[slot] = value;
+
+        if (columns != null) {
+            columns[slot] = null;
+        }
+
+        // the doc values were bound from the doc input that is replaced
+        if ("doc".equals(name)) {
+            Arrays.fill(fields, null);
+        }
+
+        return previous;
+    }
+
+    /** Sets only the inputs with slots, so a large map of inputs costs a lookup per slot rather than per input. */
+    @Override
+    public void putAll(final Map<? extends String, ?> inputs) {
+        for (final Map.Entry<String, Integer> slot : slots.entrySet()) {
+            if (inputs.containsKey(slot.getKey())) {
+                values[slot.getValue()] = inputs.get(slot.getKey());
+
+                if (columns != null) {
+                    columns[slot.getValue()] = null;
+                }
+
+                // the doc values were bound from the doc input that is replaced
+                if ("doc".equals(slot.getKey())) {
+                    Arrays.fill(fields, null);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        final Map<String, Object> entries = new HashMap<>();
+
+        for (final Map.Entry<String, Integer> slot : slots.entrySet()) {
+            final Object value = value(slot.getValue());
+
+            if (value != null) {
+                entries.put(slot.getKey(), value);
+            }
+        }
+
+        return Collections.unmodifiableMap(entries).entrySet();
+    }
+}
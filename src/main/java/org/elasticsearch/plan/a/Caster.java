@@ -25,9 +25,12 @@ import org.objectweb.asm.Opcodes;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.elasticsearch.plan.a.Adapter.*;
 import static org.elasticsearch.plan.a.Default.*;
@@ -317,6 +320,13 @@ class Caster {
             return cast;
         }
 
+        // a def converts to and from any other value, where a conversion from def that would lose part of the value
+        // fails when it runs
+        if ((from.metadata == TypeMetadata.DEF || to.metadata == TypeMetadata.DEF) &&
+                from.metadata != TypeMetadata.VOID && to.metadata != TypeMetadata.VOID) {
+            return cast;
+        }
+
         final Transform explicit = definition.explicits.get(cast);
 
         if (force && explicit != null) {
@@ -398,20 +408,67 @@ class Caster {
 
     private Object invokeTransform(final ParserRuleContext source, final Transform transform, final Object object) {
         final Method method = transform.method;
-        final java.lang.reflect.Method jmethod = method.method;
-        final int modifiers = jmethod.getModifiers();
+        final Object result = method.statik ? invokeConstant(method, null, object) : invokeConstant(method, object);
+
+        if (result == FAILED) {
+            throw new IllegalStateException(error(source) + "Unable to invoke transform to cast constant from " +
+                    "[" + transform.from.name + "] to [" + transform.to.name + "].");
+        }
+
+        return result;
+    }
 
+    /**
+     * Returns true if a call to the method with constant arguments may be evaluated during compilation.
+     * Only methods of the immutable value classes are pure, so a call has no side effects and always gives
+     * the same result for the same arguments.
+     */
+    static boolean isPure(final Method method) {
+        return PURE.contains(method.owner.clazz) && method.rtn.metadata.constant;
+    }
+
+    /**
+     * Returns true if a call to the method never changes any state, so it may be evaluated fewer times when
+     * nothing it reads is changed in between.  This holds for pure methods along with the accessors of the
+     * whitelisted collections and boxes.
+     */
+    static boolean isReadOnly(final Method method) {
+        return PURE.contains(method.owner.clazz) || READONLY.contains(method.jname) && (
+                method.owner.clazz == Object.class || Number.class.isAssignableFrom(method.owner.clazz) ||
+                java.util.Collection.class.isAssignableFrom(method.owner.clazz) ||
+                java.util.Map.class.isAssignableFrom(method.owner.clazz));
+    }
+
+    private static final Set<String> READONLY = new HashSet<>(Arrays.asList(
+        "get", "size", "isEmpty", "equals", "hashCode", "toString",
+        "byteValue", "shortValue", "intValue", "longValue", "floatValue", "doubleValue"
+    ));
+
+    private static final Set<Class<?>> PURE = new HashSet<>(Arrays.<Class<?>>asList(
+        Utility.class, String.class, Boolean.class, Byte.class, Short.class, Character.class,
+        Integer.class, Long.class, Float.class, Double.class, Math.class
+    ));
+
+    /**
+     * Evaluates a pure method on constant arguments the same way a transform is evaluated for a constant
+     * cast.  Returns null when the call cannot be evaluated, such as when it would throw, so the call is
+     * instead left to fail at run time.
+     */
+    Object constInvoke(final Method method, final Object receiver, final Object... arguments) {
+        final Object result = invokeConstant(method, receiver, arguments);
+
+        return result == FAILED ? null : result;
+    }
+
+    private static final Object FAILED = new Object();
+
+    private static Object invokeConstant(final Method method, final Object receiver, final Object... arguments) {
         try {
-            if (java.lang.reflect.Modifier.isStatic(modifiers)) {
-                return jmethod.invoke(null, object);
-            } else {
-                return jmethod.invoke(object);
-            }
+            return method.getMethod().invoke(receiver, arguments);
         } catch (IllegalAccessException | IllegalArgumentException |
                 java.lang.reflect.InvocationTargetException | NullPointerException |
                 ExceptionInInitializerError exception) {
-            throw new IllegalStateException(error(source) + "Unable to invoke transform to cast constant from " +
-                    "[" + transform.from.name + "] to [" + transform.to.name + "].");
+            return FAILED;
         }
     }
 
@@ -424,11 +481,23 @@ class Caster {
             }
         }
 
-        throw new ClassCastException(error(source) + "Cannot find valid promotion for types [" +
-                from0.name + "] and [" + from1.name + "].");
+        if (from1 == null) {
+            throw new ClassCastException(error(source) + "Cannot find valid promotion for type [" + from0.name + "].");
+        } else {
+            throw new ClassCastException(error(source) + "Cannot find valid promotion for types [" +
+                    from0.name + "] and [" + from1.name + "].");
+        }
     }
 
-    Type getNumericPromotion(final ParserRuleContext source, final Type from0, final Type from1, boolean decimal) {
+    Type getNumericPromotion(final ParserRuleContext source, final Type from0, final Type from1, final boolean decimal) {
+        // a def is promoted from the type of its value when the script runs, so the operation is done on def
+        final boolean def0 = from0.metadata == TypeMetadata.DEF;
+        final boolean def1 = from1 != null && from1.metadata == TypeMetadata.DEF;
+
+        if (def0 && (from1 == null || def1 || from1.metadata.numeric) || def1 && from0.metadata.numeric) {
+            return standard.defType;
+        }
+
         final Deque<Type> upcast = new ArrayDeque<>();
         final Deque<Type> downcast = new ArrayDeque<>();
 
@@ -499,7 +568,19 @@ class Caster {
             return;
         }
 
-        if (from.metadata.numeric && to.metadata.numeric) {
+        if (to.metadata == TypeMetadata.DEF) {
+            if (from.clazz.isPrimitive()) {
+                final String box = getBoxFromPrimitive(from.clazz).getName().replace('.', '/');
+                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, box, "valueOf", "(" + from.descriptor + ")L" + box + ";", false);
+            }
+        } else if (from.metadata == TypeMetadata.DEF) {
+            if (to.clazz.isPrimitive()) {
+                final String name = to.clazz.getName() + "Value";
+                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, DEF_INTERNAL, name, "(Ljava/lang/Object;)" + to.descriptor, false);
+            } else if (to.clazz != Object.class) {
+                visitor.visitTypeInsn(Opcodes.CHECKCAST, to.internal);
+            }
+        } else if (from.metadata.numeric && to.metadata.numeric) {
             switch (from.metadata) {
                 case BYTE:
                     switch (to.metadata) {
@@ -578,11 +659,26 @@ class Caster {
         }
     }
 
+    private static final String DEF_INTERNAL = Def.class.getName().replace('.', '/');
+
+    private static Class<?> getBoxFromPrimitive(final Class<?> clazz) {
+        if      (clazz == boolean.class) return Boolean.class;
+        else if (clazz == byte.class)    return Byte.class;
+        else if (clazz == short.class)   return Short.class;
+        else if (clazz == char.class)    return Character.class;
+        else if (clazz == int.class)     return Integer.class;
+        else if (clazz == long.class)    return Long.class;
+        else if (clazz == float.class)   return Float.class;
+        else if (clazz == double.class)  return Double.class;
+        else {
+            throw new IllegalStateException("Unexpected primitive type [" + clazz.getName() + "].");
+        }
+    }
+
     void writeTransform(final MethodVisitor visitor, final Transform transform) {
         final Class clazz = transform.method.owner.clazz;
-        final java.lang.reflect.Method method = transform.method.method;
 
-        final String name = method.getName();
+        final String name = transform.method.jname;
         final String internal = transform.method.owner.internal;
         final String descriptor = transform.method.descriptor;
 
@@ -593,7 +689,7 @@ class Caster {
             visitor.visitTypeInsn(Opcodes.CHECKCAST, upcast.internal);
         }
 
-        if (java.lang.reflect.Modifier.isStatic(method.getModifiers())) {
+        if (transform.method.statik) {
             visitor.visitMethodInsn(Opcodes.INVOKESTATIC, internal, name, descriptor, false);
         } else if (java.lang.reflect.Modifier.isInterface(clazz.getModifiers())) {
             visitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, internal, name, descriptor, true);
@@ -0,0 +1,241 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Runs a script over a range of rows of columnar data.  Each input the script reads by a constant name may be
+ * bound to a column of doubles or longs, held in an array or in a buffer such as a direct or memory-mapped
+ * one, and the script reads the value of the current row straight from the column, without a map per row and
+ * without boxing when it converts the input to a number.  Any other input is set once for every row.
+ *
+ * The rows are run without the values of the stages, since an input bound to a column changes with each row.
+ */
+public final class Columns {
+    /** A column of values read by row. */
+    abstract static class Column {
+        abstract long longValue(int row);
+        abstract double doubleValue(int row);
+        abstract Object get(int row);
+    }
+
+    /** A single long set for every row, which is how an input set to a long of {@link Bindings} is held. */
+    static final class LongValue extends Column {
+        long value;
+
+        LongValue(final long value) {
+            this.value = value;
+        }
+
+        @Override
+        long longValue(final int row) {
+            return value;
+        }
+
+        @Override
+        double doubleValue(final int row) {
+            return value;
+        }
+
+        @Override
+        Object get(final int row) {
+            return value;
+        }
+    }
+
+    /** A single double set for every row, which is how an input set to a double of {@link Bindings} is held. */
+    static final class DoubleValue extends Column {
+        double value;
+
+        DoubleValue(final double value) {
+            this.value = value;
+        }
+
+        @Override
+        long longValue(final int row) {
+            return (long)value;
+        }
+
+        @Override
+        double doubleValue(final int row) {
+            return value;
+        }
+
+        @Override
+        Object get(final int row) {
+            return value;
+        }
+    }
+
+    private static final class DoubleArrayColumn extends Column {
+        private final double[] values;
+
+        DoubleArrayColumn(final double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        long longValue(final int row) {
+            return (long)values[row];
+        }
+
+        @Override
+        double doubleValue(final int row) {
+            return values[row];
+        }
+
+        @Override
+        Object get(final int row) {
+            return values[row];
+        }
+    }
+
+    private static final class LongArrayColumn extends Column {
+        private final long[] values;
+
+        LongArrayColumn(final long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        long longValue(final int row) {
+            return values[row];
+        }
+
+        @Override
+        double doubleValue(final int row) {
+            return values[row];
+        }
+
+        @Override
+        Object get(final int row) {
+            return values[row];
+        }
+    }
+
+    private static final class DoubleBufferColumn extends Column {
+        private final DoubleBuffer values;
+
+        DoubleBufferColumn(final DoubleBuffer values) {
+            this.values = values;
+        }
+
+        @Override
+        long longValue(final int row) {
+            return (long)values.get(row);
+        }
+
+        @Override
+        double doubleValue(final int row) {
+            return values.get(row);
+        }
+
+        @Override
+        Object get(final int row) {
+            return values.get(row);
+        }
+    }
+
+    private static final class LongBufferColumn extends Column {
+        private final LongBuffer values;
+
+        LongBufferColumn(final LongBuffer values) {
+            this.values = values;
+        }
+
+        @Override
+        long longValue(final int row) {
+            return values.get(row);
+        }
+
+        @Override
+        double doubleValue(final int row) {
+            return values.get(row);
+        }
+
+        @Override
+        Object get(final int row) {
+            return values.get(row);
+        }
+    }
+
+    private final Executable executable;
+    private final Bindings bindings;
+
+    /** Creates columns for the script, which must read its input only by constant names. */
+    public Columns(final Executable executable) {
+        this.executable = executable;
+        bindings = new Bindings(executable);
+    }
+
+    /** Binds the input to a column of doubles.  An input the script never reads is ignored. */
+    public Columns bind(final String name, final double[] column) {
+        bindings.bind(name, new DoubleArrayColumn(column));
+
+        return this;
+    }
+
+    /** Binds the input to a column of longs.  An input the script never reads is ignored. */
+    public Columns bind(final String name, final long[] column) {
+        bindings.bind(name, new LongArrayColumn(column));
+
+        return this;
+    }
+
+    /** Binds the input to a column of doubles in the buffer from its position on, in the order of the buffer. */
+    public Columns bindDoubles(final String name, final ByteBuffer column) {
+        bindings.bind(name, new DoubleBufferColumn(column.asDoubleBuffer()));
+
+        return this;
+    }
+
+    /** Binds the input to a column of longs in the buffer from its position on, in the order of the buffer. */
+    public Columns bindLongs(final String name, final ByteBuffer column) {
+        bindings.bind(name, new LongBufferColumn(column.asLongBuffer()));
+
+        return this;
+    }
+
+    /** Sets the input to the same value for every row, replacing any column it is bound to. */
+    public Columns set(final String name, final Object value) {
+        bindings.put(name, value);
+
+        return this;
+    }
+
+    /** Runs the script for each row from from to to, exclusive, storing the value of each row to the same row of out. */
+    public void execute(final int from, final int to, final double[] out) {
+        for (int row = from; row < to; ++row) {
+            bindings.row = row;
+            out[row] = executable.executeAsDouble(bindings);
+        }
+    }
+
+    /** Runs the script for each row from from to to, exclusive, storing the value of each row to the same row of out. */
+    public void execute(final int from, final int to, final long[] out) {
+        for (int row = from; row < to; ++row) {
+            bindings.row = row;
+            out[row] = executable.executeAsLong(bindings);
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+
+/**
+ * Evaluates a repeated access chain, such as {@code (double)((smap)input.get("doc")).get("price")}, or a
+ * repeated arithmetic expression only once.  The first occurrence stores its value to a temporary and every
+ * later occurrence that is certain to be reached after it loads the temporary instead.
+ *
+ * A value is reused only along straight-line code.  Both arms of an if, the right side of a logical operator
+ * and the arms of a conditional may reuse values from before them, but a value first computed in one of them
+ * is not reused after it, and a loop may only reuse values from before it that nothing within the loop changes.
+ * A value is forgotten once a variable it reads is stored to, or once a container it reads may be written,
+ * which is a store to the same field, a store to an array of a type that may be the same array, or a call to
+ * a method that may change state on an object or array that may be the same container.  Whether two containers
+ * may be the same is decided by their types, since two variables may refer to the same container.
+ */
+final class CommonSubexpressionPass extends PassManager.Pass {
+    static final String NAME = "cse";
+
+    CommonSubexpressionPass() {
+        super(NAME);
+    }
+
+    @Override
+    void run(final Adapter adapter, final IR.Block root, final CompilerStats stats) {
+        final Matcher matcher = new Matcher(adapter);
+        root.accept(matcher);
+
+        // the first occurrence of an expression that is never repeated does not need its temporary
+        root.accept(new IR.Rewriter() {
+            @Override
+            IR.Node visitAssign(final IR.Assign node) {
+                super.visitAssign(node);
+
+                if (matcher.stores.contains(node) && !matcher.used.contains(((IR.Load)node.target).variable)) {
+                    return node.value;
+                }
+
+                return node;
+            }
+        });
+    }
+
+    /** A value kept in a temporary along with everything it was computed from. */
+    private static class Entry {
+        final Set<Variable> variables = new HashSet<>();
+        final Set<Field> fields = new HashSet<>();
+        final List<Class<?>> containers = new ArrayList<>();
+
+        Variable temporary = null;
+    }
+
+    private static class Matcher extends IR.Rewriter {
+        private final Adapter adapter;
+
+        final Set<IR.Assign> stores = new HashSet<>();
+        final Set<Variable> used = new HashSet<>();
+
+        private Map<List<Object>, Entry> available;
+
+        Matcher(final Adapter adapter) {
+            this.adapter = adapter;
+
+            available = new HashMap<>();
+        }
+
+        /** Returns the values available at the end of either of two paths, where null is a path that exits. */
+        private static Map<List<Object>, Entry> merge(final Map<List<Object>, Entry> first,
+                                                      final Map<List<Object>, Entry> second) {
+            if (first == null) {
+                return second == null ? new HashMap<List<Object>, Entry>() : second;
+            } else if (second == null) {
+                return first;
+            }
+
+            final Iterator<Map.Entry<List<Object>, Entry>> entries = first.entrySet().iterator();
+
+            while (entries.hasNext()) {
+                final Map.Entry<List<Object>, Entry> entry = entries.next();
+
+                if (second.get(entry.getKey()) != entry.getValue()) {
+                    entries.remove();
+                }
+            }
+
+            return first;
+        }
+
+        /** Forgets every value that any store or call within the nodes may change. */
+        private void forget(final IR.Node... nodes) {
+            final IR.Rewriter writes = new IR.Rewriter() {
+                @Override
+                IR.Node visitDeclare(final IR.Declare node) {
+                    super.visitDeclare(node);
+                    stored(node.variable);
+
+                    return node;
+                }
+
+                @Override
+                IR.Node visitAssign(final IR.Assign node) {
+                    super.visitAssign(node);
+                    stored(node.target);
+
+                    return node;
+                }
+
+                @Override
+                IR.Node visitIncrement(final IR.Increment node) {
+                    stored(node.variable);
+
+                    return node;
+                }
+
+                @Override
+                IR.Node visitCall(final IR.Call node) {
+                    super.visitCall(node);
+                    called(node);
+
+                    return node;
+                }
+
+                @Override
+                IR.Node visitDynamic(final IR.Dynamic node) {
+                    super.visitDynamic(node);
+                    dynamic();
+
+                    return node;
+                }
+            };
+
+            for (final IR.Node node : nodes) {
+                if (node != null) {
+                    node.accept(writes);
+                }
+            }
+        }
+
+        private void stored(final Variable variable) {
+            final Iterator<Entry> entries = available.values().iterator();
+
+            while (entries.hasNext()) {
+                if (entries.next().variables.contains(variable)) {
+                    entries.remove();
+                }
+            }
+        }
+
+        private void stored(final IR.Expression target) {
+            if (target instanceof IR.Load) {
+                stored(((IR.Load)target).variable);
+            } else if (target instanceof IR.LoadField) {
+                final IR.LoadField field = (IR.LoadField)target;
+                final Iterator<Entry> entries = available.values().iterator();
+
+                while (entries.hasNext()) {
+                    final Entry entry = entries.next();
+
+                    if (entry.fields.contains(field.field) || (field.receiver == null ?
+                            !entry.containers.isEmpty() : alias(entry, field.receiver.type.clazz))) {
+                        entries.remove();
+                    }
+                }
+            } else if (target instanceof IR.Dynamic) {
+                dynamic();
+            } else {
+                final Class<?> array = ((IR.LoadArray)target).array.type.clazz;
+                final Iterator<Entry> entries = available.values().iterator();
+
+                while (entries.hasNext()) {
+                    if (alias(entries.next(), array)) {
+                        entries.remove();
+                    }
+                }
+            }
+        }
+
+        /** Forgets the values that a call to a method that may change state may change. */
+        private void called(final IR.Call call) {
+            if (Caster.isReadOnly(call.method)) {
+                return;
+            }
+
+            final Iterator<Entry> entries = available.values().iterator();
+
+            while (entries.hasNext()) {
+                final Entry entry = entries.next();
+                boolean changed = call.receiver == null && (!entry.fields.isEmpty() || !entry.containers.isEmpty());
+
+                if (call.receiver != null) {
+                    changed = !entry.fields.isEmpty() || alias(entry, call.receiver.type.clazz);
+                }
+
+                for (final IR.Expression argument : call.arguments) {
+                    changed |= !argument.type.clazz.isPrimitive() && alias(entry, argument.type.clazz);
+                }
+
+                if (changed) {
+                    entries.remove();
+                }
+            }
+        }
+
+        /** Forgets every value read through a field or container, any of which a def operation may change. */
+        private void dynamic() {
+            final Iterator<Entry> entries = available.values().iterator();
+
+            while (entries.hasNext()) {
+                final Entry entry = entries.next();
+
+                if (!entry.fields.isEmpty() || !entry.containers.isEmpty()) {
+                    entries.remove();
+                }
+            }
+        }
+
+        /** Returns true if a container of the class may be one of the containers read for the value. */
+        private static boolean alias(final Entry entry, final Class<?> clazz) {
+            for (final Class<?> container : entry.containers) {
+                if (alias(container, clazz)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Returns true if an object of the first class may also be an object of the second.  Two unrelated
+         * classes never share an object, but any class that is not final may implement an unrelated interface.
+         */
+        private static boolean alias(final Class<?> first, final Class<?> second) {
+            if (first.isAssignableFrom(second) || second.isAssignableFrom(first)) {
+                return true;
+            } else if (first.isArray() || second.isArray() || !first.isInterface() && !second.isInterface()) {
+                return false;
+            }
+
+            return first.isInterface() ? !Modifier.isFinal(second.getModifiers()) : !Modifier.isFinal(first.getModifiers());
+        }
+
+        /**
+         * Returns a key that is equal for two expressions only when both always give the same value given the
+         * same variables and containers, and adds what the expression reads to the entry.  Returns null when
+         * the expression is not an access chain or arithmetic that is free of side effects.
+         */
+        private static List<Object> key(final IR.Expression expression, final Entry entry) {
+            if (expression instanceof IR.Constant) {
+                return Arrays.<Object>asList(IR.Constant.class, expression.type.clazz, ((IR.Constant)expression).value);
+            } else if (expression instanceof IR.Null) {
+                return Arrays.<Object>asList(IR.Null.class, expression.type.clazz);
+            } else if (expression instanceof IR.Load) {
+                final Variable variable = ((IR.Load)expression).variable;
+                entry.variables.add(variable);
+
+                return Arrays.<Object>asList(IR.Load.class, variable);
+            } else if (expression instanceof IR.Convert) {
+                final IR.Convert convert = (IR.Convert)expression;
+                final Method method = convert.cast instanceof Transform ? ((Transform)convert.cast).method : null;
+
+                return key(Arrays.<Object>asList(IR.Convert.class, convert.cast.from.clazz, convert.type.clazz, method),
+                        entry, convert.expression);
+            } else if (expression instanceof IR.Unary) {
+                final IR.Unary unary = (IR.Unary)expression;
+
+                return key(Arrays.<Object>asList(IR.Unary.class, unary.type.clazz, unary.token), entry, unary.expression);
+            } else if (expression instanceof IR.Binary) {
+                final IR.Binary binary = (IR.Binary)expression;
+
+                return key(Arrays.<Object>asList(IR.Binary.class, binary.type.clazz, binary.token),
+                        entry, binary.left, binary.right);
+            } else if (expression instanceof IR.LoadField) {
+                final IR.LoadField field = (IR.LoadField)expression;
+                entry.fields.add(field.field);
+
+                if (field.receiver != null) {
+                    entry.containers.add(field.receiver.type.clazz);
+                }
+
+                return key(Arrays.<Object>asList(IR.LoadField.class, field.field), entry, field.receiver);
+            } else if (expression instanceof IR.Length) {
+                return key(Arrays.<Object>asList(IR.Length.class), entry, ((IR.Length)expression).array);
+            } else if (expression instanceof IR.LoadArray) {
+                final IR.LoadArray array = (IR.LoadArray)expression;
+                entry.containers.add(array.array.type.clazz);
+
+                return key(Arrays.<Object>asList(IR.LoadArray.class, array.type.clazz), entry, array.array, array.index);
+            } else if (expression instanceof IR.Call) {
+                final IR.Call call = (IR.Call)expression;
+
+                if (!Caster.isReadOnly(call.method)) {
+                    return null;
+                }
+
+                // a read-only call may read the state of its receiver and of any object passed to it
+                if (call.receiver != null) {
+                    entry.containers.add(call.receiver.type.clazz);
+                }
+
+                for (final IR.Expression argument : call.arguments) {
+                    if (!argument.type.clazz.isPrimitive()) {
+                        entry.containers.add(argument.type.clazz);
+                    }
+                }
+
+                final List<Object> key = key(Arrays.<Object>asList(IR.Call.class, call.method), entry, call.receiver);
+
+                return key == null ? null : key(key, entry, call.arguments.toArray(new IR.Expression[0]));
+            } else if (expression instanceof IR.DocValue) {
+                final IR.DocValue value = (IR.DocValue)expression;
+
+                // the field is read through the doc map of the input, which a call may change
+                entry.containers.add(value.input.type.clazz);
+
+                return key(Arrays.<Object>asList(IR.DocValue.class, value.type.clazz, value.field), entry, value.input);
+            }
+
+            return null;
+        }
+
+        private static List<Object> key(final List<Object> node, final Entry entry, final IR.Expression... children) {
+            final List<Object> key = new ArrayList<>(node);
+
+            for (final IR.Expression child : children) {
+                if (child == null) {
+                    key.add(null);
+                } else {
+                    final List<Object> operand = key(child, entry);
+
+                    if (operand == null) {
+                        return null;
+                    }
+
+                    key.add(operand);
+                }
+            }
+
+            return key;
+        }
+
+        @Override
+        IR.Expression expression(final IR.Expression expression) {
+            if (expression == null || IR.isTrivial(expression)) {
+                return super.expression(expression);
+            }
+
+            final Entry candidate = new Entry();
+            final List<Object> key = key(expression, candidate);
+
+            if (key == null) {
+                return super.expression(expression);
+            }
+
+            final Entry entry = available.get(key);
+
+            if (entry != null) {
+                used.add(entry.temporary);
+
+                return new IR.Load(expression.source, entry.temporary);
+            }
+
+            // a part of the expression may already be available, or be repeated later on its own
+            final IR.Expression value = super.expression(expression);
+            candidate.temporary = adapter.addTemporary("#common" + stores.size(), expression.type);
+            final IR.Assign store = new IR.Assign(expression.source, expression.type,
+                    new IR.Load(expression.source, candidate.temporary), 0, null, null, value, true, false);
+
+            available.put(key, candidate);
+            stores.add(store);
+
+            return store;
+        }
+
+        @Override
+        IR.Node visitDeclare(final IR.Declare node) {
+            super.visitDeclare(node);
+            stored(node.variable);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitIf(final IR.If node) {
+            node.condition = expression(node.condition);
+
+            final Map<List<Object>, Entry> before = new HashMap<>(available);
+
+            node.then = statement(node.then);
+            final Map<List<Object>, Entry> then = node.then.exits() ? null : available;
+
+            available = new HashMap<>(before);
+            node.otherwise = statement(node.otherwise);
+            final Map<List<Object>, Entry> otherwise = node.otherwise != null && node.otherwise.exits() ? null : available;
+
+            available = merge(then, otherwise);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitWhile(final IR.While node) {
+            forget(node.condition, node.body);
+
+            final Map<List<Object>, Entry> before = new HashMap<>(available);
+
+            node.condition = expression(node.condition);
+            node.body = statement(node.body);
+            available = before;
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitDo(final IR.Do node) {
+            forget(node.body, node.condition);
+
+            final Map<List<Object>, Entry> before = new HashMap<>(available);
+
+            node.body = statement(node.body);
+            available = new HashMap<>(before);
+            node.condition = expression(node.condition);
+            available = before;
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitFor(final IR.For node) {
+            node.initializer = statement(node.initializer);
+            forget(node.condition, node.body, node.afterthought);
+
+            final Map<List<Object>, Entry> before = new HashMap<>(available);
+
+            node.condition = expression(node.condition);
+            node.body = statement(node.body);
+            available = new HashMap<>(before);
+            node.afterthought = statement(node.afterthought);
+            available = before;
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitLogical(final IR.Logical node) {
+            node.left = expression(node.left);
+
+            final Map<List<Object>, Entry> before = new HashMap<>(available);
+
+            node.right = expression(node.right);
+            available = merge(before, available);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitConditional(final IR.Conditional node) {
+            node.condition = expression(node.condition);
+
+            final Map<List<Object>, Entry> before = new HashMap<>(available);
+
+            node.left = expression(node.left);
+            final Map<List<Object>, Entry> left = available;
+
+            available = new HashMap<>(before);
+            node.right = expression(node.right);
+            available = merge(left, available);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitCall(final IR.Call node) {
+            super.visitCall(node);
+            called(node);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitDynamic(final IR.Dynamic node) {
+            super.visitDynamic(node);
+            dynamic();
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitAssign(final IR.Assign node) {
+            super.visitAssign(node);
+            stored(node.target);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitIncrement(final IR.Increment node) {
+            stored(node.variable);
+
+            return node;
+        }
+    }
+}
@@ -25,11 +25,23 @@ import java.security.cert.Certificate;
  * under the License.
  */
 
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.elasticsearch.bootstrap.BootstrapInfo;
 
 import static org.elasticsearch.plan.a.Default.*;
@@ -37,7 +49,7 @@ import static org.elasticsearch.plan.a.Definition.*;
 
 final class Compiler {
     /** we define the class with lowest privileges */
-    private static final CodeSource CODESOURCE;
+    static final CodeSource CODESOURCE;
 
     static {
         try {
@@ -47,9 +59,17 @@ final class Compiler {
         }
     }
 
-    private static class Loader extends SecureClassLoader {
-        Loader(ClassLoader parent) {
+    /**
+     * Loads the scripts a {@link LoaderPool} defines in it, holding the definition they were compiled with for linking
+     * their def call sites.
+     */
+    static final class Loader extends SecureClassLoader {
+        final Definition definition;
+
+        Loader(final ClassLoader parent, final Definition definition) {
             super(parent);
+
+            this.definition = definition;
         }
 
         Class<? extends Executable> define(String name, byte[] bytes) {
@@ -59,80 +79,338 @@ final class Compiler {
 
     static Executable compile(final String name, final String source,
                               final ClassLoader parent, final Properties properties) {
-        long start = System.currentTimeMillis();
+        return compile(name, source, parent, properties, new CompilerSettings());
+    }
 
-        final Definition definition = properties == null ? DEFAULT_DEFINITION : loadFromProperties(properties);
-        final Standard standard = properties == null ? DEFAULT_STANDARD : new Standard(definition);
-        final Caster caster = properties == null ? DEFAULT_CASTER : new Caster(definition, standard);
+    /**
+     * Compiles the source into an {@link Executable}.  When the settings have stats the time spent in
+     * each phase along with the size of the generated class is recorded.
+     */
+    static Executable compile(final String name, final String source, final ClassLoader parent,
+                              final Properties properties, final CompilerSettings settings) {
+        final CompilerStats stats = settings.getStats();
+        final long start = System.nanoTime();
 
-        //long end = System.currentTimeMillis() - start;
-        //System.out.println("definition: " + end);
-        //start = System.currentTimeMillis();
+        try {
+            final Lowered lowered = lower(source, properties, settings);
+            final Adapter adapter = lowered.adapter;
+            final IR.Block ir = lowered.ir;
+            long mark = System.nanoTime();
 
-        //final ParserRuleContext root = createParseTree(source, definition);
-        final ANTLRInputStream stream = new ANTLRInputStream(source);
-        final ErrorHandlingLexer lexer = new ErrorHandlingLexer(stream);
-        final PlanAParser parser = new PlanAParser(new CommonTokenStream(lexer));
-        final ParserErrorStrategy strategy = new ParserErrorStrategy();
+            if (settings.getTierThreshold() > 0) {
+                final Executable executable = createTiered(name, source, parent, adapter, ir, settings);
 
-        lexer.removeErrorListeners();
+                if (stats != null) {
+                    stats.recordInterpreted(mark - start);
+                }
 
-        parser.setTypes(definition.structs.keySet());
-        parser.removeErrorListeners();
-        parser.setErrorHandler(strategy);
+                return executable;
+            }
+
+            final String className = LoaderPool.name();
+            final byte[] bytes = Writer.write(adapter, ir, className);
+
+            mark = record(stats, CompilerStats.Phase.WRITE, mark);
+
+            final Executable executable =
+                    createExecutable(name, source, parent, adapter.definition, className, bytes, settings);
+            configure(executable, adapter);
+
+            mark = record(stats, CompilerStats.Phase.DEFINE, mark);
+
+            if (stats != null) {
+                stats.recordDefinedClass();
+                stats.recordCompiled(mark - start, bytes.length);
+            }
+
+            return executable;
+        } catch (final RuntimeException exception) {
+            if (stats != null) {
+                stats.recordFailed();
+            }
+
+            throw exception;
+        }
+    }
+
+    /**
+     * Compiles every source, keyed by the name of its script, into a single class that holds the methods of all of
+     * the scripts, and returns an {@link Executable} for each name that runs its script.  Sharing the class saves
+     * the constant pool, loading and verification of a class for every script, so many stored scripts can be
+     * compiled at once.  The class is defined as soon as it is written, whatever the tier threshold of the settings.
+     * When the settings have stats each script is counted as compiled, while the class is recorded only once.
+     */
+    static Map<String, Executable> compileAll(final Map<String, String> sources, final ClassLoader parent,
+                                              final Properties properties, final CompilerSettings settings) {
+        final CompilerStats stats = settings.getStats();
+        final long start = System.nanoTime();
+        final Map<String, Executable> executables = new LinkedHashMap<>();
+
+        if (sources.isEmpty()) {
+            return executables;
+        }
 
-        ParserRuleContext root = parser.source();
+        try {
+            final List<Adapter> adapters = new ArrayList<>();
+            final List<IR.Block> roots = new ArrayList<>();
+
+            for (final String source : sources.values()) {
+                final Lowered lowered = lower(source, properties, settings);
+                adapters.add(lowered.adapter);
+                roots.add(lowered.ir);
+            }
+
+            long mark = System.nanoTime();
+
+            final String className = LoaderPool.name();
+            final byte[] bytes = Writer.pack(adapters, roots, className);
+
+            mark = record(stats, CompilerStats.Phase.WRITE, mark);
+
+            final Definition definition = adapters.get(0).definition;
+            final List<Executable> packed = createPacked(sources, parent, definition, className, bytes, settings);
+            int script = 0;
+
+            for (final String name : sources.keySet()) {
+                final Executable executable = packed.get(script);
+                configure(executable, adapters.get(script));
+                executables.put(name, executable);
+                ++script;
+            }
+
+            mark = record(stats, CompilerStats.Phase.DEFINE, mark);
+
+            if (stats != null) {
+                stats.recordDefinedClass();
+                stats.recordPacked(sources.size(), mark - start, bytes.length);
+            }
+
+            return executables;
+        } catch (final RuntimeException exception) {
+            if (stats != null) {
+                stats.recordFailed();
+            }
 
-        //end = System.currentTimeMillis() - start;
-        //System.out.println("tree: " + end);
+            throw exception;
+        }
+    }
+
+    /** The optimized tree of a script along with what the compiler found out about it. */
+    private static final class Lowered {
+        final Adapter adapter;
+        final IR.Block ir;
+
+        Lowered(final Adapter adapter, final IR.Block ir) {
+            this.adapter = adapter;
+            this.ir = ir;
+        }
+    }
+
+    /** Parses, analyzes, lowers and optimizes the source, recording the time spent in each phase. */
+    private static Lowered lower(final String source, final Properties properties, final CompilerSettings settings) {
+        final CompilerStats stats = settings.getStats();
+        final DefinitionRegistry.Loaded loaded = settings.getDefinitions().get(properties);
+        final Definition definition = loaded.definition;
+        final Standard standard = loaded.standard;
+        final Caster caster = loaded.caster;
+
+        long mark = System.nanoTime();
+
+        final ParserRuleContext root;
+
+        if (settings.getParser() == CompilerSettings.ParserType.DESCENT) {
+            root = ScriptParser.parse(source, definition.structs.keySet());
+        } else {
+            root = createParseTree(source, definition, stats);
+        }
+
+        mark = record(stats, CompilerStats.Phase.PARSE, mark);
 
         final Adapter adapter = new Adapter(definition, standard, caster, source, root);
         adapter.incrementScope();
         adapter.addVariable(null, "this", adapter.standard.execType);
-        adapter.addVariable(null, "input", adapter.standard.smapType);
+        adapter.input = adapter.addVariable(null, "input", adapter.standard.smapType);
 
-        start = System.currentTimeMillis();
+        if (settings.getSchema() != null) {
+            addParameters(adapter, settings.getSchema());
+        }
 
         Analyzer.analyze(adapter);
         adapter.decrementScope();
-        // System.out.println(root.toStringTree(parser));
 
-        //end = System.currentTimeMillis() - start;
-        //System.out.println("analyze: " + end);
-        //start = System.currentTimeMillis();
+        mark = record(stats, CompilerStats.Phase.ANALYZE, mark);
+
+        final IR.Block ir = Lowerer.lower(adapter);
+
+        mark = record(stats, CompilerStats.Phase.LOWER, mark);
 
-        final byte[] bytes = Writer.write(adapter);
+        PassManager.run(adapter, ir, settings);
+
+        record(stats, CompilerStats.Phase.OPTIMIZE, mark);
+
+        return new Lowered(adapter, ir);
+    }
+
+    /** Copies what the compiler found out about the script to the executable that runs it. */
+    private static void configure(final Executable executable, final Adapter adapter) {
+        if (adapter.stages != null) {
+            executable.setStaged(adapter.stages.keys);
+        }
 
-        //end = System.currentTimeMillis() - start;
-        //System.out.println("write: " + end);
-        //start = System.currentTimeMillis();
+        executable.setNeedsScores(adapter.scores);
 
-        final Executable executable = createExecutable(name, source, parent, bytes);
+        if (adapter.bindings != null) {
+            executable.setBindings(adapter.bindings, adapter.fields);
+        }
+    }
 
-        //end = System.currentTimeMillis() - start;
-        //System.out.println("create: " + end);
+    /**
+     * Creates an executable that interprets the optimized tree of the script until it reaches the threshold of the
+     * settings, when the executor writes and defines its class.  The executor may run on a thread of its own, so
+     * the class is defined with the privileges of the compile that asked for it.
+     */
+    private static Executable createTiered(final String name, final String source, final ClassLoader parent,
+                                           final Adapter adapter, final IR.Block ir, final CompilerSettings settings) {
+        final CompilerStats stats = settings.getStats();
+        final AccessControlContext context = AccessController.getContext();
+        final Interpreter interpreter = new Interpreter(name, source, adapter, ir);
+        configure(interpreter, adapter);
+
+        final Callable<Executable> compiler = new Callable<Executable>() {
+            @Override
+            public Executable call() {
+                return AccessController.doPrivileged(new PrivilegedAction<Executable>() {
+                    @Override
+                    public Executable run() {
+                        long mark = System.nanoTime();
+
+                        final String className = LoaderPool.name();
+                        final byte[] bytes = Writer.write(adapter, ir, className);
+
+                        mark = record(stats, CompilerStats.Phase.WRITE, mark);
+
+                        final Executable executable =
+                                createExecutable(name, source, parent, adapter.definition, className, bytes, settings);
+                        configure(executable, adapter);
+
+                        record(stats, CompilerStats.Phase.DEFINE, mark);
+
+                        if (stats != null) {
+                            stats.recordDefinedClass();
+                            stats.recordPromoted(bytes.length);
+                        }
+
+                        return executable;
+                    }
+                }, context);
+            }
+        };
+
+        final Executable executable = new TieredExecutable(interpreter, compiler, settings.getTierThreshold(),
+                settings.getTierExecutor(), stats);
+        configure(executable, adapter);
 
         return executable;
     }
 
-    private static ParserRuleContext createParseTree(String source, Definition definition) {
+    /** Declares a variable for each parameter of the schema, which is in scope for the whole script. */
+    private static void addParameters(final Adapter adapter, final Schema schema) {
+        for (final Map.Entry<String, String> parameter : schema.getParameters().entrySet()) {
+            final Type type = getTypeFromCanonicalName(adapter.definition, parameter.getValue());
+
+            if (type.metadata == TypeMetadata.VOID) {
+                throw new IllegalArgumentException("Parameter [" + parameter.getKey() + "] can not be of type [void].");
+            }
+
+            adapter.parameters.add(adapter.addVariable(null, parameter.getKey(), type));
+
+            // the score is read for the parameter whether or not the script uses it
+            adapter.scores |= "_score".equals(parameter.getKey());
+        }
+    }
+
+    private static long record(final CompilerStats stats, final CompilerStats.Phase phase, final long mark) {
+        final long now = System.nanoTime();
+
+        if (stats != null) {
+            stats.recordPhase(phase, now - mark);
+        }
+
+        return now;
+    }
+
+    /**
+     * Parses with SLL prediction and a bail out strategy first since it is much faster and succeeds for
+     * nearly all scripts.  Only when that fails is the source reparsed with full LL prediction, which
+     * will also produce the appropriate error message for a script that is actually invalid.
+     */
+    private static ParserRuleContext createParseTree(final String source, final Definition definition,
+                                                     final CompilerStats stats) {
         final ANTLRInputStream stream = new ANTLRInputStream(source);
         final ErrorHandlingLexer lexer = new ErrorHandlingLexer(stream);
-        final PlanAParser parser = new PlanAParser(new CommonTokenStream(lexer));
-        final ParserErrorStrategy strategy = new ParserErrorStrategy();
+        final CommonTokenStream tokens = new CommonTokenStream(lexer);
+        final PlanAParser parser = new PlanAParser(tokens);
 
         lexer.removeErrorListeners();
 
         parser.setTypes(definition.structs.keySet());
         parser.removeErrorListeners();
-        parser.setErrorHandler(strategy);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+
+        try {
+            return parser.source();
+        } catch (final ParseCancellationException exception) {
+            if (stats != null) {
+                stats.recordParseFallback();
+            }
+
+            tokens.seek(0);
+            parser.reset();
+            parser.setErrorHandler(new ParserErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+
+            return parser.source();
+        }
+    }
 
-        ParserRuleContext root = parser.source();
-        // System.out.println(root.toStringTree(parser));
-        return root;
+    /**
+     * Parses a corpus of representative scripts to fill the prediction cache shared by all instances
+     * of the parser, so the first compiles after startup do not pay for a cold cache.  Only the first
+     * call does any work.
+     */
+    static void warmup() {
+        if (!WARM.compareAndSet(false, true)) {
+            return;
+        }
+
+        for (final String source : WARMUP) {
+            createParseTree(source, DEFAULT_DEFINITION, null);
+        }
     }
 
-    private static Executable createExecutable(String name, String source, ClassLoader parent, byte[] bytes) {
+    private static final AtomicBoolean WARM = new AtomicBoolean();
+
+    private static final String[] WARMUP = {
+        "return 1 + 2 * 3 - 4 / 5 % 6;",
+        "int x = 0; long y = 1L; float z = 2.0F; double w = 3.0; return x + y + z + w;",
+        "bool b = true && !false || 1 < 2 && 3 >= 4 || (5 & 6 | 7 ^ 8) != 9; return b ? 16 : 7;",
+        "byte b = (byte)1; short s = (short)~b; char c = 'c'; return s << 2 >> 1 >>> c;",
+        "int x = 0; x += 1; x -= 2; x *= 3; x /= 4; x %= 5; x &= 6; x |= 7; x ^= 8; x <<= 1; x >>= 1; " +
+                "x >>>= 1; return x++ + ++x - x-- - --x;",
+        "string s = \"a\"; s = s .. \"b\"; s ..= 'c'; return s;",
+        "for (int x = 0, y = 1; x < 10; ++x) { if (x == y) continue; else if (x > 5) break; } return null;",
+        "int x = 0; while (x < 10) ++x; do { --x; } while (x > 0); return x;",
+        "int[][] a = int.makearray(2, 2); a[0][1] = 5; return a[0][1] + a.length;",
+        "smap m = input; list l = (list)m.get(\"l\"); object o = ((smap)m.get(\"o\")).get(\"p\"); " +
+                "if (l.size() > 0) return l.get(0); return o;",
+        "map m = (map)input.get(\"m\"); return ((list)m.get(\"l\")).size() + this.hash();",
+        "return (input.get(\"x\") == null) ? -1 : ((int)input.get(\"x\") + 1);"
+    };
+
+    private static Executable createExecutable(final String name, final String source, final ClassLoader parent,
+                                               final Definition definition, final String className, final byte[] bytes,
+                                               final CompilerSettings settings) {
         try {
             // for debugging:
              //try {
@@ -143,8 +421,8 @@ final class Compiler {
              //   throw new RuntimeException(e);
              //}
 
-            final Loader loader = new Loader(parent);
-            final Class<? extends Executable> clazz = loader.define(Writer.CLASS_NAME, bytes);
+            final Class<? extends Executable> clazz =
+                    settings.getLoaders().define(parent, definition, className, bytes, settings.getStats());
             final java.lang.reflect.Constructor<? extends Executable> constructor =
                     clazz.getConstructor(String.class, String.class);
 
@@ -155,5 +433,27 @@ final class Compiler {
         }
     }
 
+    /** Defines the packed class of the scripts and returns an instance for each script, in the order of the sources. */
+    private static List<Executable> createPacked(final Map<String, String> sources, final ClassLoader parent,
+                                                 final Definition definition, final String className, final byte[] bytes,
+                                                 final CompilerSettings settings) {
+        try {
+            final Class<? extends Executable> clazz =
+                    settings.getLoaders().define(parent, definition, className, bytes, settings.getStats());
+            final java.lang.reflect.Constructor<? extends Executable> constructor =
+                    clazz.getConstructor(String.class, String.class, int.class);
+            final List<Executable> executables = new ArrayList<>();
+
+            for (final Map.Entry<String, String> source : sources.entrySet()) {
+                executables.add(constructor.newInstance(source.getKey(), source.getValue(), executables.size()));
+            }
+
+            return executables;
+        } catch (Exception exception) {
+            throw new IllegalStateException(
+                    "An internal error occurred attempting to define the scripts " + sources.keySet() + ".", exception);
+        }
+    }
+
     private Compiler() {}
 }
@@ -0,0 +1,145 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Options for a single engine that control how {@link Compiler#compile} builds a script.
+ */
+final class CompilerSettings {
+    enum ParserType {
+        /** the generated ANTLR parser */
+        ANTLR,
+        /** the hand-written {@link ScriptParser} */
+        DESCENT
+    }
+
+    private ParserType parser = ParserType.ANTLR;
+    private CompilerStats stats = null;
+    private DefinitionRegistry definitions = DefinitionRegistry.SHARED;
+    private Schema schema = null;
+    private int tierThreshold = 0;
+    private Executor tierExecutor = null;
+    private LoaderPool loaders = new LoaderPool(LoaderPool.DEFAULT_CAPACITY);
+    private final Set<String> disabled = new HashSet<>();
+
+    ParserType getParser() {
+        return parser;
+    }
+
+    CompilerSettings setParser(final ParserType parser) {
+        this.parser = parser;
+
+        return this;
+    }
+
+    /** Returns where compilation metrics are recorded, or null if they are not. */
+    CompilerStats getStats() {
+        return stats;
+    }
+
+    CompilerSettings setStats(final CompilerStats stats) {
+        this.stats = stats;
+
+        return this;
+    }
+
+    /** Returns where the definitions for custom properties are loaded and kept between compiles. */
+    DefinitionRegistry getDefinitions() {
+        return definitions;
+    }
+
+    CompilerSettings setDefinitions(final DefinitionRegistry definitions) {
+        this.definitions = definitions;
+
+        return this;
+    }
+
+    /** Returns the typed parameters the script is compiled with, or null if it reads only the input map. */
+    Schema getSchema() {
+        return schema;
+    }
+
+    CompilerSettings setSchema(final Schema schema) {
+        this.schema = schema;
+
+        return this;
+    }
+
+    /**
+     * Returns the number of runs after which an interpreted script has its class written and defined, or 0 when
+     * every script has its class defined as it is compiled.
+     */
+    int getTierThreshold() {
+        return tierThreshold;
+    }
+
+    /** Returns where the class of an interpreted script is written and defined once it reaches the threshold. */
+    Executor getTierExecutor() {
+        return tierExecutor;
+    }
+
+    CompilerSettings setTiers(final int threshold, final Executor executor) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Tier threshold [" + threshold + "] must not be negative.");
+        } else if (threshold > 0 && executor == null) {
+            throw new IllegalArgumentException("Tier threshold [" + threshold + "] requires an executor.");
+        }
+
+        tierThreshold = threshold;
+        tierExecutor = executor;
+
+        return this;
+    }
+
+    /** Returns where the classes of scripts are defined. */
+    LoaderPool getLoaders() {
+        return loaders;
+    }
+
+    /** Defines the classes of scripts in loaders that each hold up to capacity scripts, 1 for a loader per script. */
+    CompilerSettings setLoaderCapacity(final int capacity) {
+        loaders = new LoaderPool(capacity);
+
+        return this;
+    }
+
+    /** Returns true unless the optimization pass with the name has been disabled. */
+    boolean isPassEnabled(final String name) {
+        return !disabled.contains(name);
+    }
+
+    CompilerSettings setPassEnabled(final String name, final boolean enabled) {
+        if (PassManager.getPass(name) == null) {
+            throw new IllegalArgumentException("Unknown optimization pass [" + name + "].");
+        }
+
+        if (enabled) {
+            disabled.remove(name);
+        } else {
+            disabled.add(name);
+        }
+
+        return this;
+    }
+}
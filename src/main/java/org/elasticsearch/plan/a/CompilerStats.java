@@ -0,0 +1,284 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compilation metrics for an engine.  Each phase of {@link Compiler#compile} records its elapsed time in
+ * nanoseconds into a histogram, along with counts of compiled scripts, generated bytecode sizes and the
+ * number of classes defined.  The live classes and loaders are counted down as the {@link LoaderPool} finds their
+ * loaders unloaded.  A script compiled in tiers counts as compiled once it can be interpreted, and its bytecode
+ * and class are recorded when it is promoted, or its failure to promote is counted.  A bulk compile counts each of its scripts as compiled, but records
+ * its time and its single class once.  All of the recording methods are thread-safe.
+ */
+public final class CompilerStats {
+    public enum Phase {
+        PARSE,
+        ANALYZE,
+        LOWER,
+        OPTIMIZE,
+        WRITE,
+        DEFINE
+    }
+
+    /**
+     * A lock-free histogram with log-linear buckets.  Each power of two is split into eight sub-buckets
+     * so a reported percentile is within 12.5% of the recorded value.
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current = max.get();
+
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            final long total = count.get();
+
+            return total == 0 ? 0.0 : (double)sum.get() / total;
+        }
+
+        /**
+         * Returns an upper bound for the value at the given quantile (0.0 to 1.0), or 0 when nothing
+         * has been recorded.
+         */
+        public long getPercentile(final double quantile) {
+            if (quantile < 0.0 || quantile > 1.0) {
+                throw new IllegalArgumentException("Illegal quantile [" + quantile + "].");
+            }
+
+            final long total = count.get();
+
+            if (total == 0) {
+                return 0;
+            }
+
+            final long rank = Math.max(1, (long)Math.ceil(quantile * total));
+            long seen = 0;
+
+            for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+                seen += buckets.get(bucket);
+
+                if (seen >= rank) {
+                    return Math.min(upperBound(bucket), max.get());
+                }
+            }
+
+            return max.get();
+        }
+
+        private static int bucket(final long value) {
+            if (value < SUB_COUNT) {
+                return (int)value;
+            }
+
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        private static long upperBound(final int bucket) {
+            if (bucket < SUB_COUNT - 1) {
+                return bucket;
+            } else if (bucket == BUCKETS - 1) {
+                return Long.MAX_VALUE;
+            }
+
+            final int next = bucket + 1;
+            final int exponent = (next >> SUB_BITS) + SUB_BITS - 1;
+
+            return ((long)(SUB_COUNT | (next & (SUB_COUNT - 1))) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    private final Histogram[] phases;
+    private final Histogram total = new Histogram();
+    private final Histogram bytecode = new Histogram();
+    private final Histogram eliminated = new Histogram();
+    private final AtomicLong compiled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong classes = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong interpreted = new AtomicLong();
+    private final AtomicLong promoted = new AtomicLong();
+    private final AtomicLong unpromoted = new AtomicLong();
+    private final AtomicLong loaders = new AtomicLong();
+    private final AtomicLong unloaded = new AtomicLong();
+
+    public CompilerStats() {
+        phases = new Histogram[Phase.values().length];
+
+        for (int phase = 0; phase < phases.length; ++phase) {
+            phases[phase] = new Histogram();
+        }
+    }
+
+    void recordPhase(final Phase phase, final long nanos) {
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    void recordCompiled(final long nanos, final int bytes) {
+        total.record(nanos);
+        bytecode.record(bytes);
+        compiled.incrementAndGet();
+    }
+
+    void recordPacked(final int scripts, final long nanos, final int bytes) {
+        total.record(nanos);
+        bytecode.record(bytes);
+        compiled.addAndGet(scripts);
+    }
+
+    void recordInterpreted(final long nanos) {
+        total.record(nanos);
+        compiled.incrementAndGet();
+        interpreted.incrementAndGet();
+    }
+
+    void recordPromoted(final int bytes) {
+        bytecode.record(bytes);
+        promoted.incrementAndGet();
+    }
+
+    void recordPromotionFailed() {
+        unpromoted.incrementAndGet();
+    }
+
+    void recordEliminated(final int bytes) {
+        eliminated.record(bytes);
+    }
+
+    void recordFailed() {
+        failed.incrementAndGet();
+    }
+
+    void recordParseFallback() {
+        fallbacks.incrementAndGet();
+    }
+
+    void recordDefinedClass() {
+        classes.incrementAndGet();
+    }
+
+    void recordLoader() {
+        loaders.incrementAndGet();
+    }
+
+    void recordUnloaded(final int classes) {
+        loaders.decrementAndGet();
+        unloaded.addAndGet(classes);
+    }
+
+    /** Returns the elapsed time in nanoseconds of a single phase of each compile. */
+    public Histogram getPhase(final Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /** Returns the end to end time in nanoseconds of each successful compile. */
+    public Histogram getTotal() {
+        return total;
+    }
+
+    /** Returns the size in bytes of the generated class for each successful compile. */
+    public Histogram getBytecodeSize() {
+        return bytecode;
+    }
+
+    /** Returns the estimated size in bytes of the bytecode removed by dead code elimination for each compile. */
+    public Histogram getEliminatedBytecode() {
+        return eliminated;
+    }
+
+    public long getCompiledCount() {
+        return compiled.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getDefinedClassCount() {
+        return classes.get();
+    }
+
+    /** Returns the number of parses that had to fall back from SLL to full LL prediction. */
+    public long getParseFallbackCount() {
+        return fallbacks.get();
+    }
+
+    /** Returns the number of script classes that have been defined and not yet unloaded. */
+    public long getLiveClassCount() {
+        return classes.get() - unloaded.get();
+    }
+
+    /** Returns the number of class loaders holding script classes that have not yet been unloaded. */
+    public long getLoaderCount() {
+        return loaders.get();
+    }
+
+    /** Returns the number of scripts that started out interpreted. */
+    public long getInterpretedCount() {
+        return interpreted.get();
+    }
+
+    /** Returns the number of interpreted scripts that ran often enough to have their class defined. */
+    public long getPromotedCount() {
+        return promoted.get();
+    }
+
+    /** Returns the number of interpreted scripts whose class failed to be written or defined, which stay interpreted. */
+    public long getPromotionFailedCount() {
+        return unpromoted.get();
+    }
+}
@@ -0,0 +1,621 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * Propagates the constant values of local variables through the script and folds every operation whose
+ * operands are all constant, including casts and calls to pure whitelisted methods, which are evaluated
+ * through the {@link Caster} the same way the analyzer evaluates a constant cast.
+ *
+ * The propagation is flow-sensitive.  Both arms of an if start from the values known before it and only the
+ * values they agree on are known after it, while any variable stored to within a loop is unknown throughout
+ * the loop and after it.  An operation that would throw, such as an integer division by zero, is never folded
+ * so it still fails when the script is run.
+ *
+ * A string computed by the script is a new string each time, while a string constant is interned, so in a
+ * script that compares references with {@code ===} or {@code !==} no operation is folded into a string.
+ */
+final class ConstantPass extends PassManager.Pass {
+    static final String NAME = "constant";
+
+    ConstantPass() {
+        super(NAME);
+    }
+
+    @Override
+    void run(final Adapter adapter, final IR.Block root, final CompilerStats stats) {
+        root.accept(new Propagator(adapter.caster, !IR.comparesReferences(root)));
+    }
+
+    private static class Propagator extends IR.Rewriter {
+        private final Caster caster;
+        /** Whether an operation may be folded into a string, which is false when the script compares references. */
+        private final boolean strings;
+
+        private Map<Variable, Object> constants;
+
+        Propagator(final Caster caster, final boolean strings) {
+            this.caster = caster;
+            this.strings = strings;
+
+            constants = new HashMap<>();
+        }
+
+        /** Returns the values known at the end of either of two paths, where null is a path that exits. */
+        private static Map<Variable, Object> merge(final Map<Variable, Object> first, final Map<Variable, Object> second) {
+            if (first == null) {
+                return second == null ? new HashMap<Variable, Object>() : second;
+            } else if (second == null) {
+                return first;
+            }
+
+            final Iterator<Map.Entry<Variable, Object>> entries = first.entrySet().iterator();
+
+            while (entries.hasNext()) {
+                final Map.Entry<Variable, Object> entry = entries.next();
+
+                if (!entry.getValue().equals(second.get(entry.getKey()))) {
+                    entries.remove();
+                }
+            }
+
+            return first;
+        }
+
+        /** Returns true if the value of an operation may replace it. */
+        private boolean folds(final Object value) {
+            return value != null && (strings || !(value instanceof String));
+        }
+
+        private void forget(final IR.Node... nodes) {
+            constants.keySet().removeAll(IR.assigned(new HashSet<Variable>(), nodes));
+        }
+
+        @Override
+        IR.Node visitDeclare(final IR.Declare node) {
+            node.value = expression(node.value);
+
+            if (node.value instanceof IR.Constant) {
+                constants.put(node.variable, ((IR.Constant)node.value).value);
+            } else {
+                constants.remove(node.variable);
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitIf(final IR.If node) {
+            node.condition = expression(node.condition);
+
+            if (IR.isTrue(node.condition)) {
+                node.then = statement(node.then);
+            } else if (IR.isFalse(node.condition)) {
+                node.otherwise = statement(node.otherwise);
+            } else {
+                final Map<Variable, Object> before = new HashMap<>(constants);
+
+                node.then = statement(node.then);
+                final Map<Variable, Object> then = node.then.exits() ? null : constants;
+
+                constants = before;
+                node.otherwise = statement(node.otherwise);
+                final Map<Variable, Object> otherwise =
+                        node.otherwise != null && node.otherwise.exits() ? null : constants;
+
+                constants = merge(then, otherwise);
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitWhile(final IR.While node) {
+            forget(node.condition, node.body);
+
+            final Map<Variable, Object> before = new HashMap<>(constants);
+
+            node.condition = expression(node.condition);
+
+            if (!IR.isFalse(node.condition)) {
+                node.body = statement(node.body);
+            }
+
+            constants = before;
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitDo(final IR.Do node) {
+            forget(node.body, node.condition);
+
+            final Map<Variable, Object> before = new HashMap<>(constants);
+
+            node.body = statement(node.body);
+            constants = new HashMap<>(before);
+            node.condition = expression(node.condition);
+            constants = before;
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitFor(final IR.For node) {
+            node.initializer = statement(node.initializer);
+            forget(node.condition, node.body, node.afterthought);
+
+            final Map<Variable, Object> before = new HashMap<>(constants);
+
+            node.condition = expression(node.condition);
+
+            if (!IR.isFalse(node.condition)) {
+                node.body = statement(node.body);
+                constants = new HashMap<>(before);
+                node.afterthought = statement(node.afterthought);
+            }
+
+            constants = before;
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitLoad(final IR.Load node) {
+            final Object value = constants.get(node.variable);
+
+            return value == null ? node : new IR.Constant(node.source, node.type, value);
+        }
+
+        @Override
+        IR.Node visitConvert(final IR.Convert node) {
+            node.expression = expression(node.expression);
+
+            if (node.expression instanceof IR.Constant && node.cast.from.metadata.constant && node.type.metadata.constant) {
+                try {
+                    final Object value = caster.constCast(node.source, ((IR.Constant)node.expression).value, node.cast);
+
+                    if (folds(value)) {
+                        return new IR.Constant(node.source, node.type, value);
+                    }
+                } catch (final IllegalStateException exception) {
+                    // the cast is left to fail when the script is run
+                }
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitUnary(final IR.Unary node) {
+            node.expression = expression(node.expression);
+
+            if (node.expression instanceof IR.Constant) {
+                final Object value = unary(node.type.metadata, node.token, ((IR.Constant)node.expression).value);
+
+                if (value != null) {
+                    return new IR.Constant(node.source, node.type, value);
+                }
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitNot(final IR.Not node) {
+            node.expression = expression(node.expression);
+
+            if (node.expression instanceof IR.Constant) {
+                return new IR.Constant(node.source, node.type, !(boolean)((IR.Constant)node.expression).value);
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitBinary(final IR.Binary node) {
+            super.visitBinary(node);
+
+            if (node.left instanceof IR.Constant && node.right instanceof IR.Constant) {
+                final Object value = binary(node.type.metadata, node.token,
+                        ((IR.Constant)node.left).value, ((IR.Constant)node.right).value);
+
+                if (value != null) {
+                    return new IR.Constant(node.source, node.type, value);
+                }
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitCompare(final IR.Compare node) {
+            super.visitCompare(node);
+
+            if (node.left instanceof IR.Constant && node.right instanceof IR.Constant) {
+                final Object value = compare(node.promote.metadata, node.token,
+                        ((IR.Constant)node.left).value, ((IR.Constant)node.right).value);
+
+                if (value != null) {
+                    return new IR.Constant(node.source, node.type, value);
+                }
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitLogical(final IR.Logical node) {
+            node.left = expression(node.left);
+
+            final boolean and = node.token == BOOLAND;
+
+            if (node.left instanceof IR.Constant) {
+                // the right side is only evaluated when the left side does not already decide the result
+                if ((boolean)((IR.Constant)node.left).value == and) {
+                    return expression(node.right);
+                } else {
+                    return node.left;
+                }
+            }
+
+            final Map<Variable, Object> before = new HashMap<>(constants);
+            node.right = expression(node.right);
+            constants = merge(before, constants);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitConditional(final IR.Conditional node) {
+            node.condition = expression(node.condition);
+
+            if (IR.isTrue(node.condition)) {
+                return expression(node.left);
+            } else if (IR.isFalse(node.condition)) {
+                return expression(node.right);
+            }
+
+            final Map<Variable, Object> before = new HashMap<>(constants);
+
+            node.left = expression(node.left);
+            final Map<Variable, Object> left = constants;
+
+            constants = before;
+            node.right = expression(node.right);
+            constants = merge(left, constants);
+
+            return node;
+        }
+
+        /** Joins adjacent constant parts, so a concatenation of only constants becomes a single string. */
+        @Override
+        IR.Node visitConcat(final IR.Concat node) {
+            super.visitConcat(node);
+
+            final List<IR.Expression> parts = new ArrayList<>();
+            StringBuilder builder = null;
+            IR.Expression first = null;
+
+            for (final IR.Expression part : node.parts) {
+                if (part instanceof IR.Constant) {
+                    if (builder == null) {
+                        builder = new StringBuilder();
+                        first = part;
+                    }
+
+                    builder.append(((IR.Constant)part).value);
+                } else {
+                    if (builder != null) {
+                        parts.add(new IR.Constant(first.source, node.type, builder.toString()));
+                        builder = null;
+                    }
+
+                    parts.add(part);
+                }
+            }
+
+            if (builder != null) {
+                parts.add(new IR.Constant(first.source, node.type, builder.toString()));
+            }
+
+            if (strings && parts.size() == 1 && parts.get(0) instanceof IR.Constant) {
+                return new IR.Constant(node.source, node.type, ((IR.Constant)parts.get(0)).value);
+            }
+
+            node.parts.clear();
+            node.parts.addAll(parts);
+
+            return node;
+        }
+
+        /** Folds a static final field of a constant type, such as the bounds of the boxed numeric types. */
+        @Override
+        IR.Node visitLoadField(final IR.LoadField node) {
+            super.visitLoadField(node);
+
+            final Field field = node.field;
+
+            if (field.statik && field.type.metadata.constant &&
+                    java.lang.reflect.Modifier.isFinal(field.getField().getModifiers())) {
+                try {
+                    return new IR.Constant(node.source, node.type, field.getField().get(null));
+                } catch (final IllegalAccessException exception) {
+                    return node;
+                }
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitCall(final IR.Call node) {
+            super.visitCall(node);
+
+            if (!Caster.isPure(node.method) || node.receiver != null && !(node.receiver instanceof IR.Constant)) {
+                return node;
+            }
+
+            final Object[] arguments = new Object[node.arguments.size()];
+
+            for (int argument = 0; argument < arguments.length; ++argument) {
+                final IR.Expression expression = node.arguments.get(argument);
+
+                if (!(expression instanceof IR.Constant)) {
+                    return node;
+                }
+
+                arguments[argument] = ((IR.Constant)expression).value;
+            }
+
+            final Object receiver = node.receiver == null ? null : ((IR.Constant)node.receiver).value;
+            final Object value = caster.constInvoke(node.method, receiver, arguments);
+
+            return folds(value) ? new IR.Constant(node.source, node.type, value) : node;
+        }
+
+        /**
+         * Tracks the value stored to a local variable.  A compound assignment to a variable with a known
+         * value is folded into a store of the result unless the value from before the store is read.
+         */
+        @Override
+        IR.Node visitAssign(final IR.Assign node) {
+            super.visitAssign(node);
+
+            if (!(node.target instanceof IR.Load)) {
+                return node;
+            }
+
+            final Variable variable = ((IR.Load)node.target).variable;
+            final Object current = constants.remove(variable);
+
+            if (!(node.value instanceof IR.Constant)) {
+                return node;
+            }
+
+            final Object value = ((IR.Constant)node.value).value;
+
+            if (node.token == 0) {
+                constants.put(variable, value);
+
+                return node;
+            } else if (current == null || node.read && node.post) {
+                return node;
+            }
+
+            Object result;
+
+            try {
+                if (node.token == CAT) {
+                    result = caster.constCast(node.source, current.toString() + value.toString(), node.demote);
+                } else {
+                    result = binary(node.promote.to.metadata, node.token,
+                            caster.constCast(node.source, current, node.promote), value);
+
+                    if (result != null) {
+                        result = caster.constCast(node.source, result, node.demote);
+                    }
+                }
+            } catch (final IllegalStateException exception) {
+                result = null;
+            }
+
+            if (!folds(result)) {
+                return node;
+            }
+
+            constants.put(variable, result);
+
+            return new IR.Assign(node.source, node.type, node.target, 0, null, null,
+                    new IR.Constant(node.value.source, node.target.type, result), node.read, false);
+        }
+
+        @Override
+        IR.Node visitIncrement(final IR.Increment node) {
+            constants.remove(node.variable);
+
+            return node;
+        }
+    }
+
+    static Object unary(final TypeMetadata metadata, final int token, final Object value) {
+        if (token == ADD) {
+            return value;
+        } else if (token == BWNOT) {
+            switch (metadata) {
+                case INT:  return ~(int)value;
+                case LONG: return ~(long)value;
+            }
+        } else if (token == SUB) {
+            switch (metadata) {
+                case INT:    return -(int)value;
+                case LONG:   return -(long)value;
+                case FLOAT:  return -(float)value;
+                case DOUBLE: return -(double)value;
+            }
+        }
+
+        return null;
+    }
+
+    /** Returns the result of the arithmetic, or null if it cannot be folded or would throw. */
+    static Object binary(final TypeMetadata metadata, final int token, final Object left, final Object right) {
+        if (!(left instanceof Number) || !(right instanceof Number)) {
+            return null;
+        }
+
+        final Number l = (Number)left;
+        final Number r = (Number)right;
+
+        switch (metadata) {
+            case INT:
+                final int i0 = l.intValue();
+                final int i1 = r.intValue();
+
+                switch (token) {
+                    case MUL:   return i0 * i1;
+                    case DIV:   return i1 == 0 ? null : i0 / i1;
+                    case REM:   return i1 == 0 ? null : i0 % i1;
+                    case ADD:   return i0 + i1;
+                    case SUB:   return i0 - i1;
+                    case LSH:   return i0 << i1;
+                    case RSH:   return i0 >> i1;
+                    case USH:   return i0 >>> i1;
+                    case BWAND: return i0 & i1;
+                    case BWXOR: return i0 ^ i1;
+                    case BWOR:  return i0 | i1;
+                }
+
+                break;
+            case LONG:
+                final long j0 = l.longValue();
+                final long j1 = r.longValue();
+
+                switch (token) {
+                    case MUL:   return j0 * j1;
+                    case DIV:   return j1 == 0 ? null : j0 / j1;
+                    case REM:   return j1 == 0 ? null : j0 % j1;
+                    case ADD:   return j0 + j1;
+                    case SUB:   return j0 - j1;
+                    case LSH:   return j0 << r.intValue();
+                    case RSH:   return j0 >> r.intValue();
+                    case USH:   return j0 >>> r.intValue();
+                    case BWAND: return j0 & j1;
+                    case BWXOR: return j0 ^ j1;
+                    case BWOR:  return j0 | j1;
+                }
+
+                break;
+            case FLOAT:
+                final float f0 = l.floatValue();
+                final float f1 = r.floatValue();
+
+                switch (token) {
+                    case MUL: return f0 * f1;
+                    case DIV: return f0 / f1;
+                    case REM: return f0 % f1;
+                    case ADD: return f0 + f1;
+                    case SUB: return f0 - f1;
+                }
+
+                break;
+            case DOUBLE:
+                final double d0 = l.doubleValue();
+                final double d1 = r.doubleValue();
+
+                switch (token) {
+                    case MUL: return d0 * d1;
+                    case DIV: return d0 / d1;
+                    case REM: return d0 % d1;
+                    case ADD: return d0 + d1;
+                    case SUB: return d0 - d1;
+                }
+
+                break;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the result of the comparison, or null if it cannot be folded.  Reference comparisons of strings
+     * are never folded since a string built at run time is not the same reference as an equal constant.
+     */
+    static Object compare(final TypeMetadata metadata, final int token, final Object left, final Object right) {
+        final int compare;
+
+        switch (metadata) {
+            case BOOL:
+                if (token == EQ || token == EQR) return left.equals(right);
+                if (token == NE || token == NER) return !left.equals(right);
+
+                return null;
+            case INT:    compare = Integer.compare((int)left, (int)right);  break;
+            case LONG:   compare = Long.compare((long)left, (long)right);   break;
+            case FLOAT:
+                if (Float.isNaN((float)left) || Float.isNaN((float)right)) {
+                    return token == NE || token == NER;
+                }
+
+                compare = Float.compare((float)left + 0.0F, (float)right + 0.0F);
+
+                break;
+            case DOUBLE:
+                if (Double.isNaN((double)left) || Double.isNaN((double)right)) {
+                    return token == NE || token == NER;
+                }
+
+                compare = Double.compare((double)left + 0.0, (double)right + 0.0);
+
+                break;
+            case STRING:
+                if (token == EQ) return left.equals(right);
+                if (token == NE) return !left.equals(right);
+
+                return null;
+            default:
+                return null;
+        }
+
+        switch (token) {
+            case EQ:
+            case EQR: return compare == 0;
+            case NE:
+            case NER: return compare != 0;
+            case LT:  return compare < 0;
+            case LTE: return compare <= 0;
+            case GT:  return compare > 0;
+            case GTE: return compare >= 0;
+            default:
+                return null;
+        }
+    }
+}
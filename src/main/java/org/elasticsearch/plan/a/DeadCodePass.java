@@ -0,0 +1,491 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * Removes code that can never run or whose result is never used.  This covers the arm of an if with a
+ * constant condition, a loop whose condition is constant false, any statement after one that exits, a
+ * statement that only evaluates a pure expression, and any store to a local variable that is never read.
+ * Removing a store may remove the last read of another variable, so the pass repeats until nothing changes.
+ *
+ * The estimated size of the bytecode saved is recorded with the compiler stats.
+ */
+final class DeadCodePass extends PassManager.Pass {
+    static final String NAME = "deadcode";
+
+    DeadCodePass() {
+        super(NAME);
+    }
+
+    @Override
+    void run(final Adapter adapter, final IR.Block root, final CompilerStats stats) {
+        final int before = stats == null ? 0 : size(root);
+        Eliminator eliminator;
+
+        do {
+            eliminator = new Eliminator(reads(root));
+            root.accept(eliminator);
+        } while (eliminator.changed);
+
+        if (stats != null) {
+            stats.recordEliminated(before - size(root));
+        }
+    }
+
+    /**
+     * Returns the variables whose values are read.  A compound assignment only reads its own variable
+     * to update it, so it is not counted unless its result is used or the update may throw.
+     */
+    private static Set<Variable> reads(final IR.Block root) {
+        final Set<Variable> reads = new HashSet<>();
+
+        root.accept(new IR.Rewriter() {
+            @Override
+            IR.Node visitLoad(final IR.Load node) {
+                reads.add(node.variable);
+
+                return node;
+            }
+
+            @Override
+            IR.Node visitAssign(final IR.Assign node) {
+                if (node.target instanceof IR.Load && node.token != 0 && !removable(node)) {
+                    reads.add(((IR.Load)node.target).variable);
+                }
+
+                return super.visitAssign(node);
+            }
+
+            @Override
+            IR.Node visitIncrement(final IR.Increment node) {
+                if (node.read) {
+                    reads.add(node.variable);
+                }
+
+                return node;
+            }
+        });
+
+        return reads;
+    }
+
+    /**
+     * Returns true if a compound assignment to a variable that is never read may be replaced by its value.  Only
+     * a primitive update is removed, and not an integer division or remainder since those throw on zero; a def or
+     * reference update may throw a ClassCastException, and a concatenation may call toString.
+     */
+    private static boolean removable(final IR.Assign node) {
+        final TypeMetadata metadata = node.promote == null ? null : node.promote.to.metadata;
+        final boolean integer = metadata == TypeMetadata.INT || metadata == TypeMetadata.LONG;
+
+        return !node.read && metadata != null && !metadata.object && !(integer && (node.token == DIV || node.token == REM));
+    }
+
+    private static class Eliminator extends IR.Rewriter {
+        private final Set<Variable> reads;
+
+        boolean changed;
+
+        Eliminator(final Set<Variable> reads) {
+            this.reads = reads;
+
+            changed = false;
+        }
+
+        private static IR.Block empty(final IR.Node node) {
+            return new IR.Block(node.source, new ArrayList<IR.Statement>());
+        }
+
+        private static boolean isEmpty(final IR.Statement statement) {
+            return statement == null || statement instanceof IR.Block && ((IR.Block)statement).statements.isEmpty();
+        }
+
+        /** Evaluates the expression only for its side effects, or removes it if it has none. */
+        private IR.Statement evaluate(final IR.Node source, final IR.Expression expression) {
+            if (IR.isPure(expression)) {
+                changed = true;
+
+                return empty(source);
+            }
+
+            return new IR.Eval(source.source, expression);
+        }
+
+        /** Flattens nested blocks and drops every statement after one that exits. */
+        @Override
+        IR.Node visitBlock(final IR.Block node) {
+            final List<IR.Statement> statements = new ArrayList<>();
+
+            for (final IR.Statement statement : node.statements) {
+                final IR.Statement visited = statement(statement);
+
+                if (visited instanceof IR.Block) {
+                    statements.addAll(((IR.Block)visited).statements);
+                } else if (visited != null) {
+                    statements.add(visited);
+                }
+
+                if (visited != null && visited.exits()) {
+                    changed |= statement != node.statements.get(node.statements.size() - 1);
+
+                    break;
+                }
+            }
+
+            node.statements.clear();
+            node.statements.addAll(statements);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitDeclare(final IR.Declare node) {
+            node.value = expression(node.value);
+
+            if (reads.contains(node.variable)) {
+                return node;
+            } else if (node.value == null) {
+                changed = true;
+
+                return empty(node);
+            }
+
+            changed = true;
+
+            return evaluate(node, node.value);
+        }
+
+        @Override
+        IR.Node visitIf(final IR.If node) {
+            node.condition = expression(node.condition);
+
+            if (IR.isTrue(node.condition)) {
+                changed = true;
+
+                return statement(node.then);
+            } else if (IR.isFalse(node.condition)) {
+                changed = true;
+
+                return node.otherwise == null ? empty(node) : statement(node.otherwise);
+            }
+
+            node.then = statement(node.then);
+            node.otherwise = statement(node.otherwise);
+
+            if (isEmpty(node.otherwise)) {
+                node.otherwise = null;
+            }
+
+            if (isEmpty(node.then) && node.otherwise == null) {
+                changed = true;
+
+                return evaluate(node, node.condition);
+            }
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitWhile(final IR.While node) {
+            if (IR.isFalse(node.condition)) {
+                changed = true;
+
+                return empty(node);
+            }
+
+            return super.visitWhile(node);
+        }
+
+        @Override
+        IR.Node visitFor(final IR.For node) {
+            if (IR.isFalse(node.condition)) {
+                changed = true;
+
+                return node.initializer == null ? empty(node) : statement(node.initializer);
+            }
+
+            return super.visitFor(node);
+        }
+
+        @Override
+        IR.Node visitEval(final IR.Eval node) {
+            node.expression = expression(node.expression);
+
+            if (node.expression instanceof IR.Increment) {
+                final IR.Increment increment = (IR.Increment)node.expression;
+
+                if (!reads.contains(increment.variable)) {
+                    changed = true;
+
+                    return empty(node);
+                }
+            }
+
+            return evaluate(node, node.expression);
+        }
+
+        /** Replaces a store to a variable that is never read with just the value it would have stored. */
+        @Override
+        IR.Node visitAssign(final IR.Assign node) {
+            super.visitAssign(node);
+
+            if (node.target instanceof IR.Load && !reads.contains(((IR.Load)node.target).variable) &&
+                    (node.token == 0 || removable(node))) {
+                changed = true;
+
+                return node.value;
+            }
+
+            return node;
+        }
+    }
+
+    /**
+     * Returns an estimate of the size in bytes of the bytecode written for the node, which counts a typical
+     * instruction length for each node without accounting for the exact forms of constants and local slots.
+     */
+    static int size(final IR.Node node) {
+        final int[] size = new int[1];
+
+        node.accept(new IR.Rewriter() {
+            @Override
+            IR.Node visitDeclare(final IR.Declare node) {
+                size[0] += node.value == null ? 2 : 1;
+
+                return super.visitDeclare(node);
+            }
+
+            @Override
+            IR.Node visitIf(final IR.If node) {
+                size[0] += node.otherwise == null ? 3 : 6;
+
+                return super.visitIf(node);
+            }
+
+            @Override
+            IR.Node visitWhile(final IR.While node) {
+                size[0] += 6;
+
+                return super.visitWhile(node);
+            }
+
+            @Override
+            IR.Node visitDo(final IR.Do node) {
+                size[0] += 3;
+
+                return super.visitDo(node);
+            }
+
+            @Override
+            IR.Node visitFor(final IR.For node) {
+                size[0] += 6;
+
+                return super.visitFor(node);
+            }
+
+            @Override
+            IR.Node visitReturn(final IR.Return node) {
+                size[0] += 1;
+
+                return super.visitReturn(node);
+            }
+
+            @Override
+            IR.Node visitBreak(final IR.Break node) {
+                size[0] += 3;
+
+                return node;
+            }
+
+            @Override
+            IR.Node visitContinue(final IR.Continue node) {
+                size[0] += 3;
+
+                return node;
+            }
+
+            @Override
+            IR.Node visitEval(final IR.Eval node) {
+                size[0] += 1;
+
+                return super.visitEval(node);
+            }
+
+            @Override
+            IR.Node visitConstant(final IR.Constant node) {
+                size[0] += 2;
+
+                return node;
+            }
+
+            @Override
+            IR.Node visitNull(final IR.Null node) {
+                size[0] += 1;
+
+                return node;
+            }
+
+            @Override
+            IR.Node visitLoad(final IR.Load node) {
+                size[0] += 1;
+
+                return node;
+            }
+
+            @Override
+            IR.Node visitConvert(final IR.Convert node) {
+                size[0] += node.cast instanceof Transform ? 3 : 1;
+
+                return super.visitConvert(node);
+            }
+
+            @Override
+            IR.Node visitUnary(final IR.Unary node) {
+                size[0] += 1;
+
+                return super.visitUnary(node);
+            }
+
+            @Override
+            IR.Node visitNot(final IR.Not node) {
+                size[0] += 8;
+
+                return super.visitNot(node);
+            }
+
+            @Override
+            IR.Node visitBinary(final IR.Binary node) {
+                size[0] += 1;
+
+                return super.visitBinary(node);
+            }
+
+            @Override
+            IR.Node visitCompare(final IR.Compare node) {
+                size[0] += 8;
+
+                return super.visitCompare(node);
+            }
+
+            @Override
+            IR.Node visitLogical(final IR.Logical node) {
+                size[0] += 11;
+
+                return super.visitLogical(node);
+            }
+
+            @Override
+            IR.Node visitConditional(final IR.Conditional node) {
+                size[0] += 6;
+
+                return super.visitConditional(node);
+            }
+
+            @Override
+            IR.Node visitConcat(final IR.Concat node) {
+                size[0] += 7 + 3 * node.parts.size();
+
+                return super.visitConcat(node);
+            }
+
+            @Override
+            IR.Node visitLoadField(final IR.LoadField node) {
+                size[0] += 3;
+
+                return super.visitLoadField(node);
+            }
+
+            @Override
+            IR.Node visitLength(final IR.Length node) {
+                size[0] += 1;
+
+                return super.visitLength(node);
+            }
+
+            @Override
+            IR.Node visitLoadArray(final IR.LoadArray node) {
+                size[0] += 1;
+
+                return super.visitLoadArray(node);
+            }
+
+            @Override
+            IR.Node visitCall(final IR.Call node) {
+                size[0] += 3;
+
+                return super.visitCall(node);
+            }
+
+            @Override
+            IR.Node visitNew(final IR.New node) {
+                size[0] += 7;
+
+                return super.visitNew(node);
+            }
+
+            @Override
+            IR.Node visitNewArray(final IR.NewArray node) {
+                size[0] += node.dimensions.size() == 1 ? 2 : 4;
+
+                return super.visitNewArray(node);
+            }
+
+            @Override
+            IR.Node visitDynamic(final IR.Dynamic node) {
+                size[0] += 5;
+
+                return super.visitDynamic(node);
+            }
+
+            @Override
+            IR.Node visitAssign(final IR.Assign node) {
+                size[0] += node.token == 0 ? 1 : 3;
+
+                if (node.token == CAT) {
+                    size[0] += 13;
+                }
+
+                if (node.read) {
+                    size[0] += 1;
+                }
+
+                return super.visitAssign(node);
+            }
+
+            @Override
+            IR.Node visitIncrement(final IR.Increment node) {
+                size[0] += node.read ? 4 : 3;
+
+                return node;
+            }
+        });
+
+        return size[0];
+    }
+}
@@ -0,0 +1,646 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.plan.a.Definition.*;
+
+/**
+ * The run time support for the def type.  Every member access, index and call on a def value is written as an
+ * invokedynamic instruction bootstrapped by {@link #bootstrap}, which links the call site to the method handles
+ * for the runtime structs of the definition the script was compiled with.  Each call site is a polymorphic inline
+ * cache that tests the class of the receiver against the classes it has already linked, so a site that only ever
+ * sees a few classes runs the target directly.  Once a site has seen {@link #MAX_DEPTH} classes it stops adding
+ * tests and looks up the target for each call through a cache keyed by class instead.
+ */
+public final class Def {
+    /** A call of the method named by the call site. */
+    static final int CALL = 0;
+    /** A read of the field named by the call site, or of the value for the name in a map. */
+    static final int LOAD = 1;
+    /** A store to the field named by the call site, or of the value for the name in a map. */
+    static final int STORE = 2;
+    /** A read of an element of an array or list, or of the value for a key in a map. */
+    static final int ARRAY_LOAD = 3;
+    /** A store to an element of an array, or of the value for a key in a map. */
+    static final int ARRAY_STORE = 4;
+
+    /** The number of receiver classes a single call site links before it is megamorphic. */
+    static final int MAX_DEPTH = 5;
+
+    static final String BOOTSTRAP_DESCRIPTOR = MethodType.methodType(CallSite.class, MethodHandles.Lookup.class,
+            String.class, MethodType.class, int.class).toMethodDescriptorString();
+
+    private static final MethodHandle CHECK_CLASS;
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle SELECT;
+
+    private static final MethodHandle MAP_GET;
+    private static final MethodHandle MAP_PUT;
+    private static final MethodHandle LIST_GET;
+    private static final MethodHandle ARRAY_LENGTH;
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final MethodHandles.Lookup publicLookup = MethodHandles.publicLookup();
+
+        try {
+            CHECK_CLASS = lookup.findStatic(Def.class, "checkClass",
+                    MethodType.methodType(boolean.class, Class.class, Object.class));
+            FALLBACK = lookup.findVirtual(InlineCache.class, "fallback",
+                    MethodType.methodType(Object.class, Object[].class));
+            SELECT = lookup.findVirtual(InlineCache.class, "select",
+                    MethodType.methodType(MethodHandle.class, Object.class));
+
+            MAP_GET = publicLookup.findVirtual(Map.class, "get", MethodType.methodType(Object.class, Object.class));
+            MAP_PUT = publicLookup.findVirtual(Map.class, "put",
+                    MethodType.methodType(Object.class, Object.class, Object.class));
+            LIST_GET = publicLookup.findVirtual(List.class, "get", MethodType.methodType(Object.class, int.class));
+            ARRAY_LENGTH = publicLookup.findStatic(Array.class, "getLength", MethodType.methodType(int.class, Object.class));
+        } catch (final NoSuchMethodException | IllegalAccessException exception) {
+            throw new IllegalStateException("Unable to find the method handles for the def type.", exception);
+        }
+    }
+
+    /**
+     * A call site that links a target for each receiver class it sees ahead of the targets linked before, with
+     * the fallback that links the next class at the end of the chain.
+     */
+    static final class InlineCache extends MutableCallSite {
+        private final Definition definition;
+        private final String name;
+        private final int flavor;
+
+        private int depth;
+        private ClassValue<MethodHandle> megamorphic;
+
+        InlineCache(final Definition definition, final String name, final MethodType type, final int flavor) {
+            super(type);
+
+            this.definition = definition;
+            this.name = name;
+            this.flavor = flavor;
+
+            depth = 0;
+            megamorphic = null;
+
+            setTarget(FALLBACK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type));
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        boolean isMegamorphic() {
+            return megamorphic != null;
+        }
+
+        synchronized Object fallback(final Object[] arguments) throws Throwable {
+            final Class<?> receiver = receiver(arguments[0]);
+            final MethodHandle target = lookup(definition, flavor, name, receiver, type());
+
+            if (depth < MAX_DEPTH) {
+                ++depth;
+
+                final MethodHandle test = MethodHandles.dropArguments(CHECK_CLASS.bindTo(receiver), 1,
+                        type().parameterList().subList(1, type().parameterCount()));
+                setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+            } else if (megamorphic == null) {
+                megamorphic = new ClassValue<MethodHandle>() {
+                    @Override
+                    protected MethodHandle computeValue(final Class<?> clazz) {
+                        return lookup(definition, flavor, name, clazz, type());
+                    }
+                };
+
+                final MethodHandle select = MethodHandles.dropArguments(SELECT.bindTo(this), 1,
+                        type().parameterList().subList(1, type().parameterCount()));
+                setTarget(MethodHandles.foldArguments(MethodHandles.exactInvoker(type()), select));
+            }
+
+            return target.invokeWithArguments(arguments);
+        }
+
+        MethodHandle select(final Object receiver) {
+            return megamorphic.get(receiver(receiver));
+        }
+
+        private Class<?> receiver(final Object receiver) {
+            if (receiver == null) {
+                throw new NullPointerException("Cannot access [" + name + "] of a null def value.");
+            }
+
+            return receiver.getClass();
+        }
+    }
+
+    /** Links a def call site for a script compiled with the definition held by the class loader of the script. */
+    public static CallSite bootstrap(final MethodHandles.Lookup lookup, final String name,
+                                     final MethodType type, final int flavor) {
+        final ClassLoader loader = lookup.lookupClass().getClassLoader();
+        final Definition definition = loader instanceof Compiler.Loader ?
+                ((Compiler.Loader)loader).definition : Default.DEFAULT_DEFINITION;
+
+        return new InlineCache(definition, name, type, flavor);
+    }
+
+    static boolean checkClass(final Class<?> clazz, final Object receiver) {
+        return receiver != null && receiver.getClass() == clazz;
+    }
+
+    /** Returns the target for the operation on a receiver of the class, converted to the type of the call site. */
+    static MethodHandle lookup(final Definition definition, final int flavor, final String name,
+                               final Class<?> receiver, final MethodType type) {
+        final MethodHandle handle;
+
+        switch (flavor) {
+            case CALL:        handle = lookupMethod(definition, receiver, name, type.parameterCount() - 1); break;
+            case LOAD:        handle = lookupGetter(definition, receiver, name);                            break;
+            case STORE:       handle = lookupSetter(definition, receiver, name);                            break;
+            case ARRAY_LOAD:  handle = lookupArrayLoad(receiver);                                           break;
+            case ARRAY_STORE: handle = lookupArrayStore(receiver);                                          break;
+            default:
+                throw new IllegalStateException("Unexpected def operation [" + flavor + "].");
+        }
+
+        return handle.asType(type);
+    }
+
+    private static MethodHandle lookupMethod(final Definition definition, final Class<?> receiver,
+                                             final String name, final int arity) {
+        final MethodHandle handle = findMethod(definition.getRuntime(), receiver, name);
+
+        if (handle == null) {
+            throw new IllegalArgumentException(
+                    "Unable to find dynamic method [" + name + "] for class [" + receiver.getCanonicalName() + "].");
+        } else if (handle.type().parameterCount() - 1 != arity) {
+            throw new IllegalArgumentException("Dynamic method [" + name + "] for class [" +
+                    receiver.getCanonicalName() + "] expects [" + (handle.type().parameterCount() - 1) + "] arguments" +
+                    " but was called with [" + arity + "].");
+        }
+
+        return handle;
+    }
+
+    /** Returns the method of the class, its super classes or its interfaces, searched in that order. */
+    private static MethodHandle findMethod(final Map<String, MethodHandle> runtime, final Class<?> clazz, final String name) {
+        for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+            final MethodHandle handle = runtime.get(current.getName() + "_" + name);
+
+            if (handle != null) {
+                return handle;
+            }
+
+            for (final Class<?> iface : current.getInterfaces()) {
+                final MethodHandle found = findMethod(runtime, iface, name);
+
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /** Returns the member field of a runtime struct for the class or one of its super types, or null. */
+    private static Field findField(final Definition definition, final Class<?> clazz, final String name) {
+        for (final Struct struct : definition.structs.values()) {
+            if (struct.runtime && struct.clazz.isAssignableFrom(clazz)) {
+                final Field field = struct.members.get(name);
+
+                if (field != null) {
+                    return field;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static MethodHandle lookupGetter(final Definition definition, final Class<?> receiver, final String name) {
+        if (Map.class.isAssignableFrom(receiver)) {
+            return MethodHandles.insertArguments(MAP_GET, 1, name);
+        } else if (receiver.isArray() && "length".equals(name)) {
+            return ARRAY_LENGTH;
+        }
+
+        final Field field = findField(definition, receiver, name);
+
+        if (field != null) {
+            try {
+                return MethodHandles.publicLookup().unreflectGetter(field.getField());
+            } catch (final IllegalAccessException exception) {
+                throw new IllegalArgumentException("Unable to read dynamic field [" + name + "].", exception);
+            }
+        }
+
+        throw new IllegalArgumentException(
+                "Unable to find dynamic field [" + name + "] for class [" + receiver.getCanonicalName() + "].");
+    }
+
+    private static MethodHandle lookupSetter(final Definition definition, final Class<?> receiver, final String name) {
+        if (Map.class.isAssignableFrom(receiver)) {
+            return MethodHandles.insertArguments(MAP_PUT, 1, name);
+        }
+
+        final Field field = findField(definition, receiver, name);
+
+        if (field != null && !field.readonly) {
+            try {
+                return MethodHandles.publicLookup().unreflectSetter(field.getField());
+            } catch (final IllegalAccessException exception) {
+                throw new IllegalArgumentException("Unable to write dynamic field [" + name + "].", exception);
+            }
+        }
+
+        throw new IllegalArgumentException(
+                "Unable to find writable dynamic field [" + name + "] for class [" + receiver.getCanonicalName() + "].");
+    }
+
+    private static MethodHandle lookupArrayLoad(final Class<?> receiver) {
+        if (receiver.isArray()) {
+            return MethodHandles.arrayElementGetter(receiver);
+        } else if (Map.class.isAssignableFrom(receiver)) {
+            return MAP_GET;
+        } else if (List.class.isAssignableFrom(receiver)) {
+            return LIST_GET;
+        }
+
+        throw new IllegalArgumentException(
+                "Attempting to address a non-array type [" + receiver.getCanonicalName() + "] as an array.");
+    }
+
+    private static MethodHandle lookupArrayStore(final Class<?> receiver) {
+        if (receiver.isArray()) {
+            return MethodHandles.arrayElementSetter(receiver);
+        } else if (Map.class.isAssignableFrom(receiver)) {
+            return MAP_PUT;
+        }
+
+        throw new IllegalArgumentException(
+                "Attempting to store to a non-array type [" + receiver.getCanonicalName() + "] as an array.");
+    }
+
+    /** The types arithmetic on def values is promoted to, from the types of the values when the script runs. */
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int FLOAT = 2;
+    private static final int DOUBLE = 3;
+
+    /** Returns the type a single def value is promoted to, where a byte, short or char is promoted to an int. */
+    private static int promote(final Object value) {
+        if (value instanceof Integer || value instanceof Character || value instanceof Short || value instanceof Byte) {
+            return INT;
+        } else if (value instanceof Long) {
+            return LONG;
+        } else if (value instanceof Float) {
+            return FLOAT;
+        } else if (value instanceof Double) {
+            return DOUBLE;
+        }
+
+        throw new ClassCastException("Cannot apply a numeric operation to [" +
+                (value == null ? "null" : value.getClass().getCanonicalName()) + "].");
+    }
+
+    /** Returns the wider of the promoted types of the two values, which have to be integral unless decimal is set. */
+    private static int promote(final Object left, final Object right, final boolean decimal) {
+        final int type = Math.max(promote(left), promote(right));
+
+        if (!decimal && type > LONG) {
+            throw new ClassCastException("Cannot apply an integer operation to [" + left.getClass().getCanonicalName() +
+                    "] and [" + right.getClass().getCanonicalName() + "].");
+        }
+
+        return type;
+    }
+
+    private static long integral(final Object value) {
+        return value instanceof Character ? (char)value : ((Number)value).longValue();
+    }
+
+    private static double decimal(final Object value) {
+        return value instanceof Character ? (char)value : ((Number)value).doubleValue();
+    }
+
+    /** Returns the method that runs the binary operation with the token on two def values. */
+    static String getBinaryName(final int token) {
+        switch (token) {
+            case PlanAParser.MUL:   return "mul";
+            case PlanAParser.DIV:   return "div";
+            case PlanAParser.REM:   return "rem";
+            case PlanAParser.ADD:   return "add";
+            case PlanAParser.SUB:   return "sub";
+            case PlanAParser.LSH:   return "lsh";
+            case PlanAParser.USH:   return "ush";
+            case PlanAParser.RSH:   return "rsh";
+            case PlanAParser.BWAND: return "and";
+            case PlanAParser.BWXOR: return "xor";
+            case PlanAParser.BWOR:  return "or";
+            default:
+                throw new IllegalStateException("Unexpected binary operation [" + token + "] on def.");
+        }
+    }
+
+    /** Returns the method that runs the comparison with the token on two def values, where NE is the negation of EQ. */
+    static String getCompareName(final int token) {
+        switch (token) {
+            case PlanAParser.EQ:
+            case PlanAParser.NE:  return "eq";
+            case PlanAParser.LT:  return "lt";
+            case PlanAParser.LTE: return "lte";
+            case PlanAParser.GT:  return "gt";
+            case PlanAParser.GTE: return "gte";
+            default:
+                throw new IllegalStateException("Unexpected comparison [" + token + "] on def.");
+        }
+    }
+
+    /** Runs the binary operation with the token the same way the method the writer calls for it does. */
+    static Object binary(final int token, final Object left, final Object right) {
+        switch (token) {
+            case PlanAParser.MUL:   return mul(left, right);
+            case PlanAParser.DIV:   return div(left, right);
+            case PlanAParser.REM:   return rem(left, right);
+            case PlanAParser.ADD:   return add(left, right);
+            case PlanAParser.SUB:   return sub(left, right);
+            case PlanAParser.LSH:   return lsh(left, right);
+            case PlanAParser.USH:   return ush(left, right);
+            case PlanAParser.RSH:   return rsh(left, right);
+            case PlanAParser.BWAND: return and(left, right);
+            case PlanAParser.BWXOR: return xor(left, right);
+            case PlanAParser.BWOR:  return or(left, right);
+            default:
+                throw new IllegalStateException("Unexpected binary operation [" + token + "] on def.");
+        }
+    }
+
+    /** Runs the comparison with the token the same way the method the writer calls for it does. */
+    static boolean compare(final int token, final Object left, final Object right) {
+        switch (token) {
+            case PlanAParser.EQ:  return eq(left, right);
+            case PlanAParser.NE:  return !eq(left, right);
+            case PlanAParser.LT:  return lt(left, right);
+            case PlanAParser.LTE: return lte(left, right);
+            case PlanAParser.GT:  return gt(left, right);
+            case PlanAParser.GTE: return gte(left, right);
+            default:
+                throw new IllegalStateException("Unexpected comparison [" + token + "] on def.");
+        }
+    }
+
+    public static Object neg(final Object value) {
+        switch (promote(value)) {
+            case INT:    return -(int)integral(value);
+            case LONG:   return -integral(value);
+            case FLOAT:  return -(float)decimal(value);
+            default:     return -decimal(value);
+        }
+    }
+
+    public static Object plus(final Object value) {
+        switch (promote(value)) {
+            case INT:    return (int)integral(value);
+            case LONG:   return integral(value);
+            case FLOAT:  return (float)decimal(value);
+            default:     return decimal(value);
+        }
+    }
+
+    public static Object not(final Object value) {
+        switch (promote(value, value, false)) {
+            case INT:    return ~(int)integral(value);
+            default:     return ~integral(value);
+        }
+    }
+
+    public static Object mul(final Object left, final Object right) {
+        switch (promote(left, right, true)) {
+            case INT:    return (int)integral(left) * (int)integral(right);
+            case LONG:   return integral(left) * integral(right);
+            case FLOAT:  return (float)decimal(left) * (float)decimal(right);
+            default:     return decimal(left) * decimal(right);
+        }
+    }
+
+    public static Object div(final Object left, final Object right) {
+        switch (promote(left, right, true)) {
+            case INT:    return (int)integral(left) / (int)integral(right);
+            case LONG:   return integral(left) / integral(right);
+            case FLOAT:  return (float)decimal(left) / (float)decimal(right);
+            default:     return decimal(left) / decimal(right);
+        }
+    }
+
+    public static Object rem(final Object left, final Object right) {
+        switch (promote(left, right, true)) {
+            case INT:    return (int)integral(left) % (int)integral(right);
+            case LONG:   return integral(left) % integral(right);
+            case FLOAT:  return (float)decimal(left) % (float)decimal(right);
+            default:     return decimal(left) % decimal(right);
+        }
+    }
+
+    public static Object add(final Object left, final Object right) {
+        switch (promote(left, right, true)) {
+            case INT:    return (int)integral(left) + (int)integral(right);
+            case LONG:   return integral(left) + integral(right);
+            case FLOAT:  return (float)decimal(left) + (float)decimal(right);
+            default:     return decimal(left) + decimal(right);
+        }
+    }
+
+    public static Object sub(final Object left, final Object right) {
+        switch (promote(left, right, true)) {
+            case INT:    return (int)integral(left) - (int)integral(right);
+            case LONG:   return integral(left) - integral(right);
+            case FLOAT:  return (float)decimal(left) - (float)decimal(right);
+            default:     return decimal(left) - decimal(right);
+        }
+    }
+
+    public static Object lsh(final Object left, final Object right) {
+        switch (promote(left, right, false)) {
+            case INT:    return (int)integral(left) << (int)integral(right);
+            default:     return integral(left) << (int)integral(right);
+        }
+    }
+
+    public static Object ush(final Object left, final Object right) {
+        switch (promote(left, right, false)) {
+            case INT:    return (int)integral(left) >>> (int)integral(right);
+            default:     return integral(left) >>> (int)integral(right);
+        }
+    }
+
+    public static Object rsh(final Object left, final Object right) {
+        switch (promote(left, right, false)) {
+            case INT:    return (int)integral(left) >> (int)integral(right);
+            default:     return integral(left) >> (int)integral(right);
+        }
+    }
+
+    public static Object and(final Object left, final Object right) {
+        switch (promote(left, right, false)) {
+            case INT:    return (int)integral(left) & (int)integral(right);
+            default:     return integral(left) & integral(right);
+        }
+    }
+
+    public static Object xor(final Object left, final Object right) {
+        switch (promote(left, right, false)) {
+            case INT:    return (int)integral(left) ^ (int)integral(right);
+            default:     return integral(left) ^ integral(right);
+        }
+    }
+
+    public static Object or(final Object left, final Object right) {
+        switch (promote(left, right, false)) {
+            case INT:    return (int)integral(left) | (int)integral(right);
+            default:     return integral(left) | integral(right);
+        }
+    }
+
+    /**
+     * Compares two def values for equality, where numbers are compared by value after promotion, so an int and a
+     * long with the same value are equal, and any other values are compared with equals.
+     */
+    public static boolean eq(final Object left, final Object right) {
+        if (left == null || right == null) {
+            return left == right;
+        } else if (isNumeric(left) && isNumeric(right)) {
+            return promote(left, right, true) <= LONG ? integral(left) == integral(right) : decimal(left) == decimal(right);
+        }
+
+        return left.equals(right);
+    }
+
+    public static boolean lt(final Object left, final Object right) {
+        return promote(left, right, true) <= LONG ? integral(left) < integral(right) : decimal(left) < decimal(right);
+    }
+
+    public static boolean lte(final Object left, final Object right) {
+        return promote(left, right, true) <= LONG ? integral(left) <= integral(right) : decimal(left) <= decimal(right);
+    }
+
+    public static boolean gt(final Object left, final Object right) {
+        return promote(left, right, true) <= LONG ? integral(left) > integral(right) : decimal(left) > decimal(right);
+    }
+
+    public static boolean gte(final Object left, final Object right) {
+        return promote(left, right, true) <= LONG ? integral(left) >= integral(right) : decimal(left) >= decimal(right);
+    }
+
+    private static boolean isNumeric(final Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Float ||
+                value instanceof Character || value instanceof Short || value instanceof Byte;
+    }
+
+    public static boolean booleanValue(final Object value) {
+        return (Boolean)value;
+    }
+
+    public static byte byteValue(final Object value) {
+        final long integral = exact(value, "byte");
+
+        if (integral != (byte)integral) {
+            throw lossy(value, "byte");
+        }
+
+        return (byte)integral;
+    }
+
+    public static short shortValue(final Object value) {
+        final long integral = exact(value, "short");
+
+        if (integral != (short)integral) {
+            throw lossy(value, "short");
+        }
+
+        return (short)integral;
+    }
+
+    public static char charValue(final Object value) {
+        final long integral = exact(value, "char");
+
+        if (integral != (char)integral) {
+            throw lossy(value, "char");
+        }
+
+        return (char)integral;
+    }
+
+    public static int intValue(final Object value) {
+        final long integral = exact(value, "int");
+
+        if (integral != (int)integral) {
+            throw lossy(value, "int");
+        }
+
+        return (int)integral;
+    }
+
+    public static long longValue(final Object value) {
+        return exact(value, "long");
+    }
+
+    /**
+     * Returns the value as a long for a conversion from def to an integral type, which fails rather than drop part
+     * of the value, as for a decimal with a fraction or a number out of the range of the type.
+     */
+    private static long exact(final Object value, final String type) {
+        if (value instanceof Double || value instanceof Float) {
+            final double decimal = ((Number)value).doubleValue();
+            final long integral = (long)decimal;
+
+            // the cast clamps a value out of range to the nearest long, which converts back to a different double
+            if (integral != decimal || integral == Long.MAX_VALUE) {
+                throw lossy(value, type);
+            }
+
+            return integral;
+        }
+
+        return value instanceof Character ? (char)value : ((Number)value).longValue();
+    }
+
+    private static ClassCastException lossy(final Object value, final String type) {
+        return new ClassCastException("Cannot convert [" + value + "] from def to [" + type + "] without losing part of it.");
+    }
+
+    public static float floatValue(final Object value) {
+        return value instanceof Character ? (char)value : ((Number)value).floatValue();
+    }
+
+    public static double doubleValue(final Object value) {
+        return value instanceof Character ? (char)value : ((Number)value).doubleValue();
+    }
+
+    private Def() {}
+}
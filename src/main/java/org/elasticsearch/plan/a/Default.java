@@ -36,6 +36,7 @@ public class Default {
         final Type floatType;
         final Type doubleType;
         final Type objectType;
+        final Type defType;
         final Type stringType;
         final Type execType;
         final Type listType;
@@ -53,6 +54,7 @@ public class Default {
             validateExact(definition, "float", float.class);
             validateExact(definition, "double", double.class);
             validateExact(definition, "object", Object.class);
+            validateExact(definition, "def", Object.class);
             validateExact(definition, "string", String.class);
             validateSubclass(definition, "exec", Executable.class);
             validateSubclass(definition, "list", List.class);
@@ -69,6 +71,7 @@ public class Default {
             floatType = getTypeFromCanonicalName(definition, "float");
             doubleType = getTypeFromCanonicalName(definition, "double");
             objectType = getTypeFromCanonicalName(definition, "object");
+            defType = getTypeFromCanonicalName(definition, "def");
             stringType = getTypeFromCanonicalName(definition, "string");
             execType = getTypeFromCanonicalName(definition, "exec");
             listType = getTypeFromCanonicalName(definition, "list");
@@ -107,7 +110,7 @@ public class Default {
     final static Caster DEFAULT_CASTER;
 
     static {
-        DEFAULT_DEFINITION = loadFromProperties();
+        DEFAULT_DEFINITION = load();
         DEFAULT_STANDARD = new Standard(DEFAULT_DEFINITION);
         DEFAULT_CASTER = new Caster(DEFAULT_DEFINITION, DEFAULT_STANDARD);
     }
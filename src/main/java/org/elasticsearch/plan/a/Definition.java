@@ -19,11 +19,21 @@ package org.elasticsearch.plan.a;
  * under the License.
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -45,7 +55,8 @@ class Definition {
         DOUBLE(  double.class  , 2 , true  , true  , false ),
         OBJECT(  null          , 1 , false , false , true  ),
         STRING(  String.class  , 1 , false , true  , true  ),
-        ARRAY(   null          , 1 , false , false , true  );
+        ARRAY(   null          , 1 , false , false , true  ),
+        DEF(     null          , 1 , false , false , true  );
 
         final Class<?> clazz;
         final int size;
@@ -112,9 +123,10 @@ class Definition {
         final Struct owner;
         final List<Type> arguments;
         final List<Type> originals;
-        final java.lang.reflect.Constructor constructor;
         final String descriptor;
 
+        private volatile java.lang.reflect.Constructor constructor;
+
         private Constructor(final String name, final Struct owner,
                             final List<Type> arguments, final List<Type> originals,
                             final java.lang.reflect.Constructor constructor, final String descriptor) {
@@ -125,6 +137,15 @@ class Definition {
             this.constructor = constructor;
             this.descriptor = descriptor;
         }
+
+        /** Returns the Java constructor, which is only looked up on first use when loaded from a snapshot. */
+        java.lang.reflect.Constructor getConstructor() {
+            if (constructor == null) {
+                constructor = getJConstructorFromJClass(owner.clazz, getJClassesFromTypes(originals));
+            }
+
+            return constructor;
+        }
     }
 
     static class Method {
@@ -134,11 +155,16 @@ class Definition {
         final Type oreturn;
         final List<Type> arguments;
         final List<Type> originals;
-        final java.lang.reflect.Method method;
+        final Class<?> jclass;
+        final String jname;
+        final boolean statik;
         final String descriptor;
 
+        private volatile java.lang.reflect.Method method;
+
         private Method(final String name, final Struct owner, final Type rtn, final Type oreturn,
-                       final List<Type> arguments, final List<Type> originals,
+                       final List<Type> arguments, final List<Type> originals, final Class<?> jclass,
+                       final String jname, final boolean statik,
                        final java.lang.reflect.Method method, final String descriptor) {
             this.name = name;
             this.owner = owner;
@@ -146,23 +172,52 @@ class Definition {
             this.oreturn = oreturn;
             this.arguments = Collections.unmodifiableList(arguments);
             this.originals = Collections.unmodifiableList(originals);
+            this.jclass = jclass;
+            this.jname = jname;
+            this.statik = statik;
             this.method = method;
             this.descriptor = descriptor;
         }
+
+        /** Returns the Java method, which is only looked up on first use when loaded from a snapshot. */
+        java.lang.reflect.Method getMethod() {
+            if (method == null) {
+                method = getJMethodFromJClass(jclass, jname, getJClassesFromTypes(originals));
+            }
+
+            return method;
+        }
     }
 
     static class Field {
         final String name;
         final Struct owner;
         final Type type;
-        final java.lang.reflect.Field field;
+        final String jname;
+        final boolean statik;
+        final boolean readonly;
 
-        private Field(final String name, final Struct owner, final Type type, final java.lang.reflect.Field field) {
+        private volatile java.lang.reflect.Field field;
+
+        private Field(final String name, final Struct owner, final Type type, final String jname,
+                      final boolean statik, final boolean readonly, final java.lang.reflect.Field field) {
             this.name = name;
             this.owner = owner;
             this.type = type;
+            this.jname = jname;
+            this.statik = statik;
+            this.readonly = readonly;
             this.field = field;
         }
+
+        /** Returns the Java field, which is only looked up on first use when loaded from a snapshot. */
+        java.lang.reflect.Field getField() {
+            if (field == null) {
+                field = getJFieldFromJClass(owner.clazz, jname);
+            }
+
+            return field;
+        }
     }
 
     static class Struct {
@@ -171,6 +226,7 @@ class Definition {
         final String internal;
         final boolean generic;
         final boolean runtime;
+        final boolean dynamic;
 
         final Map<String, Constructor> constructors;
         final Map<String, Method> functions;
@@ -180,12 +236,13 @@ class Definition {
         final Map<String, Field> members;
 
         private Struct(final String name, final Class<?> clazz, final String internal,
-                       final boolean generic, final boolean runtime) {
+                       final boolean generic, final boolean runtime, final boolean dynamic) {
             this.name = name;
             this.clazz = clazz;
             this.internal = internal;
             this.generic = generic;
             this.runtime = runtime;
+            this.dynamic = dynamic;
 
             constructors = new HashMap<>();
             functions = new HashMap<>();
@@ -201,6 +258,7 @@ class Definition {
             internal = struct.internal;
             generic = struct.generic;
             runtime = struct.runtime;
+            dynamic = struct.dynamic;
 
             constructors = Collections.unmodifiableMap(struct.constructors);
             functions = Collections.unmodifiableMap(struct.functions);
@@ -282,7 +340,38 @@ class Definition {
 
     private static final String PROPERTIES_FILE = Definition.class.getSimpleName() + ".properties";
 
+    private static final String SNAPSHOT_FILE = Definition.class.getSimpleName() + ".snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x504C4144;
+    private static final int SNAPSHOT_VERSION = 2;
+
+    /**
+     * Loads the default definition from the binary snapshot written at build time by {@link DefinitionSnapshot}.
+     * The properties file is still read to check the snapshot is current, and the definition is loaded from the
+     * properties instead when the snapshot is missing, unreadable, or was built from different properties.
+     */
+    static Definition load() {
+        final Properties properties = loadProperties();
+
+        try (final InputStream stream = Definition.class.getResourceAsStream(SNAPSHOT_FILE)) {
+            if (stream != null) {
+                final Definition definition = loadFromSnapshot(stream, properties);
+
+                if (definition != null) {
+                    return definition;
+                }
+            }
+        } catch (IOException | RuntimeException exception) {
+            // The snapshot is an optimization only, so any problem reading it falls back to the properties.
+        }
+
+        return loadFromProperties(properties);
+    }
+
     static Definition loadFromProperties() {
+        return loadFromProperties(loadProperties());
+    }
+
+    static Properties loadProperties() {
         final Properties properties = new Properties();
 
         try (final InputStream stream = Definition.class.getResourceAsStream(PROPERTIES_FILE)) {
@@ -292,19 +381,38 @@ class Definition {
                     "Unable to load definition properties file [" + PROPERTIES_FILE + "].");
         }
 
-        return loadFromProperties(properties);
+        return properties;
     }
 
     static Definition loadFromProperties(final Properties properties) {
+        return loadFromProperties(properties, null);
+    }
+
+    /**
+     * Loads a definition from the properties, reusing the already loaded structs from the base definition for any
+     * struct whose properties are identical to the ones it was loaded from and that only refers to other such
+     * structs.  The properties for shared structs are skipped entirely, so only the structs that differ from the
+     * base need to be resolved through reflection.
+     */
+    static Definition loadFromProperties(final Properties properties, final Definition base) {
         final Definition definition = new Definition();
+        final Map<String, String> signatures = signatures(properties);
+        final Set<String> shared = base == null ? Collections.<String>emptySet() : shareable(signatures, base);
+
+        for (final String name : shared) {
+            definition.structs.put(name, base.structs.get(name));
+        }
 
         for (String key : properties.stringPropertyNames()) {
             try {
                 final String property = properties.getProperty(key);
 
-                if (key.startsWith("struct")) loadStructFromProperty(definition, property, false, false);
-                else if (key.startsWith("runtime")) loadStructFromProperty(definition, property, false, true);
-                else if (key.startsWith("generic")) loadStructFromProperty(definition, property, true, false);
+                if (isOwnedProperty(key) && shared.contains(getOwnerFromProperty(property))) continue;
+
+                if (key.startsWith("struct")) loadStructFromProperty(definition, property, false, false, false);
+                else if (key.startsWith("runtime")) loadStructFromProperty(definition, property, false, true, false);
+                else if (key.startsWith("generic")) loadStructFromProperty(definition, property, true, false, false);
+                else if (key.startsWith("dynamic")) loadStructFromProperty(definition, property, false, false, true);
                 else {
                     boolean valid = key.startsWith("constructor") || key.startsWith("function") ||
                             key.startsWith("method") || key.startsWith("copy") ||
@@ -325,6 +433,8 @@ class Definition {
             try {
                 final String property = properties.getProperty(key);
 
+                if (isOwnedProperty(key) && shared.contains(getOwnerFromProperty(property))) continue;
+
                 if      (key.startsWith("constructor")) loadConstructorFromProperty(definition, property);
                 else if (key.startsWith("function"))    loadMethodFromProperty(definition, property, true);
                 else if (key.startsWith("method"))      loadMethodFromProperty(definition, property, false);
@@ -339,6 +449,8 @@ class Definition {
             try {
                 final String property = properties.getProperty(key);
 
+                if (isOwnedProperty(key) && shared.contains(getOwnerFromProperty(property))) continue;
+
                 if (key.startsWith("copy")) loadCopyFromProperty(definition, property);
                 else if (key.startsWith("transform")) loadTransformFromProperty(definition, property);
                 else if (key.startsWith("numeric")) loadNumericFromProperty(definition, property);
@@ -349,13 +461,356 @@ class Definition {
         }
 
         validateMethods(definition);
-        buildRuntimeMap(definition);
 
-        return new Definition(definition);
+        return new Definition(definition, fingerprint(properties), signatures, shared);
+    }
+
+    /** Returns true for the properties that belong to the struct named by the first argument. */
+    private static boolean isOwnedProperty(final String key) {
+        return key.startsWith("struct") || key.startsWith("runtime") || key.startsWith("generic") ||
+                key.startsWith("dynamic") || key.startsWith("constructor") || key.startsWith("function") ||
+                key.startsWith("method") || key.startsWith("static") || key.startsWith("member") || key.startsWith("copy");
+    }
+
+    private static String getOwnerFromProperty(final String property) {
+        return property.trim().split("\\s+")[0];
+    }
+
+    /**
+     * Builds a signature for each struct from the properties that belong to it, independent of the order
+     * of the keys and of the key names themselves, so two structs with equal signatures load identically
+     * provided the structs they refer to are also identical.
+     */
+    static Map<String, String> signatures(final Properties properties) {
+        final Map<String, List<String>> lines = new HashMap<>();
+
+        for (final String key : properties.stringPropertyNames()) {
+            if (isOwnedProperty(key)) {
+                final String property = properties.getProperty(key).trim().replaceAll("\\s+", " ");
+                final String owner = getOwnerFromProperty(property);
+                final int dot = key.indexOf('.');
+                List<String> owned = lines.get(owner);
+
+                if (owned == null) {
+                    owned = new ArrayList<>();
+                    lines.put(owner, owned);
+                }
+
+                owned.add((dot == -1 ? key : key.substring(0, dot)) + " " + property);
+            }
+        }
+
+        final Map<String, String> signatures = new HashMap<>();
+
+        for (final Map.Entry<String, List<String>> entry : lines.entrySet()) {
+            Collections.sort(entry.getValue());
+
+            final StringBuilder builder = new StringBuilder();
+
+            for (final String line : entry.getValue()) {
+                builder.append(line).append('\n');
+            }
+
+            signatures.put(entry.getKey(), builder.toString());
+        }
+
+        return signatures;
+    }
+
+    /**
+     * Returns the names of the structs with the same signature as in the base definition whose properties only
+     * refer to other structs that are also shared.  This is repeated until no more structs are removed since
+     * removing one struct may mean others that refer to it can no longer be shared either.
+     */
+    private static Set<String> shareable(final Map<String, String> signatures, final Definition base) {
+        final Set<String> shared = new HashSet<>();
+
+        for (final Map.Entry<String, String> entry : signatures.entrySet()) {
+            if (entry.getValue().equals(base.signatures.get(entry.getKey()))) {
+                shared.add(entry.getKey());
+            }
+        }
+
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+
+            for (final String name : new ArrayList<>(shared)) {
+                for (final String token : signatures.get(name).split("[\\s(),^\\[\\]]+")) {
+                    final boolean struct = signatures.containsKey(token) || base.structs.containsKey(token);
+
+                    if (struct && !shared.contains(token)) {
+                        shared.remove(name);
+                        changed = true;
+
+                        break;
+                    }
+                }
+            }
+        }
+
+        return shared;
+    }
+
+    /**
+     * Computes a digest of the properties content that is independent of the order of the keys, so two
+     * sets of properties that would load identical definitions share the same fingerprint.
+     */
+    static String fingerprint(final Properties properties) {
+        final List<String> keys = new ArrayList<>(properties.stringPropertyNames());
+        Collections.sort(keys);
+
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("Unable to compute the definition fingerprint.", exception);
+        }
+
+        for (final String key : keys) {
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)'=');
+            digest.update(properties.getProperty(key).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)'\n');
+        }
+
+        final StringBuilder builder = new StringBuilder();
+
+        for (final byte value : digest.digest()) {
+            builder.append(Character.forDigit((value >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(value & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Writes the fully resolved definition in the binary format read by {@link #loadFromSnapshot}.  Java classes
+     * are recorded by name and Java members by the name and class used to look them up, so reading it back needs
+     * no reflection beyond loading the classes.
+     */
+    static void writeSnapshot(final Definition definition, final OutputStream stream) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeUTF(definition.fingerprint);
+
+        final List<Struct> structs = new ArrayList<>(definition.structs.values());
+        out.writeInt(structs.size());
+
+        for (final Struct struct : structs) {
+            out.writeUTF(struct.name);
+            out.writeUTF(struct.clazz.getName());
+            out.writeBoolean(struct.generic);
+            out.writeBoolean(struct.runtime);
+            out.writeBoolean(struct.dynamic);
+        }
+
+        for (final Struct struct : structs) {
+            out.writeInt(struct.constructors.size());
+
+            for (final Constructor constructor : struct.constructors.values()) {
+                out.writeUTF(constructor.name);
+                writeTypes(out, constructor.arguments);
+                writeTypes(out, constructor.originals);
+                out.writeUTF(constructor.descriptor);
+            }
+
+            writeMethods(out, struct.functions.values());
+            writeMethods(out, struct.methods.values());
+            writeFields(out, struct.statics.values());
+            writeFields(out, struct.members.values());
+        }
+
+        writeCasts(out, definition.numerics);
+        writeCasts(out, definition.upcasts);
+        writeTransforms(out, definition.explicits.values());
+        writeTransforms(out, definition.implicits.values());
+
+        out.flush();
+    }
+
+    private static void writeTypes(final DataOutputStream out, final List<Type> types) throws IOException {
+        out.writeInt(types.size());
+
+        for (final Type type : types) {
+            out.writeUTF(type.name);
+        }
+    }
+
+    private static void writeMethods(final DataOutputStream out, final Collection<Method> methods) throws IOException {
+        out.writeInt(methods.size());
+
+        for (final Method method : methods) {
+            out.writeUTF(method.name);
+            out.writeUTF(method.rtn.name);
+            out.writeUTF(method.oreturn.name);
+            writeTypes(out, method.arguments);
+            writeTypes(out, method.originals);
+            out.writeUTF(method.jclass.getName());
+            out.writeUTF(method.jname);
+            out.writeBoolean(method.statik);
+            out.writeUTF(method.descriptor);
+        }
+    }
+
+    private static void writeFields(final DataOutputStream out, final Collection<Field> fields) throws IOException {
+        out.writeInt(fields.size());
+
+        for (final Field field : fields) {
+            out.writeUTF(field.name);
+            out.writeUTF(field.type.name);
+            out.writeUTF(field.jname);
+            out.writeBoolean(field.statik);
+            out.writeBoolean(field.readonly);
+        }
+    }
+
+    private static void writeCasts(final DataOutputStream out, final Collection<Cast> casts) throws IOException {
+        out.writeInt(casts.size());
+
+        for (final Cast cast : casts) {
+            out.writeUTF(cast.from.name);
+            out.writeUTF(cast.to.name);
+        }
+    }
+
+    private static void writeTransforms(final DataOutputStream out, final Collection<Transform> transforms)
+            throws IOException {
+        out.writeInt(transforms.size());
+
+        for (final Transform transform : transforms) {
+            out.writeUTF(transform.from.name);
+            out.writeUTF(transform.to.name);
+            out.writeUTF(transform.method.owner.name);
+            out.writeBoolean(transform.method.statik);
+            out.writeUTF(transform.method.name);
+            out.writeUTF(transform.upcast == null ? "" : transform.upcast.name);
+            out.writeUTF(transform.downcast == null ? "" : transform.downcast.name);
+        }
+    }
+
+    /**
+     * Reads a definition written by {@link #writeSnapshot}.  Returns null if the snapshot is from a different
+     * format version or was built from properties other than the given ones.  Java members
+     * are not looked up until they are first used.
+     */
+    static Definition loadFromSnapshot(final InputStream stream, final Properties properties) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        final String fingerprint = fingerprint(properties);
+
+        if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION || !in.readUTF().equals(fingerprint)) {
+            return null;
+        }
+
+        final Definition definition = new Definition();
+        final Struct[] structs = new Struct[in.readInt()];
+
+        for (int index = 0; index < structs.length; ++index) {
+            final String name = in.readUTF();
+            final Class<?> clazz = getClassFromCanonicalName(in.readUTF());
+            final String internal = clazz.getName().replace('.', '/');
+
+            structs[index] = new Struct(name, clazz, internal, in.readBoolean(), in.readBoolean(), in.readBoolean());
+            definition.structs.put(name, structs[index]);
+        }
+
+        for (final Struct struct : structs) {
+            for (int count = in.readInt(); count > 0; --count) {
+                final String name = in.readUTF();
+                final List<Type> arguments = readTypes(in, definition);
+                final List<Type> originals = readTypes(in, definition);
+
+                struct.constructors.put(name, new Constructor(name, struct, arguments, originals, null, in.readUTF()));
+            }
+
+            readMethods(in, definition, struct, struct.functions);
+            readMethods(in, definition, struct, struct.methods);
+            readFields(in, definition, struct, struct.statics);
+            readFields(in, definition, struct, struct.members);
+        }
+
+        for (int count = in.readInt(); count > 0; --count) {
+            definition.numerics.add(new Cast(readType(in, definition), readType(in, definition)));
+        }
+
+        for (int count = in.readInt(); count > 0; --count) {
+            definition.upcasts.add(new Cast(readType(in, definition), readType(in, definition)));
+        }
+
+        readTransforms(in, definition, definition.explicits);
+        readTransforms(in, definition, definition.implicits);
+
+        return new Definition(definition, fingerprint, signatures(properties), Collections.<String>emptySet());
+    }
+
+    private static Type readType(final DataInputStream in, final Definition definition) throws IOException {
+        final String name = in.readUTF();
+
+        return name.isEmpty() ? null : getTypeFromCanonicalName(definition, name);
+    }
+
+    private static List<Type> readTypes(final DataInputStream in, final Definition definition) throws IOException {
+        final Type[] types = new Type[in.readInt()];
+
+        for (int index = 0; index < types.length; ++index) {
+            types[index] = readType(in, definition);
+        }
+
+        return Arrays.asList(types);
+    }
+
+    private static void readMethods(final DataInputStream in, final Definition definition,
+                                    final Struct owner, final Map<String, Method> methods) throws IOException {
+        for (int count = in.readInt(); count > 0; --count) {
+            final String name = in.readUTF();
+            final Type rtn = readType(in, definition);
+            final Type oreturn = readType(in, definition);
+            final List<Type> arguments = readTypes(in, definition);
+            final List<Type> originals = readTypes(in, definition);
+            final Class<?> jclass = getClassFromCanonicalName(in.readUTF());
+            final String jname = in.readUTF();
+            final boolean statik = in.readBoolean();
+
+            methods.put(name, new Method(name, owner, rtn, oreturn, arguments, originals,
+                    jclass, jname, statik, null, in.readUTF()));
+        }
+    }
+
+    private static void readFields(final DataInputStream in, final Definition definition,
+                                   final Struct owner, final Map<String, Field> fields) throws IOException {
+        for (int count = in.readInt(); count > 0; --count) {
+            final String name = in.readUTF();
+            final Type type = readType(in, definition);
+            final String jname = in.readUTF();
+            final boolean statik = in.readBoolean();
+
+            fields.put(name, new Field(name, owner, type, jname, statik, in.readBoolean(), null));
+        }
+    }
+
+    private static void readTransforms(final DataInputStream in, final Definition definition,
+                                       final Map<Cast, Transform> transforms) throws IOException {
+        for (int count = in.readInt(); count > 0; --count) {
+            final Cast cast = new Cast(readType(in, definition), readType(in, definition));
+            final Struct owner = definition.structs.get(in.readUTF());
+            final boolean statik = in.readBoolean();
+            final String name = in.readUTF();
+            final Method method = statik ? owner.functions.get(name) : owner.methods.get(name);
+
+            if (method == null) {
+                throw new IllegalStateException("Transform [" + name + "] not defined in struct [" + owner.name + "].");
+            }
+
+            transforms.put(cast, new Transform(cast, method, readType(in, definition), readType(in, definition)));
+        }
     }
 
     private static void loadStructFromProperty(final Definition definition, final String property,
-                                               final boolean generic, final boolean runtime) {
+                                               final boolean generic, final boolean runtime, final boolean dynamic) {
         final String[] split = property.split("\\s+");
 
         if (split.length != 2) {
@@ -365,7 +820,7 @@ class Definition {
         final String namestr = split[0];
         final String clazzstr = split[1];
 
-        loadStruct(definition, namestr, clazzstr, generic, runtime);
+        loadStruct(definition, namestr, clazzstr, generic, runtime, dynamic);
     }
 
     private static void loadConstructorFromProperty(final Definition definition, final String property) {
@@ -514,8 +969,8 @@ class Definition {
         loadUpcast(definition, fromstr, tostr);
     }
 
-    private static void loadStruct(final Definition definition, final String namestr,
-                                   final String clazzstr, final boolean generic, final boolean runtime) {
+    private static void loadStruct(final Definition definition, final String namestr, final String clazzstr,
+                                   final boolean generic, final boolean runtime, final boolean dynamic) {
         if (!namestr.matches("^[_a-zA-Z][_a-zA-Z0-9]*$")) {
             throw new IllegalArgumentException("Invalid struct name [" + namestr + "].");
         }
@@ -525,8 +980,13 @@ class Definition {
         }
 
         final Class<?> clazz = getClassFromCanonicalName(clazzstr);
+
+        if (dynamic && clazz != Object.class) {
+            throw new IllegalArgumentException("Dynamic struct [" + namestr + "] must have the Java class [java.lang.Object].");
+        }
+
         final String internal = clazz.getName().replace('.', '/');
-        final Struct struct = new Struct(namestr, clazz, internal, generic, runtime);
+        final Struct struct = new Struct(namestr, clazz, internal, generic, runtime, dynamic);
 
         definition.structs.put(namestr, struct);
     }
@@ -692,9 +1152,9 @@ class Definition {
                     "within the struct [" + ownerstr + "].");
         }
 
-        final Method method = new Method(namestr, owner, rtn, oreturn,
-                Arrays.asList(arguments), Arrays.asList(originals), jmethod, descriptor);
         final int modifiers = jmethod.getModifiers();
+        final Method method = new Method(namestr, owner, rtn, oreturn, Arrays.asList(arguments), Arrays.asList(originals),
+                owner.clazz, jmethod.getName(), java.lang.reflect.Modifier.isStatic(modifiers), jmethod, descriptor);
 
         if (statik) {
             if (!java.lang.reflect.Modifier.isStatic(modifiers)) {
@@ -749,8 +1209,9 @@ class Definition {
 
         final Type type = getTypeFromCanonicalName(definition, typestr);
         final java.lang.reflect.Field jfield = getJFieldFromJClass(owner.clazz, jnamestr);
-        final Field field = new Field(namestr, owner, type, jfield);
         final int modifiers = jfield.getModifiers();
+        final Field field = new Field(namestr, owner, type, jfield.getName(), java.lang.reflect.Modifier.isStatic(modifiers),
+                java.lang.reflect.Modifier.isFinal(modifiers), jfield);
 
         if (statik) {
             if (!java.lang.reflect.Modifier.isStatic(modifiers)) {
@@ -800,19 +1261,21 @@ class Definition {
 
             for (final Method method : struct.methods.values()) {
                 if (owner.methods.get(method.name) == null) {
-                    java.lang.reflect.Method jmethod = getJMethodFromJClass(object ? Object.class : owner.clazz,
-                            method.method.getName(), method.method.getParameterTypes());
+                    final Class<?> jclass = object ? Object.class : owner.clazz;
+                    java.lang.reflect.Method jmethod = getJMethodFromJClass(jclass,
+                            method.jname, getJClassesFromTypes(method.originals));
 
                     owner.methods.put(method.name,
-                            new Method(method.name, owner, method.rtn, method.oreturn,
-                                    method.arguments, method.originals, jmethod, method.descriptor));
+                            new Method(method.name, owner, method.rtn, method.oreturn, method.arguments,
+                                    method.originals, jclass, method.jname, method.statik, jmethod, method.descriptor));
                 }
             }
 
             for (final Field field : struct.members.values()) {
                 if (owner.members.get(field.name) == null) {
-                    java.lang.reflect.Field jfield = getJFieldFromJClass(owner.clazz, field.field.getName());
-                    owner.members.put(field.name, new Field(field.name, owner, field.type, jfield));
+                    java.lang.reflect.Field jfield = getJFieldFromJClass(owner.clazz, field.jname);
+                    owner.members.put(field.name, new Field(field.name, owner, field.type,
+                            field.jname, field.statik, java.lang.reflect.Modifier.isFinal(jfield.getModifiers()), jfield));
                 }
             }
         }
@@ -1109,7 +1572,7 @@ class Definition {
             final String internal = struct.internal;
             final String descriptor = getDescriptorFromClass(clazz);
 
-            TypeMetadata metadata = TypeMetadata.OBJECT;
+            TypeMetadata metadata = struct.dynamic ? TypeMetadata.DEF : TypeMetadata.OBJECT;
 
             for (TypeMetadata value : TypeMetadata.values()) {
                 if (value.clazz == null) {
@@ -1289,6 +1752,16 @@ class Definition {
         }
     }
 
+    private static Class<?>[] getJClassesFromTypes(final List<Type> types) {
+        final Class<?>[] jclasses = new Class<?>[types.size()];
+
+        for (int index = 0; index < jclasses.length; ++index) {
+            jclasses[index] = types.get(index).clazz;
+        }
+
+        return jclasses;
+    }
+
     private static java.lang.reflect.Field getJFieldFromJClass(final Class<?> clazz, final String namestr) {
         try {
             return clazz.getField(namestr);
@@ -1375,16 +1848,17 @@ class Definition {
         return true;
     }
 
-    private static void buildRuntimeMap(final Definition definition) {
+    private static Map<String, MethodHandle> buildRuntimeMap(final Definition definition) {
+        final Map<String, MethodHandle> runtime = new HashMap<>();
+
         for (final Struct struct : definition.structs.values()) {
             if (struct.runtime) {
                 for (final Method method : struct.methods.values()) {
                     final String name = struct.clazz.getName() + "_" + method.name;
 
-                    if (!definition.runtime.containsKey(name)) {
+                    if (!runtime.containsKey(name)) {
                         try {
-                            definition.runtime.put(name,
-                                    MethodHandles.publicLookup().in(struct.clazz).unreflect(method.method));
+                            runtime.put(name, MethodHandles.publicLookup().in(struct.clazz).unreflect(method.getMethod()));
                         } catch (IllegalAccessException exception) {
                             throw new IllegalStateException("Unable to find method [" + method.name + "] from the" +
                                     " struct [" + struct.name + "] to define as a runtime method.");
@@ -1393,10 +1867,27 @@ class Definition {
                 }
             }
         }
+
+        return Collections.unmodifiableMap(runtime);
+    }
+
+    /**
+     * Returns the method handles for the methods of the runtime structs.  These are built on first use rather than
+     * when the definition is loaded since unreflecting every method is a large part of the load time.
+     */
+    Map<String, MethodHandle> getRuntime() {
+        if (runtime == null) {
+            runtime = buildRuntimeMap(this);
+        }
+
+        return runtime;
     }
 
+    final String fingerprint;
+    final Map<String, String> signatures;
+
     final Map<String, Struct> structs;
-    final Map<String, MethodHandle> runtime;
+    private volatile Map<String, MethodHandle> runtime;
 
     final Map<Cast, Transform> explicits;
     final Map<Cast, Transform> implicits;
@@ -1404,8 +1895,10 @@ class Definition {
     final Set<Cast> upcasts;
 
     private Definition() {
+        fingerprint = null;
+        signatures = null;
+
         structs = new HashMap<>();
-        runtime = new HashMap<>();
 
         explicits = new HashMap<>();
         implicits = new HashMap<>();
@@ -1413,15 +1906,18 @@ class Definition {
         upcasts = new HashSet<>();
     }
 
-    private Definition(Definition definition) {
+    private Definition(final Definition definition, final String fingerprint,
+                       final Map<String, String> signatures, final Set<String> shared) {
+        this.fingerprint = fingerprint;
+        this.signatures = Collections.unmodifiableMap(signatures);
+
         final Map<String, Struct> ummodifiable = new HashMap<>();
 
         for (final Struct struct : definition.structs.values()) {
-            ummodifiable.put(struct.name, new Struct(struct));
+            ummodifiable.put(struct.name, shared.contains(struct.name) ? struct : new Struct(struct));
         }
 
         structs = Collections.unmodifiableMap(ummodifiable);
-        runtime = Collections.unmodifiableMap(definition.runtime);
 
         explicits = Collections.unmodifiableMap(definition.explicits);
         implicits = Collections.unmodifiableMap(definition.implicits);
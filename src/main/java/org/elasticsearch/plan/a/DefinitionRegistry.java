@@ -0,0 +1,194 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.elasticsearch.plan.a.Default.*;
+
+/**
+ * A size-bounded registry of the {@link Definition}, {@link Standard} and {@link Caster} built for custom
+ * properties, keyed by the fingerprint of the properties content.  Eviction is least-recently-used.  Concurrent
+ * requests for the same properties share a single load, and failed loads are not kept.  Custom definitions
+ * share any structs that are unchanged from the default definition.
+ */
+final class DefinitionRegistry {
+    /** The number of custom definitions kept by the registry shared by compiles that do not specify one. */
+    static final int DEFAULT_MAX_SIZE = 16;
+
+    static final DefinitionRegistry SHARED = new DefinitionRegistry(DEFAULT_MAX_SIZE);
+
+    static final class Loaded {
+        final Definition definition;
+        final Standard standard;
+        final Caster caster;
+
+        private Loaded(final Definition definition, final Standard standard, final Caster caster) {
+            this.definition = definition;
+            this.standard = standard;
+            this.caster = caster;
+        }
+    }
+
+    private static final Loaded DEFAULT_LOADED = new Loaded(DEFAULT_DEFINITION, DEFAULT_STANDARD, DEFAULT_CASTER);
+
+    private final int maxSize;
+    private final Map<String, FutureTask<Loaded>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    DefinitionRegistry(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("The definition registry size [" + maxSize + "] cannot be negative.");
+        }
+
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, FutureTask<Loaded>>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, FutureTask<Loaded>> eldest) {
+                if (size() > DefinitionRegistry.this.maxSize) {
+                    evictions.incrementAndGet();
+
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the entry for the properties, loading it if no entry with the same fingerprint is registered.
+     * Null properties, or properties identical to the default ones, return the default entry.
+     */
+    Loaded get(final Properties properties) {
+        if (properties == null) {
+            return DEFAULT_LOADED;
+        }
+
+        final String fingerprint = Definition.fingerprint(properties);
+
+        if (fingerprint.equals(DEFAULT_DEFINITION.fingerprint)) {
+            return DEFAULT_LOADED;
+        }
+
+        if (maxSize == 0) {
+            misses.incrementAndGet();
+
+            return load(properties);
+        }
+
+        final FutureTask<Loaded> task;
+        final boolean owner;
+
+        synchronized (entries) {
+            final FutureTask<Loaded> existing = entries.get(fingerprint);
+
+            if (existing == null) {
+                task = new FutureTask<>(new Callable<Loaded>() {
+                    @Override
+                    public Loaded call() {
+                        return load(properties);
+                    }
+                });
+                entries.put(fingerprint, task);
+                owner = true;
+            } else {
+                task = existing;
+                owner = false;
+            }
+        }
+
+        if (owner) {
+            misses.incrementAndGet();
+            task.run();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        try {
+            return task.get();
+        } catch (final ExecutionException exception) {
+            synchronized (entries) {
+                if (entries.get(fingerprint) == task) {
+                    entries.remove(fingerprint);
+                }
+            }
+
+            final Throwable cause = exception.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+
+            throw new IllegalStateException("An internal error occurred attempting to load the definition.", cause);
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Interrupted while waiting for the definition to load.", exception);
+        }
+    }
+
+    private static Loaded load(final Properties properties) {
+        final Definition definition = Definition.loadFromProperties(properties, DEFAULT_DEFINITION);
+        final Standard standard = new Standard(definition);
+        final Caster caster = new Caster(definition, standard);
+
+        return new Loaded(definition, standard, caster);
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.elasticsearch.common.SuppressForbidden;
+
+/**
+ * Build time tool that loads the default {@link Definition} from the properties file and writes it as the binary
+ * snapshot loaded by {@link Definition#load()}.  It is run by the build after the classes are compiled with the
+ * path of the snapshot file in the output directory as its only argument.
+ */
+@SuppressForbidden(reason = "build time tool writing to a path from the command line")
+final class DefinitionSnapshot {
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Expected exactly one argument (snapshot file).");
+        }
+
+        final Definition definition = Definition.loadFromProperties();
+
+        try (final OutputStream stream = Files.newOutputStream(Paths.get(args[0]))) {
+            Definition.writeSnapshot(definition, stream);
+        }
+    }
+
+    private DefinitionSnapshot() {}
+}
@@ -0,0 +1,176 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+
+/**
+ * Replaces a read of the first value of a field of the document with a constant name, such as
+ * {@code (double)((list)((smap)input.get("doc")).get("price")).get(0)}, with an {@link IR.DocValue}.  The
+ * doc values of the field are then bound once per segment and read as a long or a double for each document,
+ * instead of looking up the doc map and the field and boxing the value.  The doc map may also be read
+ * through a variable that is only stored to by its declaration.
+ */
+final class DocValuesPass extends PassManager.Pass {
+    static final String NAME = "docvalues";
+
+    DocValuesPass() {
+        super(NAME);
+    }
+
+    @Override
+    void run(final Adapter adapter, final IR.Block root, final CompilerStats stats) {
+        final Map<Variable, IR.Expression> definitions = new HashMap<>();
+        final Map<Variable, Integer> stores = new HashMap<>();
+
+        root.accept(new IR.Rewriter() {
+            private void store(final Variable variable, final IR.Expression value) {
+                final Integer count = stores.get(variable);
+                stores.put(variable, count == null ? 1 : count + 1);
+
+                if (value != null) {
+                    definitions.put(variable, value);
+                }
+            }
+
+            @Override
+            IR.Node visitDeclare(final IR.Declare node) {
+                store(node.variable, node.value);
+
+                return super.visitDeclare(node);
+            }
+
+            @Override
+            IR.Node visitAssign(final IR.Assign node) {
+                if (node.target instanceof IR.Load) {
+                    store(((IR.Load)node.target).variable, null);
+                }
+
+                return super.visitAssign(node);
+            }
+
+            @Override
+            IR.Node visitIncrement(final IR.Increment node) {
+                store(node.variable, null);
+
+                return node;
+            }
+        });
+
+        for (final Map.Entry<Variable, Integer> entry : stores.entrySet()) {
+            if (entry.getValue() != 1) {
+                definitions.remove(entry.getKey());
+            }
+        }
+
+        root.accept(new IR.Rewriter() {
+            @Override
+            IR.Node visitConvert(final IR.Convert node) {
+                super.visitConvert(node);
+
+                final TypeMetadata metadata = node.type.metadata;
+
+                // the value is converted as a number, which is all the fast path knows how to read
+                if (!(node.cast instanceof Transform) || !node.cast.from.clazz.isAssignableFrom(Number.class) ||
+                        metadata != TypeMetadata.LONG && metadata != TypeMetadata.DOUBLE) {
+                    return node;
+                }
+
+                final IR.Call value = call(strip(node.expression, Number.class), List.class, Integer.valueOf(0));
+
+                if (value == null) {
+                    return node;
+                }
+
+                final IR.Call field = call(strip(value.receiver, List.class), Map.class, null);
+
+                if (field == null) {
+                    return node;
+                }
+
+                final Variable input = doc(strip(field.receiver, Map.class), definitions);
+
+                if (input == null) {
+                    return node;
+                }
+
+                final String name = (String)((IR.Constant)field.arguments.get(0)).value;
+
+                return new IR.DocValue(node.source, node.type, new IR.Load(node.source, input), name, -1);
+            }
+        });
+    }
+
+    /**
+     * Returns the expression without the conversions around it that always succeed for a value of the type, so
+     * the fast path fails for a value of the wrong type the same way the conversions would.
+     */
+    private static IR.Expression strip(IR.Expression expression, final Class<?> type) {
+        while (expression instanceof IR.Convert && !(((IR.Convert)expression).cast instanceof Transform) &&
+                expression.type.clazz.isAssignableFrom(type)) {
+            expression = ((IR.Convert)expression).expression;
+        }
+
+        return expression;
+    }
+
+    /**
+     * Returns the expression as a call of get on a receiver of the type with a single constant argument, which
+     * is the key, or any string when the key is null.
+     */
+    private static IR.Call call(final IR.Expression expression, final Class<?> type, final Object key) {
+        if (!(expression instanceof IR.Call)) {
+            return null;
+        }
+
+        final IR.Call call = (IR.Call)expression;
+
+        if (call.receiver == null || !"get".equals(call.method.jname) || !type.isAssignableFrom(call.method.owner.clazz) ||
+                call.arguments.size() != 1 || !(call.arguments.get(0) instanceof IR.Constant)) {
+            return null;
+        }
+
+        final Object argument = ((IR.Constant)call.arguments.get(0)).value;
+
+        return (key == null ? argument instanceof String : key.equals(argument)) ? call : null;
+    }
+
+    /** Returns the input variable when the expression reads the doc map from it, or null. */
+    private static Variable doc(final IR.Expression expression, final Map<Variable, IR.Expression> definitions) {
+        if (expression instanceof IR.Load) {
+            final IR.Expression definition = definitions.get(((IR.Load)expression).variable);
+
+            return definition == null ? null : doc(strip(definition, Map.class), definitions);
+        }
+
+        final IR.Call call = call(expression, Map.class, "doc");
+
+        if (call != null && call.receiver instanceof IR.Load && "input".equals(((IR.Load)call.receiver).variable.name)) {
+            return ((IR.Load)call.receiver).variable;
+        }
+
+        return null;
+    }
+}
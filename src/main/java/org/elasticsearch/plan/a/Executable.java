@@ -19,12 +19,21 @@ package org.elasticsearch.plan.a;
  * under the License.
  */
 
+import org.elasticsearch.script.LeafSearchScript;
+
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 public abstract class Executable {
     private final String name;
     private final String source;
 
+    private Set<String> staged = Collections.emptySet();
+    private Map<String, Integer> bindings = null;
+    private Map<String, Integer> fields = Collections.emptyMap();
+    private boolean scores = true;
+
     public Executable(String name, String source) {
         this.name = name;
         this.source = source;
@@ -39,4 +48,100 @@ public abstract class Executable {
     }
 
     public abstract Object execute(Map<String, Object> input);
+
+    /**
+     * Computes the values of the script that depend only on inputs that are the same for the whole query, or
+     * returns null when there are none.
+     */
+    public Object[] query(final Map<String, Object> input) {
+        return null;
+    }
+
+    /** Computes the values of the script that depend on the segment, given a copy of the values of the query. */
+    public Object[] segment(final Map<String, Object> input, final Object[] values) {
+        return values;
+    }
+
+    /** Runs the script with the values computed by the stages, or computes each value itself when they are null. */
+    public Object execute(final Map<String, Object> input, final Object[] values) {
+        return execute(input);
+    }
+
+    /** Runs the script for a number, which is returned without boxing when every return of the script is a number. */
+    public double executeAsDouble(final Map<String, Object> input) {
+        return ((Number)execute(input)).doubleValue();
+    }
+
+    /** Runs the script for a number with the values computed by the stages, or computes each value when they are null. */
+    public double executeAsDouble(final Map<String, Object> input, final Object[] values) {
+        return values == null ? executeAsDouble(input) : ((Number)execute(input, values)).doubleValue();
+    }
+
+    /** Runs the script for a number, which is returned without boxing when every return of the script is a number. */
+    public float executeAsFloat(final Map<String, Object> input) {
+        return ((Number)execute(input)).floatValue();
+    }
+
+    /** Runs the script for a number with the values computed by the stages, or computes each value when they are null. */
+    public float executeAsFloat(final Map<String, Object> input, final Object[] values) {
+        return values == null ? executeAsFloat(input) : ((Number)execute(input, values)).floatValue();
+    }
+
+    /** Runs the script for a number, which is returned without boxing when every return of the script is a number. */
+    public long executeAsLong(final Map<String, Object> input) {
+        return ((Number)execute(input)).longValue();
+    }
+
+    /** Runs the script for a number with the values computed by the stages, or computes each value when they are null. */
+    public long executeAsLong(final Map<String, Object> input, final Object[] values) {
+        return values == null ? executeAsLong(input) : ((Number)execute(input, values)).longValue();
+    }
+
+    /**
+     * Scores the first count documents of docs into out, moving the leaf to each document in turn.  When every
+     * return of the script is a number the whole block runs in a single loop written into the script.
+     */
+    public void executeAsDoubles(final Map<String, Object> input, final Object[] values, final LeafSearchScript leaf,
+                                 final int[] docs, final int count, final double[] out) {
+        for (int index = 0; index < count; ++index) {
+            leaf.setDocument(docs[index]);
+            out[index] = executeAsDouble(input, values);
+        }
+    }
+
+    /** Returns true if any of the values computed by the stages reads the input with the name. */
+    boolean isStaged(final String name) {
+        return staged.contains(name);
+    }
+
+    void setStaged(final Set<String> names) {
+        staged = names;
+    }
+
+    /** Returns false only when the script can never read the score from its input. */
+    boolean needsScores() {
+        return scores;
+    }
+
+    void setNeedsScores(final boolean scores) {
+        this.scores = scores;
+    }
+
+    /**
+     * Returns the slot of each input the script reads by name when it is run with {@link Bindings}, or null
+     * when the script uses the input map for more than reads by a constant name.
+     */
+    Map<String, Integer> getBindings() {
+        return bindings;
+    }
+
+    /** Returns the slot of the doc values of each field the script reads as a number when it is run with bindings. */
+    Map<String, Integer> getFields() {
+        return fields;
+    }
+
+    void setBindings(final Map<String, Integer> bindings, final Map<String, Integer> fields) {
+        this.bindings = bindings;
+        this.fields = fields;
+    }
 }
@@ -19,14 +19,14 @@ package org.elasticsearch.plan.a;
  * under the License.
  */
 
+
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.List;
 
 import org.antlr.v4.runtime.ParserRuleContext;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
 
 import static org.elasticsearch.plan.a.Adapter.*;
 import static org.elasticsearch.plan.a.Caster.*;
@@ -35,327 +35,200 @@ import static org.elasticsearch.plan.a.Definition.*;
 import static org.elasticsearch.plan.a.PlanAParser.*;
 
 class External {
-    private abstract class Segment {
+    /**
+     * A single resolved piece of an external chain, which is lowered using the expression lowered for the
+     * piece before it, or null for the first piece of the chain.
+     */
+    private abstract class Link {
         final ParserRuleContext source;
 
-        Segment(final ParserRuleContext source) {
+        Link(final ParserRuleContext source) {
             this.source = source;
         }
 
-        abstract void write();
+        abstract IR.Expression lower(Lowerer lowerer, IR.Expression previous);
     }
 
-    private class VariableSegment extends Segment {
+    private class VariableLink extends Link {
         private final Variable variable;
-        private final boolean store;
 
-        VariableSegment(final ParserRuleContext source, final Variable variable, final boolean store) {
+        VariableLink(final ParserRuleContext source, final Variable variable) {
             super(source);
 
             this.variable = variable;
-            this.store = store;
         }
 
         @Override
-        void write() {
-            final TypeMetadata metadata = variable.type.metadata;
-            final int slot = variable.slot;
-
-            switch (metadata) {
-                case VOID:   throw new IllegalStateException();
-                case BOOL:
-                case BYTE:
-                case SHORT:
-                case CHAR:
-                case INT:    visitor.visitVarInsn(store ? Opcodes.ISTORE : Opcodes.ILOAD, slot); break;
-                case LONG:   visitor.visitVarInsn(store ? Opcodes.LSTORE : Opcodes.LLOAD, slot); break;
-                case FLOAT:  visitor.visitVarInsn(store ? Opcodes.FSTORE : Opcodes.FLOAD, slot); break;
-                case DOUBLE: visitor.visitVarInsn(store ? Opcodes.DSTORE : Opcodes.DLOAD, slot); break;
-                default:     visitor.visitVarInsn(store ? Opcodes.ASTORE : Opcodes.ALOAD, slot);
-            }
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.Load(source, variable);
         }
     }
 
-    private class FieldSegment extends Segment {
+    private class FieldLink extends Link {
         private final Field field;
-        private final boolean store;
 
-        FieldSegment(final ParserRuleContext source, final Field field, final boolean store) {
+        FieldLink(final ParserRuleContext source, final Field field) {
             super(source);
 
             this.field = field;
-            this.store = store;
-        }
-
-        @Override
-        void write() {
-            final String internal = field.owner.internal;
-            final String name = field.field.getName();
-            final String descriptor = field.type.descriptor;
-
-            int opcode;
-
-            if (java.lang.reflect.Modifier.isStatic(field.field.getModifiers())) {
-                opcode = store ? Opcodes.PUTSTATIC : Opcodes.GETSTATIC;
-            } else {
-                opcode = store ? Opcodes.PUTFIELD : Opcodes.GETFIELD;
-            }
-
-            visitor.visitFieldInsn(opcode, internal, name, descriptor);
-        }
-    }
-
-    private class NewSegment extends Segment {
-        private final Struct struct;
-
-        NewSegment(final ParserRuleContext source, final Struct struct) {
-            super(source);
-
-            this.struct = struct;
         }
 
         @Override
-        void write() {
-            final String internal = struct.internal;
-            visitor.visitTypeInsn(Opcodes.NEW, internal);
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.LoadField(source, field.statik ? null : previous, field);
         }
     }
 
-    private class ConstructorSegment extends Segment {
+    private class NewLink extends Link {
+        private final Type type;
         private final Constructor constructor;
+        private final List<ExpressionContext> arguments;
 
-        ConstructorSegment(final ParserRuleContext source, final Constructor constructor) {
+        NewLink(final ParserRuleContext source, final Type type,
+                final Constructor constructor, final List<ExpressionContext> arguments) {
             super(source);
 
+            this.type = type;
             this.constructor = constructor;
+            this.arguments = arguments;
         }
 
         @Override
-        void write() {
-            final String internal = constructor.owner.internal;
-            final String descriptor = constructor.descriptor;
-            visitor.visitMethodInsn(Opcodes.INVOKESPECIAL, internal, "<init>", descriptor, false);
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.New(source, type, constructor, lowerer.expressions(arguments));
         }
     }
 
-    private class MethodSegment extends Segment {
-        private final String internal;
-        private final String name;
-        private final String descriptor;
-        private final boolean statik;
-        private final boolean iface;
+    private class MethodLink extends Link {
+        private final Method method;
+        private final List<ExpressionContext> arguments;
 
-        MethodSegment(final ParserRuleContext source, final Method method) {
+        MethodLink(final ParserRuleContext source, final Method method, final List<ExpressionContext> arguments) {
             super(source);
 
-            this.internal = method.owner.internal;
-            this.name = method.method.getName();
-            this.descriptor = method.descriptor;
-            statik = java.lang.reflect.Modifier.isStatic(method.method.getModifiers());
-            iface = java.lang.reflect.Modifier.isInterface(method.owner.clazz.getModifiers());
-        }
-
-        @Override
-        void write() {
-            if (statik) {
-                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, internal, name, descriptor, false);
-            } else if (iface) {
-                visitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, internal, name, descriptor, true);
-            } else {
-                visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, internal, name, descriptor, false);
-            }
-        }
-    }
-
-    private class NodeSegment extends Segment {
-        NodeSegment(final ParserRuleContext source) {
-            super(source);
+            this.method = method;
+            this.arguments = arguments;
         }
 
         @Override
-        void write() {
-            writer.visit(source);
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.Call(source, method, method.statik ? null : previous, lowerer.expressions(arguments));
         }
     }
 
-    private class ArraySegment extends Segment {
+    private class ArrayLink extends Link {
         private final Type type;
-        private final boolean store;
+        private final ExpressionContext index;
 
-        ArraySegment(final ParserRuleContext source, final Type type, final boolean store) {
+        ArrayLink(final ParserRuleContext source, final Type type, final ExpressionContext index) {
             super(source);
 
             this.type = type;
-            this.store = store;
+            this.index = index;
         }
 
         @Override
-        void write() {
-            switch (type.metadata) {
-                case VOID:   throw new IllegalStateException(error(source) + "Unexpected state during write.");
-                case BYTE:   visitor.visitInsn(store ? Opcodes.BASTORE : Opcodes.BALOAD); break;
-                case SHORT:  visitor.visitInsn(store ? Opcodes.SASTORE : Opcodes.SALOAD); break;
-                case CHAR:   visitor.visitInsn(store ? Opcodes.CASTORE : Opcodes.CALOAD); break;
-                case BOOL:
-                case INT:    visitor.visitInsn(store ? Opcodes.IASTORE : Opcodes.IALOAD); break;
-                case LONG:   visitor.visitInsn(store ? Opcodes.LASTORE : Opcodes.LALOAD); break;
-                case FLOAT:  visitor.visitInsn(store ? Opcodes.FASTORE : Opcodes.FALOAD); break;
-                case DOUBLE: visitor.visitInsn(store ? Opcodes.DASTORE : Opcodes.DALOAD); break;
-                default:     visitor.visitInsn(store ? Opcodes.AASTORE : Opcodes.AALOAD); break;
-            }
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.LoadArray(source, type, previous, lowerer.expression(index));
         }
     }
 
-    private class MakeSegment extends Segment {
+    private class MakeLink extends Link {
         private final Type type;
-        private final int dimensions;
+        private final Type element;
+        private final List<ExpressionContext> dimensions;
 
-        MakeSegment(final ParserRuleContext source, final Type type, final int dimensions) {
+        MakeLink(final ParserRuleContext source, final Type type,
+                 final Type element, final List<ExpressionContext> dimensions) {
             super(source);
 
             this.type = type;
+            this.element = element;
             this.dimensions = dimensions;
         }
 
         @Override
-        void write() {
-            if (dimensions == 1) {
-                switch (type.metadata) {
-                    case VOID:   throw new IllegalStateException(error(source) + "Unexpected state during write.");
-                    case BOOL:   visitor.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BOOLEAN); break;
-                    case BYTE:   visitor.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BYTE);    break;
-                    case SHORT:  visitor.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_SHORT);   break;
-                    case CHAR:   visitor.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_CHAR);    break;
-                    case INT:    visitor.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);     break;
-                    case LONG:   visitor.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_LONG);    break;
-                    case FLOAT:  visitor.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_FLOAT);   break;
-                    case DOUBLE: visitor.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_DOUBLE);  break;
-                    default:     visitor.visitTypeInsn(Opcodes.ANEWARRAY, type.internal);
-                }
-            } else if (dimensions > 0) {
-                final String descriptor = getTypeWithArrayDimensions(type.struct, dimensions).descriptor;
-                visitor.visitMultiANewArrayInsn(descriptor, dimensions);
-            } else {
-                throw new IllegalStateException(error(source) + "Unexpected state during write.");
-            }
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.NewArray(source, type, element, lowerer.expressions(dimensions));
         }
     }
 
-    private class LengthSegment extends Segment {
-        LengthSegment(final ParserRuleContext source) {
+    private class LengthLink extends Link {
+        LengthLink(final ParserRuleContext source) {
             super(source);
         }
 
         @Override
-        void write() {
-            visitor.visitInsn(Opcodes.ARRAYLENGTH);
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.Length(source, standard.intType, previous);
         }
     }
 
-    private class CastSegment extends Segment {
-        private final Cast cast;
+    /** A member, index or call of a def value, which is resolved when the script runs. */
+    private class DynamicLink extends Link {
+        private final int flavor;
+        private final String name;
+        private final List<ExpressionContext> arguments;
 
-        CastSegment(final ParserRuleContext source, final Cast cast) {
+        DynamicLink(final ParserRuleContext source, final int flavor,
+                    final String name, final List<ExpressionContext> arguments) {
             super(source);
 
-            this.cast = cast;
+            this.flavor = flavor;
+            this.name = name;
+            this.arguments = arguments;
         }
 
         @Override
-        void write() {
-            caster.checkWriteCast(visitor, source, cast);
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.Dynamic(source, standard.defType, flavor, name, previous, lowerer.expressions(arguments));
         }
     }
 
-    private class TokenSegment extends Segment {
-        private final Type type;
-        private final int token;
+    private class CastLink extends Link {
+        private final Cast cast;
 
-        TokenSegment(final ParserRuleContext source, final Type type, final int token) {
+        CastLink(final ParserRuleContext source, final Cast cast) {
             super(source);
 
-            this.type = type;
-            this.token = token;
-        }
-
-        @Override
-        void write() {
-            writer.writeBinaryInstruction(source, type.metadata, token);
-        }
-    }
-
-    private class NewStringsSegment extends Segment {
-        NewStringsSegment(final ParserRuleContext source) {
-            super(source);
+            this.cast = cast;
         }
 
         @Override
-        void write() {
-            writer.writeNewStrings();
-            adapter.markStrings(source);
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return lowerer.convert(source, previous, cast);
         }
     }
 
-    private class AppendStringsSegment extends Segment {
+    /** The store to the last variable, field or array element of the chain. */
+    private class StoreLink extends Link {
+        private final Link target;
         private final Type type;
-        private final boolean force;
+        private final int token;
+        private final Cast promote;
+        private final Cast demote;
+        private final ParserRuleContext value;
+        private final boolean read;
+        private final boolean post;
 
-        AppendStringsSegment(final ParserRuleContext source, final Type type, final boolean force) {
-            super(source);
+        StoreLink(final Link target, final Type type, final int token, final Cast promote, final Cast demote,
+                  final ParserRuleContext value, final boolean read, final boolean post) {
+            super(target.source);
 
+            this.target = target;
             this.type = type;
-            this.force = force;
-        }
-
-        @Override
-        void write() {
-            if (force || adapter.getStrings(source)) {
-                writer.writeAppendStrings(source, type.metadata);
-                adapter.unmarkStrings(source);
-            }
-        }
-    }
-
-    private class ToStringsSegment extends Segment {
-        ToStringsSegment(final ParserRuleContext source) {
-            super(source);
-        }
-
-        @Override
-        void write() {
-            writer.writeToStrings();
-        }
-    }
-
-    private class InstructionSegment extends Segment {
-        private final int instruction;
-
-        InstructionSegment(final ParserRuleContext source, final int instruction) {
-            super(source);
-
-            this.instruction = instruction;
-        }
-
-        @Override
-        void write() {
-            visitor.visitInsn(instruction);
-        }
-    }
-
-    private class IncrementSegment extends Segment {
-        private final Variable variable;
-        private final int value;
-
-        IncrementSegment(final ParserRuleContext source, final Variable variable, final int value) {
-            super(source);
-
-            this.variable = variable;
+            this.token = token;
+            this.promote = promote;
+            this.demote = demote;
             this.value = value;
+            this.read = read;
+            this.post = post;
         }
 
         @Override
-        void write() {
-            visitor.visitIincInsn(variable.slot, value);
+        IR.Expression lower(final Lowerer lowerer, final IR.Expression previous) {
+            return new IR.Assign(source, read ? type : standard.voidType, target.lower(lowerer, previous),
+                    token, promote, demote, lowerer.expression(value), read, post);
         }
     }
 
@@ -365,8 +238,6 @@ class External {
     private final Caster caster;
 
     private final Analyzer analyzer;
-    private Writer writer;
-    private MethodVisitor visitor;
 
     private boolean read;
     private ParserRuleContext write;
@@ -378,7 +249,10 @@ class External {
     private boolean statik;
     private boolean statement;
 
-    private final Deque<Segment> segments;
+    /** True when the last piece resolved is the input map, which is only read without the score by name. */
+    private boolean input;
+
+    private final Deque<Link> links;
 
     External(final Adapter adapter, final Analyzer analyzer) {
         this.adapter = adapter;
@@ -387,8 +261,6 @@ class External {
         caster = adapter.caster;
 
         this.analyzer = analyzer;
-        writer = null;
-        visitor = null;
 
         read = false;
         write = null;
@@ -400,23 +272,20 @@ class External {
         statik = false;
         statement = false;
 
-        segments = new ArrayDeque<>();
-    }
+        input = false;
 
-    void setWriter(final Writer writer, final MethodVisitor visitor) {
-        this.writer = writer;
-        this.visitor = visitor;
+        links = new ArrayDeque<>();
     }
 
-    void write(final ParserRuleContext ctx) {
-        final ExpressionMetadata writeemd = adapter.getExpressionMetadata(ctx);
+    /** Lowers the resolved chain into a single expression of the type the chain was analyzed as. */
+    IR.Expression lower(final Lowerer lowerer) {
+        IR.Expression expression = null;
 
-        for (Segment segment : segments) {
-            segment.write();
+        for (final Link link : links) {
+            expression = link.lower(lowerer, expression);
         }
 
-        caster.checkWriteCast(visitor, writeemd);
-        adapter.checkWriteBranch(visitor, ctx);
+        return expression;
     }
 
     void ext(ExtContext ctx) {
@@ -447,10 +316,7 @@ class External {
         else if (ctx.AAND() != null) token = BWAND;
         else if (ctx.AXOR() != null) token = BWXOR;
         else if (ctx.AOR()  != null) token = BWOR;
-        else if (ctx.ACAT() != null) {
-            token = CAT;
-            segments.add(new NewStringsSegment(write));
-        }
+        else if (ctx.ACAT() != null) token = CAT;
 
         start(ctx.extstart());
 
@@ -565,7 +431,7 @@ class External {
         analyzer.visit(declctx);
 
         final Cast cast = caster.getLegalCast(ctx, current, declemd.from, true);
-        segments.add(new CastSegment(ctx, cast));
+        links.add(new CastLink(ctx, cast));
 
         current = declemd.from;
         statement = false;
@@ -656,123 +522,46 @@ class External {
             throw new IllegalArgumentException(error(source) + "Unknown variable [" + name + "].");
         }
 
-        final Type type = variable.type;
-
-        if (last && write != null) {
-            final ExpressionMetadata writeemd = adapter.createExpressionMetadata(write);
-
-            if (token == CAT) {
-                writeemd.promotion = caster.concat;
-                analyzer.visit(write);
-                writeemd.to = writeemd.from;
-                caster.markCast(writeemd);
-
-                final Cast cast = caster.getLegalCast(source, standard.stringType, type, false);
-
-                segments.add(new VariableSegment(source, variable, false));
-                segments.add(new AppendStringsSegment(source, type, true));
-                segments.add(new NodeSegment(write));
-                segments.add(new AppendStringsSegment(write, writeemd.to, false));
-                segments.add(new ToStringsSegment(source));
-                segments.add(new CastSegment(source, cast));
-
-                if (read) {
-                    if (type.metadata.size == 1) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP));
-                    } else if (type.metadata.size == 2) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP2));
-                    } else {
-                        throw new IllegalStateException(error(source) + "Unexpected type size.");
-                    }
-                }
-
-                segments.add(new VariableSegment(source, variable, true));
-            } else if (token > 0) {
-                final boolean increment = type.metadata == TypeMetadata.INT && (token == ADD || token == SUB);
-                current = type;
-                final Cast[] casts = toNumericCasts(source);
-                writeemd.to = current;
-                analyzer.visit(write);
-
-                if (increment && writeemd.postConst != null) {
-                    if (read && post) {
-                        segments.add(new VariableSegment(source, variable, false));
-                    }
-
-                    final int value = token == SUB ? -1*(int)writeemd.postConst : (int)writeemd.postConst;
-                    segments.add(new IncrementSegment(source, variable, value));
-
-                    if (read && !post) {
-                        segments.add(new VariableSegment(source, variable, false));
-                    }
-                } else {
-                    segments.add(new VariableSegment(source, variable, false));
-
-                    if (read && post) {
-                        if (type.metadata.size == 1) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP));
-                        } else if (type.metadata.size == 2) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP2));
-                        } else {
-                            throw new IllegalStateException(error(source) + "Unexpected type size.");
-                        }
-                    }
-
-                    segments.add(new CastSegment(source, casts[0]));
-                    segments.add(new NodeSegment(write));
-                    segments.add(new TokenSegment(source, current, token));
-                    segments.add(new CastSegment(source, casts[1]));
-
-                    if (read && !post) {
-                        if (type.metadata.size == 1) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP));
-                        } else if (type.metadata.size == 2) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP2));
-                        } else {
-                            throw new IllegalStateException(error(source) + "Unexpected type size.");
-                        }
-                    }
-
-                    segments.add(new VariableSegment(source, variable, true));
-                }
-            } else {
-                writeemd.to = type;
-                analyzer.visit(write);
-
-                segments.add(new NodeSegment(write));
-
-                if (read && !post) {
-                    if (type.metadata.size == 1) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP));
-                    } else if (type.metadata.size == 2) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP2));
-                    } else {
-                        throw new IllegalStateException(error(source) + "Unexpected type size.");
-                    }
-                }
+        final Link link = new VariableLink(source, variable);
 
-                segments.add(new VariableSegment(source, variable, true));
-            }
+        if ("input".equals(variable.name)) {
+            // the score may be read through the input map any time it is used for more than a read by name
+            input = true;
+            adapter.scores |= last;
+        }
 
-            current = read ? type : standard.voidType;
+        if (last && write != null) {
+            store(source, link, variable.type);
         } else {
-            segments.add(new VariableSegment(source, variable, false));
+            links.add(link);
             current = variable.type;
         }
     }
 
     private void field(final ParserRuleContext source, final String name, final boolean last) {
+        adapter.scores |= input;
+        input = false;
+
         if (current.metadata == TypeMetadata.ARRAY) {
             if ("length".equals(name)) {
                 if (!read || last && write != null) {
                     throw new IllegalArgumentException(error(source) + "Cannot write to read-only field [length].");
                 }
 
-                segments.add(new LengthSegment(source));
+                links.add(new LengthLink(source));
                 current = standard.intType;
             } else {
                 throw new IllegalArgumentException(error(source) + "Unexpected array field [" + name + "].");
             }
+        } else if (current.metadata == TypeMetadata.DEF && !statik) {
+            final Link link = new DynamicLink(source, Def.LOAD, name, new ArrayList<ExpressionContext>());
+
+            if (last && write != null) {
+                store(source, link, standard.defType);
+            } else {
+                links.add(link);
+                current = standard.defType;
+            }
         } else {
             final Struct struct = current.struct;
             final Field field = statik ? struct.statics.get(name) : struct.members.get(name);
@@ -782,99 +571,17 @@ class External {
                         error(source) + "Unknown field [" + name + "] for type [" + struct.name + "].");
             }
 
+            final Link link = new FieldLink(source, field);
+
             if (last && write != null) {
-                if (java.lang.reflect.Modifier.isFinal(field.field.getModifiers())) {
+                if (field.readonly) {
                     throw new IllegalArgumentException(error(source) + "Cannot write to read-only" +
                             " field [" + name + "] for type [" + struct.name + "].");
                 }
 
-                final ExpressionMetadata writeemd = adapter.createExpressionMetadata(write);
-                final Type type = field.type;
-
-                if (token == CAT) {
-                    writeemd.promotion = caster.concat;
-                    analyzer.visit(write);
-                    writeemd.to = writeemd.from;
-                    caster.markCast(writeemd);
-
-                    final Cast cast = caster.getLegalCast(source, standard.stringType, type, false);
-
-                    segments.add(new InstructionSegment(source, Opcodes.DUP_X1));
-                    segments.add(new FieldSegment(source, field, false));
-                    segments.add(new AppendStringsSegment(source, type, true));
-                    segments.add(new NodeSegment(write));
-                    segments.add(new AppendStringsSegment(write, writeemd.to, false));
-                    segments.add(new ToStringsSegment(source));
-                    segments.add(new CastSegment(source, cast));
-
-                    if (read) {
-                        if (type.metadata.size == 1) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP_X1));
-                        } else if (type.metadata.size == 2) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP2_X1));
-                        } else {
-                            throw new IllegalStateException(error(source) + "Unexpected type size.");
-                        }
-                    }
-
-                    segments.add(new FieldSegment(source, field, true));
-                } else if (token > 0) {
-                    current = type;
-                    final Cast[] casts = toNumericCasts(source);
-                    writeemd.to = current;
-                    analyzer.visit(write);
-
-                    segments.add(new InstructionSegment(source, Opcodes.DUP));
-                    segments.add(new FieldSegment(source, field, false));
-
-                    if (read && post) {
-                        if (type.metadata.size == 1) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP_X1));
-                        } else if (type.metadata.size == 2) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP2_X1));
-                        } else {
-                            throw new IllegalStateException(error(source) + "Unexpected type size.");
-                        }
-                    }
-
-                    segments.add(new CastSegment(source, casts[0]));
-                    segments.add(new NodeSegment(write));
-                    segments.add(new TokenSegment(source, current, token));
-                    segments.add(new CastSegment(source, casts[1]));
-
-                    if (read && !post) {
-                        if (type.metadata.size == 1) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP_X1));
-                        } else if (type.metadata.size == 2) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP2_X1));
-                        } else {
-                            throw new IllegalStateException(error(source) + "Unexpected type size.");
-                        }
-                    }
-
-                    segments.add(new FieldSegment(source, field, true));
-                } else {
-                    writeemd.to = type;
-                    analyzer.visit(write);
-
-                    segments.add(new NodeSegment(write));
-
-                    if (read && !post) {
-                        if (type.metadata.size == 1) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP_X1));
-                        } else if (type.metadata.size == 2) {
-                            segments.add(new InstructionSegment(source, Opcodes.DUP2_X1));
-                        } else {
-                            throw new IllegalStateException(error(source) + "Unexpected type size.");
-                        }
-                    }
-
-                    segments.add(new FieldSegment(source, field, true));
-                }
-
-                current = read ? type : standard.voidType;
+                store(source, link, field.type);
             } else {
-                segments.add(new FieldSegment(source, field, false));
+                links.add(link);
                 current = field.type;
             }
         }
@@ -883,10 +590,10 @@ class External {
     private void method(final ParserRuleContext source, final String name,
                         final List<ExpressionContext> arguments, final boolean last) {
         final Struct struct = current.struct;
+        final List<ExpressionContext> exprctxs = new ArrayList<>(arguments.size());
 
         Type[] types;
-        Segment segment0;
-        Segment segment1 = null;
+        Link link;
 
         if (current.dimensions > 0) {
             throw new IllegalArgumentException(error(source) + "Unexpected call [" + name + "] on an array.");
@@ -899,8 +606,20 @@ class External {
 
             types = new Type[arguments.size()];
             Arrays.fill(types, standard.intType);
-            segment0 = new MakeSegment(source, current, arguments.size());
-            current = getTypeWithArrayDimensions(struct, arguments.size());
+            final Type type = getTypeWithArrayDimensions(struct, arguments.size());
+            link = new MakeLink(source, type, current, exprctxs);
+            current = type;
+        } else if (current.metadata == TypeMetadata.DEF && !statik) {
+            types = new Type[arguments.size()];
+            Arrays.fill(types, standard.defType);
+            link = new DynamicLink(source, Def.CALL, name, exprctxs);
+
+            if (last && !read) {
+                current = standard.voidType;
+                statement = true;
+            } else {
+                current = standard.defType;
+            }
         } else {
             final Constructor constructor = statik ? struct.constructors.get(name) : null;
             final Method method = statik ? struct.functions.get(name) : struct.methods.get(name);
@@ -909,38 +628,24 @@ class External {
                 types = new Type[constructor.arguments.size()];
                 constructor.arguments.toArray(types);
 
-                segments.add(new NewSegment(source, constructor.owner));
+                link = new NewLink(source, current, constructor, exprctxs);
 
-                if (read) {
-                    segments.add(new InstructionSegment(source, Opcodes.DUP));
-                } else {
+                if (!read) {
                     current = standard.voidType;
                     statement = true;
                 }
-
-                segment0 = new ConstructorSegment(source, constructor);
             } else if (method != null) {
                 types = new Type[method.arguments.size()];
                 method.arguments.toArray(types);
 
-                if (!read) {
-                    final int size = method.rtn.metadata.size;
-
-                    if (size == 1) {
-                        segment1 = new InstructionSegment(source, Opcodes.POP);
-                    } else if (size == 2) {
-                        segment1 = new InstructionSegment(source, Opcodes.POP2);
-                    } else if (size != 0) {
-                        throw new IllegalStateException(error(source) + "Unexpected type size.");
-                    }
+                link = new MethodLink(source, method, exprctxs);
 
+                if (!read) {
                     current = standard.voidType;
                     statement = true;
                 } else {
                     current = method.rtn;
                 }
-
-                segment0 = new MethodSegment(source, method);
             } else {
                 throw new IllegalArgumentException(
                         error(source) + "Unknown call [" + name + "] on type [" + struct.name + "].");
@@ -957,18 +662,45 @@ class External {
             expremd.to = types[argument];
             analyzer.visit(exprctx);
 
-            segments.add(new NodeSegment(exprctx));
+            exprctxs.add(exprctx);
         }
 
-        segments.add(segment0);
-
-        if (segment1 != null) {
-            segments.add(segment1);
+        if (input) {
+            adapter.scores |= !"get".equals(name) || arguments.size() != 1 || !isKey(exprctxs.get(0));
+            input = false;
         }
+
+        links.add(link);
+    }
+
+    /** Returns true if the argument is a constant name other than the score. */
+    private boolean isKey(final ExpressionContext exprctx) {
+        final ExpressionMetadata expremd = adapter.getExpressionMetadata(exprctx);
+        final Object key = expremd.postConst != null ? expremd.postConst : expremd.preConst;
+
+        return key instanceof String && !"_score".equals(key);
     }
 
     private void array(final ParserRuleContext source, final ExpressionContext exprctx, final boolean last) {
-        if (current.dimensions == 0) {
+        adapter.scores |= input;
+        input = false;
+
+        if (current.metadata == TypeMetadata.DEF) {
+            final ExpressionMetadata expremd = adapter.createExpressionMetadata(exprctx);
+            expremd.to = standard.defType;
+            analyzer.visit(exprctx);
+
+            final Link link = new DynamicLink(source, Def.ARRAY_LOAD, "index", Arrays.asList(exprctx));
+
+            if (last && write != null) {
+                store(source, link, standard.defType);
+            } else {
+                links.add(link);
+                current = standard.defType;
+            }
+
+            return;
+        } else if (current.dimensions == 0) {
             throw new IllegalArgumentException(
                     error(source) + "Attempting to address a non-array type [" + current.name + "] as an array.");
         }
@@ -976,99 +708,49 @@ class External {
         final ExpressionMetadata expremd = adapter.createExpressionMetadata(exprctx);
         expremd.to = standard.intType;
         analyzer.visit(exprctx);
-        segments.add(new NodeSegment(exprctx));
 
         final Type type = getTypeWithArrayDimensions(current.struct, current.dimensions - 1);
+        final Link link = new ArrayLink(source, type, exprctx);
 
         if (last && write != null) {
-            final ExpressionMetadata writeemd = adapter.createExpressionMetadata(write);
-
-            if (token == CAT) {
-                writeemd.promotion = caster.concat;
-                analyzer.visit(write);
-                writeemd.to = writeemd.from;
-                caster.markCast(writeemd);
-
-                final Cast cast = caster.getLegalCast(source, standard.stringType, type, false);
-
-                segments.add(new InstructionSegment(source, Opcodes.DUP2_X1));
-                segments.add(new ArraySegment(source, type, false));
-                segments.add(new AppendStringsSegment(source, type, true));
-                segments.add(new NodeSegment(write));
-                segments.add(new AppendStringsSegment(write, writeemd.to, false));
-                segments.add(new ToStringsSegment(source));
-                segments.add(new CastSegment(source, cast));
-
-                if (read) {
-                    if (type.metadata.size == 1) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP_X2));
-                    } else if (type.metadata.size == 2) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP2_X2));
-                    } else {
-                        throw new IllegalStateException(error(source) + "Unexpected type size.");
-                    }
-                }
+            store(source, link, type);
+        } else {
+            links.add(link);
+            current = type;
+        }
+    }
 
-                segments.add(new ArraySegment(source, type, true));
-            } else if (token > 0) {
-                current = type;
-                final Cast[] casts = toNumericCasts(source);
-                writeemd.to = current;
-                analyzer.visit(write);
-
-                segments.add(new InstructionSegment(source, Opcodes.DUP2));
-                segments.add(new ArraySegment(source, type, false));
-
-                if (read && post) {
-                    if (type.metadata.size == 1) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP_X2));
-                    } else if (type.metadata.size == 2) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP2_X2));
-                    } else {
-                        throw new IllegalStateException(error(source) + "Unexpected type size.");
-                    }
-                }
+    /**
+     * Analyzes the value written to the target of type, which is the last link of the chain, and adds
+     * the store for a plain, compound or concatenation assignment.
+     */
+    private void store(final ParserRuleContext source, final Link target, final Type type) {
+        final ExpressionMetadata writeemd = adapter.createExpressionMetadata(write);
 
-                segments.add(new CastSegment(source, casts[0]));
-                segments.add(new NodeSegment(write));
-                segments.add(new TokenSegment(source, current, token));
-                segments.add(new CastSegment(source, casts[1]));
-
-                if (read && !post) {
-                    if (type.metadata.size == 1) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP_X2));
-                    } else if (type.metadata.size == 2) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP2_X2));
-                    } else {
-                        throw new IllegalStateException(error(source) + "Unexpected type size.");
-                    }
-                }
+        if (token == CAT) {
+            writeemd.promotion = caster.concat;
+            analyzer.visit(write);
+            writeemd.to = writeemd.from;
+            caster.markCast(writeemd);
 
-                segments.add(new ArraySegment(source, type, true));
-            } else {
-                writeemd.to = type;
-                analyzer.visit(write);
-
-                segments.add(new NodeSegment(write));
-
-                if (read && !post) {
-                    if (type.metadata.size == 1) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP_X2));
-                    } else if (type.metadata.size == 2) {
-                        segments.add(new InstructionSegment(source, Opcodes.DUP2_X2));
-                    } else {
-                        throw new IllegalStateException(error(source) + "Unexpected type size.");
-                    }
-                }
+            final Cast cast = caster.getLegalCast(source, standard.stringType, type, false);
 
-                segments.add(new ArraySegment(source, type, true));
-            }
+            links.add(new StoreLink(target, type, token, null, cast, write, read, false));
+        } else if (token > 0) {
+            current = type;
+            final Cast[] casts = toNumericCasts(source);
+            writeemd.to = current;
+            analyzer.visit(write);
 
-            current = read ? type : standard.voidType;
+            links.add(new StoreLink(target, type, token, casts[0], casts[1], write, read, post));
         } else {
-            segments.add(new ArraySegment(source, type, false));
-            current = type;
+            writeemd.to = type;
+            analyzer.visit(write);
+
+            links.add(new StoreLink(target, type, token, null, null, write, read, false));
         }
+
+        current = read ? type : standard.voidType;
     }
 
     private Cast[] toNumericCasts(final ParserRuleContext source) {
@@ -0,0 +1,1201 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * The lowered form of a script that is built by the {@link Lowerer} once analysis is complete.  Every
+ * node is fully typed, every conversion is an explicit {@link Convert} node, methods, fields and
+ * constructors are resolved, and variables are bound to their local slots.  The optimization passes
+ * run by the {@link PassManager} rewrite this tree and the {@link Writer} emits bytecode from it.
+ */
+final class IR {
+    abstract static class Node {
+        final ParserRuleContext source;
+
+        Node(final ParserRuleContext source) {
+            this.source = source;
+        }
+
+        abstract <T> T accept(Visitor<T> visitor);
+    }
+
+    abstract static class Statement extends Node {
+        Statement(final ParserRuleContext source) {
+            super(source);
+        }
+
+        /** Returns true if control can never continue on to the statement after this one. */
+        abstract boolean exits();
+    }
+
+    abstract static class Expression extends Node {
+        final Type type;
+
+        Expression(final ParserRuleContext source, final Type type) {
+            super(source);
+
+            this.type = type;
+        }
+    }
+
+    static class Block extends Statement {
+        final List<Statement> statements;
+
+        Block(final ParserRuleContext source, final List<Statement> statements) {
+            super(source);
+
+            this.statements = statements;
+        }
+
+        @Override
+        boolean exits() {
+            for (final Statement statement : statements) {
+                if (statement.exits()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitBlock(this);
+        }
+    }
+
+    static class Declare extends Statement {
+        final Variable variable;
+        Expression value;
+
+        Declare(final ParserRuleContext source, final Variable variable, final Expression value) {
+            super(source);
+
+            this.variable = variable;
+            this.value = value;
+        }
+
+        @Override
+        boolean exits() {
+            return false;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitDeclare(this);
+        }
+    }
+
+    static class If extends Statement {
+        Expression condition;
+        Statement then;
+        Statement otherwise;
+
+        If(final ParserRuleContext source, final Expression condition,
+           final Statement then, final Statement otherwise) {
+            super(source);
+
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        boolean exits() {
+            return otherwise != null && then.exits() && otherwise.exits();
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitIf(this);
+        }
+    }
+
+    static class While extends Statement {
+        Expression condition;
+        Statement body;
+
+        While(final ParserRuleContext source, final Expression condition, final Statement body) {
+            super(source);
+
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        boolean exits() {
+            return isTrue(condition) && !breaks(body);
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitWhile(this);
+        }
+    }
+
+    static class Do extends Statement {
+        Statement body;
+        Expression condition;
+
+        Do(final ParserRuleContext source, final Statement body, final Expression condition) {
+            super(source);
+
+            this.body = body;
+            this.condition = condition;
+        }
+
+        @Override
+        boolean exits() {
+            return isTrue(condition) && !breaks(body);
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitDo(this);
+        }
+    }
+
+    static class For extends Statement {
+        Statement initializer;
+        Expression condition;
+        Statement afterthought;
+        Statement body;
+
+        For(final ParserRuleContext source, final Statement initializer, final Expression condition,
+            final Statement afterthought, final Statement body) {
+            super(source);
+
+            this.initializer = initializer;
+            this.condition = condition;
+            this.afterthought = afterthought;
+            this.body = body;
+        }
+
+        @Override
+        boolean exits() {
+            return (condition == null || isTrue(condition)) && !breaks(body);
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitFor(this);
+        }
+    }
+
+    static class Return extends Statement {
+        Expression value;
+
+        Return(final ParserRuleContext source, final Expression value) {
+            super(source);
+
+            this.value = value;
+        }
+
+        @Override
+        boolean exits() {
+            return true;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitReturn(this);
+        }
+    }
+
+    static class Break extends Statement {
+        Break(final ParserRuleContext source) {
+            super(source);
+        }
+
+        @Override
+        boolean exits() {
+            return true;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitBreak(this);
+        }
+    }
+
+    static class Continue extends Statement {
+        Continue(final ParserRuleContext source) {
+            super(source);
+        }
+
+        @Override
+        boolean exits() {
+            return true;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitContinue(this);
+        }
+    }
+
+    /** An expression evaluated for its side effects; any value it leaves is discarded. */
+    static class Eval extends Statement {
+        Expression expression;
+
+        Eval(final ParserRuleContext source, final Expression expression) {
+            super(source);
+
+            this.expression = expression;
+        }
+
+        @Override
+        boolean exits() {
+            return false;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitEval(this);
+        }
+    }
+
+    /** A boolean, numeric, char or string constant. */
+    static class Constant extends Expression {
+        final Object value;
+
+        Constant(final ParserRuleContext source, final Type type, final Object value) {
+            super(source, type);
+
+            this.value = value;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitConstant(this);
+        }
+    }
+
+    static class Null extends Expression {
+        Null(final ParserRuleContext source, final Type type) {
+            super(source, type);
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitNull(this);
+        }
+    }
+
+    static class Load extends Expression {
+        final Variable variable;
+
+        Load(final ParserRuleContext source, final Variable variable) {
+            super(source, variable.type);
+
+            this.variable = variable;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitLoad(this);
+        }
+    }
+
+    static class Convert extends Expression {
+        Expression expression;
+        final Cast cast;
+
+        Convert(final ParserRuleContext source, final Expression expression, final Cast cast) {
+            super(source, cast.to);
+
+            this.expression = expression;
+            this.cast = cast;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitConvert(this);
+        }
+    }
+
+    /** A numeric negation, bitwise not or plus where the token is one of SUB, BWNOT or ADD. */
+    static class Unary extends Expression {
+        final int token;
+        Expression expression;
+
+        Unary(final ParserRuleContext source, final Type type, final int token, final Expression expression) {
+            super(source, type);
+
+            this.token = token;
+            this.expression = expression;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitUnary(this);
+        }
+    }
+
+    static class Not extends Expression {
+        Expression expression;
+
+        Not(final ParserRuleContext source, final Type type, final Expression expression) {
+            super(source, type);
+
+            this.expression = expression;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitNot(this);
+        }
+    }
+
+    /** An arithmetic, shift or bitwise operation where both operands are already of the promoted type. */
+    static class Binary extends Expression {
+        final int token;
+        Expression left;
+        Expression right;
+
+        Binary(final ParserRuleContext source, final Type type, final int token,
+               final Expression left, final Expression right) {
+            super(source, type);
+
+            this.token = token;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitBinary(this);
+        }
+    }
+
+    /** A comparison of two operands of the promoted type; a null constant operand is always a {@link Null}. */
+    static class Compare extends Expression {
+        final int token;
+        final Type promote;
+        Expression left;
+        Expression right;
+
+        Compare(final ParserRuleContext source, final Type type, final int token, final Type promote,
+                final Expression left, final Expression right) {
+            super(source, type);
+
+            this.token = token;
+            this.promote = promote;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitCompare(this);
+        }
+    }
+
+    /** A short-circuiting and or or where the token is one of BOOLAND or BOOLOR. */
+    static class Logical extends Expression {
+        final int token;
+        Expression left;
+        Expression right;
+
+        Logical(final ParserRuleContext source, final Type type, final int token,
+                final Expression left, final Expression right) {
+            super(source, type);
+
+            this.token = token;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitLogical(this);
+        }
+    }
+
+    static class Conditional extends Expression {
+        Expression condition;
+        Expression left;
+        Expression right;
+
+        Conditional(final ParserRuleContext source, final Type type, final Expression condition,
+                    final Expression left, final Expression right) {
+            super(source, type);
+
+            this.condition = condition;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitConditional(this);
+        }
+    }
+
+    /** A string concatenation of all of the parts, where nested concatenations are already flattened. */
+    static class Concat extends Expression {
+        final List<Expression> parts;
+
+        Concat(final ParserRuleContext source, final Type type, final List<Expression> parts) {
+            super(source, type);
+
+            this.parts = parts;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitConcat(this);
+        }
+    }
+
+    /** A field read where the receiver is null for a static field. */
+    static class LoadField extends Expression {
+        Expression receiver;
+        final Field field;
+
+        LoadField(final ParserRuleContext source, final Expression receiver, final Field field) {
+            super(source, field.type);
+
+            this.receiver = receiver;
+            this.field = field;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitLoadField(this);
+        }
+    }
+
+    static class Length extends Expression {
+        Expression array;
+
+        Length(final ParserRuleContext source, final Type type, final Expression array) {
+            super(source, type);
+
+            this.array = array;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitLength(this);
+        }
+    }
+
+    static class LoadArray extends Expression {
+        Expression array;
+        Expression index;
+
+        LoadArray(final ParserRuleContext source, final Type type, final Expression array, final Expression index) {
+            super(source, type);
+
+            this.array = array;
+            this.index = index;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitLoadArray(this);
+        }
+    }
+
+    /** A method call where the receiver is null for a static method. */
+    static class Call extends Expression {
+        final Method method;
+        Expression receiver;
+        final List<Expression> arguments;
+
+        Call(final ParserRuleContext source, final Method method,
+             final Expression receiver, final List<Expression> arguments) {
+            super(source, method.rtn);
+
+            this.method = method;
+            this.receiver = receiver;
+            this.arguments = arguments;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitCall(this);
+        }
+    }
+
+    static class New extends Expression {
+        final Constructor constructor;
+        final List<Expression> arguments;
+
+        New(final ParserRuleContext source, final Type type,
+            final Constructor constructor, final List<Expression> arguments) {
+            super(source, type);
+
+            this.constructor = constructor;
+            this.arguments = arguments;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitNew(this);
+        }
+    }
+
+    /** An array of the given element type with one dimension per size. */
+    static class NewArray extends Expression {
+        final Type element;
+        final List<Expression> dimensions;
+
+        NewArray(final ParserRuleContext source, final Type type,
+                 final Type element, final List<Expression> dimensions) {
+            super(source, type);
+
+            this.element = element;
+            this.dimensions = dimensions;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitNewArray(this);
+        }
+    }
+
+    /**
+     * A member read, index read or call of a def receiver, which is linked when the script runs by the
+     * {@link Def} operation the flavor names.  Every operand and the value are of the def type.  As the
+     * target of an assignment a member or index read becomes the matching store.
+     */
+    static class Dynamic extends Expression {
+        final int flavor;
+        final String name;
+        Expression receiver;
+        final List<Expression> arguments;
+
+        Dynamic(final ParserRuleContext source, final Type type, final int flavor, final String name,
+                final Expression receiver, final List<Expression> arguments) {
+            super(source, type);
+
+            this.flavor = flavor;
+            this.name = name;
+            this.receiver = receiver;
+            this.arguments = arguments;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitDynamic(this);
+        }
+    }
+
+    /**
+     * A read of an input by a constant name through the slot it is bound to, which is read from the array of a
+     * {@link Bindings} when the script is run with its own, or looked up in the input map by the name otherwise.
+     * A read of the type long or double is of the input converted to the number.
+     */
+    static class Bound extends Expression {
+        Expression input;
+        final int slot;
+        final String name;
+
+        Bound(final ParserRuleContext source, final Type type, final Expression input, final int slot, final String name) {
+            super(source, type);
+
+            this.input = input;
+            this.slot = slot;
+            this.name = name;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitBound(this);
+        }
+    }
+
+    /**
+     * A read of the first value of a field of the document as a long or a double.  With {@link Bindings} the
+     * value is read straight from the doc values bound to the slot for the segment, and otherwise through the
+     * doc input the way the script reads it.  The slot is -1 until the field is bound.
+     */
+    static class DocValue extends Expression {
+        Expression input;
+        final String field;
+        final int slot;
+
+        DocValue(final ParserRuleContext source, final Type type, final Expression input, final String field, final int slot) {
+            super(source, type);
+
+            this.input = input;
+            this.field = field;
+            this.slot = slot;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitDocValue(this);
+        }
+    }
+
+    /**
+     * A store to a {@link Load}, {@link LoadField}, {@link LoadArray} or {@link Dynamic} target.  The token is 0 for a
+     * plain assignment, CAT for a compound concatenation where the value is appended to the current
+     * value, or a {@link Binary} token for a compound operation done in the type promote converts to.
+     * Demote converts the result back to the type of the target.  When the result is read the value
+     * left is the new one, or the old one for a post increment.
+     */
+    static class Assign extends Expression {
+        Expression target;
+        final int token;
+        final Cast promote;
+        final Cast demote;
+        Expression value;
+        final boolean read;
+        final boolean post;
+
+        Assign(final ParserRuleContext source, final Type type, final Expression target, final int token,
+               final Cast promote, final Cast demote, final Expression value, final boolean read, final boolean post) {
+            super(source, type);
+
+            this.target = target;
+            this.token = token;
+            this.promote = promote;
+            this.demote = demote;
+            this.value = value;
+            this.read = read;
+            this.post = post;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitAssign(this);
+        }
+    }
+
+    /** An in place addition of a constant to an int variable. */
+    static class Increment extends Expression {
+        final Variable variable;
+        final int value;
+        final boolean read;
+        final boolean post;
+
+        Increment(final ParserRuleContext source, final Type type, final Variable variable,
+                  final int value, final boolean read, final boolean post) {
+            super(source, type);
+
+            this.variable = variable;
+            this.value = value;
+            this.read = read;
+            this.post = post;
+        }
+
+        @Override
+        <T> T accept(final Visitor<T> visitor) {
+            return visitor.visitIncrement(this);
+        }
+    }
+
+    /**
+     * The values of a script that are computed ahead of the document stage into an array held by a variable.
+     * Each statement stores a single value, where the query statements run once per query and the segment
+     * statements run once per segment on a copy of the values of the query.  Keys are the names of the inputs
+     * the values read.
+     */
+    static class Stages {
+        final Variable values;
+        final List<Statement> query;
+        final List<Statement> segment;
+        final Set<String> keys;
+
+        Stages(final Variable values) {
+            this.values = values;
+
+            query = new ArrayList<>();
+            segment = new ArrayList<>();
+            keys = new HashSet<>();
+        }
+
+        int size() {
+            return query.size() + segment.size();
+        }
+    }
+
+    abstract static class Visitor<T> {
+        abstract T visitBlock(Block node);
+        abstract T visitDeclare(Declare node);
+        abstract T visitIf(If node);
+        abstract T visitWhile(While node);
+        abstract T visitDo(Do node);
+        abstract T visitFor(For node);
+        abstract T visitReturn(Return node);
+        abstract T visitBreak(Break node);
+        abstract T visitContinue(Continue node);
+        abstract T visitEval(Eval node);
+        abstract T visitConstant(Constant node);
+        abstract T visitNull(Null node);
+        abstract T visitLoad(Load node);
+        abstract T visitConvert(Convert node);
+        abstract T visitUnary(Unary node);
+        abstract T visitNot(Not node);
+        abstract T visitBinary(Binary node);
+        abstract T visitCompare(Compare node);
+        abstract T visitLogical(Logical node);
+        abstract T visitConditional(Conditional node);
+        abstract T visitConcat(Concat node);
+        abstract T visitLoadField(LoadField node);
+        abstract T visitLength(Length node);
+        abstract T visitLoadArray(LoadArray node);
+        abstract T visitCall(Call node);
+        abstract T visitNew(New node);
+        abstract T visitNewArray(NewArray node);
+        abstract T visitDynamic(Dynamic node);
+        abstract T visitBound(Bound node);
+        abstract T visitDocValue(DocValue node);
+        abstract T visitAssign(Assign node);
+        abstract T visitIncrement(Increment node);
+    }
+
+    /**
+     * A visitor that visits the children of each node in evaluation order and replaces each child with
+     * the node returned for it.  A pass overrides only the nodes it changes.
+     */
+    static class Rewriter extends Visitor<Node> {
+        Statement statement(final Statement statement) {
+            return statement == null ? null : (Statement)statement.accept(this);
+        }
+
+        Expression expression(final Expression expression) {
+            return expression == null ? null : (Expression)expression.accept(this);
+        }
+
+        void statements(final List<Statement> statements) {
+            for (int index = 0; index < statements.size(); ++index) {
+                statements.set(index, statement(statements.get(index)));
+            }
+        }
+
+        void expressions(final List<Expression> expressions) {
+            for (int index = 0; index < expressions.size(); ++index) {
+                expressions.set(index, expression(expressions.get(index)));
+            }
+        }
+
+        /**
+         * Visits the operands of an assignment target, but not the target itself since it must stay a
+         * load of the variable, field or array element that is stored to.
+         */
+        void target(final Expression target) {
+            if (target instanceof LoadField) {
+                final LoadField field = (LoadField)target;
+                field.receiver = expression(field.receiver);
+            } else if (target instanceof LoadArray) {
+                final LoadArray array = (LoadArray)target;
+                array.array = expression(array.array);
+                array.index = expression(array.index);
+            } else if (target instanceof Dynamic) {
+                final Dynamic dynamic = (Dynamic)target;
+                dynamic.receiver = expression(dynamic.receiver);
+                expressions(dynamic.arguments);
+            }
+        }
+
+        @Override
+        Node visitBlock(final Block node) {
+            statements(node.statements);
+
+            return node;
+        }
+
+        @Override
+        Node visitDeclare(final Declare node) {
+            node.value = expression(node.value);
+
+            return node;
+        }
+
+        @Override
+        Node visitIf(final If node) {
+            node.condition = expression(node.condition);
+            node.then = statement(node.then);
+            node.otherwise = statement(node.otherwise);
+
+            return node;
+        }
+
+        @Override
+        Node visitWhile(final While node) {
+            node.condition = expression(node.condition);
+            node.body = statement(node.body);
+
+            return node;
+        }
+
+        @Override
+        Node visitDo(final Do node) {
+            node.body = statement(node.body);
+            node.condition = expression(node.condition);
+
+            return node;
+        }
+
+        @Override
+        Node visitFor(final For node) {
+            node.initializer = statement(node.initializer);
+            node.condition = expression(node.condition);
+            node.body = statement(node.body);
+            node.afterthought = statement(node.afterthought);
+
+            return node;
+        }
+
+        @Override
+        Node visitReturn(final Return node) {
+            node.value = expression(node.value);
+
+            return node;
+        }
+
+        @Override
+        Node visitBreak(final Break node) {
+            return node;
+        }
+
+        @Override
+        Node visitContinue(final Continue node) {
+            return node;
+        }
+
+        @Override
+        Node visitEval(final Eval node) {
+            node.expression = expression(node.expression);
+
+            return node;
+        }
+
+        @Override
+        Node visitConstant(final Constant node) {
+            return node;
+        }
+
+        @Override
+        Node visitNull(final Null node) {
+            return node;
+        }
+
+        @Override
+        Node visitLoad(final Load node) {
+            return node;
+        }
+
+        @Override
+        Node visitConvert(final Convert node) {
+            node.expression = expression(node.expression);
+
+            return node;
+        }
+
+        @Override
+        Node visitUnary(final Unary node) {
+            node.expression = expression(node.expression);
+
+            return node;
+        }
+
+        @Override
+        Node visitNot(final Not node) {
+            node.expression = expression(node.expression);
+
+            return node;
+        }
+
+        @Override
+        Node visitBinary(final Binary node) {
+            node.left = expression(node.left);
+            node.right = expression(node.right);
+
+            return node;
+        }
+
+        @Override
+        Node visitCompare(final Compare node) {
+            node.left = expression(node.left);
+            node.right = expression(node.right);
+
+            return node;
+        }
+
+        @Override
+        Node visitLogical(final Logical node) {
+            node.left = expression(node.left);
+            node.right = expression(node.right);
+
+            return node;
+        }
+
+        @Override
+        Node visitConditional(final Conditional node) {
+            node.condition = expression(node.condition);
+            node.left = expression(node.left);
+            node.right = expression(node.right);
+
+            return node;
+        }
+
+        @Override
+        Node visitConcat(final Concat node) {
+            expressions(node.parts);
+
+            return node;
+        }
+
+        @Override
+        Node visitLoadField(final LoadField node) {
+            node.receiver = expression(node.receiver);
+
+            return node;
+        }
+
+        @Override
+        Node visitLength(final Length node) {
+            node.array = expression(node.array);
+
+            return node;
+        }
+
+        @Override
+        Node visitLoadArray(final LoadArray node) {
+            node.array = expression(node.array);
+            node.index = expression(node.index);
+
+            return node;
+        }
+
+        @Override
+        Node visitCall(final Call node) {
+            node.receiver = expression(node.receiver);
+            expressions(node.arguments);
+
+            return node;
+        }
+
+        @Override
+        Node visitNew(final New node) {
+            expressions(node.arguments);
+
+            return node;
+        }
+
+        @Override
+        Node visitNewArray(final NewArray node) {
+            expressions(node.dimensions);
+
+            return node;
+        }
+
+        @Override
+        Node visitDynamic(final Dynamic node) {
+            node.receiver = expression(node.receiver);
+            expressions(node.arguments);
+
+            return node;
+        }
+
+        @Override
+        Node visitBound(final Bound node) {
+            node.input = expression(node.input);
+
+            return node;
+        }
+
+        @Override
+        Node visitDocValue(final DocValue node) {
+            node.input = expression(node.input);
+
+            return node;
+        }
+
+        @Override
+        Node visitAssign(final Assign node) {
+            target(node.target);
+            node.value = expression(node.value);
+
+            return node;
+        }
+
+        @Override
+        Node visitIncrement(final Increment node) {
+            return node;
+        }
+    }
+
+    /** Returns true if the expression is the boolean constant true. */
+    static boolean isTrue(final Expression expression) {
+        return expression instanceof Constant && Boolean.TRUE.equals(((Constant)expression).value);
+    }
+
+    /** Returns true if the expression is the boolean constant false. */
+    static boolean isFalse(final Expression expression) {
+        return expression instanceof Constant && Boolean.FALSE.equals(((Constant)expression).value);
+    }
+
+    /** Returns true if a break within the statement, but outside of any nested loop, exits the enclosing loop. */
+    static boolean breaks(final Statement statement) {
+        if (statement instanceof Break) {
+            return true;
+        } else if (statement instanceof Block) {
+            for (final Statement child : ((Block)statement).statements) {
+                if (breaks(child)) {
+                    return true;
+                }
+            }
+        } else if (statement instanceof If) {
+            final If node = (If)statement;
+
+            return breaks(node.then) || node.otherwise != null && breaks(node.otherwise);
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if evaluating the expression has no side effects and can never throw, so it may be removed
+     * when its value is unused.  Calls, allocations, stores, checked casts, integer division and any access
+     * through a reference that may be null are never pure.
+     */
+    static boolean isPure(final Expression expression) {
+        if (expression instanceof Constant || expression instanceof Null || expression instanceof Load) {
+            return true;
+        } else if (expression instanceof Convert) {
+            final Convert convert = (Convert)expression;
+            final Cast cast = convert.cast;
+
+            return !(cast instanceof Transform) && isPure(convert.expression) &&
+                    (cast.from.metadata.numeric && cast.to.metadata.numeric || cast.to.clazz.isAssignableFrom(cast.from.clazz));
+        } else if (expression instanceof Unary) {
+            return isPure(((Unary)expression).expression);
+        } else if (expression instanceof Not) {
+            return isPure(((Not)expression).expression);
+        } else if (expression instanceof Binary) {
+            final Binary binary = (Binary)expression;
+            final boolean integer = binary.type.metadata == TypeMetadata.INT || binary.type.metadata == TypeMetadata.LONG;
+
+            return !(integer && (binary.token == DIV || binary.token == REM)) &&
+                    isPure(binary.left) && isPure(binary.right);
+        } else if (expression instanceof Compare) {
+            final Compare compare = (Compare)expression;
+            final boolean equals = compare.promote.metadata.object &&
+                    (compare.token == EQ || compare.token == NE) &&
+                    !(compare.left instanceof Null) && !(compare.right instanceof Null);
+
+            return !equals && isPure(compare.left) && isPure(compare.right);
+        } else if (expression instanceof Logical) {
+            final Logical logical = (Logical)expression;
+
+            return isPure(logical.left) && isPure(logical.right);
+        } else if (expression instanceof Conditional) {
+            final Conditional conditional = (Conditional)expression;
+
+            return isPure(conditional.condition) && isPure(conditional.left) && isPure(conditional.right);
+        } else if (expression instanceof Concat) {
+            for (final Expression part : ((Concat)expression).parts) {
+                if (!part.type.metadata.constant || !isPure(part)) {
+                    return false;
+                }
+            }
+
+            return true;
+        } else if (expression instanceof LoadField) {
+            return ((LoadField)expression).receiver == null;
+        }
+
+        return false;
+    }
+
+    /** Returns true if the expression is so cheap to evaluate that keeping its value in a variable saves nothing. */
+    static boolean isTrivial(final Expression expression) {
+        if (expression instanceof Constant || expression instanceof Null || expression instanceof Load) {
+            return true;
+        } else if (expression instanceof Convert) {
+            final Convert convert = (Convert)expression;
+
+            return !(convert.cast instanceof Transform) && convert.type.metadata.numeric && isTrivial(convert.expression);
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if the node compares references with {@code ===} or {@code !==}, which tells a string computed
+     * each time it is evaluated apart from a single string computed once and shared.
+     */
+    static boolean comparesReferences(final Node node) {
+        final References references = new References();
+        node.accept(references);
+
+        return references.found;
+    }
+
+    private static class References extends Rewriter {
+        boolean found = false;
+
+        @Override
+        Node visitCompare(final Compare node) {
+            found |= node.token == EQR || node.token == NER;
+
+            return super.visitCompare(node);
+        }
+    }
+
+    /** Adds every local variable stored to anywhere within the nodes to the set of variables. */
+    static Set<Variable> assigned(final Set<Variable> variables, final Node... nodes) {
+        final Rewriter finder = new Rewriter() {
+            @Override
+            Node visitAssign(final Assign node) {
+                if (node.target instanceof Load) {
+                    variables.add(((Load)node.target).variable);
+                }
+
+                return super.visitAssign(node);
+            }
+
+            @Override
+            Node visitIncrement(final Increment node) {
+                variables.add(node.variable);
+
+                return node;
+            }
+        };
+
+        for (final Node node : nodes) {
+            if (node != null) {
+                node.accept(finder);
+            }
+        }
+
+        return variables;
+    }
+
+    private IR() {}
+}
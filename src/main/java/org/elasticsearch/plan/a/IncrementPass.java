@@ -0,0 +1,73 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.elasticsearch.plan.a.Definition.*;
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * Replaces adding or subtracting a constant to an int local with an {@link IR.Increment}, which is
+ * written as a single iinc instruction instead of a load, a constant, an add and a store.
+ */
+final class IncrementPass extends PassManager.Pass {
+    static final String NAME = "increment";
+
+    IncrementPass() {
+        super(NAME);
+    }
+
+    @Override
+    void run(final Adapter adapter, final IR.Block root, final CompilerStats stats) {
+        root.accept(new IR.Rewriter() {
+            @Override
+            IR.Node visitAssign(final IR.Assign node) {
+                super.visitAssign(node);
+
+                if (!(node.target instanceof IR.Load) || !(node.value instanceof IR.Constant)) {
+                    return node;
+                }
+
+                final Adapter.Variable variable = ((IR.Load)node.target).variable;
+                final Object constant = ((IR.Constant)node.value).value;
+
+                if (variable.type.metadata != TypeMetadata.INT || node.promote == null ||
+                        node.promote.to.metadata != TypeMetadata.INT || !(constant instanceof Integer)) {
+                    return node;
+                }
+
+                final int value;
+
+                if (node.token == ADD) {
+                    value = (int)constant;
+                } else if (node.token == SUB) {
+                    value = -(int)constant;
+                } else {
+                    return node;
+                }
+
+                if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+                    return node;
+                }
+
+                return new IR.Increment(node.source, node.type, variable, value, node.read, node.post);
+            }
+        });
+    }
+}
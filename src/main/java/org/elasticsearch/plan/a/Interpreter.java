@@ -0,0 +1,911 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.Permissions;
+import java.security.PrivilegedAction;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * Runs a script by walking its optimized {@link IR} instead of defining a class for it, so a script that only runs
+ * a few times never pays for the {@link Writer} and a class loader of its own.  Every value is held boxed as the
+ * type of its node, methods, constructors and fields are reached through reflection and each def operation links
+ * its own {@link Def.InlineCache}, so the interpreter gives the same results and throws the same exceptions as the
+ * class written for the same tree.  The tree is only read, and each run has a {@link Frame} of its own.  Every
+ * run is limited to the permissions of the untrusted code source the class of a script is defined with, since
+ * the frames of the interpreter are otherwise those of the plugin.
+ */
+final class Interpreter extends Executable {
+    /** The context of the untrusted domain, which is consulted for its permissions the same way as the class. */
+    private static final AccessControlContext UNTRUSTED = new AccessControlContext(new ProtectionDomain[] {
+            new ProtectionDomain(Compiler.CODESOURCE, new Permissions(), null, null)});
+
+    private final Definition definition;
+    private final IR.Block root;
+    private final IR.Stages stages;
+    private final int slots;
+
+    /** The linked call site of each def operation, and of the store of each def operation that is assigned to. */
+    private final Map<IR.Dynamic, MethodHandle> loads;
+    private final Map<IR.Dynamic, MethodHandle> stores;
+    /** The interned value of each string constant, the same string the class written for the tree loads. */
+    private final Map<IR.Constant, String> strings;
+
+    Interpreter(final String name, final String source, final Adapter adapter, final IR.Block root) {
+        super(name, source);
+
+        definition = adapter.definition;
+        this.root = root;
+        stages = adapter.stages;
+        slots = adapter.getSlots();
+        loads = new IdentityHashMap<>();
+        stores = new IdentityHashMap<>();
+        strings = new IdentityHashMap<>();
+
+        final IR.Rewriter linker = new IR.Rewriter() {
+            @Override
+            IR.Node visitConstant(final IR.Constant node) {
+                if (node.value instanceof String) {
+                    strings.put(node, ((String)node.value).intern());
+                }
+
+                return node;
+            }
+
+            @Override
+            IR.Node visitDynamic(final IR.Dynamic node) {
+                link(node);
+
+                return super.visitDynamic(node);
+            }
+
+            // the target of an assignment is not visited itself, only its operands are
+            @Override
+            IR.Node visitAssign(final IR.Assign node) {
+                if (node.target instanceof IR.Dynamic) {
+                    link((IR.Dynamic)node.target);
+                }
+
+                return super.visitAssign(node);
+            }
+        };
+
+        root.accept(linker);
+
+        if (stages != null) {
+            for (final IR.Statement statement : stages.query) {
+                statement.accept(linker);
+            }
+
+            for (final IR.Statement statement : stages.segment) {
+                statement.accept(linker);
+            }
+        }
+    }
+
+    private void link(final IR.Dynamic node) {
+        if (loads.containsKey(node)) {
+            return;
+        }
+
+        final int operands = node.arguments.size() + 1;
+
+        loads.put(node, new Def.InlineCache(definition, node.name, MethodType.genericMethodType(operands), node.flavor)
+                .dynamicInvoker());
+
+        if (node.flavor == Def.LOAD || node.flavor == Def.ARRAY_LOAD) {
+            final Class<?>[] parameters = new Class<?>[operands + 1];
+            Arrays.fill(parameters, Object.class);
+            final int flavor = node.flavor == Def.LOAD ? Def.STORE : Def.ARRAY_STORE;
+
+            stores.put(node, new Def.InlineCache(definition, node.name, MethodType.methodType(void.class, parameters), flavor)
+                    .dynamicInvoker());
+        }
+    }
+
+    @Override
+    public Object execute(final Map<String, Object> input) {
+        return execute(input, null);
+    }
+
+    @Override
+    public Object execute(final Map<String, Object> input, final Object[] values) {
+        return AccessController.doPrivileged(new PrivilegedAction<Object>() {
+            @Override
+            public Object run() {
+                final Frame frame = new Frame(input, values);
+                root.accept(frame);
+
+                return frame.jump == Frame.RETURN ? frame.value : null;
+            }
+        }, UNTRUSTED);
+    }
+
+    @Override
+    public Object[] query(final Map<String, Object> input) {
+        return stages == null ? null : stage(input, new Object[stages.size()], stages.query);
+    }
+
+    @Override
+    public Object[] segment(final Map<String, Object> input, final Object[] values) {
+        return stages == null || stages.segment.isEmpty() ? values : stage(input, values.clone(), stages.segment);
+    }
+
+    private Object[] stage(final Map<String, Object> input, final Object[] values, final List<IR.Statement> statements) {
+        return AccessController.doPrivileged(new PrivilegedAction<Object[]>() {
+            @Override
+            public Object[] run() {
+                final Frame frame = new Frame(input, values);
+
+                for (final IR.Statement statement : statements) {
+                    statement.accept(frame);
+                }
+
+                return values;
+            }
+        }, UNTRUSTED);
+    }
+
+    /**
+     * The variables of a single run of the script, held by slot, along with how control leaves the statement
+     * being run, which is checked after each statement the way a jump skips the rest of a block.
+     */
+    private final class Frame extends IR.Visitor<Object> {
+        static final int NONE = 0;
+        static final int BREAK = 1;
+        static final int CONTINUE = 2;
+        static final int RETURN = 3;
+
+        private final Object[] locals;
+
+        int jump;
+        Object value;
+
+        Frame(final Map<String, Object> input, final Object[] values) {
+            locals = new Object[slots];
+            locals[0] = Interpreter.this;
+            locals[1] = input;
+
+            if (stages != null) {
+                locals[stages.values.slot] = values;
+            }
+
+            jump = NONE;
+            value = null;
+        }
+
+        private Object evaluate(final IR.Expression expression) {
+            return expression.accept(this);
+        }
+
+        private boolean test(final IR.Expression condition) {
+            return (Boolean)condition.accept(this);
+        }
+
+        private Object[] evaluate(final List<IR.Expression> expressions) {
+            final Object[] values = new Object[expressions.size()];
+
+            for (int index = 0; index < values.length; ++index) {
+                values[index] = evaluate(expressions.get(index));
+            }
+
+            return values;
+        }
+
+        /** Runs the body of a loop, returning false once the loop is left by a break or a return. */
+        private boolean loop(final IR.Statement body) {
+            if (body != null) {
+                body.accept(this);
+            }
+
+            if (jump == CONTINUE) {
+                jump = NONE;
+            } else if (jump == BREAK) {
+                jump = NONE;
+
+                return false;
+            }
+
+            return jump == NONE;
+        }
+
+        @Override
+        Object visitBlock(final IR.Block node) {
+            for (final IR.Statement statement : node.statements) {
+                statement.accept(this);
+
+                if (jump != NONE) {
+                    break;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        Object visitDeclare(final IR.Declare node) {
+            locals[node.variable.slot] = node.value == null ? initial(node.variable.type) : evaluate(node.value);
+
+            return null;
+        }
+
+        @Override
+        Object visitIf(final IR.If node) {
+            if (test(node.condition)) {
+                node.then.accept(this);
+            } else if (node.otherwise != null) {
+                node.otherwise.accept(this);
+            }
+
+            return null;
+        }
+
+        @Override
+        Object visitWhile(final IR.While node) {
+            while (test(node.condition) && loop(node.body)) {
+                // the body is run by the condition
+            }
+
+            return null;
+        }
+
+        @Override
+        Object visitDo(final IR.Do node) {
+            while (loop(node.body) && test(node.condition)) {
+                // the condition is tested once the body has run
+            }
+
+            return null;
+        }
+
+        @Override
+        Object visitFor(final IR.For node) {
+            if (node.initializer != null) {
+                node.initializer.accept(this);
+            }
+
+            while ((node.condition == null || test(node.condition)) && loop(node.body)) {
+                if (node.afterthought != null) {
+                    node.afterthought.accept(this);
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        Object visitReturn(final IR.Return node) {
+            value = evaluate(node.value);
+            jump = RETURN;
+
+            return null;
+        }
+
+        @Override
+        Object visitBreak(final IR.Break node) {
+            jump = BREAK;
+
+            return null;
+        }
+
+        @Override
+        Object visitContinue(final IR.Continue node) {
+            jump = CONTINUE;
+
+            return null;
+        }
+
+        @Override
+        Object visitEval(final IR.Eval node) {
+            evaluate(node.expression);
+
+            return null;
+        }
+
+        @Override
+        Object visitConstant(final IR.Constant node) {
+            if (node.value instanceof String) {
+                return strings.get(node);
+            }
+
+            final Object constant = node.value;
+            final boolean numeric = constant instanceof Number || constant instanceof Character;
+
+            // a constant is held as the box of its type, whatever box analysis computed it as
+            return numeric && node.type.metadata.numeric ? numeric(constant, node.type.metadata) : constant;
+        }
+
+        @Override
+        Object visitNull(final IR.Null node) {
+            return null;
+        }
+
+        @Override
+        Object visitLoad(final IR.Load node) {
+            return locals[node.variable.slot];
+        }
+
+        @Override
+        Object visitConvert(final IR.Convert node) {
+            return cast(node.source, evaluate(node.expression), node.cast);
+        }
+
+        @Override
+        Object visitUnary(final IR.Unary node) {
+            final Object operand = evaluate(node.expression);
+            final TypeMetadata metadata = node.type.metadata;
+
+            if (metadata == TypeMetadata.DEF) {
+                return node.token == BWNOT ? Def.not(operand) : node.token == SUB ? Def.neg(operand) : Def.plus(operand);
+            } else if (node.token == ADD) {
+                return operand;
+            } else if (node.token == BWNOT && metadata == TypeMetadata.INT) {
+                return ~(Integer)operand;
+            } else if (node.token == BWNOT && metadata == TypeMetadata.LONG) {
+                return ~(Long)operand;
+            } else if (node.token == SUB) {
+                switch (metadata) {
+                    case INT:    return -(Integer)operand;
+                    case LONG:   return -(Long)operand;
+                    case FLOAT:  return -(Float)operand;
+                    case DOUBLE: return -(Double)operand;
+                }
+            }
+
+            throw new IllegalStateException(error(node.source) + "Unexpected interpreter state.");
+        }
+
+        @Override
+        Object visitNot(final IR.Not node) {
+            return !test(node.expression);
+        }
+
+        @Override
+        Object visitBinary(final IR.Binary node) {
+            final Object left = evaluate(node.left);
+            final Object right = evaluate(node.right);
+
+            return binary(node.source, node.type.metadata, node.token, left, right);
+        }
+
+        @Override
+        Object visitCompare(final IR.Compare node) {
+            final Object left = evaluate(node.left);
+            final Object right = evaluate(node.right);
+
+            return compare(node, left, right);
+        }
+
+        @Override
+        Object visitLogical(final IR.Logical node) {
+            if (node.token == BOOLAND) {
+                return test(node.left) && test(node.right);
+            } else if (node.token == BOOLOR) {
+                return test(node.left) || test(node.right);
+            }
+
+            throw new IllegalStateException(error(node.source) + "Unexpected interpreter state.");
+        }
+
+        @Override
+        Object visitConditional(final IR.Conditional node) {
+            return test(node.condition) ? evaluate(node.left) : evaluate(node.right);
+        }
+
+        @Override
+        Object visitConcat(final IR.Concat node) {
+            final StringBuilder builder = new StringBuilder();
+
+            for (final IR.Expression part : node.parts) {
+                builder.append(evaluate(part));
+            }
+
+            return builder.toString();
+        }
+
+        @Override
+        Object visitLoadField(final IR.LoadField node) {
+            return load(node.field, node.receiver == null ? null : evaluate(node.receiver));
+        }
+
+        @Override
+        Object visitLength(final IR.Length node) {
+            return Array.getLength(evaluate(node.array));
+        }
+
+        @Override
+        Object visitLoadArray(final IR.LoadArray node) {
+            final Object array = evaluate(node.array);
+
+            return Array.get(array, (Integer)evaluate(node.index));
+        }
+
+        @Override
+        Object visitCall(final IR.Call node) {
+            final Object receiver = node.receiver == null ? null : evaluate(node.receiver);
+
+            return invoke(node.method, receiver, evaluate(node.arguments));
+        }
+
+        @Override
+        Object visitNew(final IR.New node) {
+            final Object[] arguments = evaluate(node.arguments);
+
+            try {
+                return node.constructor.getConstructor().newInstance(arguments);
+            } catch (final InvocationTargetException exception) {
+                throw rethrow(exception.getCause());
+            } catch (final ReflectiveOperationException exception) {
+                throw new IllegalStateException(error(node.source) + "Unexpected interpreter state.", exception);
+            }
+        }
+
+        @Override
+        Object visitNewArray(final IR.NewArray node) {
+            final int[] dimensions = new int[node.dimensions.size()];
+            Class<?> component = node.type.clazz;
+
+            for (int index = 0; index < dimensions.length; ++index) {
+                dimensions[index] = (Integer)evaluate(node.dimensions.get(index));
+                component = component.getComponentType();
+            }
+
+            return Array.newInstance(component, dimensions);
+        }
+
+        @Override
+        Object visitDynamic(final IR.Dynamic node) {
+            final Object[] operands = new Object[node.arguments.size() + 1];
+            operands[0] = evaluate(node.receiver);
+
+            for (int index = 1; index < operands.length; ++index) {
+                operands[index] = evaluate(node.arguments.get(index - 1));
+            }
+
+            return dynamic(loads.get(node), operands);
+        }
+
+        @Override
+        Object visitBound(final IR.Bound node) {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> input = (Map<String, Object>)evaluate(node.input);
+
+            switch (node.type.metadata) {
+                case LONG:   return Bindings.getLong(input, Interpreter.this, node.slot, node.name);
+                case DOUBLE: return Bindings.getDouble(input, Interpreter.this, node.slot, node.name);
+                default:     return Bindings.get(input, Interpreter.this, node.slot, node.name);
+            }
+        }
+
+        @Override
+        Object visitDocValue(final IR.DocValue node) {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> input = (Map<String, Object>)evaluate(node.input);
+
+            if (node.type.metadata == TypeMetadata.LONG) {
+                return Bindings.longValue(input, Interpreter.this, node.slot, node.field);
+            }
+
+            return Bindings.doubleValue(input, Interpreter.this, node.slot, node.field);
+        }
+
+        /**
+         * Evaluates the operands of the target first, then the current value when the assignment is compound,
+         * then the value, in the same order as the class written for the assignment.
+         */
+        @Override
+        Object visitAssign(final IR.Assign node) {
+            final IR.Expression target = node.target;
+            final Object[] operands = operands(target);
+            final Object previous;
+            final Object result;
+
+            if (node.token == CAT) {
+                final StringBuilder builder = new StringBuilder();
+                builder.append(previous = read(target, operands));
+
+                if (node.value instanceof IR.Concat) {
+                    for (final IR.Expression part : ((IR.Concat)node.value).parts) {
+                        builder.append(evaluate(part));
+                    }
+                } else {
+                    builder.append(evaluate(node.value));
+                }
+
+                result = cast(node.source, builder.toString(), node.demote);
+            } else if (node.token > 0) {
+                previous = read(target, operands);
+
+                final Object promoted = cast(node.source, previous, node.promote);
+                final Object value = evaluate(node.value);
+
+                result = cast(node.source, binary(node.source, node.promote.to.metadata, node.token, promoted, value), node.demote);
+            } else {
+                previous = null;
+                result = evaluate(node.value);
+            }
+
+            write(target, operands, result);
+
+            return node.read && node.post ? previous : result;
+        }
+
+        @Override
+        Object visitIncrement(final IR.Increment node) {
+            final int slot = node.variable.slot;
+            final Integer previous = (Integer)locals[slot];
+            final Integer result = previous + node.value;
+            locals[slot] = result;
+
+            return node.read && node.post ? previous : result;
+        }
+
+        /** Evaluates the receiver, array and index or def operands of the target of an assignment. */
+        private Object[] operands(final IR.Expression target) {
+            if (target instanceof IR.LoadField) {
+                final IR.LoadField field = (IR.LoadField)target;
+
+                return new Object[] {field.receiver == null ? null : evaluate(field.receiver)};
+            } else if (target instanceof IR.LoadArray) {
+                final IR.LoadArray array = (IR.LoadArray)target;
+                final Object object = evaluate(array.array);
+
+                return new Object[] {object, evaluate(array.index)};
+            } else if (target instanceof IR.Dynamic) {
+                final IR.Dynamic dynamic = (IR.Dynamic)target;
+                final Object[] operands = new Object[dynamic.arguments.size() + 1];
+                operands[0] = evaluate(dynamic.receiver);
+
+                for (int index = 1; index < operands.length; ++index) {
+                    operands[index] = evaluate(dynamic.arguments.get(index - 1));
+                }
+
+                return operands;
+            } else if (target instanceof IR.Load) {
+                return null;
+            }
+
+            throw new IllegalStateException(error(target.source) + "Unexpected interpreter state.");
+        }
+
+        private Object read(final IR.Expression target, final Object[] operands) {
+            if (target instanceof IR.Load) {
+                return locals[((IR.Load)target).variable.slot];
+            } else if (target instanceof IR.LoadField) {
+                return load(((IR.LoadField)target).field, operands[0]);
+            } else if (target instanceof IR.LoadArray) {
+                return Array.get(operands[0], (Integer)operands[1]);
+            }
+
+            return dynamic(loads.get(target), operands);
+        }
+
+        private void write(final IR.Expression target, final Object[] operands, final Object value) {
+            if (target instanceof IR.Load) {
+                locals[((IR.Load)target).variable.slot] = value;
+            } else if (target instanceof IR.LoadField) {
+                final Field field = ((IR.LoadField)target).field;
+
+                try {
+                    field.getField().set(operands[0], value);
+                } catch (final IllegalAccessException exception) {
+                    throw new IllegalStateException(error(target.source) + "Unexpected interpreter state.", exception);
+                }
+            } else if (target instanceof IR.LoadArray) {
+                store(operands[0], (Integer)operands[1], value);
+            } else {
+                final Object[] arguments = new Object[operands.length + 1];
+                System.arraycopy(operands, 0, arguments, 0, operands.length);
+                arguments[operands.length] = value;
+
+                dynamic(stores.get(target), arguments);
+            }
+        }
+    }
+
+    /** Returns the value a variable declared without one starts with, which is zero of its type. */
+    private static Object initial(final Type type) {
+        switch (type.metadata) {
+            case BOOL:   return false;
+            case BYTE:   return (byte)0;
+            case SHORT:  return (short)0;
+            case CHAR:   return (char)0;
+            case INT:    return 0;
+            case LONG:   return 0L;
+            case FLOAT:  return 0.0F;
+            case DOUBLE: return 0.0;
+            default:     return null;
+        }
+    }
+
+    /** Converts a number or a char to the box of the numeric type, the same way the cast between the primitives does. */
+    private static Object numeric(final Object value, final TypeMetadata to) {
+        final Number number = value instanceof Character ? (Number)(int)(char)value : (Number)value;
+
+        switch (to) {
+            case BYTE:   return number.byteValue();
+            case SHORT:  return number.shortValue();
+            case CHAR:   return (char)number.intValue();
+            case INT:    return number.intValue();
+            case LONG:   return number.longValue();
+            case FLOAT:  return number.floatValue();
+            case DOUBLE: return number.doubleValue();
+            default:
+                throw new IllegalStateException("Unexpected interpreter state.");
+        }
+    }
+
+    /** Applies the cast the same way {@link Caster#checkWriteCast} writes it. */
+    private static Object cast(final ParserRuleContext source, final Object value, final Cast cast) {
+        if (cast instanceof Transform) {
+            final Transform transform = (Transform)cast;
+            final Object object = transform.upcast == null ? value : transform.upcast.clazz.cast(value);
+            final Object result = transform.method.statik ?
+                    invoke(transform.method, null, new Object[] {object}) : invoke(transform.method, object, new Object[0]);
+
+            return transform.downcast == null ? result : transform.downcast.clazz.cast(result);
+        } else if (cast == null) {
+            throw new IllegalStateException(error(source) + "Unexpected cast object.");
+        }
+
+        final Type from = cast.from;
+        final Type to = cast.to;
+
+        if (from.equals(to) || to.metadata == TypeMetadata.DEF) {
+            return value;
+        } else if (from.metadata == TypeMetadata.DEF && to.clazz.isPrimitive()) {
+            switch (to.metadata) {
+                case BOOL:   return Def.booleanValue(value);
+                case BYTE:   return Def.byteValue(value);
+                case SHORT:  return Def.shortValue(value);
+                case CHAR:   return Def.charValue(value);
+                case INT:    return Def.intValue(value);
+                case LONG:   return Def.longValue(value);
+                case FLOAT:  return Def.floatValue(value);
+                case DOUBLE: return Def.doubleValue(value);
+                default:
+                    throw new IllegalStateException(error(source) + "Unexpected interpreter state.");
+            }
+        } else if (from.metadata.numeric && to.metadata.numeric) {
+            return numeric(value, to.metadata);
+        }
+
+        return to.clazz.isPrimitive() ? value : to.clazz.cast(value);
+    }
+
+    private static Object binary(final ParserRuleContext source, final TypeMetadata metadata, final int token,
+                                 final Object left, final Object right) {
+        switch (metadata) {
+            case DEF:
+                return Def.binary(token, left, right);
+            case INT: {
+                final int a = ((Number)left).intValue();
+                final int b = ((Number)right).intValue();
+
+                switch (token) {
+                    case MUL:   return a * b;
+                    case DIV:   return a / b;
+                    case REM:   return a % b;
+                    case ADD:   return a + b;
+                    case SUB:   return a - b;
+                    case LSH:   return a << b;
+                    case USH:   return a >>> b;
+                    case RSH:   return a >> b;
+                    case BWAND: return a & b;
+                    case BWXOR: return a ^ b;
+                    case BWOR:  return a | b;
+                }
+
+                break;
+            }
+            case LONG: {
+                final long a = ((Number)left).longValue();
+                final long b = ((Number)right).longValue();
+
+                // a shift takes an int distance even when the value shifted is a long
+                switch (token) {
+                    case MUL:   return a * b;
+                    case DIV:   return a / b;
+                    case REM:   return a % b;
+                    case ADD:   return a + b;
+                    case SUB:   return a - b;
+                    case LSH:   return a << (int)b;
+                    case USH:   return a >>> (int)b;
+                    case RSH:   return a >> (int)b;
+                    case BWAND: return a & b;
+                    case BWXOR: return a ^ b;
+                    case BWOR:  return a | b;
+                }
+
+                break;
+            }
+            case FLOAT: {
+                final float a = ((Number)left).floatValue();
+                final float b = ((Number)right).floatValue();
+
+                switch (token) {
+                    case MUL: return a * b;
+                    case DIV: return a / b;
+                    case REM: return a % b;
+                    case ADD: return a + b;
+                    case SUB: return a - b;
+                }
+
+                break;
+            }
+            case DOUBLE: {
+                final double a = ((Number)left).doubleValue();
+                final double b = ((Number)right).doubleValue();
+
+                switch (token) {
+                    case MUL: return a * b;
+                    case DIV: return a / b;
+                    case REM: return a % b;
+                    case ADD: return a + b;
+                    case SUB: return a - b;
+                }
+
+                break;
+            }
+        }
+
+        throw new IllegalStateException(error(source) + "Unexpected interpreter state.");
+    }
+
+    private static boolean compare(final IR.Compare node, final Object left, final Object right) {
+        final int token = node.token;
+        final boolean equals = token == EQ || token == EQR;
+
+        switch (node.promote.metadata) {
+            case DEF:
+                if (token != EQR && token != NER && !(node.left instanceof IR.Null) && !(node.right instanceof IR.Null)) {
+                    return Def.compare(token, left, right);
+                } else if (equals || token == NE || token == NER) {
+                    return (left == right) == equals;
+                }
+
+                break;
+            case BOOL:
+                if (equals || token == NE || token == NER) {
+                    return left.equals(right) == equals;
+                }
+
+                break;
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE: {
+                final Number a = (Number)left;
+                final Number b = (Number)right;
+                final boolean integral = node.promote.metadata == TypeMetadata.INT || node.promote.metadata == TypeMetadata.LONG;
+
+                if (integral) {
+                    final long x = a.longValue();
+                    final long y = b.longValue();
+
+                    switch (token) {
+                        case EQ: case EQR: return x == y;
+                        case NE: case NER: return x != y;
+                        case LT:           return x < y;
+                        case LTE:          return x <= y;
+                        case GT:           return x > y;
+                        case GTE:          return x >= y;
+                    }
+                } else {
+                    // a float is compared as a double, which keeps both its value and how it compares with NaN
+                    final double x = a.doubleValue();
+                    final double y = b.doubleValue();
+
+                    switch (token) {
+                        case EQ: case EQR: return x == y;
+                        case NE: case NER: return x != y;
+                        case LT:           return x < y;
+                        case LTE:          return x <= y;
+                        case GT:           return x > y;
+                        case GTE:          return x >= y;
+                    }
+                }
+
+                break;
+            }
+            case VOID:
+            case BYTE:
+            case SHORT:
+            case CHAR:
+                break;
+            default:
+                if (token == EQ && !(node.left instanceof IR.Null) && !(node.right instanceof IR.Null)) {
+                    return left.equals(right);
+                } else if (token == NE && !(node.left instanceof IR.Null) && !(node.right instanceof IR.Null)) {
+                    return !left.equals(right);
+                } else if (equals || token == NE || token == NER) {
+                    return (left == right) == equals;
+                }
+        }
+
+        throw new IllegalStateException(error(node.source) + "Unexpected interpreter state.");
+    }
+
+    private static Object load(final Field field, final Object receiver) {
+        try {
+            return field.getField().get(receiver);
+        } catch (final IllegalAccessException exception) {
+            throw new IllegalStateException("Unexpected interpreter state.", exception);
+        }
+    }
+
+    /** Stores to an array, failing the same way the store instruction does for a value of the wrong class. */
+    private static void store(final Object array, final int index, final Object value) {
+        if (array instanceof Object[]) {
+            ((Object[])array)[index] = value;
+        } else {
+            Array.set(array, index, value);
+        }
+    }
+
+    private static Object invoke(final Method method, final Object receiver, final Object[] arguments) {
+        if (!method.statik && receiver == null) {
+            throw new NullPointerException();
+        }
+
+        try {
+            return method.getMethod().invoke(receiver, arguments);
+        } catch (final InvocationTargetException exception) {
+            throw rethrow(exception.getCause());
+        } catch (final IllegalAccessException exception) {
+            throw new IllegalStateException("Unexpected interpreter state.", exception);
+        }
+    }
+
+    private static Object dynamic(final MethodHandle handle, final Object[] operands) {
+        try {
+            return handle.invokeWithArguments(operands);
+        } catch (final Throwable throwable) {
+            throw rethrow(throwable);
+        }
+    }
+
+    /** Throws the exception of a method the script called as it is, the way the class written for the call does. */
+    private static RuntimeException rethrow(final Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException)throwable;
+        } else if (throwable instanceof Error) {
+            throw (Error)throwable;
+        }
+
+        throw new IllegalStateException(throwable);
+    }
+}
@@ -0,0 +1,151 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Defines the classes of scripts in shared {@link Compiler.Loader}s rather than in a loader of their own.  Scripts
+ * compiled against the same parent and definition fill a loader up to the capacity before another one is started,
+ * so most scripts no longer carry a loader and protection domain of their own.  Every class is still defined with
+ * the untrusted code source.  A loader and all of its classes can only be unloaded once none of its scripts are
+ * reachable, so a capacity of 1 goes back to a loader for every script.
+ */
+final class LoaderPool {
+    /** the number of scripts a loader holds unless the engine settings say otherwise */
+    static final int DEFAULT_CAPACITY = 64;
+
+    /** scripts that share a loader have to have distinct names, so every class gets a number of its own */
+    private static final AtomicLong NAMES = new AtomicLong();
+
+    /** The parent and definition a loader is created with, compared by identity. */
+    private static final class Key {
+        final ClassLoader parent;
+        final Definition definition;
+
+        Key(final ClassLoader parent, final Definition definition) {
+            this.parent = parent;
+            this.definition = definition;
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+
+            final Key key = (Key)object;
+
+            return parent == key.parent && definition == key.definition;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(parent) + System.identityHashCode(definition);
+        }
+    }
+
+    /** Cleared once none of the scripts of its loader are reachable, when the classes it counted are unloaded. */
+    private static final class Tracked extends WeakReference<Compiler.Loader> {
+        final CompilerStats stats;
+        int classes = 0;
+
+        Tracked(final Compiler.Loader loader, final ReferenceQueue<Compiler.Loader> queue, final CompilerStats stats) {
+            super(loader, queue);
+
+            this.stats = stats;
+        }
+    }
+
+    private final int capacity;
+    private final Map<Key, Tracked> open = new HashMap<>();
+    private final Set<Tracked> live = new HashSet<>();
+    private final ReferenceQueue<Compiler.Loader> queue = new ReferenceQueue<>();
+
+    LoaderPool(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Loader capacity [" + capacity + "] must be at least 1.");
+        }
+
+        this.capacity = capacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns a name for the class of a script that no other class defined by a pool has. */
+    static String name() {
+        return Writer.CLASS_NAME + "$" + NAMES.incrementAndGet();
+    }
+
+    /**
+     * Defines the class in the open loader for the parent and definition, starting a new loader when there is none
+     * or it is full.  The new loader and the class are recorded in the stats, if there are any.
+     */
+    synchronized Class<? extends Executable> define(final ClassLoader parent, final Definition definition,
+                                                    final String name, final byte[] bytes, final CompilerStats stats) {
+        expunge();
+
+        final Key key = new Key(parent, definition);
+        Tracked tracked = open.get(key);
+        Compiler.Loader loader = tracked == null ? null : tracked.get();
+
+        if (loader == null) {
+            loader = new Compiler.Loader(parent, definition);
+            tracked = new Tracked(loader, queue, stats);
+            live.add(tracked);
+            open.put(key, tracked);
+
+            if (stats != null) {
+                stats.recordLoader();
+            }
+        }
+
+        final Class<? extends Executable> clazz = loader.define(name, bytes);
+
+        if (++tracked.classes == capacity) {
+            open.remove(key);
+        }
+
+        return clazz;
+    }
+
+    /** Counts the classes of every loader that is no longer reachable as unloaded. */
+    synchronized void expunge() {
+        Tracked tracked;
+
+        while ((tracked = (Tracked)queue.poll()) != null) {
+            live.remove(tracked);
+            // the open loader may be collected before it is full
+            open.values().remove(tracked);
+
+            if (tracked.stats != null) {
+                tracked.stats.recordUnloaded(tracked.classes);
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+
+/**
+ * Moves expressions that give the same value on every iteration out of loops.  An expression is invariant
+ * when every variable it loads is never stored to within the loop, and when anything else it reads, such as
+ * the result of a read-only whitelisted method, cannot be changed by the loop because the loop calls no
+ * method that may change state.
+ *
+ * A pure invariant expression is computed once into a temporary before the loop.  Any other invariant
+ * expression may throw, so it is still evaluated where it was the first time it is reached, after which its
+ * value is kept in a temporary for the remaining iterations.  The exception is an expression at the start of a
+ * condition checked before the first iteration, such as {@code list.size()} in {@code index < list.size()},
+ * since it is always reached on entry to the loop anyway.  Inner loops are done before outer loops, so
+ * an expression can move out through several loops.
+ *
+ * A concatenation builds a new string each time it is evaluated, so in a script that compares references with
+ * {@code ===} or {@code !==} it is never kept from one iteration to the next.
+ */
+final class LoopInvariantPass extends PassManager.Pass {
+    static final String NAME = "licm";
+
+    LoopInvariantPass() {
+        super(NAME);
+    }
+
+    @Override
+    void run(final Adapter adapter, final IR.Block root, final CompilerStats stats) {
+        final boolean references = IR.comparesReferences(root);
+
+        root.accept(new IR.Rewriter() {
+            @Override
+            IR.Node visitWhile(final IR.While node) {
+                super.visitWhile(node);
+
+                final Hoister hoister = new Hoister(adapter, references, node.condition, node.body);
+                node.condition = hoister.expression(hoister.entry(node.condition));
+                node.body = hoister.statement(node.body);
+
+                return hoister.wrap(node, null);
+            }
+
+            @Override
+            IR.Node visitDo(final IR.Do node) {
+                super.visitDo(node);
+
+                final Hoister hoister = new Hoister(adapter, references, node.body, node.condition);
+                node.body = hoister.statement(node.body);
+                node.condition = hoister.expression(node.condition);
+
+                return hoister.wrap(node, null);
+            }
+
+            @Override
+            IR.Node visitFor(final IR.For node) {
+                super.visitFor(node);
+
+                final Hoister hoister = new Hoister(adapter, references, node.condition, node.body, node.afterthought);
+                node.condition = hoister.expression(hoister.entry(node.condition));
+                node.body = hoister.statement(node.body);
+                node.afterthought = hoister.statement(node.afterthought);
+
+                // the temporaries may use variables of the initializer, so it is moved before them
+                final IR.Statement initializer = node.initializer;
+
+                if (!hoister.declarations.isEmpty()) {
+                    node.initializer = null;
+                }
+
+                return hoister.wrap(node, initializer);
+            }
+        });
+    }
+
+    /** Finds what a loop may change, which is everything stored to and whether a method may change state. */
+    private static class Effects extends IR.Rewriter {
+        final Set<Variable> variables = new HashSet<>();
+        boolean fields = false;
+        boolean arrays = false;
+        boolean calls = false;
+
+        @Override
+        IR.Node visitDeclare(final IR.Declare node) {
+            variables.add(node.variable);
+
+            return super.visitDeclare(node);
+        }
+
+        @Override
+        IR.Node visitAssign(final IR.Assign node) {
+            if (node.target instanceof IR.Load) {
+                variables.add(((IR.Load)node.target).variable);
+            } else if (node.target instanceof IR.LoadField) {
+                fields = true;
+            } else if (node.target instanceof IR.Dynamic) {
+                calls = true;
+            } else {
+                arrays = true;
+            }
+
+            return super.visitAssign(node);
+        }
+
+        @Override
+        IR.Node visitIncrement(final IR.Increment node) {
+            variables.add(node.variable);
+
+            return node;
+        }
+
+        @Override
+        IR.Node visitCall(final IR.Call node) {
+            calls |= !Caster.isReadOnly(node.method);
+
+            return super.visitCall(node);
+        }
+
+        @Override
+        IR.Node visitDynamic(final IR.Dynamic node) {
+            calls = true;
+
+            return super.visitDynamic(node);
+        }
+    }
+
+    /** Replaces the invariant expressions of a single loop with temporaries declared before it. */
+    private static class Hoister extends IR.Rewriter {
+        private final Adapter adapter;
+        private final boolean references;
+        private final Effects effects;
+
+        final List<IR.Statement> declarations;
+
+        Hoister(final Adapter adapter, final boolean references, final IR.Node... loop) {
+            this.adapter = adapter;
+            this.references = references;
+
+            effects = new Effects();
+            declarations = new ArrayList<>();
+
+            for (final IR.Node node : loop) {
+                if (node != null) {
+                    node.accept(effects);
+                }
+            }
+        }
+
+        /** Returns the loop preceded by the statement and the temporaries, or just the loop if nothing moved. */
+        IR.Statement wrap(final IR.Statement loop, final IR.Statement before) {
+            if (declarations.isEmpty()) {
+                return loop;
+            }
+
+            final List<IR.Statement> statements = new ArrayList<>();
+
+            if (before != null) {
+                statements.add(before);
+            }
+
+            statements.addAll(declarations);
+            statements.add(loop);
+
+            return new IR.Block(loop.source, statements);
+        }
+
+        /**
+         * Computes the invariant expressions of a condition checked on entry to the loop before the loop when
+         * nothing with a side effect is evaluated ahead of them, since they would be evaluated first anyway.
+         */
+        IR.Expression entry(final IR.Expression expression) {
+            if (expression == null || IR.isTrivial(expression)) {
+                return expression;
+            } else if (invariant(expression)) {
+                return compute(expression);
+            } else if (expression instanceof IR.Convert) {
+                final IR.Convert convert = (IR.Convert)expression;
+                convert.expression = entry(convert.expression);
+            } else if (expression instanceof IR.Binary) {
+                final IR.Binary binary = (IR.Binary)expression;
+                binary.left = entry(binary.left);
+
+                if (IR.isPure(binary.left)) {
+                    binary.right = entry(binary.right);
+                }
+            } else if (expression instanceof IR.Compare) {
+                final IR.Compare compare = (IR.Compare)expression;
+                compare.left = entry(compare.left);
+
+                if (IR.isPure(compare.left)) {
+                    compare.right = entry(compare.right);
+                }
+            } else if (expression instanceof IR.Logical) {
+                final IR.Logical logical = (IR.Logical)expression;
+                logical.left = entry(logical.left);
+            }
+
+            return expression;
+        }
+
+        @Override
+        IR.Expression expression(final IR.Expression expression) {
+            if (expression == null || IR.isTrivial(expression) || !invariant(expression)) {
+                return super.expression(expression);
+            }
+
+            return IR.isPure(expression) ? compute(expression) : remember(expression);
+        }
+
+        /** Computes a pure expression into a temporary before the loop. */
+        private IR.Expression compute(final IR.Expression expression) {
+            final Variable temporary = adapter.addTemporary("#invariant" + declarations.size(), expression.type);
+            declarations.add(new IR.Declare(expression.source, temporary, expression));
+
+            return new IR.Load(expression.source, temporary);
+        }
+
+        /**
+         * Keeps the value of an expression that may throw the first time it is evaluated, which is written as
+         * {@code set ? value : (set = true) ? (value = expression) : value}.
+         */
+        private IR.Expression remember(final IR.Expression expression) {
+            final Type bool = adapter.standard.boolType;
+            final Variable set = adapter.addTemporary("#set" + declarations.size(), bool);
+            final Variable value = adapter.addTemporary("#invariant" + declarations.size(), expression.type);
+
+            declarations.add(new IR.Declare(expression.source, set, new IR.Constant(expression.source, bool, false)));
+            declarations.add(new IR.Declare(expression.source, value, null));
+
+            final IR.Expression mark = new IR.Assign(expression.source, bool, new IR.Load(expression.source, set), 0,
+                    null, null, new IR.Constant(expression.source, bool, true), true, false);
+            final IR.Expression store = new IR.Assign(expression.source, expression.type,
+                    new IR.Load(expression.source, value), 0, null, null, expression, true, false);
+            final IR.Expression first = new IR.Conditional(expression.source, expression.type,
+                    mark, store, new IR.Load(expression.source, value));
+
+            return new IR.Conditional(expression.source, expression.type,
+                    new IR.Load(expression.source, set), new IR.Load(expression.source, value), first);
+        }
+
+        private boolean invariant(final IR.Expression expression) {
+            if (expression instanceof IR.Constant || expression instanceof IR.Null) {
+                return true;
+            } else if (expression instanceof IR.Load) {
+                return !effects.variables.contains(((IR.Load)expression).variable);
+            } else if (expression instanceof IR.Convert) {
+                return invariant(((IR.Convert)expression).expression);
+            } else if (expression instanceof IR.Unary) {
+                return invariant(((IR.Unary)expression).expression);
+            } else if (expression instanceof IR.Not) {
+                return invariant(((IR.Not)expression).expression);
+            } else if (expression instanceof IR.Binary) {
+                final IR.Binary binary = (IR.Binary)expression;
+
+                return invariant(binary.left) && invariant(binary.right);
+            } else if (expression instanceof IR.Compare) {
+                final IR.Compare compare = (IR.Compare)expression;
+
+                // an object comparison with equals calls a method of the left side
+                return (IR.isPure(compare) || !effects.calls) && invariant(compare.left) && invariant(compare.right);
+            } else if (expression instanceof IR.Logical) {
+                final IR.Logical logical = (IR.Logical)expression;
+
+                return invariant(logical.left) && invariant(logical.right);
+            } else if (expression instanceof IR.Conditional) {
+                final IR.Conditional conditional = (IR.Conditional)expression;
+
+                return invariant(conditional.condition) && invariant(conditional.left) && invariant(conditional.right);
+            } else if (expression instanceof IR.Concat) {
+                return !references && !effects.calls && invariant(((IR.Concat)expression).parts);
+            } else if (expression instanceof IR.LoadField) {
+                final IR.LoadField field = (IR.LoadField)expression;
+
+                return !effects.fields && !effects.calls && (field.receiver == null || invariant(field.receiver));
+            } else if (expression instanceof IR.Length) {
+                return invariant(((IR.Length)expression).array);
+            } else if (expression instanceof IR.LoadArray) {
+                final IR.LoadArray array = (IR.LoadArray)expression;
+
+                return !effects.arrays && !effects.calls && invariant(array.array) && invariant(array.index);
+            } else if (expression instanceof IR.Call) {
+                final IR.Call call = (IR.Call)expression;
+
+                return Caster.isReadOnly(call.method) && !effects.calls && !effects.fields && !effects.arrays &&
+                        (call.receiver == null || invariant(call.receiver)) && invariant(call.arguments);
+            }
+
+            return false;
+        }
+
+        private boolean invariant(final List<IR.Expression> expressions) {
+            for (final IR.Expression expression : expressions) {
+                if (!invariant(expression)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * Builds the {@link IR} of an analyzed script from the parse tree and the metadata the {@link Analyzer}
+ * left on it.  Constants computed during analysis replace the expressions they were computed from and
+ * the cast of each expression becomes an explicit {@link IR.Convert}.
+ */
+class Lowerer extends PlanABaseVisitor<IR.Node> {
+    static IR.Block lower(final Adapter adapter) {
+        final Lowerer lowerer = new Lowerer(adapter);
+
+        return (IR.Block)lowerer.visit(adapter.root);
+    }
+
+    private final Adapter adapter;
+
+    private Lowerer(final Adapter adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * Lowers an expression whose metadata is complete.  A constant known after the cast replaces the
+     * expression entirely, while one known only before the cast is converted like any other value.
+     */
+    IR.Expression expression(final ParserRuleContext ctx) {
+        final ExpressionMetadata emd = adapter.getExpressionMetadata(ctx);
+
+        if (emd.postConst != null) {
+            return new IR.Constant(ctx, emd.to, emd.postConst);
+        }
+
+        final IR.Expression expression;
+
+        if (emd.preConst != null) {
+            expression = new IR.Constant(ctx, emd.from, emd.preConst);
+        } else {
+            expression = (IR.Expression)visit(ctx);
+        }
+
+        return convert(ctx, expression, emd.cast);
+    }
+
+    List<IR.Expression> expressions(final List<ExpressionContext> ctxs) {
+        final List<IR.Expression> expressions = new ArrayList<>(ctxs.size());
+
+        for (final ExpressionContext ctx : ctxs) {
+            expressions.add(expression(ctx));
+        }
+
+        return expressions;
+    }
+
+    /** Wraps the expression in a conversion unless the cast is between the same types. */
+    IR.Expression convert(final ParserRuleContext source, final IR.Expression expression, final Cast cast) {
+        if (cast == null) {
+            throw new IllegalStateException(error(source) + "Unexpected cast object.");
+        }
+
+        if (!(cast instanceof Transform) && cast.from.equals(cast.to)) {
+            return expression;
+        }
+
+        return new IR.Convert(source, expression, cast);
+    }
+
+    private IR.Statement statement(final ParserRuleContext ctx) {
+        return ctx == null ? null : (IR.Statement)visit(ctx);
+    }
+
+    /** Declares the parameter of the schema with the input of the same name converted to its type. */
+    private IR.Statement parameter(final ParserRuleContext source, final Variable parameter) {
+        final Method get = adapter.standard.smapType.struct.methods.get("get");
+        final List<IR.Expression> arguments = new ArrayList<>();
+        arguments.add(new IR.Constant(source, adapter.standard.stringType, parameter.name));
+
+        final IR.Expression value = new IR.Call(source, get, new IR.Load(source, adapter.input), arguments);
+
+        return new IR.Declare(source, parameter,
+                convert(source, value, adapter.caster.getLegalCast(source, get.rtn, parameter.type, true)));
+    }
+
+    @Override
+    public IR.Node visitSource(final SourceContext ctx) {
+        final List<IR.Statement> statements = new ArrayList<>();
+
+        for (final Variable parameter : adapter.parameters) {
+            statements.add(parameter(ctx, parameter));
+        }
+
+        for (final StatementContext sctx : ctx.statement()) {
+            statements.add(statement(sctx));
+        }
+
+        return new IR.Block(ctx, statements);
+    }
+
+    @Override
+    public IR.Node visitIf(final IfContext ctx) {
+        final IR.Expression condition = expression(ctx.expression());
+        final IR.Statement then = statement(ctx.block(0));
+        final IR.Statement otherwise = ctx.ELSE() == null ? null : statement(ctx.block(1));
+
+        return new IR.If(ctx, condition, then, otherwise);
+    }
+
+    @Override
+    public IR.Node visitWhile(final WhileContext ctx) {
+        return new IR.While(ctx, expression(ctx.expression()), statement(ctx.block()));
+    }
+
+    @Override
+    public IR.Node visitDo(final DoContext ctx) {
+        return new IR.Do(ctx, statement(ctx.block()), expression(ctx.expression()));
+    }
+
+    @Override
+    public IR.Node visitFor(final ForContext ctx) {
+        final ExpressionContext exprctx0 = ctx.expression(0);
+        final ExpressionContext exprctx1 = ctx.expression(1);
+
+        final IR.Statement initializer = statement(ctx.declaration());
+        final IR.Expression condition = exprctx0 == null ? null : expression(exprctx0);
+        final IR.Statement afterthought = exprctx1 == null ? null : new IR.Eval(exprctx1, expression(exprctx1));
+        final IR.Statement body = statement(ctx.block());
+
+        return new IR.For(ctx, initializer, condition, afterthought, body);
+    }
+
+    @Override
+    public IR.Node visitDecl(final DeclContext ctx) {
+        return visit(ctx.declaration());
+    }
+
+    @Override
+    public IR.Node visitContinue(final ContinueContext ctx) {
+        return new IR.Continue(ctx);
+    }
+
+    @Override
+    public IR.Node visitBreak(final BreakContext ctx) {
+        return new IR.Break(ctx);
+    }
+
+    @Override
+    public IR.Node visitReturn(final ReturnContext ctx) {
+        return new IR.Return(ctx, expression(ctx.expression()));
+    }
+
+    @Override
+    public IR.Node visitExpr(final ExprContext ctx) {
+        return new IR.Eval(ctx, expression(ctx.expression()));
+    }
+
+    @Override
+    public IR.Node visitMultiple(final MultipleContext ctx) {
+        final List<IR.Statement> statements = new ArrayList<>();
+
+        for (final StatementContext sctx : ctx.statement()) {
+            statements.add(statement(sctx));
+        }
+
+        return new IR.Block(ctx, statements);
+    }
+
+    @Override
+    public IR.Node visitSingle(final SingleContext ctx) {
+        final List<IR.Statement> statements = new ArrayList<>();
+        statements.add(statement(ctx.statement()));
+
+        return new IR.Block(ctx, statements);
+    }
+
+    @Override
+    public IR.Node visitEmpty(final EmptyContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitDeclaration(final DeclarationContext ctx) {
+        final List<IR.Statement> statements = new ArrayList<>();
+
+        for (final DeclvarContext declctx : ctx.declvar()) {
+            statements.add(statement(declctx));
+        }
+
+        return new IR.Block(ctx, statements);
+    }
+
+    @Override
+    public IR.Node visitDecltype(final DecltypeContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitDeclvar(final DeclvarContext ctx) {
+        final ExpressionMetadata declemd = adapter.getExpressionMetadata(ctx);
+        final Variable variable = (Variable)declemd.postConst;
+        final ExpressionContext exprctx = ctx.expression();
+
+        return new IR.Declare(ctx, variable, exprctx == null ? null : expression(exprctx));
+    }
+
+    @Override
+    public IR.Node visitPrecedence(final PrecedenceContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitNumeric(final NumericContext ctx) {
+        throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitString(final StringContext ctx) {
+        throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitChar(final CharContext ctx) {
+        throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitTrue(final TrueContext ctx) {
+        throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitFalse(final FalseContext ctx) {
+        throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitNull(final NullContext ctx) {
+        return new IR.Null(ctx, adapter.getExpressionMetadata(ctx).from);
+    }
+
+    @Override
+    public IR.Node visitCat(final CatContext ctx) {
+        final ExpressionMetadata catemd = adapter.getExpressionMetadata(ctx);
+        final List<IR.Expression> parts = new ArrayList<>();
+
+        for (final ExpressionContext exprctx : ctx.expression()) {
+            final IR.Expression part = expression(exprctx);
+
+            if (part instanceof IR.Concat) {
+                parts.addAll(((IR.Concat)part).parts);
+            } else {
+                parts.add(part);
+            }
+        }
+
+        return new IR.Concat(ctx, catemd.from, parts);
+    }
+
+    @Override
+    public IR.Node visitExt(final ExtContext ctx) {
+        return adapter.getExternal(ctx).lower(this);
+    }
+
+    @Override
+    public IR.Node visitPostinc(final PostincContext ctx) {
+        return adapter.getExternal(ctx).lower(this);
+    }
+
+    @Override
+    public IR.Node visitPreinc(final PreincContext ctx) {
+        return adapter.getExternal(ctx).lower(this);
+    }
+
+    @Override
+    public IR.Node visitUnary(final UnaryContext ctx) {
+        final ExpressionMetadata unaryemd = adapter.getExpressionMetadata(ctx);
+        final IR.Expression expression = expression(ctx.expression());
+
+        if (ctx.BOOLNOT() != null) {
+            return new IR.Not(ctx, unaryemd.from, expression);
+        } else if (ctx.BWNOT() != null) {
+            return new IR.Unary(ctx, unaryemd.from, BWNOT, expression);
+        } else if (ctx.SUB() != null) {
+            return new IR.Unary(ctx, unaryemd.from, SUB, expression);
+        } else if (ctx.ADD() != null) {
+            return new IR.Unary(ctx, unaryemd.from, ADD, expression);
+        } else {
+            throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+        }
+    }
+
+    @Override
+    public IR.Node visitCast(final CastContext ctx) {
+        return expression(ctx.expression());
+    }
+
+    @Override
+    public IR.Node visitBinary(final BinaryContext ctx) {
+        final ExpressionMetadata binaryemd = adapter.getExpressionMetadata(ctx);
+        final IR.Expression left = expression(ctx.expression(0));
+        final IR.Expression right = expression(ctx.expression(1));
+        final int token;
+
+        if      (ctx.MUL()   != null) token = MUL;
+        else if (ctx.DIV()   != null) token = DIV;
+        else if (ctx.REM()   != null) token = REM;
+        else if (ctx.ADD()   != null) token = ADD;
+        else if (ctx.SUB()   != null) token = SUB;
+        else if (ctx.LSH()   != null) token = LSH;
+        else if (ctx.USH()   != null) token = USH;
+        else if (ctx.RSH()   != null) token = RSH;
+        else if (ctx.BWAND() != null) token = BWAND;
+        else if (ctx.BWXOR() != null) token = BWXOR;
+        else if (ctx.BWOR()  != null) token = BWOR;
+        else {
+            throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+        }
+
+        return new IR.Binary(ctx, binaryemd.from, token, left, right);
+    }
+
+    @Override
+    public IR.Node visitComp(final CompContext ctx) {
+        final ExpressionMetadata compemd = adapter.getExpressionMetadata(ctx);
+        final ExpressionContext exprctx0 = ctx.expression(0);
+        final ExpressionContext exprctx1 = ctx.expression(1);
+        final ExpressionMetadata expremd0 = adapter.getExpressionMetadata(exprctx0);
+        final ExpressionMetadata expremd1 = adapter.getExpressionMetadata(exprctx1);
+
+        final IR.Expression left = expremd0.isNull ? new IR.Null(exprctx0, expremd0.to) : expression(exprctx0);
+        final IR.Expression right = expremd1.isNull ? new IR.Null(exprctx1, expremd1.to) : expression(exprctx1);
+        final int token;
+
+        if      (ctx.EQ()  != null) token = EQ;
+        else if (ctx.EQR() != null) token = EQR;
+        else if (ctx.NE()  != null) token = NE;
+        else if (ctx.NER() != null) token = NER;
+        else if (ctx.LT()  != null) token = LT;
+        else if (ctx.LTE() != null) token = LTE;
+        else if (ctx.GT()  != null) token = GT;
+        else if (ctx.GTE() != null) token = GTE;
+        else {
+            throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+        }
+
+        return new IR.Compare(ctx, compemd.from, token, expremd1.to, left, right);
+    }
+
+    @Override
+    public IR.Node visitBool(final BoolContext ctx) {
+        final ExpressionMetadata boolemd = adapter.getExpressionMetadata(ctx);
+        final IR.Expression left = expression(ctx.expression(0));
+        final IR.Expression right = expression(ctx.expression(1));
+
+        if (ctx.BOOLAND() != null) {
+            return new IR.Logical(ctx, boolemd.from, BOOLAND, left, right);
+        } else if (ctx.BOOLOR() != null) {
+            return new IR.Logical(ctx, boolemd.from, BOOLOR, left, right);
+        } else {
+            throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+        }
+    }
+
+    @Override
+    public IR.Node visitConditional(final ConditionalContext ctx) {
+        final ExpressionMetadata condemd = adapter.getExpressionMetadata(ctx);
+        final IR.Expression condition = expression(ctx.expression(0));
+        final IR.Expression left = expression(ctx.expression(1));
+        final IR.Expression right = expression(ctx.expression(2));
+
+        return new IR.Conditional(ctx, condemd.from, condition, left, right);
+    }
+
+    @Override
+    public IR.Node visitAssignment(final AssignmentContext ctx) {
+        return adapter.getExternal(ctx).lower(this);
+    }
+
+    @Override
+    public IR.Node visitExtstart(final ExtstartContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitExtprec(final ExtprecContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitExtcast(final ExtcastContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitExtbrace(final ExtbraceContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitExtdot(final ExtdotContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitExttype(final ExttypeContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitExtcall(final ExtcallContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitExtmember(final ExtmemberContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitArguments(final ArgumentsContext ctx) {
+        throw new UnsupportedOperationException(error(ctx) + "Unexpected lowering state.");
+    }
+
+    @Override
+    public IR.Node visitIncrement(final IncrementContext ctx) {
+        throw new IllegalStateException(error(ctx) + "Unexpected lowering state.");
+    }
+}
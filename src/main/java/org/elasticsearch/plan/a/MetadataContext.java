@@ -0,0 +1,40 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+
+/**
+ * The super class of every generated parse tree node (set with the contextSuperClass grammar option), which
+ * holds the compile metadata for the node directly so the {@link Adapter} needs no maps keyed by node.
+ */
+class MetadataContext extends ParserRuleContext {
+    StatementMetadata statementMetadata;
+    ExpressionMetadata expressionMetadata;
+    External external;
+
+    MetadataContext() {}
+
+    MetadataContext(final ParserRuleContext parent, final int invokingState) {
+        super(parent, invokingState);
+    }
+}
@@ -0,0 +1,76 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the optimization passes over the {@link IR} of a script in a fixed order between lowering and
+ * writing.  Each pass has a name so it can be disabled through {@link CompilerSettings}, which allows a
+ * single pass to be ruled out when looking into a miscompile.
+ */
+final class PassManager {
+    abstract static class Pass {
+        final String name;
+
+        Pass(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * Rewrites the tree in place, so a pass may freely replace any node below the root block.  The stats
+         * are where a pass records what it did, or null if nothing is recorded.
+         */
+        abstract void run(final Adapter adapter, final IR.Block root, final CompilerStats stats);
+    }
+
+    static final List<Pass> PASSES = Collections.unmodifiableList(Arrays.<Pass>asList(
+        new ConstantPass(),
+        new DeadCodePass(),
+        new DocValuesPass(),
+        new LoopInvariantPass(),
+        new CommonSubexpressionPass(),
+        new StagingPass(),
+        new IncrementPass(),
+        new BindingPass()
+    ));
+
+    static Pass getPass(final String name) {
+        for (final Pass pass : PASSES) {
+            if (pass.name.equals(name)) {
+                return pass;
+            }
+        }
+
+        return null;
+    }
+
+    static void run(final Adapter adapter, final IR.Block root, final CompilerSettings settings) {
+        for (final Pass pass : PASSES) {
+            if (settings.isPassEnabled(pass.name)) {
+                pass.run(adapter, root, settings.getStats());
+            }
+        }
+    }
+
+    private PassManager() {}
+}
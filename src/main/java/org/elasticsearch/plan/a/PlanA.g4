@@ -1,5 +1,9 @@
 grammar PlanA;
 
+options {
+    contextSuperClass = MetadataContext;
+}
+
 @parser::header {
     import java.util.Set;
 }
@@ -92,5 +92,19 @@ public final class PlanA {
         return Compiler.compile(name, source, parent, properties);
     }
 
+    /** Compiles the source with the typed parameters of the schema declared as variables of the script. */
+    public static Executable compile(String name, String source, ClassLoader parent, Properties properties, Schema schema) {
+        return Compiler.compile(name, source, parent, properties, new CompilerSettings().setSchema(schema));
+    }
+
+    /** Compiles the sources, keyed by the names of their scripts, together into a single class. */
+    public static Map<String, Executable> compileAll(Map<String, String> sources) {
+        return compileAll(sources, PlanA.class.getClassLoader(), null);
+    }
+
+    public static Map<String, Executable> compileAll(Map<String, String> sources, ClassLoader parent, Properties properties) {
+        return Compiler.compileAll(sources, parent, properties, new CompilerSettings());
+    }
+
     private PlanA() {}
 }
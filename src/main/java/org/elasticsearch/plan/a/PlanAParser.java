@@ -125,7 +125,7 @@ class PlanAParser extends Parser {
     super(input);
     _interp = new ParserATNSimulator(this,_ATN,_decisionToDFA,_sharedContextCache);
   }
-  public static class SourceContext extends ParserRuleContext {
+  public static class SourceContext extends MetadataContext {
     public TerminalNode EOF() { return getToken(PlanAParser.EOF, 0); }
     public List<StatementContext> statement() {
       return getRuleContexts(StatementContext.class);
@@ -186,7 +186,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class StatementContext extends ParserRuleContext {
+  public static class StatementContext extends MetadataContext {
     public StatementContext(ParserRuleContext parent, int invokingState) {
       super(parent, invokingState);
     }
@@ -550,7 +550,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class BlockContext extends ParserRuleContext {
+  public static class BlockContext extends MetadataContext {
     public BlockContext(ParserRuleContext parent, int invokingState) {
       super(parent, invokingState);
     }
@@ -643,7 +643,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class EmptyContext extends ParserRuleContext {
+  public static class EmptyContext extends MetadataContext {
     public TerminalNode SEMICOLON() { return getToken(PlanAParser.SEMICOLON, 0); }
     public EmptyContext(ParserRuleContext parent, int invokingState) {
       super(parent, invokingState);
@@ -677,7 +677,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class DeclarationContext extends ParserRuleContext {
+  public static class DeclarationContext extends MetadataContext {
     public DecltypeContext decltype() {
       return getRuleContext(DecltypeContext.class,0);
     }
@@ -742,7 +742,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class DecltypeContext extends ParserRuleContext {
+  public static class DecltypeContext extends MetadataContext {
     public TerminalNode ID() { return getToken(PlanAParser.ID, 0); }
     public List<TerminalNode> LBRACE() { return getTokens(PlanAParser.LBRACE); }
     public TerminalNode LBRACE(int i) {
@@ -805,7 +805,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class DeclvarContext extends ParserRuleContext {
+  public static class DeclvarContext extends MetadataContext {
     public TerminalNode ID() { return getToken(PlanAParser.ID, 0); }
     public TerminalNode ASSIGN() { return getToken(PlanAParser.ASSIGN, 0); }
     public ExpressionContext expression() {
@@ -857,7 +857,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExpressionContext extends ParserRuleContext {
+  public static class ExpressionContext extends MetadataContext {
     public ExpressionContext(ParserRuleContext parent, int invokingState) {
       super(parent, invokingState);
     }
@@ -1506,7 +1506,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExtstartContext extends ParserRuleContext {
+  public static class ExtstartContext extends MetadataContext {
     public ExtprecContext extprec() {
       return getRuleContext(ExtprecContext.class,0);
     }
@@ -1577,7 +1577,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExtprecContext extends ParserRuleContext {
+  public static class ExtprecContext extends MetadataContext {
     public TerminalNode LP() { return getToken(PlanAParser.LP, 0); }
     public TerminalNode RP() { return getToken(PlanAParser.RP, 0); }
     public ExtprecContext extprec() {
@@ -1674,7 +1674,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExtcastContext extends ParserRuleContext {
+  public static class ExtcastContext extends MetadataContext {
     public TerminalNode LP() { return getToken(PlanAParser.LP, 0); }
     public DecltypeContext decltype() {
       return getRuleContext(DecltypeContext.class,0);
@@ -1755,7 +1755,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExtbraceContext extends ParserRuleContext {
+  public static class ExtbraceContext extends MetadataContext {
     public TerminalNode LBRACE() { return getToken(PlanAParser.LBRACE, 0); }
     public ExpressionContext expression() {
       return getRuleContext(ExpressionContext.class,0);
@@ -1818,7 +1818,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExtdotContext extends ParserRuleContext {
+  public static class ExtdotContext extends MetadataContext {
     public TerminalNode DOT() { return getToken(PlanAParser.DOT, 0); }
     public ExtcallContext extcall() {
       return getRuleContext(ExtcallContext.class,0);
@@ -1873,7 +1873,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExttypeContext extends ParserRuleContext {
+  public static class ExttypeContext extends MetadataContext {
     public TerminalNode ID() { return getToken(PlanAParser.ID, 0); }
     public ExtdotContext extdot() {
       return getRuleContext(ExtdotContext.class,0);
@@ -1914,7 +1914,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExtcallContext extends ParserRuleContext {
+  public static class ExtcallContext extends MetadataContext {
     public TerminalNode ID() { return getToken(PlanAParser.ID, 0); }
     public ArgumentsContext arguments() {
       return getRuleContext(ArgumentsContext.class,0);
@@ -1974,7 +1974,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ExtmemberContext extends ParserRuleContext {
+  public static class ExtmemberContext extends MetadataContext {
     public TerminalNode ID() { return getToken(PlanAParser.ID, 0); }
     public ExtdotContext extdot() {
       return getRuleContext(ExtdotContext.class,0);
@@ -2031,7 +2031,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class ArgumentsContext extends ParserRuleContext {
+  public static class ArgumentsContext extends MetadataContext {
     public TerminalNode LP() { return getToken(PlanAParser.LP, 0); }
     public TerminalNode RP() { return getToken(PlanAParser.RP, 0); }
     public List<ExpressionContext> expression() {
@@ -2106,7 +2106,7 @@ class PlanAParser extends Parser {
     return _localctx;
   }
 
-  public static class IncrementContext extends ParserRuleContext {
+  public static class IncrementContext extends MetadataContext {
     public TerminalNode INCR() { return getToken(PlanAParser.INCR, 0); }
     public TerminalNode DECR() { return getToken(PlanAParser.DECR, 0); }
     public IncrementContext(ParserRuleContext parent, int invokingState) {
@@ -34,15 +34,85 @@ import org.elasticsearch.search.lookup.SearchLookup;
 import java.io.IOException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class PlanAScriptEngineService extends AbstractComponent implements ScriptEngineService {
 
     public static final String NAME = "plan-a";
 
+    /** maximum number of compiled scripts kept in the cache, 0 disables caching */
+    public static final String CACHE_MAX_SIZE_SETTING = "plan_a.cache.max_size";
+    public static final int DEFAULT_CACHE_MAX_SIZE = 1000;
+
+    /** whether to prime the shared parser prediction cache on startup */
+    public static final String PARSER_WARMUP_SETTING = "plan_a.parser.warmup";
+
+    /** which parser to use, either antlr (the default) or the hand-written descent parser */
+    public static final String PARSER_SETTING = "plan_a.parser";
+
+    /** names of the optimization passes to skip, all of them run by default */
+    public static final String PASSES_DISABLED_SETTING = "plan_a.passes.disabled";
+
+    /** number of runs after which an interpreted script has its class defined, 0 defines every class as it is compiled */
+    public static final String TIER_THRESHOLD_SETTING = "plan_a.tier.threshold";
+
+    /** number of scripts that share a class loader, 1 defines every script in a loader of its own */
+    public static final String LOADER_CAPACITY_SETTING = "plan_a.loader.capacity";
+
+    private final ScriptCache cache;
+    private final CompilerStats stats = new CompilerStats();
+    private final CompilerSettings compilerSettings;
+    private final ThreadPoolExecutor tiers;
+
     @Inject
     public PlanAScriptEngineService(Settings settings) {
         super(settings);
+
+        cache = new ScriptCache(settings.getAsInt(CACHE_MAX_SIZE_SETTING, DEFAULT_CACHE_MAX_SIZE));
+
+        final String parser = settings.get(PARSER_SETTING, "antlr");
+        final CompilerSettings.ParserType type;
+
+        try {
+            type = CompilerSettings.ParserType.valueOf(parser.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException("Unknown parser [" + parser + "] for setting [" + PARSER_SETTING + "].");
+        }
+
+        compilerSettings = new CompilerSettings().setParser(type).setStats(stats)
+                .setLoaderCapacity(settings.getAsInt(LOADER_CAPACITY_SETTING, LoaderPool.DEFAULT_CAPACITY));
+
+        for (final String pass : settings.getAsArray(PASSES_DISABLED_SETTING, new String[0])) {
+            compilerSettings.setPassEnabled(pass, false);
+        }
+
+        final int threshold = settings.getAsInt(TIER_THRESHOLD_SETTING, 0);
+
+        if (threshold > 0) {
+            // a single thread defines the classes of the scripts that run often, and exits when there are none
+            tiers = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "plan_a[tier]");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+            compilerSettings.setTiers(threshold, tiers);
+        } else {
+            tiers = null;
+        }
+
+        if (type == CompilerSettings.ParserType.ANTLR && settings.getAsBoolean(PARSER_WARMUP_SETTING, true)) {
+            Compiler.warmup();
+        }
     }
 
     @Override
@@ -67,31 +137,55 @@ public class PlanAScriptEngineService extends AbstractComponent implements Scrip
         if (sm != null) {
             sm.checkPermission(new SpecialPermission());
         }
-        return AccessController.doPrivileged(new PrivilegedAction<Executable>() {
+        return cache.compile(Default.DEFAULT_DEFINITION.fingerprint, script, new Callable<Executable>() {
             @Override
-            public Executable run() {
-                // NOTE: validation is delayed to allow runtime vars, and we don't have access to per index stuff here
-                return Compiler.compile("something", script, getClass().getClassLoader(), null);
+            public Executable call() {
+                return AccessController.doPrivileged(new PrivilegedAction<Executable>() {
+                    @Override
+                    public Executable run() {
+                        // NOTE: validation is delayed to allow runtime vars, and we don't have access to per index stuff here
+                        return Compiler.compile("something", script, getClass().getClassLoader(), null, compilerSettings);
+                    }
+                });
             }
         });
     }
 
+    /** Returns the compilation metrics for this engine. */
+    public CompilerStats stats() {
+        compilerSettings.getLoaders().expunge();
+
+        return stats;
+    }
+
+    /** Returns the cache of compiled scripts for this engine. */
+    ScriptCache getCache() {
+        return cache;
+    }
+
     @Override
     public ExecutableScript executable(CompiledScript compiledScript, Map<String,Object> vars) {
-        return new ScriptImpl((Executable) compiledScript.compiled(), vars, null);
+        final Executable executable = (Executable) compiledScript.compiled();
+
+        return new ScriptImpl(executable, vars, null, ScriptImpl.query(executable, vars));
     }
 
     @Override
     public SearchScript search(CompiledScript compiledScript, SearchLookup lookup, Map<String,Object> vars) {
+        final Executable executable = (Executable) compiledScript.compiled();
+        // the values that depend only on the parameters are computed once and shared by every segment
+        final Object[] query = ScriptImpl.query(executable, vars);
+
         return new SearchScript() {
             @Override
             public LeafSearchScript getLeafSearchScript(LeafReaderContext context) throws IOException {
-                return new ScriptImpl((Executable) compiledScript.compiled(), vars, lookup.getLeafSearchLookup(context));
+                return new ScriptImpl(executable, vars, lookup.getLeafSearchLookup(context), query);
             }
 
             @Override
             public boolean needsScores() {
-                return true; // TODO: maybe even do these different and more like expressions.
+                // only a script that can reach _score through its input needs the scorer to compute scores
+                return executable.needsScores();
             }
         };
     }
@@ -103,6 +197,10 @@ public class PlanAScriptEngineService extends AbstractComponent implements Scrip
 
     @Override
     public void close() throws IOException {
-        // nothing to do
+        cache.clear();
+
+        if (tiers != null) {
+            tiers.shutdownNow();
+        }
     }
 }
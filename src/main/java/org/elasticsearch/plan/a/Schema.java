@@ -0,0 +1,84 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The typed parameters of a script, such as {@code double _score} or {@code double[] weights}.  Each parameter is
+ * declared as a variable of its type before the first statement of the script, with its value read once from
+ * the input of the same name, so the script uses it without reading the input map or casting the value itself.
+ * A parameter read as a number is bound to a slot of {@link Bindings}, and when it is set as a primitive with
+ * {@link Bindings#setDouble} or {@link Bindings#setLong} it is read without boxing.  Every parameter must be set
+ * in the input unless its type is an object.
+ */
+public final class Schema {
+    private static final Pattern NAME = Pattern.compile("[_a-zA-Z][_a-zA-Z0-9]*");
+    private static final Pattern TYPE = Pattern.compile("[_a-zA-Z][_a-zA-Z0-9]*(\\[\\])*");
+
+    /**
+     * Parses parameters declared the way a script declares variables, separated by commas, such as
+     * {@code "double _score, long timestamp, double[] weights"}.
+     */
+    public static Schema parse(final String declarations) {
+        final Schema schema = new Schema();
+
+        for (final String declaration : declarations.split(",")) {
+            final String[] parts = declaration.trim().split("\\s+");
+
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Parameter [" + declaration.trim() + "] must be a type and a name.");
+            }
+
+            schema.add(parts[0], parts[1]);
+        }
+
+        return schema;
+    }
+
+    private final Map<String, String> parameters = new LinkedHashMap<>();
+
+    /** Adds a parameter with the name of a type of the definition, such as {@code long} or {@code double[]}. */
+    public Schema add(final String type, final String name) {
+        if (!TYPE.matcher(type).matches()) {
+            throw new IllegalArgumentException("Parameter [" + name + "] has an invalid type [" + type + "].");
+        }
+
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Parameter name [" + name + "] is not a valid variable name.");
+        }
+
+        if (parameters.containsKey(name)) {
+            throw new IllegalArgumentException("Parameter name [" + name + "] is already defined.");
+        }
+
+        parameters.put(name, type);
+
+        return this;
+    }
+
+    /** Returns the name of the type of each parameter by the name of the parameter, in the order they were added. */
+    Map<String, String> getParameters() {
+        return Collections.unmodifiableMap(parameters);
+    }
+}
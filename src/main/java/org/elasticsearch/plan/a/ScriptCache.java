@@ -0,0 +1,209 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of compiled scripts keyed by the source text and the fingerprint of the
+ * {@link Definition} the script was compiled against.  Eviction is least-recently-used.  Concurrent
+ * requests for the same key share a single compilation; failed compilations are not cached.
+ *
+ * A lookup that hits takes no lock; it only stamps the entry with the time it was last used.  Only a miss
+ * takes the eviction lock, and scans the entries for the oldest stamp while the cache is over its size.
+ * That scan is linear in the size of the cache, which is small next to the compilation a miss already pays for.
+ */
+final class ScriptCache {
+    private static final class Key {
+        final String fingerprint;
+        final String source;
+
+        Key(final String fingerprint, final String source) {
+            this.fingerprint = fingerprint;
+            this.source = source;
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (this == object) {
+                return true;
+            }
+
+            if (object == null || getClass() != object.getClass()) {
+                return false;
+            }
+
+            final Key key = (Key)object;
+
+            return source.equals(key.source) &&
+                    (fingerprint == null ? key.fingerprint == null : fingerprint.equals(key.fingerprint));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (fingerprint == null ? 0 : fingerprint.hashCode()) + source.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        final FutureTask<Executable> task;
+        volatile long used;
+
+        Entry(final FutureTask<Executable> task) {
+            this.task = task;
+        }
+    }
+
+    private final int maxSize;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final Object eviction = new Object();
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    ScriptCache(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("The script cache size [" + maxSize + "] cannot be negative.");
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached {@link Executable} for the source, or runs {@code compiler} to create one.  Only
+     * the first caller for a key compiles; any concurrent callers for the same key wait on that result.
+     */
+    Executable compile(final String fingerprint, final String source, final Callable<Executable> compiler) {
+        if (maxSize == 0) {
+            misses.incrementAndGet();
+
+            return call(compiler);
+        }
+
+        final Key key = new Key(fingerprint, source);
+        Entry entry = entries.get(key);
+        boolean owner = false;
+
+        if (entry == null) {
+            final Entry created = new Entry(new FutureTask<>(compiler));
+            entry = entries.putIfAbsent(key, created);
+
+            if (entry == null) {
+                entry = created;
+                owner = true;
+            }
+        }
+
+        entry.used = clock.incrementAndGet();
+
+        if (owner) {
+            misses.incrementAndGet();
+            evict();
+            entry.task.run();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        try {
+            return entry.task.get();
+        } catch (final ExecutionException exception) {
+            entries.remove(key, entry);
+
+            throw rethrow(exception.getCause());
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Interrupted while waiting for the script to compile.", exception);
+        }
+    }
+
+    /** Removes the least recently used entries until the cache is within its size. */
+    private void evict() {
+        synchronized (eviction) {
+            while (entries.size() > maxSize) {
+                Map.Entry<Key, Entry> eldest = null;
+
+                for (final Map.Entry<Key, Entry> entry : entries.entrySet()) {
+                    if (eldest == null || entry.getValue().used < eldest.getValue().used) {
+                        eldest = entry;
+                    }
+                }
+
+                if (eldest == null) {
+                    break;
+                }
+
+                if (entries.remove(eldest.getKey(), eldest.getValue())) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static Executable call(final Callable<Executable> compiler) {
+        try {
+            return compiler.call();
+        } catch (final Exception exception) {
+            throw rethrow(exception);
+        }
+    }
+
+    private static RuntimeException rethrow(final Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+            throw (Error)cause;
+        }
+
+        throw new IllegalStateException("An internal error occurred attempting to compile the script.", cause);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+}
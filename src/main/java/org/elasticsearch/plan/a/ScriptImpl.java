@@ -25,49 +25,84 @@ import org.elasticsearch.script.LeafSearchScript;
 import org.elasticsearch.script.ScoreAccessor;
 import org.elasticsearch.search.lookup.LeafSearchLookup;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-final class ScriptImpl implements ExecutableScript, LeafSearchScript {
+final class ScriptImpl implements ExecutableScript, LeafSearchScript, BatchLeafSearchScript {
     final Executable executable;
     final Map<String,Object> variables;
     final LeafSearchLookup lookup;
+
+    /** the values computed once for the query and segment, or null if the script computes them itself */
+    private Object[] values;
     
-    ScriptImpl(Executable executable, Map<String,Object> vars, LeafSearchLookup lookup) {
+    ScriptImpl(Executable executable, Map<String,Object> vars, LeafSearchLookup lookup, Object[] query) {
         this.executable = executable;
         this.lookup = lookup;
-        this.variables = new HashMap<>();
+        final Map<String,Integer> bindings = executable.getBindings();
+        this.variables = bindings == null ? new HashMap<String,Object>() : new Bindings(bindings, executable.getFields());
         if (vars != null) {
             variables.putAll(vars);
         }
         if (lookup != null) {
             variables.putAll(lookup.asMap());
+            final Object doc = lookup.asMap().get("doc");
+            if (variables instanceof Bindings && doc instanceof Map) {
+                ((Bindings) variables).bindFields((Map<?,?>) doc);
+            }
+        }
+        if (query != null) {
+            try {
+                values = executable.segment(variables, query);
+            } catch (RuntimeException exception) {
+                // the script fails the same way when it is run, if it ever reaches the value that failed
+                values = null;
+            }
+        }
+    }
+
+    /** Computes the values of the script that are the same for the whole query, or returns null if there are none. */
+    static Object[] query(Executable executable, Map<String,Object> vars) {
+        try {
+            return executable.query(vars == null ? Collections.<String,Object>emptyMap() : vars);
+        } catch (RuntimeException exception) {
+            // the script fails the same way when it is run, if it ever reaches the value that failed
+            return null;
         }
     }
     
     @Override
     public void setNextVar(String name, Object value) {
         variables.put(name, value);
+        if (executable.isStaged(name)) {
+            values = null;
+        }
     }
     
     @Override
     public Object run() {
-        return executable.execute(variables);
+        return executable.execute(variables, values);
     }
     
     @Override
     public float runAsFloat() {
-        return ((Number) run()).floatValue();
+        return executable.executeAsFloat(variables, values);
     }
 
     @Override
     public long runAsLong() {
-        return ((Number) run()).longValue();
+        return executable.executeAsLong(variables, values);
     }
 
     @Override
     public double runAsDouble() {
-        return ((Number) run()).doubleValue();
+        return executable.executeAsDouble(variables, values);
+    }
+    
+    @Override
+    public void runAsDoubles(int[] docs, int count, double[] out) {
+        executable.executeAsDoubles(variables, values, this, docs, count, out);
     }
     
     @Override
@@ -77,13 +112,18 @@ final class ScriptImpl implements ExecutableScript, LeafSearchScript {
 
     @Override
     public void setScorer(Scorer scorer) {
-        variables.put("_score", new ScoreAccessor(scorer));
+        if (executable.needsScores()) {
+            variables.put("_score", new ScoreAccessor(scorer));
+        }
     }
 
     @Override
     public void setDocument(int doc) {
         if (lookup != null) {
             lookup.setDocument(doc);
+            if (variables instanceof Bindings) {
+                ((Bindings) variables).setDocument(doc);
+            }
         }
     }
 
@@ -0,0 +1,428 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * A hand-written lexer for the PlanA grammar.  It produces the same token types as {@link PlanALexer},
+ * including the longest match rule with ties going to the earlier lexer rule, but reads directly from the
+ * source string and produces the complete list of tokens ending with {@link Token#EOF} in a single pass.
+ */
+final class ScriptLexer {
+    private static final Map<String, Integer> KEYWORDS = new HashMap<>();
+
+    static {
+        KEYWORDS.put("if", IF);
+        KEYWORDS.put("else", ELSE);
+        KEYWORDS.put("while", WHILE);
+        KEYWORDS.put("do", DO);
+        KEYWORDS.put("for", FOR);
+        KEYWORDS.put("continue", CONTINUE);
+        KEYWORDS.put("break", BREAK);
+        KEYWORDS.put("return", RETURN);
+        KEYWORDS.put("true", TRUE);
+        KEYWORDS.put("false", FALSE);
+        KEYWORDS.put("null", NULL);
+        KEYWORDS.put("void", VOID);
+    }
+
+    static List<Token> tokenize(final String source) {
+        return new ScriptLexer(source).tokenize();
+    }
+
+    private final String source;
+    private final int length;
+    private final List<Token> tokens;
+
+    private int line = 1;
+    private int column = 0;
+
+    private ScriptLexer(final String source) {
+        this.source = source;
+        this.length = source.length();
+        this.tokens = new ArrayList<>(Math.max(16, length / 3));
+    }
+
+    private List<Token> tokenize() {
+        int index = 0;
+
+        while (index < length) {
+            final char current = source.charAt(index);
+
+            if (current == ' ' || current == '\t' || current == '\r') {
+                ++index;
+                ++column;
+            } else if (current == '\n') {
+                ++index;
+                ++line;
+                column = 0;
+            } else {
+                index = token(index, current);
+            }
+        }
+
+        final CommonToken eof = new CommonToken(Token.EOF, "<EOF>");
+        eof.setLine(line);
+        eof.setCharPositionInLine(column);
+        eof.setStartIndex(length);
+        eof.setStopIndex(length - 1);
+        eof.setTokenIndex(tokens.size());
+        tokens.add(eof);
+
+        return tokens;
+    }
+
+    private int token(final int start, final char current) {
+        if (current == '_' || current >= 'a' && current <= 'z' || current >= 'A' && current <= 'Z') {
+            int end = start + 1;
+
+            while (end < length && isIdentifierPart(source.charAt(end))) {
+                ++end;
+            }
+
+            final String text = source.substring(start, end);
+            final Integer keyword = KEYWORDS.get(text);
+
+            return emit(keyword == null ? ID : keyword, start, end, text);
+        } else if (current >= '0' && current <= '9' || current == '.' && isDigit(start + 1)) {
+            return number(start);
+        } else if (current == '"') {
+            return string(start);
+        } else if (current == '\'') {
+            if (start + 2 < length && source.charAt(start + 2) == '\'') {
+                return emit(CHAR, start, start + 3, null);
+            }
+
+            throw error(start);
+        }
+
+        switch (current) {
+            case '{': return emit(LBRACK, start, start + 1, "{");
+            case '}': return emit(RBRACK, start, start + 1, "}");
+            case '[': return emit(LBRACE, start, start + 1, "[");
+            case ']': return emit(RBRACE, start, start + 1, "]");
+            case '(': return emit(LP, start, start + 1, "(");
+            case ')': return emit(RP, start, start + 1, ")");
+            case ',': return emit(COMMA, start, start + 1, ",");
+            case ';': return emit(SEMICOLON, start, start + 1, ";");
+            case '~': return emit(BWNOT, start, start + 1, "~");
+            case '?': return emit(COND, start, start + 1, "?");
+            case ':': return emit(COLON, start, start + 1, ":");
+            case '.':
+                if (matches(start + 1, '.')) {
+                    return matches(start + 2, '=') ? emit(ACAT, start, start + 3, "..=") : emit(CAT, start, start + 2, "..");
+                }
+
+                return emit(DOT, start, start + 1, ".");
+            case '!':
+                if (matches(start + 1, '=')) {
+                    return matches(start + 2, '=') ? emit(NER, start, start + 3, "!==") : emit(NE, start, start + 2, "!=");
+                }
+
+                return emit(BOOLNOT, start, start + 1, "!");
+            case '=':
+                if (matches(start + 1, '=')) {
+                    return matches(start + 2, '=') ? emit(EQR, start, start + 3, "===") : emit(EQ, start, start + 2, "==");
+                }
+
+                return emit(ASSIGN, start, start + 1, "=");
+            case '*': return operator(start, MUL, "*", AMUL, "*=");
+            case '/': return operator(start, DIV, "/", ADIV, "/=");
+            case '%': return operator(start, REM, "%", AREM, "%=");
+            case '^': return operator(start, BWXOR, "^", AXOR, "^=");
+            case '+':
+                if (matches(start + 1, '+')) {
+                    return emit(INCR, start, start + 2, "++");
+                }
+
+                return operator(start, ADD, "+", AADD, "+=");
+            case '-':
+                if (matches(start + 1, '-')) {
+                    return emit(DECR, start, start + 2, "--");
+                }
+
+                return operator(start, SUB, "-", ASUB, "-=");
+            case '&':
+                if (matches(start + 1, '&')) {
+                    return emit(BOOLAND, start, start + 2, "&&");
+                }
+
+                return operator(start, BWAND, "&", AAND, "&=");
+            case '|':
+                if (matches(start + 1, '|')) {
+                    return emit(BOOLOR, start, start + 2, "||");
+                }
+
+                return operator(start, BWOR, "|", AOR, "|=");
+            case '<':
+                if (matches(start + 1, '<')) {
+                    return matches(start + 2, '=') ? emit(ALSH, start, start + 3, "<<=") : emit(LSH, start, start + 2, "<<");
+                }
+
+                return operator(start, LT, "<", LTE, "<=");
+            case '>':
+                if (matches(start + 1, '>')) {
+                    if (matches(start + 2, '>')) {
+                        return matches(start + 3, '=') ?
+                                emit(AUSH, start, start + 4, ">>>=") : emit(USH, start, start + 3, ">>>");
+                    }
+
+                    return matches(start + 2, '=') ? emit(ARSH, start, start + 3, ">>=") : emit(RSH, start, start + 2, ">>");
+                }
+
+                return operator(start, GT, ">", GTE, ">=");
+            default:
+                throw error(start);
+        }
+    }
+
+    private int operator(final int start, final int single, final String stext, final int assign, final String atext) {
+        return matches(start + 1, '=') ? emit(assign, start, start + 2, atext) : emit(single, start, start + 1, stext);
+    }
+
+    /**
+     * Finds the longest match of each of the numeric rules at the start index and emits the longest one, with
+     * ties going to the rule declared first in the grammar (OCTAL, HEX, INTEGER, DECIMAL).
+     */
+    private int number(final int start) {
+        final int octal = octal(start);
+        final int hex = hex(start);
+        final int integer = integer(start);
+        final int decimal = decimal(start);
+
+        int type = OCTAL;
+        int end = octal;
+
+        if (hex > end) {
+            type = HEX;
+            end = hex;
+        }
+
+        if (integer > end) {
+            type = INTEGER;
+            end = integer;
+        }
+
+        if (decimal > end) {
+            type = DECIMAL;
+            end = decimal;
+        }
+
+        if (end == -1) {
+            throw error(start);
+        }
+
+        return emit(type, start, end, null);
+    }
+
+    private int octal(final int start) {
+        if (!matches(start, '0') || !isOctalDigit(start + 1)) {
+            return -1;
+        }
+
+        int end = start + 1;
+
+        while (isOctalDigit(end)) {
+            ++end;
+        }
+
+        return suffix(end, 'l', 'L');
+    }
+
+    private int hex(final int start) {
+        if (!matches(start, '0') || !(matches(start + 1, 'x') || matches(start + 1, 'X')) || !isHexDigit(start + 2)) {
+            return -1;
+        }
+
+        int end = start + 2;
+
+        while (isHexDigit(end)) {
+            ++end;
+        }
+
+        return suffix(end, 'l', 'L');
+    }
+
+    private int integer(final int start) {
+        final int end = whole(start);
+
+        return end == -1 ? -1 : suffix(end, 'l', 'L');
+    }
+
+    private int decimal(final int start) {
+        int end = whole(start);
+
+        if (end == -1) {
+            if (!matches(start, '.') || !isDigit(start + 1)) {
+                return -1;
+            }
+
+            end = start + 1;
+
+            while (isDigit(end)) {
+                ++end;
+            }
+        } else if (matches(end, '.')) {
+            ++end;
+
+            while (isDigit(end)) {
+                ++end;
+            }
+        }
+
+        if (matches(end, 'e') || matches(end, 'E')) {
+            int exponent = end + 1;
+
+            if (matches(exponent, '+') || matches(exponent, '-')) {
+                ++exponent;
+            }
+
+            if (isDigit(exponent)) {
+                while (isDigit(exponent)) {
+                    ++exponent;
+                }
+
+                end = exponent;
+            }
+        }
+
+        return suffix(end, 'f', 'F');
+    }
+
+    /** Matches ( '0' | [1-9] [0-9]* ) returning the end index or -1. */
+    private int whole(final int start) {
+        if (matches(start, '0')) {
+            return start + 1;
+        } else if (!isDigit(start)) {
+            return -1;
+        }
+
+        int end = start + 1;
+
+        while (isDigit(end)) {
+            ++end;
+        }
+
+        return end;
+    }
+
+    private int suffix(final int end, final char lower, final char upper) {
+        return matches(end, lower) || matches(end, upper) ? end + 1 : end;
+    }
+
+    private int string(final int start) {
+        int end = start + 1;
+
+        while (end < length) {
+            final char current = source.charAt(end);
+
+            if (current == '"') {
+                return emit(STRING, start, end + 1, null);
+            } else if (current == '\\') {
+                if (!matches(end + 1, '"') && !matches(end + 1, '\\')) {
+                    throw error(start);
+                }
+
+                end += 2;
+            } else {
+                ++end;
+            }
+        }
+
+        throw error(start);
+    }
+
+    private int emit(final int type, final int start, final int end, final String text) {
+        final CommonToken token = new CommonToken(type, text == null ? source.substring(start, end) : text);
+        token.setLine(line);
+        token.setCharPositionInLine(column);
+        token.setStartIndex(start);
+        token.setStopIndex(end - 1);
+        token.setTokenIndex(tokens.size());
+        tokens.add(token);
+
+        for (int index = start; index < end; ++index) {
+            if (source.charAt(index) == '\n') {
+                ++line;
+                column = 0;
+            } else {
+                ++column;
+            }
+        }
+
+        return end;
+    }
+
+    private boolean matches(final int index, final char expected) {
+        return index < length && source.charAt(index) == expected;
+    }
+
+    private boolean isDigit(final int index) {
+        if (index >= length) {
+            return false;
+        }
+
+        final char current = source.charAt(index);
+
+        return current >= '0' && current <= '9';
+    }
+
+    private boolean isOctalDigit(final int index) {
+        if (index >= length) {
+            return false;
+        }
+
+        final char current = source.charAt(index);
+
+        return current >= '0' && current <= '7';
+    }
+
+    private boolean isHexDigit(final int index) {
+        if (index >= length) {
+            return false;
+        }
+
+        final char current = source.charAt(index);
+
+        return current >= '0' && current <= '9' || current >= 'a' && current <= 'f' || current >= 'A' && current <= 'F';
+    }
+
+    private static boolean isIdentifierPart(final char current) {
+        return current == '_' || current >= 'a' && current <= 'z' ||
+                current >= 'A' && current <= 'Z' || current >= '0' && current <= '9';
+    }
+
+    private RuntimeException error(final int index) {
+        final String character = index < length ? String.valueOf(source.charAt(index)) : "<EOF>";
+
+        return new RuntimeException(new ParseException("Error [" + line + ":" + column + "]: unexpected character [" +
+                character + "].", index));
+    }
+}
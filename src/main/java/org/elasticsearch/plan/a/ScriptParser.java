@@ -0,0 +1,742 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.text.ParseException;
+import java.util.List;
+import java.util.Set;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * A hand-written recursive descent parser for the PlanA grammar.  It builds the same parse tree as
+ * {@link PlanAParser} using the generated context classes, so the {@link Analyzer} and {@link Writer}
+ * work with either one.  Where the grammar is ambiguous the alternative ANTLR would choose is used, which is
+ * always the earliest alternative in the generated expression rule (unary, cast, assignment, precedence, ...).
+ * Any change to PlanA.g4 must be made here as well; ParserTests compares the two parsers.
+ */
+final class ScriptParser {
+    static SourceContext parse(final String source, final Set<String> types) {
+        return new ScriptParser(ScriptLexer.tokenize(source), types).source();
+    }
+
+    private final List<Token> tokens;
+    private final Set<String> types;
+    private final int eof;
+
+    /** Lazily computed index of the matching right parenthesis for each left parenthesis. */
+    private int[] matching = null;
+    private int index = 0;
+
+    private ScriptParser(final List<Token> tokens, final Set<String> types) {
+        this.tokens = tokens;
+        this.types = types;
+        this.eof = tokens.size() - 1;
+    }
+
+    private SourceContext source() {
+        final SourceContext ctx = enter(null, new SourceContext(null, -1));
+
+        do {
+            statement(ctx);
+        } while (la(1) != EOF);
+
+        addToken(ctx, tokens.get(eof));
+
+        return exit(ctx);
+    }
+
+    private void statement(final ParserRuleContext parent) {
+        final StatementContext base = new StatementContext(parent, 0);
+
+        switch (la(1)) {
+            case IF: {
+                final IfContext ctx = enter(parent, new IfContext(base));
+                match(ctx, IF);
+                match(ctx, LP);
+                expression(ctx, 0);
+                match(ctx, RP);
+                block(ctx);
+
+                if (la(1) == ELSE) {
+                    match(ctx, ELSE);
+                    block(ctx);
+                }
+
+                exit(ctx);
+
+                return;
+            }
+            case WHILE: {
+                final WhileContext ctx = enter(parent, new WhileContext(base));
+                match(ctx, WHILE);
+                match(ctx, LP);
+                expression(ctx, 0);
+                match(ctx, RP);
+                body(ctx);
+                exit(ctx);
+
+                return;
+            }
+            case DO: {
+                final DoContext ctx = enter(parent, new DoContext(base));
+                match(ctx, DO);
+                block(ctx);
+                match(ctx, WHILE);
+                match(ctx, LP);
+                expression(ctx, 0);
+                match(ctx, RP);
+                match(ctx, SEMICOLON);
+                exit(ctx);
+
+                return;
+            }
+            case FOR: {
+                final ForContext ctx = enter(parent, new ForContext(base));
+                match(ctx, FOR);
+                match(ctx, LP);
+
+                if (la(1) != SEMICOLON) {
+                    declaration(ctx);
+                }
+
+                match(ctx, SEMICOLON);
+
+                if (la(1) != SEMICOLON) {
+                    expression(ctx, 0);
+                }
+
+                match(ctx, SEMICOLON);
+
+                if (la(1) != RP) {
+                    expression(ctx, 0);
+                }
+
+                match(ctx, RP);
+                body(ctx);
+                exit(ctx);
+
+                return;
+            }
+            case CONTINUE: {
+                final ContinueContext ctx = enter(parent, new ContinueContext(base));
+                match(ctx, CONTINUE);
+                match(ctx, SEMICOLON);
+                exit(ctx);
+
+                return;
+            }
+            case BREAK: {
+                final BreakContext ctx = enter(parent, new BreakContext(base));
+                match(ctx, BREAK);
+                match(ctx, SEMICOLON);
+                exit(ctx);
+
+                return;
+            }
+            case RETURN: {
+                final ReturnContext ctx = enter(parent, new ReturnContext(base));
+                match(ctx, RETURN);
+                expression(ctx, 0);
+                match(ctx, SEMICOLON);
+                exit(ctx);
+
+                return;
+            }
+            case ID:
+                if (isType(index) && (la(2) == ID || la(2) == LBRACE)) {
+                    final DeclContext ctx = enter(parent, new DeclContext(base));
+                    declaration(ctx);
+                    match(ctx, SEMICOLON);
+                    exit(ctx);
+
+                    return;
+                }
+
+                expr(parent, base);
+
+                return;
+            default:
+                if (!isExpressionStart(la(1))) {
+                    throw noViableAlternative();
+                }
+
+                expr(parent, base);
+        }
+    }
+
+    private void expr(final ParserRuleContext parent, final StatementContext base) {
+        final ExprContext ctx = enter(parent, new ExprContext(base));
+        expression(ctx, 0);
+        match(ctx, SEMICOLON);
+        exit(ctx);
+    }
+
+    private void block(final ParserRuleContext parent) {
+        final BlockContext base = new BlockContext(parent, 0);
+
+        if (la(1) == LBRACK) {
+            final MultipleContext ctx = enter(parent, new MultipleContext(base));
+            match(ctx, LBRACK);
+
+            while (la(1) != RBRACK) {
+                statement(ctx);
+            }
+
+            match(ctx, RBRACK);
+            exit(ctx);
+        } else {
+            final SingleContext ctx = enter(parent, new SingleContext(base));
+            statement(ctx);
+            exit(ctx);
+        }
+    }
+
+    /** Matches the ( block | empty ) body of a while or for loop. */
+    private void body(final ParserRuleContext parent) {
+        if (la(1) == SEMICOLON) {
+            final EmptyContext ctx = enter(parent, new EmptyContext(parent, 0));
+            match(ctx, SEMICOLON);
+            exit(ctx);
+        } else {
+            block(parent);
+        }
+    }
+
+    private void declaration(final ParserRuleContext parent) {
+        final DeclarationContext ctx = enter(parent, new DeclarationContext(parent, 0));
+        decltype(ctx);
+        declvar(ctx);
+
+        while (la(1) == COMMA) {
+            match(ctx, COMMA);
+            declvar(ctx);
+        }
+
+        exit(ctx);
+    }
+
+    private void decltype(final ParserRuleContext parent) {
+        final DecltypeContext ctx = enter(parent, new DecltypeContext(parent, 0));
+
+        if (!isType(index)) {
+            throw failedPredicate();
+        }
+
+        match(ctx, ID);
+
+        while (la(1) == LBRACE) {
+            match(ctx, LBRACE);
+            match(ctx, RBRACE);
+        }
+
+        exit(ctx);
+    }
+
+    private void declvar(final ParserRuleContext parent) {
+        final DeclvarContext ctx = enter(parent, new DeclvarContext(parent, 0));
+
+        if (la(1) == ID && isType(index)) {
+            throw failedPredicate();
+        }
+
+        match(ctx, ID);
+
+        if (la(1) == ASSIGN) {
+            match(ctx, ASSIGN);
+            expression(ctx, 0);
+        }
+
+        exit(ctx);
+    }
+
+    /**
+     * Matches an expression using precedence climbing.  Operators with a precedence lower than the
+     * minimum are left for the caller, which mirrors the precedence predicates ANTLR generates for the
+     * left-recursive expression rule.  The result is added to the parent once the rule is complete.
+     */
+    private ExpressionContext expression(final ParserRuleContext parent, final int minimum) {
+        ExpressionContext ctx = primary(parent);
+
+        while (true) {
+            final int type = la(1);
+            final int precedence = precedence(type);
+
+            if (precedence < minimum) {
+                break;
+            }
+
+            final ExpressionContext base = new ExpressionContext(parent, 0);
+            final ExpressionContext binary;
+
+            if (type == CAT) {
+                binary = new CatContext(base);
+            } else if (type == COND) {
+                binary = new ConditionalContext(base);
+            } else if (type == BOOLAND || type == BOOLOR) {
+                binary = new BoolContext(base);
+            } else if (type >= LT && type <= NER) {
+                binary = new CompContext(base);
+            } else {
+                binary = new BinaryContext(base);
+            }
+
+            binary.start = ctx.start;
+            add(binary, ctx);
+            consume(binary);
+
+            if (type == COND) {
+                expression(binary, 0);
+                match(binary, COLON);
+                expression(binary, precedence);
+            } else {
+                expression(binary, precedence + 1);
+            }
+
+            ctx = exit(binary);
+        }
+
+        if (parent != null) {
+            parent.addChild(ctx);
+        }
+
+        return ctx;
+    }
+
+    private ExpressionContext primary(final ParserRuleContext parent) {
+        final ExpressionContext base = new ExpressionContext(parent, 0);
+        base.start = tokens.get(index);
+
+        switch (la(1)) {
+            case BOOLNOT:
+            case BWNOT:
+            case ADD:
+            case SUB: {
+                final UnaryContext ctx = new UnaryContext(base);
+                consume(ctx);
+                expression(ctx, 15);
+
+                return exit(ctx);
+            }
+            case OCTAL:
+            case HEX:
+            case INTEGER:
+            case DECIMAL:
+                return terminal(new NumericContext(base));
+            case STRING:
+                return terminal(new StringContext(base));
+            case CHAR:
+                return terminal(new CharContext(base));
+            case TRUE:
+                return terminal(new TrueContext(base));
+            case FALSE:
+                return terminal(new FalseContext(base));
+            case NULL:
+                return terminal(new NullContext(base));
+            case INCR:
+            case DECR: {
+                final PreincContext ctx = new PreincContext(base);
+                increment(ctx);
+                extstart(ctx);
+
+                return exit(ctx);
+            }
+            case LP:
+                if (isCast(index)) {
+                    final CastContext ctx = new CastContext(base);
+                    match(ctx, LP);
+                    decltype(ctx);
+                    match(ctx, RP);
+                    expression(ctx, 14);
+
+                    return exit(ctx);
+                } else if (la(2) == ID && la(3) == RP && (la(4) == ADD || la(4) == SUB)) {
+                    // ( ID ) followed by + or - is ambiguous between a cast of a unary expression and a binary expression
+                    // on a parenthesized one, and the generated parser always resolves it as the cast, failing on the
+                    // decltype predicate when the ID is not a type
+                    throw failedPredicate(index + 1);
+                }
+
+                final int follow = la(matching(index) - index + 2);
+
+                if (follow != DOT && follow != LBRACE && follow != INCR && follow != DECR && !isAssignment(follow)) {
+                    final PrecedenceContext ctx = new PrecedenceContext(base);
+                    match(ctx, LP);
+                    expression(ctx, 0);
+                    match(ctx, RP);
+
+                    return exit(ctx);
+                }
+
+                return external(base);
+            case ID:
+                return external(base);
+            default:
+                throw noViableAlternative();
+        }
+    }
+
+    /** Matches one of the alternatives starting with extstart, which are chosen by the token that follows. */
+    private ExpressionContext external(final ExpressionContext base) {
+        final ExtstartContext extstart = extstart(null);
+        final int type = la(1);
+
+        if (isAssignment(type)) {
+            final AssignmentContext ctx = new AssignmentContext(base);
+            add(ctx, extstart);
+            consume(ctx);
+            expression(ctx, 1);
+
+            return exit(ctx);
+        } else if (type == INCR || type == DECR) {
+            final PostincContext ctx = new PostincContext(base);
+            add(ctx, extstart);
+            increment(ctx);
+
+            return exit(ctx);
+        } else {
+            final ExtContext ctx = new ExtContext(base);
+            add(ctx, extstart);
+
+            return exit(ctx);
+        }
+    }
+
+    private static void add(final ParserRuleContext parent, final ParserRuleContext child) {
+        child.parent = parent;
+        parent.addChild(child);
+    }
+
+    private ExpressionContext terminal(final ExpressionContext ctx) {
+        consume(ctx);
+
+        return exit(ctx);
+    }
+
+    private ExtstartContext extstart(final ParserRuleContext parent) {
+        final ExtstartContext ctx = enter(parent, new ExtstartContext(parent, 0));
+        extlink(ctx);
+
+        return exit(ctx);
+    }
+
+    /** Matches one of ( extprec | extcast | exttype | extmember ). */
+    private void extlink(final ParserRuleContext parent) {
+        if (la(1) == LP) {
+            if (isCast(index)) {
+                extcast(parent);
+            } else {
+                extprec(parent);
+            }
+        } else if (la(1) == ID) {
+            if (isType(index)) {
+                exttype(parent);
+            } else {
+                extmember(parent);
+            }
+        } else {
+            throw noViableAlternative();
+        }
+    }
+
+    /** Matches the optional ( extdot | extbrace ) that may follow a link. */
+    private void extnext(final ParserRuleContext parent) {
+        if (la(1) == DOT) {
+            extdot(parent);
+        } else if (la(1) == LBRACE) {
+            extbrace(parent);
+        }
+    }
+
+    private void extprec(final ParserRuleContext parent) {
+        final ExtprecContext ctx = enter(parent, new ExtprecContext(parent, 0));
+        match(ctx, LP);
+        extlink(ctx);
+        match(ctx, RP);
+        extnext(ctx);
+        exit(ctx);
+    }
+
+    private void extcast(final ParserRuleContext parent) {
+        final ExtcastContext ctx = enter(parent, new ExtcastContext(parent, 0));
+        match(ctx, LP);
+        decltype(ctx);
+        match(ctx, RP);
+        extlink(ctx);
+        exit(ctx);
+    }
+
+    private void extbrace(final ParserRuleContext parent) {
+        final ExtbraceContext ctx = enter(parent, new ExtbraceContext(parent, 0));
+        match(ctx, LBRACE);
+        expression(ctx, 0);
+        match(ctx, RBRACE);
+        extnext(ctx);
+        exit(ctx);
+    }
+
+    private void extdot(final ParserRuleContext parent) {
+        final ExtdotContext ctx = enter(parent, new ExtdotContext(parent, 0));
+        match(ctx, DOT);
+
+        if (la(1) == ID && la(2) == LP) {
+            extcall(ctx);
+        } else {
+            extmember(ctx);
+        }
+
+        exit(ctx);
+    }
+
+    private void exttype(final ParserRuleContext parent) {
+        final ExttypeContext ctx = enter(parent, new ExttypeContext(parent, 0));
+        match(ctx, ID);
+        extdot(ctx);
+        exit(ctx);
+    }
+
+    private void extcall(final ParserRuleContext parent) {
+        final ExtcallContext ctx = enter(parent, new ExtcallContext(parent, 0));
+        match(ctx, ID);
+        arguments(ctx);
+        extnext(ctx);
+        exit(ctx);
+    }
+
+    private void extmember(final ParserRuleContext parent) {
+        final ExtmemberContext ctx = enter(parent, new ExtmemberContext(parent, 0));
+
+        if (la(1) == ID && isType(index)) {
+            throw failedPredicate();
+        }
+
+        match(ctx, ID);
+        extnext(ctx);
+        exit(ctx);
+    }
+
+    private void arguments(final ParserRuleContext parent) {
+        final ArgumentsContext ctx = enter(parent, new ArgumentsContext(parent, 0));
+        match(ctx, LP);
+
+        if (la(1) != RP) {
+            expression(ctx, 0);
+
+            while (la(1) == COMMA) {
+                match(ctx, COMMA);
+                expression(ctx, 0);
+            }
+        }
+
+        match(ctx, RP);
+        exit(ctx);
+    }
+
+    private void increment(final ParserRuleContext parent) {
+        final IncrementContext ctx = enter(parent, new IncrementContext(parent, 0));
+
+        if (la(1) != INCR && la(1) != DECR) {
+            throw noViableAlternative();
+        }
+
+        consume(ctx);
+        exit(ctx);
+    }
+
+    private static int precedence(final int type) {
+        switch (type) {
+            case CAT:
+                return 13;
+            case MUL: case DIV: case REM:
+                return 12;
+            case ADD: case SUB:
+                return 11;
+            case LSH: case RSH: case USH:
+                return 10;
+            case LT: case LTE: case GT: case GTE:
+                return 9;
+            case EQ: case EQR: case NE: case NER:
+                return 8;
+            case BWAND:
+                return 7;
+            case BWXOR:
+                return 6;
+            case BWOR:
+                return 5;
+            case BOOLAND:
+                return 4;
+            case BOOLOR:
+                return 3;
+            case COND:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean isAssignment(final int type) {
+        return type >= ASSIGN && type <= ACAT;
+    }
+
+    private static boolean isExpressionStart(final int type) {
+        switch (type) {
+            case LP: case ID: case INCR: case DECR:
+            case BOOLNOT: case BWNOT: case ADD: case SUB:
+            case OCTAL: case HEX: case INTEGER: case DECIMAL:
+            case STRING: case CHAR: case TRUE: case FALSE: case NULL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isType(final int position) {
+        return types.contains(tokens.get(position).getText());
+    }
+
+    /** Returns true if the tokens starting at position are LP decltype RP. */
+    private boolean isCast(final int position) {
+        if (type(position) != LP || type(position + 1) != ID || !isType(position + 1)) {
+            return false;
+        }
+
+        int current = position + 2;
+
+        while (type(current) == LBRACE && type(current + 1) == RBRACE) {
+            current += 2;
+        }
+
+        return type(current) == RP;
+    }
+
+    /** Returns the index of the right parenthesis matching the left one at position, or the end of file. */
+    private int matching(final int position) {
+        if (matching == null) {
+            matching = new int[tokens.size()];
+            final int[] stack = new int[tokens.size()];
+            int depth = 0;
+
+            for (int current = 0; current < eof; ++current) {
+                final int type = tokens.get(current).getType();
+
+                if (type == LP) {
+                    stack[depth++] = current;
+                    matching[current] = eof;
+                } else if (type == RP && depth > 0) {
+                    matching[stack[--depth]] = current;
+                }
+            }
+        }
+
+        return matching[position];
+    }
+
+    private int type(final int position) {
+        return tokens.get(Math.min(position, eof)).getType();
+    }
+
+    private int la(final int offset) {
+        return type(index + offset - 1);
+    }
+
+    private <T extends ParserRuleContext> T enter(final ParserRuleContext parent, final T ctx) {
+        ctx.start = tokens.get(index);
+
+        if (parent != null) {
+            parent.addChild(ctx);
+        }
+
+        return ctx;
+    }
+
+    private <T extends ParserRuleContext> T exit(final T ctx) {
+        ctx.stop = tokens.get(Math.max(index - 1, 0));
+
+        return ctx;
+    }
+
+    private void match(final ParserRuleContext ctx, final int type) {
+        if (la(1) != type) {
+            throw mismatch(type);
+        }
+
+        consume(ctx);
+    }
+
+    private void consume(final ParserRuleContext ctx) {
+        addToken(ctx, tokens.get(index));
+
+        if (index < eof) {
+            ++index;
+        }
+    }
+
+    private static void addToken(final ParserRuleContext ctx, final Token token) {
+        final TerminalNodeImpl node = new TerminalNodeImpl(token);
+        node.parent = ctx;
+        ctx.addChild(node);
+    }
+
+    private RuntimeException mismatch(final int expected) {
+        final Token token = tokens.get(index);
+
+        if (token.getType() == EOF) {
+            return error("Error: unexpected end of script.", token);
+        }
+
+        return error("Error[" + token.getLine() + ":" + token.getCharPositionInLine() + "]:" +
+                " unexpected token [" + display(token) + "]" +
+                " was expecting one of [" + VOCABULARY.getDisplayName(expected) + "].", token);
+    }
+
+    private RuntimeException noViableAlternative() {
+        final Token token = tokens.get(index);
+
+        if (token.getType() == EOF) {
+            return error("Error: unexpected end of script.", token);
+        }
+
+        return error("Error[" + token.getLine() + ":" + token.getCharPositionInLine() + "]:" +
+                "invalid sequence of tokens near [" + display(token) + "].", token);
+    }
+
+    private RuntimeException failedPredicate() {
+        return failedPredicate(index);
+    }
+
+    private RuntimeException failedPredicate(final int position) {
+        final Token token = tokens.get(position);
+
+        return error("Error[" + token.getLine() + ":" + token.getCharPositionInLine() + "]:" +
+                " unexpected token near [" + display(token) + "].", token);
+    }
+
+    private static RuntimeException error(final String message, final Token token) {
+        return new RuntimeException(new ParseException(message, token.getStartIndex()));
+    }
+
+    private static String display(final Token token) {
+        return "'" + token.getText().replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t") + "'";
+    }
+}
@@ -0,0 +1,431 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Definition.*;
+import static org.elasticsearch.plan.a.PlanAParser.*;
+
+/**
+ * Moves the work of a script that does not depend on the document out of the per document execution.  Each
+ * expression is classified by the stage it depends on.  An input read by name is of the query stage, since the
+ * parameters are the same for the whole query, except for the inputs of the search lookup, which are of the
+ * segment stage, and the inputs set again for each document, which are of the document stage.  Anything read
+ * through an input of the segment stage, such as a field of the current document, is of the document stage.
+ *
+ * Every expression of the query or segment stage is computed by {@link Executable#query(Map)} or by
+ * {@link Executable#segment(Map, Object[])} into an array of values, and the script reads its value from the
+ * array instead.  A script run without the values, because a stage failed or because an input it read was set
+ * again, computes each value itself as before.  A read through a container, such as a list parameter, is only
+ * moved when the script never calls a method that may change state or stores to a field or an array, since the
+ * container may otherwise be changed by an earlier document.  The parameters themselves are expected to stay
+ * the same for the whole query, as they do for search; the update context is read for each document instead.
+ * A concatenation builds a new string each time it is evaluated, so it is not moved when the script compares
+ * references with {@code ===} or {@code !==}.
+ */
+final class StagingPass extends PassManager.Pass {
+    static final String NAME = "stage";
+
+    /** The names of the inputs set by the search lookup, which are the same objects for a whole segment. */
+    private static final Set<String> SEGMENT = new HashSet<>(Arrays.asList("doc", "_doc", "_source", "_fields"));
+
+    /** The names of the inputs that may be set again for each document. */
+    private static final Set<String> DOCUMENT = new HashSet<>(Arrays.asList("_score", "_value", "ctx"));
+
+    private enum Stage {
+        QUERY,
+        SEGMENT,
+        DOCUMENT
+    }
+
+    StagingPass() {
+        super(NAME);
+    }
+
+    @Override
+    void run(final Adapter adapter, final IR.Block root, final CompilerStats stats) {
+        final Stager stager = new Stager(adapter, root);
+        root.accept(stager);
+
+        if (stager.stages.size() > 0) {
+            adapter.stages = stager.stages;
+        }
+    }
+
+    private static class Stager extends IR.Rewriter {
+        private final Adapter adapter;
+        private final Type array;
+        /** Whether the script compares references, so a new string is told apart from one shared by every document. */
+        private final boolean references;
+
+        final IR.Stages stages;
+
+        /** The value of each variable that is only stored to by its declaration. */
+        private final Map<Variable, IR.Expression> definitions;
+        /** The index of the value of each expression moved to a stage. */
+        private final Map<IR.Expression, Integer> indices;
+        private boolean changes;
+
+        Stager(final Adapter adapter, final IR.Block root) {
+            this.adapter = adapter;
+
+            references = IR.comparesReferences(root);
+            array = getTypeWithArrayDimensions(adapter.standard.objectType.struct, 1);
+            stages = new IR.Stages(adapter.addTemporary("#values", array));
+            definitions = new HashMap<>();
+            indices = new IdentityHashMap<>();
+            changes = false;
+
+            final Map<Variable, Integer> stores = new HashMap<>();
+
+            root.accept(new IR.Rewriter() {
+                private void store(final Variable variable) {
+                    final Integer count = stores.get(variable);
+                    stores.put(variable, count == null ? 1 : count + 1);
+                }
+
+                @Override
+                IR.Node visitDeclare(final IR.Declare node) {
+                    store(node.variable);
+
+                    if (node.value != null) {
+                        definitions.put(node.variable, node.value);
+                    }
+
+                    return super.visitDeclare(node);
+                }
+
+                @Override
+                IR.Node visitAssign(final IR.Assign node) {
+                    if (node.target instanceof IR.Load) {
+                        store(((IR.Load)node.target).variable);
+                    } else {
+                        changes = true;
+                    }
+
+                    return super.visitAssign(node);
+                }
+
+                @Override
+                IR.Node visitIncrement(final IR.Increment node) {
+                    store(node.variable);
+
+                    return node;
+                }
+
+                @Override
+                IR.Node visitCall(final IR.Call node) {
+                    changes |= !Caster.isReadOnly(node.method);
+
+                    return super.visitCall(node);
+                }
+
+                @Override
+                IR.Node visitDynamic(final IR.Dynamic node) {
+                    changes = true;
+
+                    return super.visitDynamic(node);
+                }
+            });
+
+            for (final Map.Entry<Variable, Integer> entry : stores.entrySet()) {
+                if (entry.getValue() != 1) {
+                    definitions.remove(entry.getKey());
+                }
+            }
+        }
+
+        private static boolean isInput(final Variable variable) {
+            return "input".equals(variable.name);
+        }
+
+        private static boolean isThis(final Variable variable) {
+            return "this".equals(variable.name);
+        }
+
+        /** Returns the name of the input read by a call of the form {@code input.get("name")}, or null. */
+        private static String key(final IR.Call call) {
+            if (call.receiver instanceof IR.Load && isInput(((IR.Load)call.receiver).variable) &&
+                    "get".equals(call.method.jname) && call.arguments.size() == 1 &&
+                    call.arguments.get(0) instanceof IR.Constant) {
+                final Object key = ((IR.Constant)call.arguments.get(0)).value;
+
+                return key instanceof String ? (String)key : null;
+            }
+
+            return null;
+        }
+
+        private Stage stage(final IR.Expression expression) {
+            if (expression instanceof IR.Constant || expression instanceof IR.Null) {
+                return Stage.QUERY;
+            } else if (expression instanceof IR.Load) {
+                final Variable variable = ((IR.Load)expression).variable;
+                final IR.Expression definition = definitions.get(variable);
+
+                if (isThis(variable)) {
+                    return Stage.QUERY;
+                } else if (definition != null) {
+                    return stage(definition);
+                }
+
+                return Stage.DOCUMENT;
+            } else if (expression instanceof IR.Convert) {
+                final IR.Convert convert = (IR.Convert)expression;
+
+                // a transform calls a method which may read the object converted
+                return convert.cast instanceof Transform ?
+                        read(convert.expression) : stage(convert.expression);
+            } else if (expression instanceof IR.Unary) {
+                return stage(((IR.Unary)expression).expression);
+            } else if (expression instanceof IR.Not) {
+                return stage(((IR.Not)expression).expression);
+            } else if (expression instanceof IR.Binary) {
+                final IR.Binary binary = (IR.Binary)expression;
+
+                return stage(binary.left, binary.right);
+            } else if (expression instanceof IR.Compare) {
+                final IR.Compare compare = (IR.Compare)expression;
+                final boolean equals = compare.promote.metadata.object && (compare.token == EQ || compare.token == NE) &&
+                        !(compare.left instanceof IR.Null) && !(compare.right instanceof IR.Null);
+
+                return equals ? read(compare.left, compare.right) : stage(compare.left, compare.right);
+            } else if (expression instanceof IR.Logical) {
+                final IR.Logical logical = (IR.Logical)expression;
+
+                return stage(logical.left, logical.right);
+            } else if (expression instanceof IR.Conditional) {
+                final IR.Conditional conditional = (IR.Conditional)expression;
+
+                return stage(conditional.condition, conditional.left, conditional.right);
+            } else if (expression instanceof IR.Concat) {
+                final List<IR.Expression> parts = ((IR.Concat)expression).parts;
+
+                return references ? Stage.DOCUMENT : read(parts.toArray(new IR.Expression[parts.size()]));
+            } else if (expression instanceof IR.LoadField) {
+                final IR.LoadField field = (IR.LoadField)expression;
+
+                return field.receiver == null ? (changes ? Stage.DOCUMENT : Stage.QUERY) : read(field.receiver);
+            } else if (expression instanceof IR.Length) {
+                return stage(((IR.Length)expression).array);
+            } else if (expression instanceof IR.LoadArray) {
+                final IR.LoadArray load = (IR.LoadArray)expression;
+
+                return read(load.array, load.index);
+            } else if (expression instanceof IR.Call) {
+                final IR.Call call = (IR.Call)expression;
+                final String key = key(call);
+
+                if (!Caster.isReadOnly(call.method) || changes) {
+                    return Stage.DOCUMENT;
+                } else if (key != null) {
+                    return SEGMENT.contains(key) ? Stage.SEGMENT : DOCUMENT.contains(key) ? Stage.DOCUMENT : Stage.QUERY;
+                }
+
+                final List<IR.Expression> operands = new ArrayList<>(call.arguments);
+
+                if (call.receiver != null) {
+                    operands.add(call.receiver);
+                }
+
+                return read(operands.toArray(new IR.Expression[operands.size()]));
+            }
+
+            return Stage.DOCUMENT;
+        }
+
+        /** Returns the latest stage of the operands. */
+        private Stage stage(final IR.Expression... operands) {
+            Stage stage = Stage.QUERY;
+
+            for (final IR.Expression operand : operands) {
+                final Stage next = stage(operand);
+
+                if (next.compareTo(stage) > 0) {
+                    stage = next;
+                }
+            }
+
+            return stage;
+        }
+
+        /**
+         * Returns the stage of a read through the operands, which is the document stage when a container may
+         * be changed or when an operand is an input of the segment stage, since what it holds changes with
+         * each document.
+         */
+        private Stage read(final IR.Expression... operands) {
+            final Stage stage = stage(operands);
+
+            return changes || stage == Stage.SEGMENT ? Stage.DOCUMENT : stage;
+        }
+
+        @Override
+        IR.Expression expression(final IR.Expression expression) {
+            if (expression == null || IR.isTrivial(expression)) {
+                return super.expression(expression);
+            }
+
+            // a boxed value is staged before it is boxed, so the script reads back the primitive it converts
+            if (expression instanceof IR.Convert && expression.type.metadata.object &&
+                    !((IR.Convert)expression).cast.from.metadata.object) {
+                return super.expression(expression);
+            }
+
+            final Stage stage = stage(expression);
+
+            if (stage == Stage.DOCUMENT) {
+                return super.expression(expression);
+            }
+
+            final ParserRuleContext source = expression.source;
+            final int index = stages.size();
+            final IR.Expression value = convert(copy(expression), adapter.standard.objectType);
+            final IR.Expression target = new IR.LoadArray(source, adapter.standard.objectType,
+                    new IR.Load(source, stages.values), new IR.Constant(source, adapter.standard.intType, index));
+            final IR.Statement store = new IR.Eval(source,
+                    new IR.Assign(source, adapter.standard.voidType, target, 0, null, null, value, false, false));
+
+            (stage == Stage.QUERY ? stages.query : stages.segment).add(store);
+            indices.put(expression, index);
+
+            // the expression is left in place for when the script is run without the values
+            final IR.Expression missing = new IR.Compare(source, adapter.standard.boolType, EQ, array,
+                    new IR.Load(source, stages.values), new IR.Null(source, array));
+
+            return new IR.Conditional(source, expression.type, missing, expression, value(source, index, expression.type));
+        }
+
+        /** Returns a read of the value with the index converted back to the type of the expression. */
+        private IR.Expression value(final ParserRuleContext source, final int index, final Type type) {
+            final IR.Expression value = new IR.LoadArray(source, adapter.standard.objectType,
+                    new IR.Load(source, stages.values), new IR.Constant(source, adapter.standard.intType, index));
+
+            return convert(value, type);
+        }
+
+        private IR.Expression convert(final IR.Expression expression, final Type type) {
+            if (expression.type.equals(type)) {
+                return expression;
+            }
+
+            return new IR.Convert(expression.source,
+                    expression, adapter.caster.getLegalCast(expression.source, expression.type, type, true));
+        }
+
+        /**
+         * Returns a copy of an expression to compute in a stage, where a variable is replaced with the value of
+         * its declaration, which is either read from the values or copied when it is too cheap to have its own.
+         */
+        private IR.Expression copy(final IR.Expression expression) {
+            final ParserRuleContext source = expression.source;
+
+            if (expression instanceof IR.Constant) {
+                return new IR.Constant(source, expression.type, ((IR.Constant)expression).value);
+            } else if (expression instanceof IR.Null) {
+                return new IR.Null(source, expression.type);
+            } else if (expression instanceof IR.Load) {
+                final Variable variable = ((IR.Load)expression).variable;
+
+                if (isThis(variable) || isInput(variable)) {
+                    return new IR.Load(source, variable);
+                }
+
+                final IR.Expression definition = definitions.get(variable);
+                final Integer index = indices.get(definition);
+
+                return index == null ? copy(definition) : value(source, index, expression.type);
+            } else if (expression instanceof IR.Convert) {
+                final IR.Convert convert = (IR.Convert)expression;
+
+                return new IR.Convert(source, copy(convert.expression), convert.cast);
+            } else if (expression instanceof IR.Unary) {
+                final IR.Unary unary = (IR.Unary)expression;
+
+                return new IR.Unary(source, unary.type, unary.token, copy(unary.expression));
+            } else if (expression instanceof IR.Not) {
+                return new IR.Not(source, expression.type, copy(((IR.Not)expression).expression));
+            } else if (expression instanceof IR.Binary) {
+                final IR.Binary binary = (IR.Binary)expression;
+
+                return new IR.Binary(source, binary.type, binary.token, copy(binary.left), copy(binary.right));
+            } else if (expression instanceof IR.Compare) {
+                final IR.Compare compare = (IR.Compare)expression;
+
+                return new IR.Compare(source, compare.type, compare.token, compare.promote,
+                        copy(compare.left), copy(compare.right));
+            } else if (expression instanceof IR.Logical) {
+                final IR.Logical logical = (IR.Logical)expression;
+
+                return new IR.Logical(source, logical.type, logical.token, copy(logical.left), copy(logical.right));
+            } else if (expression instanceof IR.Conditional) {
+                final IR.Conditional conditional = (IR.Conditional)expression;
+
+                return new IR.Conditional(source, conditional.type,
+                        copy(conditional.condition), copy(conditional.left), copy(conditional.right));
+            } else if (expression instanceof IR.Concat) {
+                return new IR.Concat(source, expression.type, copy(((IR.Concat)expression).parts));
+            } else if (expression instanceof IR.LoadField) {
+                final IR.LoadField field = (IR.LoadField)expression;
+
+                return new IR.LoadField(source, field.receiver == null ? null : copy(field.receiver), field.field);
+            } else if (expression instanceof IR.Length) {
+                return new IR.Length(source, expression.type, copy(((IR.Length)expression).array));
+            } else if (expression instanceof IR.LoadArray) {
+                final IR.LoadArray load = (IR.LoadArray)expression;
+
+                return new IR.LoadArray(source, load.type, copy(load.array), copy(load.index));
+            } else if (expression instanceof IR.Call) {
+                final IR.Call call = (IR.Call)expression;
+                final String key = key(call);
+
+                if (key != null) {
+                    stages.keys.add(key);
+                }
+
+                return new IR.Call(source, call.method,
+                        call.receiver == null ? null : copy(call.receiver), copy(call.arguments));
+            }
+
+            throw new IllegalStateException(error(source) + "Unexpected staging state.");
+        }
+
+        private List<IR.Expression> copy(final List<IR.Expression> expressions) {
+            final List<IR.Expression> copies = new ArrayList<>();
+
+            for (final IR.Expression expression : expressions) {
+                copies.add(copy(expression));
+            }
+
+            return copies;
+        }
+    }
+}
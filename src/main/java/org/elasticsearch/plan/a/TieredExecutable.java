@@ -0,0 +1,164 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.script.LeafSearchScript;
+
+/**
+ * Runs a script through the {@link Interpreter} until it has run a number of times, then has the executor write and
+ * define its class and runs the class from then on.  A script run only a few times, such as one of a single update
+ * by query, never defines a class.  The runs are counted without synchronization, since the count only has to pass
+ * the threshold eventually, and the class replaces the interpreter through a volatile field, so a run sees either
+ * one or the other.  A class that fails to be written or defined leaves the script interpreted, and since that is a
+ * bug of the compiler the failure is logged and counted.
+ */
+final class TieredExecutable extends Executable {
+    private static final ESLogger logger = Loggers.getLogger(TieredExecutable.class);
+
+    private final Interpreter interpreter;
+    private final Callable<Executable> compiler;
+    private final int threshold;
+    private final Executor executor;
+    private final CompilerStats stats;
+    private final AtomicBoolean scheduled;
+
+    private volatile Executable target;
+    private int runs;
+
+    TieredExecutable(final Interpreter interpreter, final Callable<Executable> compiler,
+                     final int threshold, final Executor executor, final CompilerStats stats) {
+        super(interpreter.getName(), interpreter.getSource());
+
+        this.interpreter = interpreter;
+        this.compiler = compiler;
+        this.threshold = threshold;
+        this.executor = executor;
+        this.stats = stats;
+
+        scheduled = new AtomicBoolean();
+        target = interpreter;
+        runs = 0;
+    }
+
+    /** Returns true once the class of the script has replaced the interpreter. */
+    boolean isPromoted() {
+        return target != interpreter;
+    }
+
+    /** Returns what runs the script, counting the runs while it is interpreted. */
+    private Executable tier(final int count) {
+        final Executable current = target;
+
+        if (current == interpreter) {
+            runs += count;
+
+            if (runs >= threshold && scheduled.compareAndSet(false, true)) {
+                promote();
+            }
+        }
+
+        return current;
+    }
+
+    private void promote() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        target = compiler.call();
+                    } catch (final Exception | LinkageError exception) {
+                        logger.warn("failed to define the class of script [{}], which stays interpreted", exception, getName());
+
+                        if (stats != null) {
+                            stats.recordPromotionFailed();
+                        }
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException exception) {
+            // the executor is shut down along with the engine, so the script stays interpreted
+        }
+    }
+
+    @Override
+    public Object execute(final Map<String, Object> input) {
+        return tier(1).execute(input);
+    }
+
+    @Override
+    public Object execute(final Map<String, Object> input, final Object[] values) {
+        return tier(1).execute(input, values);
+    }
+
+    @Override
+    public Object[] query(final Map<String, Object> input) {
+        return tier(0).query(input);
+    }
+
+    @Override
+    public Object[] segment(final Map<String, Object> input, final Object[] values) {
+        return tier(0).segment(input, values);
+    }
+
+    @Override
+    public double executeAsDouble(final Map<String, Object> input) {
+        return tier(1).executeAsDouble(input);
+    }
+
+    @Override
+    public double executeAsDouble(final Map<String, Object> input, final Object[] values) {
+        return tier(1).executeAsDouble(input, values);
+    }
+
+    @Override
+    public float executeAsFloat(final Map<String, Object> input) {
+        return tier(1).executeAsFloat(input);
+    }
+
+    @Override
+    public float executeAsFloat(final Map<String, Object> input, final Object[] values) {
+        return tier(1).executeAsFloat(input, values);
+    }
+
+    @Override
+    public long executeAsLong(final Map<String, Object> input) {
+        return tier(1).executeAsLong(input);
+    }
+
+    @Override
+    public long executeAsLong(final Map<String, Object> input, final Object[] values) {
+        return tier(1).executeAsLong(input, values);
+    }
+
+    @Override
+    public void executeAsDoubles(final Map<String, Object> input, final Object[] values, final LeafSearchScript leaf,
+                                 final int[] docs, final int count, final double[] out) {
+        tier(count).executeAsDoubles(input, values, leaf, docs, count, out);
+    }
+}
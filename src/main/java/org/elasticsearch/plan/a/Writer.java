@@ -19,62 +19,220 @@ package org.elasticsearch.plan.a;
  * under the License.
  */
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.antlr.v4.runtime.ParserRuleContext;
-import org.antlr.v4.runtime.tree.ParseTree;
-import org.objectweb.asm.*;
+import org.elasticsearch.script.LeafSearchScript;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
 import static org.elasticsearch.plan.a.Adapter.*;
+import static org.elasticsearch.plan.a.Default.*;
 import static org.elasticsearch.plan.a.Definition.*;
 import static org.elasticsearch.plan.a.PlanAParser.*;
 
-class Writer extends PlanABaseVisitor<Void> {
+class Writer extends IR.Visitor<Void> {
     final static String BASE_CLASS_NAME = Executable.class.getName();
     final static String CLASS_NAME = BASE_CLASS_NAME + "$CompiledPlanAExecutable";
     final static String BASE_CLASS_INTERNAL = Executable.class.getName().replace('.', '/');
-    final static String CLASS_INTERNAL = BASE_CLASS_INTERNAL + "$CompiledPlanAExecutable";
+    final static String LEAF_INTERNAL = LeafSearchScript.class.getName().replace('.', '/');
+    final static String BINDINGS_INTERNAL = Bindings.class.getName().replace('.', '/');
+    final static String DEF_INTERNAL = Def.class.getName().replace('.', '/');
+    final static String BINDINGS_GET_DESCRIPTOR = "(Ljava/util/Map;L" + BASE_CLASS_INTERNAL + ";ILjava/lang/String;)Ljava/lang/Object;";
+    final static String BINDINGS_LONG_DESCRIPTOR = "(Ljava/util/Map;L" + BASE_CLASS_INTERNAL + ";ILjava/lang/String;)J";
+    final static String BINDINGS_DOUBLE_DESCRIPTOR = "(Ljava/util/Map;L" + BASE_CLASS_INTERNAL + ";ILjava/lang/String;)D";
+
+    final static String CONSTRUCTOR_DESCRIPTOR = "(Ljava/lang/String;Ljava/lang/String;)V";
+    final static String PACKED_CONSTRUCTOR_DESCRIPTOR = "(Ljava/lang/String;Ljava/lang/String;I)V";
 
-    static byte[] write(Adapter adapter) {
-        Writer writer = new Writer(adapter);
+    /** Writes the class of the script with the name, which has to be unique within the loader it is defined in. */
+    static byte[] write(final Adapter adapter, final IR.Block root, final String name) {
+        final String internal = name.replace('.', '/');
+        final ClassWriter writer = writeBegin(internal, adapter.source);
+        writeConstructor(writer);
 
-        return writer.getBytes();
+        final Writer script = new Writer(adapter, root, writer, internal, "");
+        script.writeEntries(adapter);
+
+        writer.visitEnd();
+
+        return writer.toByteArray();
     }
 
-    private final Adapter adapter;
-    private final Caster caster;
-    private final ParseTree root;
-    private final String source;
+    /**
+     * Writes the scripts into a single class with the name, so they share one constant pool and are loaded and
+     * verified together.  The entry points of each script are written with its index as a suffix, and the class
+     * is constructed with the index of the script an instance runs.  Each entry point of {@link Executable} that
+     * any of the scripts writes dispatches on the index to the method of the script, or to the base class for a
+     * script without one.
+     */
+    static byte[] pack(final List<Adapter> adapters, final List<IR.Block> roots, final String name) {
+        final String internal = name.replace('.', '/');
+        final ClassWriter writer = writeBegin(internal, null);
+        writer.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC, "script", "I", null, null).visitEnd();
+        writePackedConstructor(writer, internal);
+
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        final List<Set<String>> written = new ArrayList<>();
+
+        for (int index = 0; index < adapters.size(); ++index) {
+            final Writer script = new Writer(adapters.get(index), roots.get(index), writer, internal, "$" + index);
+            script.writeEntries(adapters.get(index));
+
+            final Set<String> keys = new HashSet<>();
+
+            for (final Entry entry : script.entries) {
+                entries.put(entry.key(), entry);
+                keys.add(entry.key());
+            }
+
+            written.add(keys);
+        }
+
+        for (final Entry entry : entries.values()) {
+            writeDispatch(writer, internal, entry, written);
+        }
+
+        writer.visitEnd();
+
+        return writer.toByteArray();
+    }
+
+    /** An entry point of {@link Executable} written by a script. */
+    private static class Entry {
+        final String name;
+        final String descriptor;
+        final String signature;
+
+        Entry(final String name, final String descriptor, final String signature) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.signature = signature;
+        }
+
+        String key() {
+            return name + descriptor;
+        }
+    }
+
+    /** The labels continue and break jump to for the innermost loop being written. */
+    private static class Loop {
+        final Label begin;
+        final Label end;
+
+        Loop(final Label begin, final Label end) {
+            this.begin = begin;
+            this.end = end;
+        }
+    }
 
-    private ClassWriter writer;
+    /** Where a script run for a block of documents stores the value of each document before it moves to the next. */
+    private static class Batch {
+        final int out;
+        final int index;
+        final Label next;
+
+        Batch(final int out, final int index, final Label next) {
+            this.out = out;
+            this.index = index;
+            this.next = next;
+        }
+    }
+
+    /** Finds whether every return of the script is a number until the conversion that boxes it. */
+    private static class Returns extends IR.Rewriter {
+        boolean numeric = true;
+
+        @Override
+        IR.Node visitReturn(final IR.Return node) {
+            numeric &= unboxed(node.value) != null;
+
+            return node;
+        }
+    }
+
+    /** Returns the value of a return before it is boxed, or null if it is not a number before the conversion. */
+    private static IR.Expression unboxed(final IR.Expression value) {
+        final IR.Expression expression = value instanceof IR.Convert ? ((IR.Convert)value).expression : value;
+
+        if (expression instanceof IR.Constant) {
+            return ((IR.Constant)expression).value instanceof Number ? expression : null;
+        }
+
+        final TypeMetadata metadata = expression.type.metadata;
+
+        return metadata.numeric && metadata != TypeMetadata.CHAR ? expression : null;
+    }
+
+    private final Standard standard;
+    private final Caster caster;
+    private final IR.Block root;
+    private final IR.Stages stages;
+    private final String classInternal;
+    private final Deque<Loop> loops;
+
+    private final ClassWriter writer;
+    private final String suffix;
+    private final List<Entry> entries;
     private MethodVisitor execute;
+    private Type returns;
+    private Batch batch;
 
-    private Writer(final Adapter adapter) {
-        this.adapter = adapter;
+    private Writer(final Adapter adapter, final IR.Block root, final ClassWriter writer,
+                   final String classInternal, final String suffix) {
+        standard = adapter.standard;
         caster = adapter.caster;
-        root = adapter.root;
-        source = adapter.source;
+        this.root = root;
+        stages = adapter.stages;
+        this.writer = writer;
+        this.classInternal = classInternal;
+        this.suffix = suffix;
+        loops = new ArrayDeque<>();
+        entries = new ArrayList<>();
+    }
 
-        writeBegin();
-        writeConstructor();
-        writeExecute();
-        writeEnd();
+    private void writeEntries(final Adapter adapter) {
+        if (stages == null) {
+            writeExecute();
+        } else {
+            writeStagedExecute();
+            writeQuery();
+
+            if (!stages.segment.isEmpty()) {
+                writeSegment();
+            }
+        }
+
+        writeNumericExecutes(adapter);
     }
 
-    private void writeBegin() {
+    private static ClassWriter writeBegin(final String name, final String source) {
         final int compute = ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS;
         final int version = Opcodes.V1_7;
         final int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC;
         final String base = BASE_CLASS_INTERNAL;
-        final String name = CLASS_INTERNAL;
 
-        writer = new ClassWriter(compute);
+        final ClassWriter writer = new ClassWriter(compute);
         writer.visit(version, access, name, null, base, null);
         writer.visitSource(source, null);
+
+        return writer;
     }
 
-    private void writeConstructor() {
+    private static void writeConstructor(final ClassWriter writer) {
         final int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC;
         final String aname = "<init>";
-        final String adescriptor = "(Ljava/lang/String;Ljava/lang/String;)V";
+        final String adescriptor = CONSTRUCTOR_DESCRIPTOR;
 
         final MethodVisitor constructor = writer.visitMethod(access, aname, adescriptor, null, null);
         constructor.visitCode();
@@ -87,979 +245,1216 @@ class Writer extends PlanABaseVisitor<Void> {
         constructor.visitEnd();
     }
 
-    private void writeExecute() {
+    /** Writes the constructor of a packed class, which also takes the index of the script the instance runs. */
+    private static void writePackedConstructor(final ClassWriter writer, final String internal) {
         final int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC;
+        final String aname = "<init>";
+
+        final MethodVisitor constructor = writer.visitMethod(access, aname, PACKED_CONSTRUCTOR_DESCRIPTOR, null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitVarInsn(Opcodes.ALOAD, 1);
+        constructor.visitVarInsn(Opcodes.ALOAD, 2);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, BASE_CLASS_INTERNAL, aname, CONSTRUCTOR_DESCRIPTOR, false);
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitVarInsn(Opcodes.ILOAD, 3);
+        constructor.visitFieldInsn(Opcodes.PUTFIELD, internal, "script", "I");
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+    }
+
+    /**
+     * Writes an entry point of a packed class that switches on the index of the script to its method, passing the
+     * arguments along.  Scripts without the entry point run the one of the base class.
+     */
+    private static void writeDispatch(final ClassWriter writer, final String internal, final Entry entry,
+                                      final List<Set<String>> written) {
+        final int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC;
+        final org.objectweb.asm.Type method = org.objectweb.asm.Type.getMethodType(entry.descriptor);
+        final Label[] labels = new Label[written.size()];
+        final Label base = new Label();
+        final Label unknown = new Label();
+        boolean inherited = false;
+
+        for (int index = 0; index < labels.length; ++index) {
+            if (written.get(index).contains(entry.key())) {
+                labels[index] = new Label();
+            } else {
+                labels[index] = base;
+                inherited = true;
+            }
+        }
+
+        final MethodVisitor dispatch = writer.visitMethod(access, entry.name, entry.descriptor, entry.signature, null);
+        dispatch.visitCode();
+        dispatch.visitVarInsn(Opcodes.ALOAD, 0);
+        dispatch.visitFieldInsn(Opcodes.GETFIELD, internal, "script", "I");
+        dispatch.visitTableSwitchInsn(0, labels.length - 1, unknown, labels);
+
+        for (int index = 0; index < labels.length; ++index) {
+            if (labels[index] != base) {
+                dispatch.visitLabel(labels[index]);
+                writeArguments(dispatch, method);
+                dispatch.visitMethodInsn(Opcodes.INVOKEVIRTUAL, internal, entry.name + "$" + index, entry.descriptor, false);
+                dispatch.visitInsn(method.getReturnType().getOpcode(Opcodes.IRETURN));
+            }
+        }
+
+        if (inherited) {
+            dispatch.visitLabel(base);
+            writeArguments(dispatch, method);
+            dispatch.visitMethodInsn(Opcodes.INVOKESPECIAL, BASE_CLASS_INTERNAL, entry.name, entry.descriptor, false);
+            dispatch.visitInsn(method.getReturnType().getOpcode(Opcodes.IRETURN));
+        }
+
+        dispatch.visitLabel(unknown);
+        dispatch.visitTypeInsn(Opcodes.NEW, "java/lang/IllegalStateException");
+        dispatch.visitInsn(Opcodes.DUP);
+        dispatch.visitLdcInsn("Unknown packed script.");
+        dispatch.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/IllegalStateException", "<init>",
+                "(Ljava/lang/String;)V", false);
+        dispatch.visitInsn(Opcodes.ATHROW);
+        dispatch.visitMaxs(0, 0);
+        dispatch.visitEnd();
+    }
+
+    /** Loads this and every argument of the method. */
+    private static void writeArguments(final MethodVisitor dispatch, final org.objectweb.asm.Type method) {
+        int slot = 0;
+        dispatch.visitVarInsn(Opcodes.ALOAD, slot++);
+
+        for (final org.objectweb.asm.Type argument : method.getArgumentTypes()) {
+            dispatch.visitVarInsn(argument.getOpcode(Opcodes.ILOAD), slot);
+            slot += argument.getSize();
+        }
+    }
+
+    /** Starts an entry point of the script, named with the suffix of the script when it is packed with others. */
+    private MethodVisitor visitEntry(final String name, final String descriptor, final String signature) {
+        final int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC;
+        entries.add(new Entry(name, descriptor, signature));
+
+        return writer.visitMethod(access, name + suffix, descriptor, signature, null);
+    }
+
+    private void writeExecute() {
         final String name = "execute";
         final String descriptor = "(Ljava/util/Map;)Ljava/lang/Object;";
         final String signature = "(Ljava/util/Map<Ljava/lang/String;Ljava/lang/Object;>;)Ljava/lang/Object;";
 
-        execute = writer.visitMethod(access, name, descriptor, signature, null);
+        execute = visitEntry(name, descriptor, signature);
         execute.visitCode();
-        visit(root);
+        root.accept(this);
+
+        if (!root.exits()) {
+            execute.visitInsn(Opcodes.ACONST_NULL);
+            execute.visitInsn(Opcodes.ARETURN);
+        }
+
         execute.visitMaxs(0, 0);
         execute.visitEnd();
     }
 
-    @Override
-    public Void visitSource(final SourceContext ctx) {
-        final StatementMetadata sourcesmd = adapter.getStatementMetadata(ctx);
+    /**
+     * Writes execute with the values computed by the stages as a second argument, along with an execute without
+     * them that passes null, so the script computes each of the values itself.
+     */
+    private void writeStagedExecute() {
+        final String name = "execute";
+        final String descriptor = "(Ljava/util/Map;[Ljava/lang/Object;)Ljava/lang/Object;";
+        final String signature = "(Ljava/util/Map<Ljava/lang/String;Ljava/lang/Object;>;[Ljava/lang/Object;)Ljava/lang/Object;";
+
+        final MethodVisitor unstaged = visitEntry(name, "(Ljava/util/Map;)Ljava/lang/Object;",
+                "(Ljava/util/Map<Ljava/lang/String;Ljava/lang/Object;>;)Ljava/lang/Object;");
+        unstaged.visitCode();
+        unstaged.visitVarInsn(Opcodes.ALOAD, 0);
+        unstaged.visitVarInsn(Opcodes.ALOAD, 1);
+        unstaged.visitInsn(Opcodes.ACONST_NULL);
+        unstaged.visitMethodInsn(Opcodes.INVOKEVIRTUAL, classInternal, name + suffix, descriptor, false);
+        unstaged.visitInsn(Opcodes.ARETURN);
+        unstaged.visitMaxs(0, 0);
+        unstaged.visitEnd();
+
+        execute = visitEntry(name, descriptor, signature);
+        execute.visitCode();
 
-        for (final StatementContext sctx : ctx.statement()) {
-            visit(sctx);
-        }
+        // the argument slot is given to the variables of the script once the values are in their own slot
+        execute.visitVarInsn(Opcodes.ALOAD, 2);
+        execute.visitVarInsn(Opcodes.ASTORE, stages.values.slot);
+        root.accept(this);
 
-        if (!sourcesmd.allReturn) {
+        if (!root.exits()) {
             execute.visitInsn(Opcodes.ACONST_NULL);
             execute.visitInsn(Opcodes.ARETURN);
         }
 
+        execute.visitMaxs(0, 0);
+        execute.visitEnd();
+    }
+
+    /**
+     * Writes executeAsDouble and executeAsLong when every return of the script is a number before it is boxed, so
+     * scores and sorts get the number without an allocation.  Otherwise the base class unboxes the result of execute.
+     */
+    private void writeNumericExecutes(final Adapter adapter) {
+        final Returns finder = new Returns();
+        root.accept(finder);
+
+        if (root.exits() && finder.numeric) {
+            writeNumericExecute("executeAsDouble", standard.doubleType);
+            writeNumericExecute("executeAsFloat", standard.floatType);
+            writeNumericExecute("executeAsLong", standard.longType);
+            writeBatchExecute(adapter);
+        }
+
+        returns = null;
+    }
+
+    /** Returns the opcode that returns a value of the type of a numeric entry point. */
+    private static int returnOpcode(final Type type) {
+        return org.objectweb.asm.Type.getType(type.descriptor).getOpcode(Opcodes.IRETURN);
+    }
+
+    private void writeNumericExecute(final String name, final Type type) {
+        final String descriptor = "(Ljava/util/Map;)" + type.descriptor;
+        final String signature = "(Ljava/util/Map<Ljava/lang/String;Ljava/lang/Object;>;)" + type.descriptor;
+
+        returns = type;
+
+        if (stages == null) {
+            execute = visitEntry(name, descriptor, signature);
+            execute.visitCode();
+        } else {
+            final String sdescriptor = "(Ljava/util/Map;[Ljava/lang/Object;)" + type.descriptor;
+            final String ssignature = "(Ljava/util/Map<Ljava/lang/String;Ljava/lang/Object;>;[Ljava/lang/Object;)" + type.descriptor;
+
+            final MethodVisitor unstaged = visitEntry(name, descriptor, signature);
+            unstaged.visitCode();
+            unstaged.visitVarInsn(Opcodes.ALOAD, 0);
+            unstaged.visitVarInsn(Opcodes.ALOAD, 1);
+            unstaged.visitInsn(Opcodes.ACONST_NULL);
+            unstaged.visitMethodInsn(Opcodes.INVOKEVIRTUAL, classInternal, name + suffix, sdescriptor, false);
+            unstaged.visitInsn(returnOpcode(type));
+            unstaged.visitMaxs(0, 0);
+            unstaged.visitEnd();
+
+            execute = visitEntry(name, sdescriptor, ssignature);
+            execute.visitCode();
+            execute.visitVarInsn(Opcodes.ALOAD, 2);
+            execute.visitVarInsn(Opcodes.ASTORE, stages.values.slot);
+        }
+
+        root.accept(this);
+        execute.visitMaxs(0, 0);
+        execute.visitEnd();
+    }
+
+    /**
+     * Writes executeAsDoubles as a single loop over the block of documents, which moves the leaf to each document
+     * and stores the value of each return to the array of scores in place of returning it.  The arguments past
+     * the input are moved past every slot of the script first, since the variables of the script reuse theirs.
+     */
+    private void writeBatchExecute(final Adapter adapter) {
+        final String name = "executeAsDoubles";
+        final String descriptor = "(Ljava/util/Map;[Ljava/lang/Object;L" + LEAF_INTERNAL + ";[II[D)V";
+        final String signature = "(Ljava/util/Map<Ljava/lang/String;Ljava/lang/Object;>;[Ljava/lang/Object;L" +
+                LEAF_INTERNAL + ";[II[D)V";
+
+        final int leaf = adapter.addTemporary("#leaf", standard.objectType).slot;
+        final int docs = adapter.addTemporary("#docs", standard.objectType).slot;
+        final int count = adapter.addTemporary("#count", standard.intType).slot;
+        final int out = adapter.addTemporary("#out", standard.objectType).slot;
+        final int index = adapter.addTemporary("#index", standard.intType).slot;
+
+        final Label loop = new Label();
+        final Label next = new Label();
+        final Label end = new Label();
+
+        execute = visitEntry(name, descriptor, signature);
+        execute.visitCode();
+        // every argument is loaded before any is stored, since the slots they move to may overlap the arguments
+        execute.visitVarInsn(Opcodes.ALOAD, 2);
+        execute.visitVarInsn(Opcodes.ALOAD, 3);
+        execute.visitVarInsn(Opcodes.ALOAD, 4);
+        execute.visitVarInsn(Opcodes.ILOAD, 5);
+        execute.visitVarInsn(Opcodes.ALOAD, 6);
+        execute.visitVarInsn(Opcodes.ASTORE, out);
+        execute.visitVarInsn(Opcodes.ISTORE, count);
+        execute.visitVarInsn(Opcodes.ASTORE, docs);
+        execute.visitVarInsn(Opcodes.ASTORE, leaf);
+
+        if (stages != null) {
+            execute.visitVarInsn(Opcodes.ASTORE, stages.values.slot);
+        } else {
+            execute.visitInsn(Opcodes.POP);
+        }
+
+        execute.visitInsn(Opcodes.ICONST_0);
+        execute.visitVarInsn(Opcodes.ISTORE, index);
+        execute.visitLabel(loop);
+        execute.visitVarInsn(Opcodes.ILOAD, index);
+        execute.visitVarInsn(Opcodes.ILOAD, count);
+        execute.visitJumpInsn(Opcodes.IF_ICMPGE, end);
+        execute.visitVarInsn(Opcodes.ALOAD, leaf);
+        execute.visitVarInsn(Opcodes.ALOAD, docs);
+        execute.visitVarInsn(Opcodes.ILOAD, index);
+        execute.visitInsn(Opcodes.IALOAD);
+        execute.visitMethodInsn(Opcodes.INVOKEINTERFACE, LEAF_INTERNAL, "setDocument", "(I)V", true);
+
+        returns = standard.doubleType;
+        batch = new Batch(out, index, next);
+        root.accept(this);
+        batch = null;
+
+        execute.visitLabel(next);
+        execute.visitIincInsn(index, 1);
+        execute.visitJumpInsn(Opcodes.GOTO, loop);
+        execute.visitLabel(end);
+        execute.visitInsn(Opcodes.RETURN);
+        execute.visitMaxs(0, 0);
+        execute.visitEnd();
+    }
+
+    private void writeQuery() {
+        final String name = "query";
+        final String descriptor = "(Ljava/util/Map;)[Ljava/lang/Object;";
+        final String signature = "(Ljava/util/Map<Ljava/lang/String;Ljava/lang/Object;>;)[Ljava/lang/Object;";
+
+        execute = visitEntry(name, descriptor, signature);
+        execute.visitCode();
+        execute.visitLdcInsn(stages.size());
+        execute.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object");
+        writeStage(stages.query);
+    }
+
+    private void writeSegment() {
+        final String name = "segment";
+        final String descriptor = "(Ljava/util/Map;[Ljava/lang/Object;)[Ljava/lang/Object;";
+        final String signature = "(Ljava/util/Map<Ljava/lang/String;Ljava/lang/Object;>;[Ljava/lang/Object;)[Ljava/lang/Object;";
+
+        // the values of the query are shared by every segment, so each segment stores to its own copy
+        execute = visitEntry(name, descriptor, signature);
+        execute.visitCode();
+        execute.visitVarInsn(Opcodes.ALOAD, 2);
+        execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "[Ljava/lang/Object;", "clone", "()Ljava/lang/Object;", false);
+        execute.visitTypeInsn(Opcodes.CHECKCAST, "[Ljava/lang/Object;");
+        writeStage(stages.segment);
+    }
+
+    /** Stores the array of values on the stack to its variable, runs the statements and returns the array. */
+    private void writeStage(final List<IR.Statement> statements) {
+        execute.visitVarInsn(Opcodes.ASTORE, stages.values.slot);
+
+        for (final IR.Statement statement : statements) {
+            statement.accept(this);
+        }
+
+        execute.visitVarInsn(Opcodes.ALOAD, stages.values.slot);
+        execute.visitInsn(Opcodes.ARETURN);
+        execute.visitMaxs(0, 0);
+        execute.visitEnd();
+    }
+
+    @Override
+    Void visitBlock(final IR.Block node) {
+        for (final IR.Statement statement : node.statements) {
+            statement.accept(this);
+        }
+
         return null;
     }
 
     @Override
-    public Void visitIf(final IfContext ctx) {
-        final ExpressionContext exprctx = ctx.expression();
-        final boolean els = ctx.ELSE() != null;
-        final Branch branch = adapter.markBranch(ctx, exprctx);
-        branch.end = new Label();
-        branch.fals = els ? new Label() : branch.end;
-
-        visit(exprctx);
-
-        final BlockContext blockctx0 = ctx.block(0);
-        final StatementMetadata blockmd0 = adapter.getStatementMetadata(blockctx0);
-        visit(blockctx0);
-
-        if (els) {
-            if (!blockmd0.allExit) {
-                execute.visitJumpInsn(Opcodes.GOTO, branch.end);
-            }
+    Void visitDeclare(final IR.Declare node) {
+        final Variable variable = node.variable;
 
-            execute.visitLabel(branch.fals);
-            visit(ctx.block(1));
+        if (node.value == null) {
+            switch (variable.type.metadata) {
+                case VOID:   throw new IllegalStateException(error(node.source) + "Unexpected writer state.");
+                case BOOL:
+                case BYTE:
+                case SHORT:
+                case CHAR:
+                case INT:    writeNumeric(node.source, 0);    break;
+                case LONG:   writeNumeric(node.source, 0L);   break;
+                case FLOAT:  writeNumeric(node.source, 0.0F); break;
+                case DOUBLE: writeNumeric(node.source, 0.0);  break;
+                default:     execute.visitInsn(Opcodes.ACONST_NULL);
+            }
+        } else {
+            node.value.accept(this);
         }
 
-        execute.visitLabel(branch.end);
+        writeVariable(node.source, variable, true);
 
         return null;
     }
 
     @Override
-    public Void visitWhile(final WhileContext ctx) {
-        final ExpressionContext exprctx = ctx.expression();
-        final Branch branch = adapter.markBranch(ctx, exprctx);
-        branch.begin = new Label();
-        branch.end = new Label();
-        branch.fals = branch.end;
-
-        adapter.pushJump(branch);
-        execute.visitLabel(branch.begin);
-        visit(exprctx);
+    Void visitIf(final IR.If node) {
+        final Label fals = new Label();
+        final Label end = node.otherwise == null ? fals : new Label();
 
-        final BlockContext blockctx = ctx.block();
-        boolean allexit = false;
+        writeBranch(node.condition, null, fals);
+        node.then.accept(this);
 
-        if (blockctx != null) {
-            StatementMetadata blocksmd = adapter.getStatementMetadata(blockctx);
-            allexit = blocksmd.allExit;
-            visit(blockctx);
-        }
+        if (node.otherwise != null) {
+            if (!node.then.exits()) {
+                execute.visitJumpInsn(Opcodes.GOTO, end);
+            }
 
-        if (!allexit) {
-            execute.visitJumpInsn(Opcodes.GOTO, branch.begin);
+            execute.visitLabel(fals);
+            node.otherwise.accept(this);
         }
 
-        execute.visitLabel(branch.end);
-        adapter.popJump();
+        execute.visitLabel(end);
 
         return null;
     }
 
     @Override
-    public Void visitDo(final DoContext ctx) {
-        final ExpressionContext exprctx = ctx.expression();
-        final Branch branch = adapter.markBranch(ctx, exprctx);
-        branch.begin = new Label();
-        branch.end = new Label();
-        branch.fals = branch.end;
+    Void visitWhile(final IR.While node) {
+        final Label begin = new Label();
+        final Label end = new Label();
 
-        adapter.pushJump(branch);
-        execute.visitLabel(branch.begin);
+        loops.push(new Loop(begin, end));
+        execute.visitLabel(begin);
+        writeBranch(node.condition, null, end);
 
-        final BlockContext bctx = ctx.block();
-        final StatementMetadata blocksmd = adapter.getStatementMetadata(bctx);
-        visit(bctx);
-
-        visit(exprctx);
+        if (node.body != null) {
+            node.body.accept(this);
+        }
 
-        if (!blocksmd.allExit) {
-            execute.visitJumpInsn(Opcodes.GOTO, branch.begin);
+        if (node.body == null || !node.body.exits()) {
+            execute.visitJumpInsn(Opcodes.GOTO, begin);
         }
 
-        execute.visitLabel(branch.end);
-        adapter.popJump();
+        execute.visitLabel(end);
+        loops.pop();
 
         return null;
     }
 
     @Override
-    public Void visitFor(final ForContext ctx) {
-        final ExpressionContext exprctx0 = ctx.expression(0);
-        final ExpressionContext exprctx1 = ctx.expression(1);
-        final Branch branch = adapter.markBranch(ctx, exprctx0);
+    Void visitDo(final IR.Do node) {
         final Label start = new Label();
-        branch.begin = exprctx1 == null ? start : new Label();
-        branch.end = new Label();
-        branch.fals = branch.end;
+        final Label begin = new Label();
+        final Label end = new Label();
 
-        adapter.pushJump(branch);
+        loops.push(new Loop(begin, end));
+        execute.visitLabel(start);
+        node.body.accept(this);
+        execute.visitLabel(begin);
+        writeBranch(node.condition, start, null);
+        execute.visitLabel(end);
+        loops.pop();
 
-        if (ctx.declaration() != null) {
-            visit(ctx.declaration());
+        return null;
+    }
+
+    @Override
+    Void visitFor(final IR.For node) {
+        final Label start = new Label();
+        final Label begin = node.afterthought == null ? start : new Label();
+        final Label end = new Label();
+
+        if (node.initializer != null) {
+            node.initializer.accept(this);
         }
 
+        loops.push(new Loop(begin, end));
         execute.visitLabel(start);
 
-        if (exprctx0 != null) {
-            visit(exprctx0);
+        if (node.condition != null) {
+            writeBranch(node.condition, null, end);
         }
 
-        final BlockContext blockctx = ctx.block();
-        boolean allexit = false;
-
-        if (blockctx != null) {
-            StatementMetadata blocksmd = adapter.getStatementMetadata(blockctx);
-            allexit = blocksmd.allExit;
-            visit(blockctx);
+        if (node.body != null) {
+            node.body.accept(this);
         }
 
-        if (exprctx1 != null) {
-            execute.visitLabel(branch.begin);
-            visit(exprctx1);
+        if (node.afterthought != null) {
+            execute.visitLabel(begin);
+            node.afterthought.accept(this);
         }
 
-        if (exprctx1 != null || !allexit) {
+        if (node.afterthought != null || node.body == null || !node.body.exits()) {
             execute.visitJumpInsn(Opcodes.GOTO, start);
         }
 
-        execute.visitLabel(branch.end);
-        adapter.popJump();
+        execute.visitLabel(end);
+        loops.pop();
 
         return null;
     }
 
     @Override
-    public Void visitDecl(final DeclContext ctx) {
-        visit(ctx.declaration());
+    Void visitReturn(final IR.Return node) {
+        if (returns == null) {
+            node.value.accept(this);
+            execute.visitInsn(Opcodes.ARETURN);
+
+            return null;
+        }
+
+        final IR.Expression value = unboxed(node.value);
+
+        if (batch != null) {
+            execute.visitVarInsn(Opcodes.ALOAD, batch.out);
+            execute.visitVarInsn(Opcodes.ILOAD, batch.index);
+        }
+
+        if (value instanceof IR.Constant) {
+            final Number number = (Number)((IR.Constant)value).value;
+            writeConstant(node.source, returns.metadata == TypeMetadata.DOUBLE ? (Object)number.doubleValue() :
+                    returns.metadata == TypeMetadata.FLOAT ? (Object)number.floatValue() : number.longValue());
+        } else {
+            value.accept(this);
+            caster.writeCast(execute, new Cast(value.type, returns));
+        }
+
+        if (batch != null) {
+            execute.visitInsn(Opcodes.DASTORE);
+            execute.visitJumpInsn(Opcodes.GOTO, batch.next);
+        } else {
+            execute.visitInsn(returnOpcode(returns));
+        }
 
         return null;
     }
 
     @Override
-    public Void visitContinue(final ContinueContext ctx) {
-        final Branch jump = adapter.peekJump();
-        execute.visitJumpInsn(Opcodes.GOTO, jump.begin);
+    Void visitBreak(final IR.Break node) {
+        execute.visitJumpInsn(Opcodes.GOTO, loops.peek().end);
 
         return null;
     }
 
     @Override
-    public Void visitBreak(final BreakContext ctx) {
-        final Branch jump = adapter.peekJump();
-        execute.visitJumpInsn(Opcodes.GOTO, jump.end);
+    Void visitContinue(final IR.Continue node) {
+        execute.visitJumpInsn(Opcodes.GOTO, loops.peek().begin);
 
         return null;
     }
 
     @Override
-    public Void visitReturn(final ReturnContext ctx) {
-        visit(ctx.expression());
-        execute.visitInsn(Opcodes.ARETURN);
+    Void visitEval(final IR.Eval node) {
+        node.expression.accept(this);
+        writePop(node.source, node.expression.type.metadata.size);
 
         return null;
     }
 
     @Override
-    public Void visitExpr(final ExprContext ctx) {
-        visit(ctx.expression());
+    Void visitConstant(final IR.Constant node) {
+        writeConstant(node.source, node.value);
 
         return null;
     }
 
     @Override
-    public Void visitMultiple(final MultipleContext ctx) {
-        for (final StatementContext sctx : ctx.statement()) {
-            visit(sctx);
-        }
+    Void visitNull(final IR.Null node) {
+        execute.visitInsn(Opcodes.ACONST_NULL);
 
         return null;
     }
 
     @Override
-    public Void visitSingle(final SingleContext ctx) {
-        visit(ctx.statement());
+    Void visitLoad(final IR.Load node) {
+        writeVariable(node.source, node.variable, false);
 
         return null;
     }
 
     @Override
-    public Void visitEmpty(final EmptyContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+    Void visitConvert(final IR.Convert node) {
+        node.expression.accept(this);
+        caster.checkWriteCast(execute, node.source, node.cast);
+
+        return null;
     }
 
     @Override
-    public Void visitDeclaration(DeclarationContext ctx) {
-        for (final DeclvarContext declctx : ctx.declvar()) {
-            visit(declctx);
+    Void visitUnary(final IR.Unary node) {
+        final TypeMetadata metadata = node.type.metadata;
+
+        node.expression.accept(this);
+
+        if (metadata == TypeMetadata.DEF) {
+            final String name = node.token == BWNOT ? "not" : node.token == SUB ? "neg" : "plus";
+            execute.visitMethodInsn(Opcodes.INVOKESTATIC, DEF_INTERNAL, name, "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+        } else if (node.token == BWNOT) {
+            if      (metadata == TypeMetadata.INT)  { writeConstant(node.source, -1);  execute.visitInsn(Opcodes.IXOR); }
+            else if (metadata == TypeMetadata.LONG) { writeConstant(node.source, -1L); execute.visitInsn(Opcodes.LXOR); }
+            else {
+                throw new IllegalStateException(error(node.source) + "Unexpected writer state.");
+            }
+        } else if (node.token == SUB) {
+            if      (metadata == TypeMetadata.INT)    execute.visitInsn(Opcodes.INEG);
+            else if (metadata == TypeMetadata.LONG)   execute.visitInsn(Opcodes.LNEG);
+            else if (metadata == TypeMetadata.FLOAT)  execute.visitInsn(Opcodes.FNEG);
+            else if (metadata == TypeMetadata.DOUBLE) execute.visitInsn(Opcodes.DNEG);
+            else {
+                throw new IllegalStateException(error(node.source) + "Unexpected writer state.");
+            }
+        } else if (node.token != ADD) {
+            throw new IllegalStateException(error(node.source) + "Unexpected writer state.");
         }
 
         return null;
     }
 
     @Override
-    public Void visitDecltype(final DecltypeContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+    Void visitNot(final IR.Not node) {
+        writeBooleanValue(node);
+
+        return null;
     }
 
     @Override
-    public Void visitDeclvar(final DeclvarContext ctx) {
-        final ExpressionMetadata declemd = adapter.getExpressionMetadata(ctx);
-        final Variable variable = (Variable)declemd.postConst;
+    Void visitBinary(final IR.Binary node) {
+        node.left.accept(this);
+        node.right.accept(this);
 
-        final ExpressionContext exprctx = ctx.expression();
-        final boolean initialize = exprctx == null;
+        writeBinary(node.source, node.type.metadata, node.token, node.right.type);
 
-        if (!initialize) {
-            visit(exprctx);
-        }
+        return null;
+    }
 
-        switch (variable.type.metadata) {
-            case VOID:   throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-            case BOOL:
-            case BYTE:
-            case SHORT:
-            case CHAR:
-            case INT:    if (initialize) writeNumeric(ctx, 0);    execute.visitVarInsn(Opcodes.ISTORE, variable.slot); break;
-            case LONG:   if (initialize) writeNumeric(ctx, 0L);   execute.visitVarInsn(Opcodes.LSTORE, variable.slot); break;
-            case FLOAT:  if (initialize) writeNumeric(ctx, 0.0F); execute.visitVarInsn(Opcodes.FSTORE, variable.slot); break;
-            case DOUBLE: if (initialize) writeNumeric(ctx, 0.0);  execute.visitVarInsn(Opcodes.DSTORE, variable.slot); break;
-            default:
-                if (initialize) {
-                    execute.visitInsn(Opcodes.ACONST_NULL);
-                }
+    @Override
+    Void visitCompare(final IR.Compare node) {
+        if (isEquals(node)) {
+            node.left.accept(this);
+            node.right.accept(this);
+            execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Object", "equals", "(Ljava/lang/Object;)Z", false);
 
-                execute.visitVarInsn(Opcodes.ASTORE, variable.slot);
+            if (node.token == NE) {
+                execute.visitInsn(Opcodes.ICONST_1);
+                execute.visitInsn(Opcodes.IXOR);
+            }
+        } else {
+            writeBooleanValue(node);
         }
 
         return null;
     }
 
     @Override
-    public Void visitPrecedence(final PrecedenceContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+    Void visitLogical(final IR.Logical node) {
+        writeBooleanValue(node);
+
+        return null;
     }
 
     @Override
-    public Void visitNumeric(final NumericContext ctx) {
-        final ExpressionMetadata numericemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = numericemd.postConst;
+    Void visitConditional(final IR.Conditional node) {
+        final Label fals = new Label();
+        final Label end = new Label();
 
-        if (postConst == null) {
-            writeNumeric(ctx, numericemd.preConst);
-            caster.checkWriteCast(execute, numericemd);
-        } else {
-            writeConstant(ctx, postConst);
-        }
-
-        adapter.checkWriteBranch(execute, ctx);
+        writeBranch(node.condition, null, fals);
+        node.left.accept(this);
+        execute.visitJumpInsn(Opcodes.GOTO, end);
+        execute.visitLabel(fals);
+        node.right.accept(this);
+        execute.visitLabel(end);
 
         return null;
     }
 
     @Override
-    public Void visitString(final StringContext ctx) {
-        final ExpressionMetadata stringemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = stringemd.postConst;
-
-        if (postConst == null) {
-            writeString(ctx, stringemd.preConst);
-            caster.checkWriteCast(execute, stringemd);
-        } else {
-            writeConstant(ctx, postConst);
-        }
-
-        adapter.checkWriteBranch(execute, ctx);
+    Void visitConcat(final IR.Concat node) {
+        writeNewStrings();
+        writeAppendParts(node);
+        writeToStrings();
 
         return null;
     }
 
     @Override
-    public Void visitChar(final CharContext ctx) {
-        final ExpressionMetadata charemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = charemd.postConst;
-
-        if (postConst == null) {
-            writeNumeric(ctx, (int)(char)charemd.preConst);
-            caster.checkWriteCast(execute, charemd);
-        } else {
-            writeConstant(ctx, postConst);
+    Void visitLoadField(final IR.LoadField node) {
+        if (node.receiver != null) {
+            node.receiver.accept(this);
         }
 
-        adapter.checkWriteBranch(execute, ctx);
+        writeField(node.field, false);
 
         return null;
     }
 
     @Override
-    public Void visitTrue(final TrueContext ctx) {
-        final ExpressionMetadata trueemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = trueemd.postConst;
-        final Branch branch = adapter.getBranch(ctx);
-
-        if (branch == null) {
-            if (postConst == null) {
-                writeBoolean(ctx, true);
-                caster.checkWriteCast(execute, trueemd);
-            } else {
-                writeConstant(ctx, postConst);
-            }
-        } else if (branch.tru != null) {
-            execute.visitJumpInsn(Opcodes.GOTO, branch.tru);
-        }
+    Void visitLength(final IR.Length node) {
+        node.array.accept(this);
+        execute.visitInsn(Opcodes.ARRAYLENGTH);
 
         return null;
     }
 
     @Override
-    public Void visitFalse(final FalseContext ctx) {
-        final ExpressionMetadata falseemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = falseemd.postConst;
-        final Branch branch = adapter.getBranch(ctx);
-
-        if (branch == null) {
-            if (postConst == null) {
-                writeBoolean(ctx, false);
-                caster.checkWriteCast(execute, falseemd);
-            } else {
-                writeConstant(ctx, postConst);
-            }
-        } else if (branch.fals != null) {
-            execute.visitJumpInsn(Opcodes.GOTO, branch.fals);
-        }
+    Void visitLoadArray(final IR.LoadArray node) {
+        node.array.accept(this);
+        node.index.accept(this);
+        writeArray(node.source, node.type, false);
 
         return null;
     }
 
     @Override
-    public Void visitNull(final NullContext ctx) {
-        final ExpressionMetadata nullemd = adapter.getExpressionMetadata(ctx);
+    Void visitCall(final IR.Call node) {
+        final Method method = node.method;
 
-        execute.visitInsn(Opcodes.ACONST_NULL);
-        caster.checkWriteCast(execute, nullemd);
-        adapter.checkWriteBranch(execute, ctx);
+        if (node.receiver != null) {
+            node.receiver.accept(this);
+        }
+
+        for (final IR.Expression argument : node.arguments) {
+            argument.accept(this);
+        }
+
+        final String internal = method.owner.internal;
+
+        if (method.statik) {
+            execute.visitMethodInsn(Opcodes.INVOKESTATIC, internal, method.jname, method.descriptor, false);
+        } else if (java.lang.reflect.Modifier.isInterface(method.owner.clazz.getModifiers())) {
+            execute.visitMethodInsn(Opcodes.INVOKEINTERFACE, internal, method.jname, method.descriptor, true);
+        } else {
+            execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL, internal, method.jname, method.descriptor, false);
+        }
 
         return null;
     }
 
     @Override
-    public Void visitCat(CatContext ctx) {
-        final ExpressionMetadata catemd = adapter.getExpressionMetadata(ctx);
-        final boolean strings = adapter.getStrings(ctx);
+    Void visitNew(final IR.New node) {
+        final String internal = node.constructor.owner.internal;
 
-        if (catemd.postConst != null) {
-            writeConstant(ctx, catemd.postConst);
-        } else {
-            if (!strings) {
-                writeNewStrings();
-            }
-
-            final ExpressionContext exprctx0 = ctx.expression(0);
-            final ExpressionMetadata expremd0 = adapter.getExpressionMetadata(exprctx0);
-            adapter.markStrings(exprctx0);
-            visit(exprctx0);
+        execute.visitTypeInsn(Opcodes.NEW, internal);
+        execute.visitInsn(Opcodes.DUP);
 
-            if (adapter.getStrings(exprctx0)) {
-                writeAppendStrings(ctx, expremd0.to.metadata);
-                adapter.unmarkStrings(exprctx0);
-            }
+        for (final IR.Expression argument : node.arguments) {
+            argument.accept(this);
+        }
 
-            final ExpressionContext exprctx1 = ctx.expression(1);
-            final ExpressionMetadata expremd1 = adapter.getExpressionMetadata(exprctx1);
-            adapter.markStrings(exprctx1);
-            visit(exprctx1);
+        execute.visitMethodInsn(Opcodes.INVOKESPECIAL, internal, "<init>", node.constructor.descriptor, false);
 
-            if (adapter.getStrings(exprctx1)) {
-                writeAppendStrings(ctx, expremd1.to.metadata);
-                adapter.unmarkStrings(exprctx1);
-            }
+        return null;
+    }
 
-            if (strings) {
-                adapter.unmarkStrings(ctx);
-            } else {
-                writeToStrings();
-            }
+    @Override
+    Void visitNewArray(final IR.NewArray node) {
+        final Type element = node.element;
+        final int dimensions = node.dimensions.size();
 
-            caster.checkWriteCast(execute, catemd);
+        for (final IR.Expression dimension : node.dimensions) {
+            dimension.accept(this);
         }
 
-        adapter.checkWriteBranch(execute, ctx);
+        if (dimensions == 1) {
+            switch (element.metadata) {
+                case VOID:   throw new IllegalStateException(error(node.source) + "Unexpected writer state.");
+                case BOOL:   execute.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BOOLEAN); break;
+                case BYTE:   execute.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BYTE);    break;
+                case SHORT:  execute.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_SHORT);   break;
+                case CHAR:   execute.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_CHAR);    break;
+                case INT:    execute.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);     break;
+                case LONG:   execute.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_LONG);    break;
+                case FLOAT:  execute.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_FLOAT);   break;
+                case DOUBLE: execute.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_DOUBLE);  break;
+                default:     execute.visitTypeInsn(Opcodes.ANEWARRAY, element.internal);
+            }
+        } else if (dimensions > 0) {
+            execute.visitMultiANewArrayInsn(node.type.descriptor, dimensions);
+        } else {
+            throw new IllegalStateException(error(node.source) + "Unexpected writer state.");
+        }
 
         return null;
     }
 
     @Override
-    public Void visitExt(final ExtContext ctx) {
-        final External external = adapter.getExternal(ctx);
-        external.setWriter(this, execute);
-        external.write(ctx);
+    Void visitDynamic(final IR.Dynamic node) {
+        node.receiver.accept(this);
+
+        for (final IR.Expression argument : node.arguments) {
+            argument.accept(this);
+        }
+
+        writeDynamic(node.flavor, node.name, node.arguments.size() + 1, false);
 
         return null;
     }
 
-
+    /**
+     * Writes the operands of the target first, which stay on the stack beneath the value until the
+     * store, so a compound assignment duplicates them to load the current value and a read duplicates
+     * the value beneath them.
+     */
     @Override
-    public Void visitPostinc(final PostincContext ctx) {
-        final External external = adapter.getExternal(ctx);
-        external.setWriter(this, execute);
-        external.write(ctx);
+    Void visitBound(final IR.Bound node) {
+        final TypeMetadata metadata = node.type.metadata;
+
+        node.input.accept(this);
+        execute.visitVarInsn(Opcodes.ALOAD, 0);
+        writeNumeric(node.source, node.slot);
+        writeString(node.source, node.name);
+
+        if (metadata == TypeMetadata.LONG) {
+            execute.visitMethodInsn(Opcodes.INVOKESTATIC, BINDINGS_INTERNAL, "getLong", BINDINGS_LONG_DESCRIPTOR, false);
+        } else if (metadata == TypeMetadata.DOUBLE) {
+            execute.visitMethodInsn(Opcodes.INVOKESTATIC, BINDINGS_INTERNAL, "getDouble", BINDINGS_DOUBLE_DESCRIPTOR, false);
+        } else {
+            execute.visitMethodInsn(Opcodes.INVOKESTATIC, BINDINGS_INTERNAL, "get", BINDINGS_GET_DESCRIPTOR, false);
+        }
 
         return null;
     }
 
     @Override
-    public Void visitPreinc(final PreincContext ctx) {
-        final External external = adapter.getExternal(ctx);
-        external.setWriter(this, execute);
-        external.write(ctx);
+    Void visitDocValue(final IR.DocValue node) {
+        final boolean integral = node.type.metadata == TypeMetadata.LONG;
+
+        node.input.accept(this);
+        execute.visitVarInsn(Opcodes.ALOAD, 0);
+        writeNumeric(node.source, node.slot);
+        writeString(node.source, node.field);
+        execute.visitMethodInsn(Opcodes.INVOKESTATIC, BINDINGS_INTERNAL, integral ? "longValue" : "doubleValue",
+                integral ? BINDINGS_LONG_DESCRIPTOR : BINDINGS_DOUBLE_DESCRIPTOR, false);
 
         return null;
     }
 
     @Override
-    public Void visitUnary(final UnaryContext ctx) {
-        final ExpressionMetadata unaryemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = unaryemd.postConst;
-        final Object preConst = unaryemd.preConst;
-        final Branch branch = adapter.getBranch(ctx);
-
-        if (postConst != null) {
-            if (ctx.BOOLNOT() != null) {
-                if (branch == null) {
-                    writeConstant(ctx, postConst);
-                } else {
-                    if ((boolean)postConst && branch.tru != null) {
-                        execute.visitJumpInsn(Opcodes.GOTO, branch.tru);
-                    } else if (!(boolean)postConst && branch.fals != null) {
-                        execute.visitJumpInsn(Opcodes.GOTO, branch.fals);
-                    }
-                }
+    Void visitAssign(final IR.Assign node) {
+        final IR.Expression target = node.target;
+        final int size = target.type.metadata.size;
+        final int operands;
+
+        if (node.token == CAT) {
+            writeNewStrings();
+        }
+
+        if (target instanceof IR.Load) {
+            operands = 0;
+        } else if (target instanceof IR.LoadField) {
+            final IR.LoadField field = (IR.LoadField)target;
+
+            if (field.receiver == null) {
+                operands = 0;
             } else {
-                writeConstant(ctx, postConst);
-                adapter.checkWriteBranch(execute, ctx);
+                field.receiver.accept(this);
+                operands = 1;
             }
-        } else if (preConst != null) {
-            if (branch == null) {
-                writeConstant(ctx, preConst);
-                caster.checkWriteCast(execute, unaryemd);
-            } else {
-                throw new IllegalStateException(error(ctx) + "Unexpected parser state.");
+        } else if (target instanceof IR.LoadArray) {
+            final IR.LoadArray array = (IR.LoadArray)target;
+            array.array.accept(this);
+            array.index.accept(this);
+            operands = 2;
+        } else if (target instanceof IR.Dynamic) {
+            final IR.Dynamic dynamic = (IR.Dynamic)target;
+            dynamic.receiver.accept(this);
+
+            for (final IR.Expression argument : dynamic.arguments) {
+                argument.accept(this);
             }
+
+            operands = dynamic.arguments.size() + 1;
         } else {
-            final ExpressionContext exprctx = ctx.expression();
+            throw new IllegalStateException(error(node.source) + "Unexpected writer state.");
+        }
 
-            if (ctx.BOOLNOT() != null) {
-                final Branch local = adapter.markBranch(ctx, exprctx);
+        if (node.token == CAT) {
+            if (operands == 1) {
+                execute.visitInsn(Opcodes.DUP_X1);
+            } else if (operands == 2) {
+                execute.visitInsn(Opcodes.DUP2_X1);
+            }
 
-                if (branch == null) {
-                    local.fals = new Label();
-                    final Label aend = new Label();
+            writeTarget(target, false);
+            writeAppendStrings(node.source, target.type.metadata);
 
-                    visit(exprctx);
+            if (node.value instanceof IR.Concat) {
+                writeAppendParts((IR.Concat)node.value);
+            } else {
+                node.value.accept(this);
+                writeAppendStrings(node.value.source, node.value.type.metadata);
+            }
 
-                    execute.visitInsn(Opcodes.ICONST_0);
-                    execute.visitJumpInsn(Opcodes.GOTO, aend);
-                    execute.visitLabel(local.fals);
-                    execute.visitInsn(Opcodes.ICONST_1);
-                    execute.visitLabel(aend);
+            writeToStrings();
+            caster.checkWriteCast(execute, node.source, node.demote);
 
-                    caster.checkWriteCast(execute, unaryemd);
-                } else {
-                    local.tru = branch.fals;
-                    local.fals = branch.tru;
+            if (node.read) {
+                writeDup(node.source, size, operands);
+            }
+        } else if (node.token > 0) {
+            if (operands == 1) {
+                execute.visitInsn(Opcodes.DUP);
+            } else if (operands == 2) {
+                execute.visitInsn(Opcodes.DUP2);
+            }
 
-                    visit(exprctx);
-                }
-            } else {
-                final TypeMetadata metadata = unaryemd.from.metadata;
+            writeTarget(target, false);
 
-                visit(exprctx);
+            if (node.read && node.post) {
+                writeDup(node.source, size, operands);
+            }
 
-                if (ctx.BWNOT() != null) {
-                    if      (metadata == TypeMetadata.INT)  { writeConstant(ctx, -1);  execute.visitInsn(Opcodes.IXOR); }
-                    else if (metadata == TypeMetadata.LONG) { writeConstant(ctx, -1L); execute.visitInsn(Opcodes.LXOR); }
-                    else {
-                        throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                    }
-                } else if (ctx.SUB() != null) {
-                    if      (metadata == TypeMetadata.INT)    execute.visitInsn(Opcodes.INEG);
-                    else if (metadata == TypeMetadata.LONG)   execute.visitInsn(Opcodes.LNEG);
-                    else if (metadata == TypeMetadata.FLOAT)  execute.visitInsn(Opcodes.FNEG);
-                    else if (metadata == TypeMetadata.DOUBLE) execute.visitInsn(Opcodes.DNEG);
-                    else {
-                        throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                    }
-                }
+            caster.checkWriteCast(execute, node.source, node.promote);
+            node.value.accept(this);
+            writeBinary(node.source, node.promote.to.metadata, node.token, node.value.type);
+            caster.checkWriteCast(execute, node.source, node.demote);
 
-                caster.checkWriteCast(execute, unaryemd);
-                adapter.checkWriteBranch(execute, ctx);
+            if (node.read && !node.post) {
+                writeDup(node.source, size, operands);
+            }
+        } else {
+            node.value.accept(this);
+
+            if (node.read) {
+                writeDup(node.source, size, operands);
             }
         }
 
+        writeTarget(target, true);
+
         return null;
     }
 
     @Override
-    public Void visitCast(final CastContext ctx) {
-        final ExpressionMetadata castemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = castemd.postConst;
-
-        if (postConst == null) {
-            visit(ctx.expression());
-            caster.checkWriteCast(execute, castemd);
-        } else {
-            writeConstant(ctx, postConst);
+    Void visitIncrement(final IR.Increment node) {
+        if (node.read && node.post) {
+            writeVariable(node.source, node.variable, false);
         }
 
-        adapter.checkWriteBranch(execute, ctx);
+        execute.visitIincInsn(node.variable.slot, node.value);
+
+        if (node.read && !node.post) {
+            writeVariable(node.source, node.variable, false);
+        }
 
         return null;
     }
 
-    @Override
-    public Void visitBinary(final BinaryContext ctx) {
-        final ExpressionMetadata binaryemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = binaryemd.postConst;
-        final Object preConst = binaryemd.preConst;
-        final Branch branch = adapter.getBranch(ctx);
-
-        if (postConst != null) {
-            writeConstant(ctx, postConst);
-        } else if (preConst != null) {
-            if (branch == null) {
-                writeConstant(ctx, preConst);
-                caster.checkWriteCast(execute, binaryemd);
-            } else {
-                throw new IllegalStateException(error(ctx) + "Unexpected parser state.");
+    /**
+     * Writes a boolean expression as a branch that jumps to tru when the expression is true and to fals
+     * when it is false, where a null label falls through to the code written next instead.  Conditions
+     * made of comparisons, nots and short-circuiting operators jump directly without ever putting a
+     * boolean value on the stack.
+     */
+    private void writeBranch(final IR.Expression expression, final Label tru, final Label fals) {
+        if (expression instanceof IR.Constant) {
+            final boolean value = (boolean)((IR.Constant)expression).value;
+
+            if (value && tru != null) {
+                execute.visitJumpInsn(Opcodes.GOTO, tru);
+            } else if (!value && fals != null) {
+                execute.visitJumpInsn(Opcodes.GOTO, fals);
             }
-        } else {
-            writeConstant(ctx, postConst);
-            final ExpressionContext expr0 = ctx.expression(0);
-            final ExpressionContext expr1 = ctx.expression(1);
+        } else if (expression instanceof IR.Not) {
+            writeBranch(((IR.Not)expression).expression, fals, tru);
+        } else if (expression instanceof IR.Logical) {
+            final IR.Logical logical = (IR.Logical)expression;
 
-            visit(expr0);
-            visit(expr1);
+            if (logical.token == BOOLAND) {
+                final Label local = fals == null ? new Label() : fals;
 
-            final TypeMetadata metadata = binaryemd.from.metadata;
+                writeBranch(logical.left, null, local);
+                writeBranch(logical.right, tru, fals);
 
-            // if its a 64-bit shift, fixup the last argument to truncate to 32-bits
-            // note unlike java, this means we still do binary promotion of shifts,
-            // but it keeps things simple
-
-            if (ctx.LSH() != null || ctx.USH() != null || ctx.RSH() != null) {
-                // if expr1 is 64 bits
-                ExpressionMetadata arg = adapter.getExpressionMetadata(expr1);
-                if (arg.cast.to.metadata == TypeMetadata.LONG) {
-                    execute.visitInsn(Opcodes.L2I);
+                if (fals == null) {
+                    execute.visitLabel(local);
                 }
-            }
-
-            if      (ctx.MUL()   != null) writeBinaryInstruction(ctx, metadata, MUL);
-            else if (ctx.DIV()   != null) writeBinaryInstruction(ctx, metadata, DIV);
-            else if (ctx.REM()   != null) writeBinaryInstruction(ctx, metadata, REM);
-            else if (ctx.SUB()   != null) writeBinaryInstruction(ctx, metadata, SUB);
-            else if (ctx.LSH()   != null) writeBinaryInstruction(ctx, metadata, LSH);
-            else if (ctx.USH()   != null) writeBinaryInstruction(ctx, metadata, USH);
-            else if (ctx.RSH()   != null) writeBinaryInstruction(ctx, metadata, RSH);
-            else if (ctx.BWAND() != null) writeBinaryInstruction(ctx, metadata, BWAND);
-            else if (ctx.BWXOR() != null) writeBinaryInstruction(ctx, metadata, BWXOR);
-            else if (ctx.BWOR()  != null) writeBinaryInstruction(ctx, metadata, BWOR);
-            else if (ctx.ADD()   != null) writeBinaryInstruction(ctx, metadata, ADD);
-            else {
-                throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-            }
-
-            caster.checkWriteCast(execute, binaryemd);
-        }
+            } else if (logical.token == BOOLOR) {
+                final Label local = tru == null ? new Label() : tru;
 
-        adapter.checkWriteBranch(execute, ctx);
+                writeBranch(logical.left, local, null);
+                writeBranch(logical.right, tru, fals);
 
-        return null;
-    }
-
-    @Override
-    public Void visitComp(final CompContext ctx) {
-        final ExpressionMetadata compemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = compemd.postConst;
-        final Object preConst = compemd.preConst;
-        final Branch branch = adapter.getBranch(ctx);
-
-        if (postConst != null) {
-            if (branch == null) {
-                writeConstant(ctx, postConst);
-            } else {
-                if ((boolean)postConst && branch.tru != null) {
-                    execute.visitLabel(branch.tru);
-                } else if (!(boolean)postConst && branch.fals != null) {
-                    execute.visitLabel(branch.fals);
+                if (tru == null) {
+                    execute.visitLabel(local);
                 }
-            }
-        } else if (preConst != null) {
-            if (branch == null) {
-                writeConstant(ctx, preConst);
-                caster.checkWriteCast(execute, compemd);
             } else {
-                throw new IllegalStateException(error(ctx) + "Unexpected parser state.");
+                throw new IllegalStateException(error(expression.source) + "Unexpected writer state.");
             }
+        } else if (expression instanceof IR.Compare) {
+            writeCompare((IR.Compare)expression, tru, fals);
         } else {
-            final ExpressionContext exprctx0 = ctx.expression(0);
-            final ExpressionMetadata expremd0 = adapter.getExpressionMetadata(exprctx0);
+            expression.accept(this);
 
-            final ExpressionContext exprctx1 = ctx.expression(1);
-            final ExpressionMetadata expremd1 = adapter.getExpressionMetadata(exprctx1);
-            final TypeMetadata tmd1 = expremd1.to.metadata;
+            if (tru != null) {
+                execute.visitJumpInsn(Opcodes.IFNE, tru);
 
-            visit(exprctx0);
-
-            if (!expremd1.isNull) {
-                visit(exprctx1);
+                if (fals != null) {
+                    execute.visitJumpInsn(Opcodes.GOTO, fals);
+                }
+            } else if (fals != null) {
+                execute.visitJumpInsn(Opcodes.IFEQ, fals);
+            } else {
+                execute.visitInsn(Opcodes.POP);
             }
+        }
+    }
 
-            final boolean tru = branch != null && branch.tru != null;
-            final boolean fals = branch != null && branch.fals != null;
-            final Label jump = tru ? branch.tru : fals ? branch.fals : new Label();
-            final Label end = new Label();
-
-            final boolean eq = (ctx.EQ() != null || ctx.EQR() != null) && (tru || !fals) ||
-                    (ctx.NE() != null || ctx.NER() != null) && fals;
-            final boolean ne = (ctx.NE() != null || ctx.NER() != null) && (tru || !fals) ||
-                    (ctx.EQ() != null || ctx.EQR() != null) && fals;
-            final boolean lt  = ctx.LT()  != null && (tru || !fals) || ctx.GTE() != null && fals;
-            final boolean lte = ctx.LTE() != null && (tru || !fals) || ctx.GT()  != null && fals;
-            final boolean gt  = ctx.GT()  != null && (tru || !fals) || ctx.LTE() != null && fals;
-            final boolean gte = ctx.GTE() != null && (tru || !fals) || ctx.LT()  != null && fals;
-
-            boolean eqobj = false;
-
-            switch (tmd1) {
-                case VOID:
-                    throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                case BOOL:
-                    if      (eq) execute.visitJumpInsn(Opcodes.IF_ICMPEQ, jump);
-                    else if (ne) execute.visitJumpInsn(Opcodes.IF_ICMPNE, jump);
-                    else {
-                        throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                    }
+    private void writeBooleanValue(final IR.Expression expression) {
+        final Label fals = new Label();
+        final Label end = new Label();
 
-                    break;
-                case BYTE:
-                case SHORT:
-                case CHAR:
-                    throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                case INT:
-                    if      (eq)  execute.visitJumpInsn(Opcodes.IF_ICMPEQ, jump);
-                    else if (ne)  execute.visitJumpInsn(Opcodes.IF_ICMPNE, jump);
-                    else if (lt)  execute.visitJumpInsn(Opcodes.IF_ICMPLT, jump);
-                    else if (lte) execute.visitJumpInsn(Opcodes.IF_ICMPLE, jump);
-                    else if (gt)  execute.visitJumpInsn(Opcodes.IF_ICMPGT, jump);
-                    else if (gte) execute.visitJumpInsn(Opcodes.IF_ICMPGE, jump);
-                    else {
-                        throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                    }
+        writeBranch(expression, null, fals);
+        execute.visitInsn(Opcodes.ICONST_1);
+        execute.visitJumpInsn(Opcodes.GOTO, end);
+        execute.visitLabel(fals);
+        execute.visitInsn(Opcodes.ICONST_0);
+        execute.visitLabel(end);
+    }
 
-                    break;
-                case LONG:
-                    execute.visitInsn(Opcodes.LCMP);
+    /** Returns true if the comparison is done with {@link Object#equals(Object)} rather than by reference. */
+    private static boolean isEquals(final IR.Compare compare) {
+        return (compare.token == EQ || compare.token == NE) && compare.promote.metadata.object &&
+                compare.promote.metadata != TypeMetadata.DEF &&
+                !(compare.left instanceof IR.Null) && !(compare.right instanceof IR.Null);
+    }
 
-                    if      (eq)  execute.visitJumpInsn(Opcodes.IFEQ, jump);
-                    else if (ne)  execute.visitJumpInsn(Opcodes.IFNE, jump);
-                    else if (lt)  execute.visitJumpInsn(Opcodes.IFLT, jump);
-                    else if (lte) execute.visitJumpInsn(Opcodes.IFLE, jump);
-                    else if (gt)  execute.visitJumpInsn(Opcodes.IFGT, jump);
-                    else if (gte) execute.visitJumpInsn(Opcodes.IFGE, jump);
-                    else {
-                        throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                    }
+    private void writeCompare(final IR.Compare compare, final Label tru, final Label fals) {
+        final ParserRuleContext source = compare.source;
+        final boolean negate = tru == null;
+        final Label jump = negate ? fals : tru;
+        final int token = negate ? negateComparison(source, compare.token) : compare.token;
 
-                    break;
-                case FLOAT:
-                    if      (eq)  { execute.visitInsn(Opcodes.FCMPL); execute.visitJumpInsn(Opcodes.IFEQ, jump); }
-                    else if (ne)  { execute.visitInsn(Opcodes.FCMPL); execute.visitJumpInsn(Opcodes.IFNE, jump); }
-                    else if (lt)  { execute.visitInsn(Opcodes.FCMPG); execute.visitJumpInsn(Opcodes.IFLT, jump); }
-                    else if (lte) { execute.visitInsn(Opcodes.FCMPG); execute.visitJumpInsn(Opcodes.IFLE, jump); }
-                    else if (gt)  { execute.visitInsn(Opcodes.FCMPL); execute.visitJumpInsn(Opcodes.IFGT, jump); }
-                    else if (gte) { execute.visitInsn(Opcodes.FCMPL); execute.visitJumpInsn(Opcodes.IFGE, jump); }
-                    else {
-                        throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                    }
+        if (jump == null) {
+            throw new IllegalStateException(error(source) + "Unexpected writer state.");
+        }
 
-                    break;
-                case DOUBLE:
-                    if      (eq)  { execute.visitInsn(Opcodes.DCMPL); execute.visitJumpInsn(Opcodes.IFEQ, jump); }
-                    else if (ne)  { execute.visitInsn(Opcodes.DCMPL); execute.visitJumpInsn(Opcodes.IFNE, jump); }
-                    else if (lt)  { execute.visitInsn(Opcodes.DCMPG); execute.visitJumpInsn(Opcodes.IFLT, jump); }
-                    else if (lte) { execute.visitInsn(Opcodes.DCMPG); execute.visitJumpInsn(Opcodes.IFLE, jump); }
-                    else if (gt)  { execute.visitInsn(Opcodes.DCMPL); execute.visitJumpInsn(Opcodes.IFGT, jump); }
-                    else if (gte) { execute.visitInsn(Opcodes.DCMPL); execute.visitJumpInsn(Opcodes.IFGE, jump); }
-                    else {
-                        throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                    }
+        compare.left.accept(this);
 
-                    break;
-                default:
-                    if (eq) {
-                        if (expremd1.isNull) {
-                            execute.visitJumpInsn(Opcodes.IFNULL, jump);
-                        } else if (!expremd0.isNull && ctx.EQ() != null) {
-                            execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL,
-                                    "java/lang/Object", "equals", "(Ljava/lang/Object;)Z", false);
-
-                            if (branch != null) {
-                                execute.visitJumpInsn(Opcodes.IFNE, jump);
-                            }
-
-                            eqobj = true;
-                        } else {
-                            execute.visitJumpInsn(Opcodes.IF_ACMPEQ, jump);
-                        }
-                    } else if (ne) {
-                        if (expremd1.isNull) {
-                            execute.visitJumpInsn(Opcodes.IFNONNULL, jump);
-                        } else if (!expremd0.isNull && ctx.NE() != null) {
-                            execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL,
-                                    "java/lang/Object", "equals", "(Ljava/lang/Object;)Z", false);
-                            execute.visitJumpInsn(Opcodes.IFEQ, jump);
-                        } else {
-                            execute.visitJumpInsn(Opcodes.IF_ACMPNE, jump);
-                        }
-                    } else {
-                        throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
-                    }
-            }
+        if (!(compare.right instanceof IR.Null)) {
+            compare.right.accept(this);
+        }
 
-            if (branch == null) {
-                if (!eqobj) {
-                    execute.visitInsn(Opcodes.ICONST_0);
-                    execute.visitJumpInsn(Opcodes.GOTO, end);
-                    execute.visitLabel(jump);
-                    execute.visitInsn(Opcodes.ICONST_1);
-                    execute.visitLabel(end);
-                }
+        if (compare.promote.metadata == TypeMetadata.DEF && compare.token != EQR && compare.token != NER &&
+                !(compare.left instanceof IR.Null) && !(compare.right instanceof IR.Null)) {
+            // the method is for the comparison as written, so it is the result that is negated rather than the token
+            final String name = Def.getCompareName(compare.token);
+            execute.visitMethodInsn(Opcodes.INVOKESTATIC, DEF_INTERNAL, name, "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+            execute.visitJumpInsn(compare.token == NE ^ negate ? Opcodes.IFEQ : Opcodes.IFNE, jump);
 
-                caster.checkWriteCast(execute, compemd);
+            if (tru != null && fals != null) {
+                execute.visitJumpInsn(Opcodes.GOTO, fals);
             }
+
+            return;
         }
 
-        return null;
-    }
+        switch (compare.promote.metadata) {
+            case BOOL:
+                if      (token == EQ || token == EQR) execute.visitJumpInsn(Opcodes.IF_ICMPEQ, jump);
+                else if (token == NE || token == NER) execute.visitJumpInsn(Opcodes.IF_ICMPNE, jump);
+                else {
+                    throw new IllegalStateException(error(source) + "Unexpected writer state.");
+                }
 
-    @Override
-    public Void visitBool(final BoolContext ctx) {
-        final ExpressionMetadata boolemd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = boolemd.postConst;
-        final Object preConst = boolemd.preConst;
-        final Branch branch = adapter.getBranch(ctx);
-
-        if (postConst != null) {
-            if (branch == null) {
-                writeConstant(ctx, postConst);
-            } else {
-                if ((boolean)postConst && branch.tru != null) {
-                    execute.visitLabel(branch.tru);
-                } else if (!(boolean)postConst && branch.fals != null) {
-                    execute.visitLabel(branch.fals);
+                break;
+            case INT:
+                if      (token == EQ || token == EQR) execute.visitJumpInsn(Opcodes.IF_ICMPEQ, jump);
+                else if (token == NE || token == NER) execute.visitJumpInsn(Opcodes.IF_ICMPNE, jump);
+                else if (token == LT)                 execute.visitJumpInsn(Opcodes.IF_ICMPLT, jump);
+                else if (token == LTE)                execute.visitJumpInsn(Opcodes.IF_ICMPLE, jump);
+                else if (token == GT)                 execute.visitJumpInsn(Opcodes.IF_ICMPGT, jump);
+                else if (token == GTE)                execute.visitJumpInsn(Opcodes.IF_ICMPGE, jump);
+                else {
+                    throw new IllegalStateException(error(source) + "Unexpected writer state.");
                 }
-            }
-        } else if (preConst != null) {
-            if (branch == null) {
-                writeConstant(ctx, preConst);
-                caster.checkWriteCast(execute, boolemd);
-            } else {
-                throw new IllegalStateException(error(ctx) + "Unexpected parser state.");
-            }
-        } else {
-            final ExpressionContext exprctx0 = ctx.expression(0);
-            final ExpressionContext exprctx1 = ctx.expression(1);
-
-            if (branch == null) {
-                if (ctx.BOOLAND() != null) {
-                    final Branch local = adapter.markBranch(ctx, exprctx0, exprctx1);
-                    local.fals = new Label();
-                    final Label end = new Label();
-
-                    visit(exprctx0);
-                    visit(exprctx1);
-
-                    execute.visitInsn(Opcodes.ICONST_1);
-                    execute.visitJumpInsn(Opcodes.GOTO, end);
-                    execute.visitLabel(local.fals);
-                    execute.visitInsn(Opcodes.ICONST_0);
-                    execute.visitLabel(end);
-                } else if (ctx.BOOLOR() != null) {
-                    final Branch branch0 = adapter.markBranch(ctx, exprctx0);
-                    branch0.tru = new Label();
-                    final Branch branch1 = adapter.markBranch(ctx, exprctx1);
-                    branch1.fals = new Label();
-                    final Label aend = new Label();
-
-                    visit(exprctx0);
-                    visit(exprctx1);
-
-                    execute.visitLabel(branch0.tru);
-                    execute.visitInsn(Opcodes.ICONST_1);
-                    execute.visitJumpInsn(Opcodes.GOTO, aend);
-                    execute.visitLabel(branch1.fals);
-                    execute.visitInsn(Opcodes.ICONST_0);
-                    execute.visitLabel(aend);
-                } else {
-                    throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
+
+                break;
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                // a comparison with NaN is always false, so the instruction is chosen from the comparison
+                // as written to push a result that fails it even when the jump is for the negation
+                final boolean greater = compare.token == LT || compare.token == LTE;
+
+                switch (compare.promote.metadata) {
+                    case LONG:   execute.visitInsn(Opcodes.LCMP);                                 break;
+                    case FLOAT:  execute.visitInsn(greater ? Opcodes.FCMPG : Opcodes.FCMPL); break;
+                    case DOUBLE: execute.visitInsn(greater ? Opcodes.DCMPG : Opcodes.DCMPL); break;
                 }
 
-                caster.checkWriteCast(execute, boolemd);
-            } else {
-                if (ctx.BOOLAND() != null) {
-                    final Branch branch0 = adapter.markBranch(ctx, exprctx0);
-                    branch0.fals = branch.fals == null ? new Label() : branch.fals;
-                    final Branch branch1 = adapter.markBranch(ctx, exprctx1);
-                    branch1.tru = branch.tru;
-                    branch1.fals = branch.fals;
-
-                    visit(exprctx0);
-                    visit(exprctx1);
-
-                    if (branch.fals == null) {
-                        execute.visitLabel(branch0.fals);
+                if      (token == EQ || token == EQR) execute.visitJumpInsn(Opcodes.IFEQ, jump);
+                else if (token == NE || token == NER) execute.visitJumpInsn(Opcodes.IFNE, jump);
+                else if (token == LT)                 execute.visitJumpInsn(Opcodes.IFLT, jump);
+                else if (token == LTE)                execute.visitJumpInsn(Opcodes.IFLE, jump);
+                else if (token == GT)                 execute.visitJumpInsn(Opcodes.IFGT, jump);
+                else if (token == GTE)                execute.visitJumpInsn(Opcodes.IFGE, jump);
+                else {
+                    throw new IllegalStateException(error(source) + "Unexpected writer state.");
+                }
+
+                break;
+            case VOID:
+            case BYTE:
+            case SHORT:
+            case CHAR:
+                throw new IllegalStateException(error(source) + "Unexpected writer state.");
+            default:
+                if (compare.right instanceof IR.Null) {
+                    if      (token == EQ || token == EQR) execute.visitJumpInsn(Opcodes.IFNULL, jump);
+                    else if (token == NE || token == NER) execute.visitJumpInsn(Opcodes.IFNONNULL, jump);
+                    else {
+                        throw new IllegalStateException(error(source) + "Unexpected writer state.");
                     }
-                } else if (ctx.BOOLOR() != null) {
-                    final Branch branch0 = adapter.markBranch(ctx, exprctx0);
-                    branch0.tru = branch.tru == null ? new Label() : branch.tru;
-                    final Branch branch1 = adapter.markBranch(ctx, exprctx1);
-                    branch1.tru = branch.tru;
-                    branch1.fals = branch.fals;
-
-                    visit(exprctx0);
-                    visit(exprctx1);
-
-                    if (branch.tru == null) {
-                        execute.visitLabel(branch0.tru);
+                } else if (isEquals(compare)) {
+                    execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL,
+                            "java/lang/Object", "equals", "(Ljava/lang/Object;)Z", false);
+
+                    if      (token == EQ) execute.visitJumpInsn(Opcodes.IFNE, jump);
+                    else if (token == NE) execute.visitJumpInsn(Opcodes.IFEQ, jump);
+                    else {
+                        throw new IllegalStateException(error(source) + "Unexpected writer state.");
                     }
                 } else {
-                    throw new IllegalStateException(error(ctx) + "Unexpected writer state.");
+                    if      (token == EQ || token == EQR) execute.visitJumpInsn(Opcodes.IF_ACMPEQ, jump);
+                    else if (token == NE || token == NER) execute.visitJumpInsn(Opcodes.IF_ACMPNE, jump);
+                    else {
+                        throw new IllegalStateException(error(source) + "Unexpected writer state.");
+                    }
                 }
-            }
         }
 
-        return null;
+        if (tru != null && fals != null) {
+            execute.visitJumpInsn(Opcodes.GOTO, fals);
+        }
     }
 
-    @Override
-    public Void visitConditional(final ConditionalContext ctx) {
-        final ExpressionMetadata condemd = adapter.getExpressionMetadata(ctx);
-        final Branch branch = adapter.getBranch(ctx);
-
-        final ExpressionContext expr0 = ctx.expression(0);
-        final ExpressionContext expr1 = ctx.expression(1);
-        final ExpressionContext expr2 = ctx.expression(2);
-
-        final Branch local = adapter.markBranch(ctx, expr0);
-        local.fals = new Label();
-        local.end = new Label();
-
-        visit(expr0);
-        visit(expr1);
-        execute.visitJumpInsn(Opcodes.GOTO, local.end);
-        execute.visitLabel(local.fals);
-        visit(expr2);
-        execute.visitLabel(local.end);
-
-        if (branch == null) {
-            caster.checkWriteCast(execute, condemd);
+    private static int negateComparison(final ParserRuleContext source, final int token) {
+        switch (token) {
+            case EQ:  return NE;
+            case EQR: return NER;
+            case NE:  return EQ;
+            case NER: return EQR;
+            case LT:  return GTE;
+            case LTE: return GT;
+            case GT:  return LTE;
+            case GTE: return LT;
+            default:
+                throw new IllegalStateException(error(source) + "Unexpected writer state.");
         }
-
-        return null;
     }
 
-    @Override
-    public Void visitAssignment(final AssignmentContext ctx) {
-        final External external = adapter.getExternal(ctx);
-        external.setWriter(this, execute);
-        external.write(ctx);
+    private void writeVariable(final ParserRuleContext source, final Variable variable, final boolean store) {
+        final int slot = variable.slot;
 
-        return null;
+        switch (variable.type.metadata) {
+            case VOID:   throw new IllegalStateException(error(source) + "Unexpected writer state.");
+            case BOOL:
+            case BYTE:
+            case SHORT:
+            case CHAR:
+            case INT:    execute.visitVarInsn(store ? Opcodes.ISTORE : Opcodes.ILOAD, slot); break;
+            case LONG:   execute.visitVarInsn(store ? Opcodes.LSTORE : Opcodes.LLOAD, slot); break;
+            case FLOAT:  execute.visitVarInsn(store ? Opcodes.FSTORE : Opcodes.FLOAD, slot); break;
+            case DOUBLE: execute.visitVarInsn(store ? Opcodes.DSTORE : Opcodes.DLOAD, slot); break;
+            default:     execute.visitVarInsn(store ? Opcodes.ASTORE : Opcodes.ALOAD, slot);
+        }
     }
 
-    @Override
-    public Void visitExtstart(ExtstartContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
-    }
+    private void writeField(final Field field, final boolean store) {
+        final int opcode;
 
-    @Override
-    public Void visitExtprec(final ExtprecContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
-    }
+        if (field.statik) {
+            opcode = store ? Opcodes.PUTSTATIC : Opcodes.GETSTATIC;
+        } else {
+            opcode = store ? Opcodes.PUTFIELD : Opcodes.GETFIELD;
+        }
 
-    @Override
-    public Void visitExtcast(final ExtcastContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+        execute.visitFieldInsn(opcode, field.owner.internal, field.jname, field.type.descriptor);
     }
 
-    @Override
-    public Void visitExtbrace(final ExtbraceContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+    private void writeArray(final ParserRuleContext source, final Type type, final boolean store) {
+        switch (type.metadata) {
+            case VOID:   throw new IllegalStateException(error(source) + "Unexpected writer state.");
+            case BYTE:   execute.visitInsn(store ? Opcodes.BASTORE : Opcodes.BALOAD); break;
+            case SHORT:  execute.visitInsn(store ? Opcodes.SASTORE : Opcodes.SALOAD); break;
+            case CHAR:   execute.visitInsn(store ? Opcodes.CASTORE : Opcodes.CALOAD); break;
+            case BOOL:
+            case INT:    execute.visitInsn(store ? Opcodes.IASTORE : Opcodes.IALOAD); break;
+            case LONG:   execute.visitInsn(store ? Opcodes.LASTORE : Opcodes.LALOAD); break;
+            case FLOAT:  execute.visitInsn(store ? Opcodes.FASTORE : Opcodes.FALOAD); break;
+            case DOUBLE: execute.visitInsn(store ? Opcodes.DASTORE : Opcodes.DALOAD); break;
+            default:     execute.visitInsn(store ? Opcodes.AASTORE : Opcodes.AALOAD);
+        }
     }
 
-    @Override
-    public Void visitExtdot(final ExtdotContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
-    }
+    /** Loads from or stores to the target of an assignment whose operands are already on the stack. */
+    private void writeTarget(final IR.Expression target, final boolean store) {
+        if (target instanceof IR.Load) {
+            writeVariable(target.source, ((IR.Load)target).variable, store);
+        } else if (target instanceof IR.LoadField) {
+            writeField(((IR.LoadField)target).field, store);
+        } else if (target instanceof IR.LoadArray) {
+            writeArray(target.source, target.type, store);
+        } else if (target instanceof IR.Dynamic) {
+            final IR.Dynamic dynamic = (IR.Dynamic)target;
+            final int flavor;
+
+            if (dynamic.flavor == Def.LOAD) {
+                flavor = store ? Def.STORE : Def.LOAD;
+            } else {
+                flavor = store ? Def.ARRAY_STORE : Def.ARRAY_LOAD;
+            }
 
-    @Override
-    public Void visitExttype(final ExttypeContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+            writeDynamic(flavor, dynamic.name, dynamic.arguments.size() + 1, store);
+        } else {
+            throw new IllegalStateException(error(target.source) + "Unexpected writer state.");
+        }
     }
 
-    @Override
-    public Void visitExtcall(final ExtcallContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+    /** Duplicates the value of size on top of the stack beneath the operands of an assignment target. */
+    private void writeDup(final ParserRuleContext source, final int size, final int operands) {
+        if (size == 1) {
+            if      (operands == 0) execute.visitInsn(Opcodes.DUP);
+            else if (operands == 1) execute.visitInsn(Opcodes.DUP_X1);
+            else if (operands == 2) execute.visitInsn(Opcodes.DUP_X2);
+            else {
+                throw new IllegalStateException(error(source) + "Unexpected writer state.");
+            }
+        } else if (size == 2) {
+            if      (operands == 0) execute.visitInsn(Opcodes.DUP2);
+            else if (operands == 1) execute.visitInsn(Opcodes.DUP2_X1);
+            else if (operands == 2) execute.visitInsn(Opcodes.DUP2_X2);
+            else {
+                throw new IllegalStateException(error(source) + "Unexpected writer state.");
+            }
+        } else {
+            throw new IllegalStateException(error(source) + "Unexpected type size.");
+        }
     }
 
-    @Override
-    public Void visitExtmember(final ExtmemberContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+    private void writePop(final ParserRuleContext source, final int size) {
+        if (size == 1) {
+            execute.visitInsn(Opcodes.POP);
+        } else if (size == 2) {
+            execute.visitInsn(Opcodes.POP2);
+        } else if (size != 0) {
+            throw new IllegalStateException(error(source) + "Unexpected type size.");
+        }
     }
 
-    @Override
-    public Void visitArguments(final ArgumentsContext ctx) {
-        throw new UnsupportedOperationException(error(ctx) + "Unexpected writer state.");
+    private void writeAppendParts(final IR.Concat concat) {
+        for (final IR.Expression part : concat.parts) {
+            part.accept(this);
+            writeAppendStrings(part.source, part.type.metadata);
+        }
     }
 
-    @Override
-    public Void visitIncrement(IncrementContext ctx) {
-        final ExpressionMetadata incremd = adapter.getExpressionMetadata(ctx);
-        final Object postConst = incremd.postConst;
-
-        if (postConst == null) {
-            writeString(ctx, incremd.preConst);
-            caster.checkWriteCast(execute, incremd);
-        } else {
-            writeConstant(ctx, postConst);
+    /** Shifts take an int distance even when the value shifted is a long, so a long distance is narrowed. */
+    private void writeBinary(final ParserRuleContext source, final TypeMetadata metadata, final int token,
+                             final Type right) {
+        if ((token == LSH || token == USH || token == RSH) && right.metadata == TypeMetadata.LONG) {
+            execute.visitInsn(Opcodes.L2I);
         }
 
-        adapter.checkWriteBranch(execute, ctx);
-
-        return null;
+        writeBinaryInstruction(source, metadata, token);
     }
 
-    void writeConstant(final ParserRuleContext source, final Object constant) {
+    private void writeConstant(final ParserRuleContext source, final Object constant) {
         if (constant instanceof Number) {
             writeNumeric(source, constant);
         } else if (constant instanceof Character) {
@@ -1157,13 +1552,31 @@ class Writer extends PlanABaseVisitor<Void> {
         }
     }
 
-    void writeNewStrings() {
+    private static final Handle DEF_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+            Def.class.getName().replace('.', '/'), "bootstrap", Def.BOOTSTRAP_DESCRIPTOR);
+
+    /**
+     * Writes a def operation on operands that are all already on the stack as objects, which leaves an object
+     * unless it is a store.  The value of a store is one more operand.
+     */
+    private void writeDynamic(final int flavor, final String name, final int operands, final boolean store) {
+        final StringBuilder descriptor = new StringBuilder("(");
+
+        for (int operand = store ? -1 : 0; operand < operands; ++operand) {
+            descriptor.append("Ljava/lang/Object;");
+        }
+
+        descriptor.append(store ? ")V" : ")Ljava/lang/Object;");
+        execute.visitInvokeDynamicInsn(name, descriptor.toString(), DEF_BOOTSTRAP, flavor);
+    }
+
+    private void writeNewStrings() {
         execute.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder");
         execute.visitInsn(Opcodes.DUP);
         execute.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
     }
 
-    void writeAppendStrings(final ParserRuleContext source, final TypeMetadata metadata) {
+    private void writeAppendStrings(final ParserRuleContext source, final TypeMetadata metadata) {
         final String internal = "java/lang/StringBuilder";
         final String builder = "Ljava/lang/StringBuilder;";
         final String string = "(Ljava/lang/String;)" + builder;
@@ -1180,18 +1593,24 @@ class Writer extends PlanABaseVisitor<Void> {
             case DOUBLE: execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL, internal, "append", "(D)" + builder, false); break;
             case STRING: execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL, internal, "append", string, false);          break;
             case ARRAY:
+            case DEF:
             case OBJECT: execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL, internal, "append", object, false);          break;
             default:
                 throw new IllegalStateException(error(source) + "Unexpected writer state.");
         }
     }
 
-    void writeToStrings() {
+    private void writeToStrings() {
         execute.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
     }
 
-    void writeBinaryInstruction(final ParserRuleContext source, final TypeMetadata metadata, final int token) {
+    private void writeBinaryInstruction(final ParserRuleContext source, final TypeMetadata metadata, final int token) {
         switch (metadata) {
+            case DEF:
+                execute.visitMethodInsn(Opcodes.INVOKESTATIC, DEF_INTERNAL, Def.getBinaryName(token),
+                        "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false);
+
+                break;
             case INT:
                 switch (token) {
                     case MUL:   execute.visitInsn(Opcodes.IMUL);  break;
@@ -1256,12 +1675,4 @@ class Writer extends PlanABaseVisitor<Void> {
                 throw new IllegalStateException(error(source) + "Unexpected writer state.");
         }
     }
-
-    private void writeEnd() {
-        writer.visitEnd();
-    }
-
-    private byte[] getBytes() {
-        return writer.toByteArray();
-    }
 }
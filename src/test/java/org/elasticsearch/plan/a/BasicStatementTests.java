@@ -160,6 +160,31 @@ public class BasicStatementTests extends ScriptTestCase {
         assertEquals(Map[][][].class, exec("smap[][][] a = smap.makearray(1, 2, 3); return a;").getClass());
     }
 
+    public void testVariableScopes() {
+        assertEquals(3, exec("int x = 1; if (x == 1) { int y = 2; x += y; } int y = 0; return x + y;"));
+        assertEquals(10, exec("int t = 0; for (int x = 0; x < 5; ++x) { int y = x; t += y; } " +
+                "for (int x = 0; x < 0; ++x) { int y = x; t += y; } return t;"));
+        assertEquals(7L, exec("long a = 3; if (a > 0) { double b = 1.0; } long c = 4; return a + c;"));
+
+        try {
+            exec("int x = 1; if (x == 1) { int x = 2; } return x;");
+            fail("variable should not be allowed to shadow another");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("Variable name [x] already defined within the scope."));
+        }
+    }
+
+    public void testManyVariables() {
+        final StringBuilder script = new StringBuilder();
+
+        for (int variable = 0; variable < 500; ++variable) {
+            script.append("long v").append(variable).append(" = ").append(variable).append("; ");
+        }
+
+        script.append("return v0 + v250 + v499;");
+        assertEquals(749L, exec(script.toString()));
+    }
+
     public void testContinueStatement() {
         assertEquals(9, exec("int x = 0, y = 0; while (x < 10) { ++x; if (x == 1) continue; ++y; } return y;"));
     }
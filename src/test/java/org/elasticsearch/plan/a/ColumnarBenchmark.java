@@ -0,0 +1,126 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.SuppressForbidden;
+
+/**
+ * Measures the average time per row to run a script over columns of numbers, once with a new map of boxed
+ * values for each row and once through {@link Columns} with the columns bound to arrays and to direct buffers.
+ * The three are measured in alternating rounds and the best round of each is printed.  Run it with the test
+ * classpath, for example:
+ * {@code java -cp target/classes:target/test-classes:<dependencies> org.elasticsearch.plan.a.ColumnarBenchmark}
+ */
+@SuppressForbidden(reason = "benchmark prints its results")
+public final class ColumnarBenchmark {
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 50;
+    private static final int ROUNDS = 5;
+    private static final int ROWS = 100000;
+
+    static final String SCRIPT = "double price = (double)input.get(\"price\"); long count = (long)input.get(\"count\");" +
+            " if (count > 100) return price * count * (double)input.get(\"discount\"); return price * count;";
+
+    public static void main(final String[] args) {
+        final double[] prices = new double[ROWS];
+        final long[] counts = new long[ROWS];
+        final ByteBuffer priceBuffer = ByteBuffer.allocateDirect(ROWS * 8);
+        final ByteBuffer countBuffer = ByteBuffer.allocateDirect(ROWS * 8);
+
+        for (int row = 0; row < ROWS; ++row) {
+            prices[row] = row % 97 + 0.5;
+            counts[row] = row % 211;
+        }
+
+        priceBuffer.asDoubleBuffer().put(prices);
+        countBuffer.asLongBuffer().put(counts);
+
+        final Executable executable = Compiler.compile("benchmark", SCRIPT, ColumnarBenchmark.class.getClassLoader(), null);
+        final Columns arrays = new Columns(executable).bind("price", prices).bind("count", counts).set("discount", 0.9);
+        final Columns buffers = new Columns(executable).bindDoubles("price", priceBuffer).bindLongs("count", countBuffer)
+                .set("discount", 0.9);
+        final double[] out = new double[ROWS];
+        long maps = Long.MAX_VALUE;
+        long columns = Long.MAX_VALUE;
+        long direct = Long.MAX_VALUE;
+
+        for (int round = 0; round < ROUNDS; ++round) {
+            maps = Math.min(maps, measure(executable, prices, counts, out));
+            columns = Math.min(columns, measure(arrays, out));
+            direct = Math.min(direct, measure(buffers, out));
+        }
+
+        System.out.println(maps + " ns/row map per row, " + columns + " ns/row array columns, " +
+                direct + " ns/row direct buffer columns");
+    }
+
+    private static long measure(final Executable executable, final double[] prices, final long[] counts, final double[] out) {
+        for (int iteration = 0; iteration < WARMUP; ++iteration) {
+            executeRows(executable, prices, counts, out);
+        }
+
+        final long start = System.nanoTime();
+
+        for (int iteration = 0; iteration < ITERATIONS; ++iteration) {
+            executeRows(executable, prices, counts, out);
+        }
+
+        return check(System.nanoTime() - start, out);
+    }
+
+    private static void executeRows(final Executable executable, final double[] prices, final long[] counts,
+                                    final double[] out) {
+        for (int row = 0; row < ROWS; ++row) {
+            final Map<String, Object> input = new HashMap<>();
+            input.put("price", prices[row]);
+            input.put("count", counts[row]);
+            input.put("discount", 0.9);
+            out[row] = ((Number)executable.execute(input)).doubleValue();
+        }
+    }
+
+    private static long measure(final Columns columns, final double[] out) {
+        for (int iteration = 0; iteration < WARMUP; ++iteration) {
+            columns.execute(0, ROWS, out);
+        }
+
+        final long start = System.nanoTime();
+
+        for (int iteration = 0; iteration < ITERATIONS; ++iteration) {
+            columns.execute(0, ROWS, out);
+        }
+
+        return check(System.nanoTime() - start, out);
+    }
+
+    private static long check(final long elapsed, final double[] out) {
+        if (out[ROWS - 1] == 0) {
+            throw new IllegalStateException("benchmark script returned no value");
+        }
+
+        return elapsed / ITERATIONS / ROWS;
+    }
+
+    private ColumnarBenchmark() {}
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import java.lang.management.ManagementFactory;
+
+import org.elasticsearch.common.SuppressForbidden;
+
+/**
+ * Measures the average time and the bytes allocated by the compiling thread for a single compile of a set of
+ * representative scripts, after a warm up.  Allocation is read from the HotSpot thread bean and is reported as
+ * unavailable on other JVMs.  Run it with the test classpath, for example:
+ * {@code java -cp target/classes:target/test-classes:<dependencies> org.elasticsearch.plan.a.CompileBenchmark}
+ */
+@SuppressForbidden(reason = "benchmark prints its results")
+public final class CompileBenchmark {
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 5000;
+
+    static final String[] SCRIPTS = {
+        "return 1 + 2;",
+        "int x = 0; for (int y = 0; y < 10; ++y) { x += y; } return x;",
+        "long total = 0; list values = (list)input.get(\"values\"); int size = values.size();" +
+            " for (int index = 0; index < size; ++index) { total += (int)values.get(index); } return total;",
+        "double a = 1.5; double b = 2.5; if (a < b && b < 10.0 || a == 0) { return a * b - a / b; } return 0.0;",
+        "string s = \"a\"; int count = 0; while (count < 5) { s = s..count; ++count; } return s;",
+        "smap m = shashmap.new(); m.put(\"x\", 1); m.put(\"y\", 2); return (int)m.get(\"x\") + (int)m.get(\"y\");"
+    };
+
+    public static void main(final String[] args) {
+        final ClassLoader loader = CompileBenchmark.class.getClassLoader();
+
+        for (int iteration = 0; iteration < WARMUP; ++iteration) {
+            Compiler.compile("benchmark", SCRIPTS[iteration % SCRIPTS.length], loader, null);
+        }
+
+        final long allocated = allocatedBytes();
+        final long start = System.nanoTime();
+
+        for (int iteration = 0; iteration < ITERATIONS; ++iteration) {
+            Compiler.compile("benchmark", SCRIPTS[iteration % SCRIPTS.length], loader, null);
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        final long bytes = allocatedBytes() - allocated;
+
+        System.out.println("compile: " + elapsed / ITERATIONS / 1000.0 + " us/op");
+
+        if (allocated < 0) {
+            System.out.println("allocated: unavailable");
+        } else {
+            System.out.println("allocated: " + bytes / ITERATIONS + " bytes/op");
+        }
+    }
+
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return -1;
+    }
+
+    private CompileBenchmark() {}
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+public class CompilerStatsTests extends ScriptTestCase {
+
+    public void testCompileRecordsEachPhase() {
+        assertEquals(3, exec("return 1 + 2;"));
+        assertEquals(6, exec("int x = 2; return x * 3;"));
+
+        final CompilerStats stats = scriptEngine.stats();
+        assertEquals(2L, stats.getCompiledCount());
+        assertEquals(2L, stats.getDefinedClassCount());
+        assertEquals(0L, stats.getFailedCount());
+
+        for (final CompilerStats.Phase phase : CompilerStats.Phase.values()) {
+            assertEquals(2L, stats.getPhase(phase).getCount());
+        }
+
+        assertEquals(2L, stats.getBytecodeSize().getCount());
+        assertTrue(stats.getBytecodeSize().getMax() > 0);
+        assertTrue(stats.getTotal().getPercentile(0.99) <= stats.getTotal().getMax());
+    }
+
+    public void testCachedCompileIsNotRecorded() {
+        exec("return 1;");
+        exec("return 1;");
+
+        assertEquals(1L, scriptEngine.stats().getCompiledCount());
+    }
+
+    public void testFailedCompileIsCounted() {
+        try {
+            exec("return 1");
+            fail("script should have failed to compile");
+        } catch (RuntimeException expected) {
+            // expected
+        }
+
+        assertEquals(0L, scriptEngine.stats().getCompiledCount());
+        assertEquals(1L, scriptEngine.stats().getFailedCount());
+    }
+
+    public void testValidScriptsDoNotFallBackToFullPrediction() {
+        assertEquals(10, exec("int x = 0; for (int y = 0; y < 10; ++y) { x += 1; } return x;"));
+        assertEquals(2, exec("int[] a = int.makearray(2); a[1] = 2; return (int)(long)a[1];"));
+
+        assertEquals(0L, scriptEngine.stats().getParseFallbackCount());
+    }
+
+    public void testSyntaxErrorFallsBackToFullPrediction() {
+        try {
+            exec("int x = 1 return x;");
+            fail("script should have failed to parse");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getCause() instanceof java.text.ParseException);
+        }
+
+        assertEquals(1L, scriptEngine.stats().getParseFallbackCount());
+    }
+
+    public void testHistogramPercentiles() {
+        final CompilerStats.Histogram histogram = new CompilerStats.Histogram();
+        assertEquals(0L, histogram.getPercentile(0.5));
+
+        for (long value = 1; value <= 1000; ++value) {
+            histogram.record(value);
+        }
+
+        assertEquals(1000L, histogram.getCount());
+        assertEquals(500500L, histogram.getSum());
+        assertEquals(1000L, histogram.getMax());
+
+        final long median = histogram.getPercentile(0.5);
+        assertTrue(median >= 500 && median <= 500 * 9 / 8);
+
+        final long p99 = histogram.getPercentile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(1000L, histogram.getPercentile(1.0));
+    }
+
+    public void testHistogramPercentilesOfSeconds() {
+        final CompilerStats.Histogram histogram = new CompilerStats.Histogram();
+        histogram.record(2400000000L);
+        histogram.record(2400000000L);
+        histogram.record(90000000000L);
+
+        final long median = histogram.getPercentile(0.5);
+        assertTrue(median >= 2400000000L && median <= 2400000000L * 9 / 8);
+        assertEquals(90000000000L, histogram.getPercentile(1.0));
+    }
+}
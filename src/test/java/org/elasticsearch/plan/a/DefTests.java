@@ -0,0 +1,229 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+public class DefTests extends ScriptTestCase {
+    public void testDefConversions() {
+        assertEquals(5, exec("def x = 5; return x;"));
+        assertEquals(6, exec("def x = 5; int y = x; return y + 1;"));
+        assertEquals(7L, exec("def x = 7; long y = x; return y;"));
+        assertEquals(2.5, exec("def x = 2.5; return (double)x;"));
+        assertEquals('c', exec("def x = 'c'; char y = x; return y;"));
+        assertEquals(99, exec("def x = 'c'; int y = x; return y;"));
+        assertEquals("abc", exec("def x = \"abc\"; string y = x; return y;"));
+        assertEquals(true, exec("def x = null; return x == null;"));
+        assertEquals("ab", exec("def x = \"b\"; return \"a\" .. x;"));
+    }
+
+    public void testDefArithmeticPromotesFromValues() {
+        assertEquals(3.5, exec("def x = 1.5; return x + 2;"));
+        assertEquals(3.5, exec("def x = 1.5; return 2 + x;"));
+        assertEquals(3.5, exec("def x = 1.5; return x + 2L;"));
+        assertEquals(7L, exec("def x = 5L; return x + 2;"));
+        assertEquals(7, exec("def x = 5; return x + 2;"));
+        assertEquals(2.5F, exec("def x = 5.0F; return x / 2;"));
+        assertEquals(2.5, exec("def x = 5; def y = 2.0; return x / y;"));
+        assertEquals(2, exec("def x = 5; def y = 2; return x / y;"));
+        assertEquals(-1.5, exec("def x = 1.5; return -x;"));
+        assertEquals(~5L, exec("def x = 5L; return ~x;"));
+        assertEquals(20L, exec("def x = 5L; return x << 2;"));
+        assertEquals(1, exec("def x = 'c'; return x & 1;"));
+    }
+
+    public void testDefComparisonsPromoteFromValues() {
+        assertEquals(true, exec("def x = 1.5; return x > 1;"));
+        assertEquals(false, exec("def x = 1.5; return x == 1;"));
+        assertEquals(true, exec("def x = 1.5; return x < 2L;"));
+        assertEquals(true, exec("def x = 5; return x == 5L;"));
+        assertEquals(true, exec("def x = 5; def y = 5.0; return x == y;"));
+        assertEquals(false, exec("def x = 5; def y = 6; return x >= y;"));
+        assertEquals(true, exec("def x = 1.5; if (x > 1) return true; else return false;"));
+        assertEquals(false, exec("def x = double.makearray(1); x[0] = 0.0 / 0.0; return x[0] >= 1 || x[0] < 1;"));
+    }
+
+    public void testDefCompoundAssignment() {
+        assertEquals(7, exec("def x = 5; x += 2; return x;"));
+        assertEquals(7.5, exec("def x = 5; x += 2.5; return x;"));
+        assertEquals(6, exec("def x = 5; ++x; return x;"));
+        assertEquals(5, exec("def x = 5; return x++;"));
+        assertEquals(4L, exec("def x = 5L; --x; return x;"));
+        assertEquals(10, exec("def x = 5; def y = 2; x *= y; return x;"));
+        assertEquals("ab", exec("def x = \"a\"; x ..= \"b\"; return x;"));
+        assertEquals("ab", exec("def x = \"a\"; return x .. \"b\";"));
+        assertEquals(3, exec("def x = 1; def y = 2; return x + y;"));
+    }
+
+    public void testLossyDefConversions() {
+        assertEquals(5, exec("def x = 5.0; int y = x; return y;"));
+        assertEquals(3, exec("def x = 3L; int y = x; return y;"));
+
+        try {
+            exec("def x = 5.5; int y = x; return y;");
+            fail("should have failed to drop the fraction");
+        } catch (ClassCastException expected) {
+            assertTrue(expected.getMessage().contains("losing"));
+        }
+
+        try {
+            exec("def x = 3000000000L; int y = x; return y;");
+            fail("should have failed for a long out of the range of an int");
+        } catch (ClassCastException expected) {
+            assertTrue(expected.getMessage().contains("losing"));
+        }
+    }
+
+    public void testDefPromotionErrors() {
+        try {
+            exec("def x = 5; bool b = true; return x + b;");
+            fail("should have failed to promote a bool");
+        } catch (ClassCastException expected) {
+            assertTrue(expected.getMessage().contains("promotion"));
+        }
+
+        try {
+            exec("def x = \"a\"; return x + 1;");
+            fail("should have failed to add to a string");
+        } catch (ClassCastException expected) {
+            assertTrue(expected.getMessage().contains("numeric"));
+        }
+
+        try {
+            exec("def x = 1.5; return x & 1;");
+            fail("should have failed for a bitwise operation on a double");
+        } catch (ClassCastException expected) {
+            assertTrue(expected.getMessage().contains("integer"));
+        }
+    }
+
+    public void testDefCalls() {
+        assertEquals(2, exec("def l = arraylist.new(); l.addlast(1); l.addlast(2); return l.size();"));
+        assertEquals(1, exec("def m = hashmap.new(); m.put(\"a\", 1); return m.get(\"a\");"));
+        assertEquals("5", exec("def x = 5; return x.string();"));
+        assertEquals(3, exec("def x = 3.7; return x.int();"));
+        assertEquals(true, exec("def l = arraylist.new(); return l.empty();"));
+        assertEquals(4, exec("def l = arraylist.new(); l.addlast(arraylist.new()); l.get(0).addlast(4); return l.get(0).get(0);"));
+    }
+
+    public void testDefMembers() {
+        assertEquals(5, exec("def m = hashmap.new(); m.x = 5; return m.x;"));
+        assertEquals(5, exec("def m = hashmap.new(); def y = m.x = 5; return y;"));
+        assertEquals("ab", exec("def m = hashmap.new(); m.x = \"a\"; m.x ..= \"b\"; return m.x;"));
+        assertEquals(3, exec("def a = int.makearray(3); return a.length;"));
+    }
+
+    public void testDefIndexing() {
+        assertEquals(5, exec("def a = int.makearray(3); a[1] = 5; return a[1];"));
+        assertEquals("x", exec("def l = arraylist.new(); l.addlast(\"x\"); return l[0];"));
+        assertEquals(2, exec("def m = hashmap.new(); m[\"k\"] = 2; return m[\"k\"];"));
+        assertEquals(6, exec("def a = int.makearray(2, 3); a[1][2] = 6; return a[1][2];"));
+    }
+
+    public void testDefInputs() {
+        final Map<String, Object> vars = new HashMap<>();
+        final Map<String, Object> doc = new HashMap<>();
+        doc.put("values", Arrays.asList(1, 2, 3));
+        vars.put("doc", doc);
+
+        assertEquals(6, exec("def d = input.get(\"doc\"); int total = 0;" +
+                " for (int i = 0; i < d.values.size(); ++i) total += d.values[i]; return total;", vars));
+    }
+
+    public void testDefPolymorphicCallSite() {
+        final List<Object> values = new ArrayList<>();
+        values.add(new ArrayList<>(Arrays.asList(1)));
+        values.add(new LinkedList<>(Arrays.asList(1, 2)));
+        values.add(new HashMap<>(Collections.singletonMap("a", 1)));
+        values.add(new TreeMap<>(Collections.singletonMap("a", 1)));
+        values.add(new LinkedHashMap<>(Collections.singletonMap("a", 1)));
+        values.add(new Vector<>(Arrays.asList(1, 2, 3)));
+        values.add(Collections.emptyList());
+
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("values", values);
+
+        assertEquals(9, exec("def values = input.get(\"values\"); int total = 0;" +
+                " for (int i = 0; i < values.size(); ++i) total += values[i].size(); return total;", vars));
+    }
+
+    public void testInlineCache() throws Throwable {
+        final MethodType type = MethodType.methodType(Object.class, Object.class);
+        final Def.InlineCache site = (Def.InlineCache)Def.bootstrap(MethodHandles.lookup(), "size", type, Def.CALL);
+        final MethodHandle handle = site.dynamicInvoker();
+
+        assertEquals(1, (Object)handle.invokeExact((Object)Arrays.asList(1)));
+        assertEquals(1, (Object)handle.invokeExact((Object)Arrays.asList(2)));
+        assertEquals(1, site.depth());
+
+        final List<Object> receivers = Arrays.<Object>asList(new ArrayList<>(), new LinkedList<>(), new HashMap<>(),
+                new TreeMap<>(), new Vector<>(), new LinkedHashMap<>());
+
+        for (final Object receiver : receivers) {
+            assertEquals(0, (Object)handle.invokeExact(receiver));
+        }
+
+        assertEquals(Def.MAX_DEPTH, site.depth());
+        assertTrue(site.isMegamorphic());
+        assertEquals(2, (Object)handle.invokeExact((Object)Arrays.asList(1, 2)));
+    }
+
+    public void testDefErrors() {
+        try {
+            exec("def x = arraylist.new(); return x.unknown();");
+            fail("should have failed to find the method");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("unknown"));
+        }
+
+        try {
+            exec("def x = arraylist.new(); return x.get();");
+            fail("should have failed for the wrong number of arguments");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("arguments"));
+        }
+
+        try {
+            exec("def x = null; return x.size();");
+            fail("should have failed for a null receiver");
+        } catch (NullPointerException expected) {
+            // the receiver is null
+        }
+
+        try {
+            exec("def x = \"s\"; int y = x; return y;");
+            fail("should have failed to convert");
+        } catch (ClassCastException expected) {
+            // a string is not a number
+        }
+    }
+}
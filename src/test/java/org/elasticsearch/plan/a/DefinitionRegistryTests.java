@@ -0,0 +1,134 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import java.util.Properties;
+
+import org.elasticsearch.plan.a.Definition.Struct;
+
+public class DefinitionRegistryTests extends ScriptTestCase {
+
+    private static Properties custom(final String key, final String value) {
+        final Properties properties = Definition.loadProperties();
+        properties.setProperty(key, value);
+
+        return properties;
+    }
+
+    private static Object exec(final DefinitionRegistry registry, final Properties properties, final String source) {
+        final CompilerSettings settings = new CompilerSettings().setDefinitions(registry);
+        final Executable executable = Compiler.compile("test", source, getClassLoader(), properties, settings);
+
+        return executable.execute(null);
+    }
+
+    private static ClassLoader getClassLoader() {
+        return DefinitionRegistryTests.class.getClassLoader();
+    }
+
+    public void testCustomDefinitionIsLoadedOnce() {
+        final DefinitionRegistry registry = new DefinitionRegistry(4);
+        final String source = "string s = \"abc\"; return s.length();";
+
+        assertEquals(3, exec(registry, custom("method.string.length", "string length int length()"), source));
+        assertEquals(3, exec(registry, custom("method.string.length", "string length int length()"), source));
+
+        assertEquals(1, registry.size());
+        assertEquals(1L, registry.misses());
+        assertEquals(1L, registry.hits());
+    }
+
+    public void testDefaultPropertiesUseTheDefaultDefinition() {
+        final DefinitionRegistry registry = new DefinitionRegistry(4);
+
+        assertTrue(registry.get(null).definition == Default.DEFAULT_DEFINITION);
+        assertTrue(registry.get(Definition.loadProperties()).definition == Default.DEFAULT_DEFINITION);
+        assertTrue(registry.get(Definition.loadProperties()).caster == Default.DEFAULT_CASTER);
+        assertEquals(0, registry.size());
+    }
+
+    public void testUnchangedStructsAreShared() {
+        final DefinitionRegistry registry = new DefinitionRegistry(4);
+        final Definition base = Default.DEFAULT_DEFINITION;
+
+        Definition definition = registry.get(custom("method.hashmap.count", "hashmap count int size()")).definition;
+        assertTrue(definition.structs.get("hashmap") != base.structs.get("hashmap"));
+        assertTrue(definition.structs.get("map") == base.structs.get("map"));
+        assertTrue(definition.structs.get("object") == base.structs.get("object"));
+        assertEquals(1, exec(registry, custom("method.hashmap.count", "hashmap count int size()"),
+                "hashmap m = hashmap.new(); m.put(1, 2); return m.count();"));
+
+        definition = registry.get(custom("method.string.length", "string length int length()")).definition;
+        assertTrue(definition.structs.get("int") == base.structs.get("int"));
+        assertTrue(definition.structs.get("string") != base.structs.get("string"));
+        assertNotNull(definition.structs.get("string").methods.get("length"));
+        // object returns a string from one of its methods so it must see the changed struct
+        assertTrue(definition.structs.get("object") != base.structs.get("object"));
+        assertTrue(definition.structs.get("list") != base.structs.get("list"));
+    }
+
+    public void testSharedLoadMatchesFullLoad() {
+        final Properties properties = custom("method.string.length", "string length int length()");
+        final Definition shared = Definition.loadFromProperties(properties, Default.DEFAULT_DEFINITION);
+        final Definition full = Definition.loadFromProperties(properties);
+
+        assertEquals(full.fingerprint, shared.fingerprint);
+        assertEquals(full.structs.keySet(), shared.structs.keySet());
+
+        for (final Struct struct : full.structs.values()) {
+            final Struct other = shared.structs.get(struct.name);
+            assertEquals(struct.clazz, other.clazz);
+            assertEquals(struct.constructors.keySet(), other.constructors.keySet());
+            assertEquals(struct.functions.keySet(), other.functions.keySet());
+            assertEquals(struct.methods.keySet(), other.methods.keySet());
+            assertEquals(struct.statics.keySet(), other.statics.keySet());
+            assertEquals(struct.members.keySet(), other.members.keySet());
+        }
+
+        assertEquals(full.explicits.keySet(), shared.explicits.keySet());
+        assertEquals(full.implicits.keySet(), shared.implicits.keySet());
+        assertEquals(full.numerics, shared.numerics);
+        assertEquals(full.upcasts, shared.upcasts);
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        final DefinitionRegistry registry = new DefinitionRegistry(1);
+
+        registry.get(custom("method.string.length", "string length int length()"));
+        registry.get(custom("method.string.empty", "string empty bool isEmpty()"));
+
+        assertEquals(1, registry.size());
+        assertEquals(1L, registry.evictions());
+        assertEquals(2L, registry.misses());
+    }
+
+    public void testFailedLoadIsNotKept() {
+        final DefinitionRegistry registry = new DefinitionRegistry(4);
+
+        try {
+            registry.get(custom("method.string.missing", "string missing int missing()"));
+            fail("definition should have failed to load");
+        } catch (RuntimeException expected) {
+            // expected
+        }
+
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.elasticsearch.plan.a.Definition.Cast;
+import org.elasticsearch.plan.a.Definition.Constructor;
+import org.elasticsearch.plan.a.Definition.Field;
+import org.elasticsearch.plan.a.Definition.Method;
+import org.elasticsearch.plan.a.Definition.Struct;
+import org.elasticsearch.plan.a.Definition.Transform;
+
+public class DefinitionSnapshotTests extends ScriptTestCase {
+
+    private static byte[] write(final Definition definition) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Definition.writeSnapshot(definition, stream);
+
+        return stream.toByteArray();
+    }
+
+    public void testSnapshotMatchesProperties() throws IOException {
+        final Properties properties = Definition.loadProperties();
+        final Definition expected = Definition.loadFromProperties(properties);
+        final Definition actual = Definition.loadFromSnapshot(new ByteArrayInputStream(write(expected)), properties);
+
+        assertNotNull(actual);
+        assertEquals(expected.fingerprint, actual.fingerprint);
+        assertEquals(expected.signatures, actual.signatures);
+        assertEquals(expected.structs.keySet(), actual.structs.keySet());
+
+        for (final Struct struct : expected.structs.values()) {
+            final Struct other = actual.structs.get(struct.name);
+            assertEquals(struct.clazz, other.clazz);
+            assertEquals(struct.internal, other.internal);
+            assertEquals(struct.generic, other.generic);
+            assertEquals(struct.runtime, other.runtime);
+
+            assertEquals(struct.constructors.keySet(), other.constructors.keySet());
+
+            for (final Constructor constructor : struct.constructors.values()) {
+                final Constructor copy = other.constructors.get(constructor.name);
+                assertEquals(constructor.descriptor, copy.descriptor);
+                assertEquals(constructor.arguments, copy.arguments);
+                assertEquals(constructor.getConstructor(), copy.getConstructor());
+            }
+
+            assertMethods(struct, struct.functions.values(), other.functions);
+            assertMethods(struct, struct.methods.values(), other.methods);
+            assertFields(struct, struct.statics.values(), other.statics);
+            assertFields(struct, struct.members.values(), other.members);
+        }
+
+        assertEquals(expected.numerics, actual.numerics);
+        assertEquals(expected.upcasts, actual.upcasts);
+        assertTransforms(expected.explicits, actual.explicits);
+        assertTransforms(expected.implicits, actual.implicits);
+        assertEquals(expected.getRuntime().keySet(), actual.getRuntime().keySet());
+    }
+
+    private static void assertMethods(final Struct struct, final Iterable<Method> expected,
+                                      final java.util.Map<String, Method> actual) {
+        int count = 0;
+
+        for (final Method method : expected) {
+            final Method copy = actual.get(method.name);
+            assertNotNull("missing [" + method.name + "] in [" + struct.name + "]", copy);
+            assertEquals(method.jname, copy.jname);
+            assertEquals(method.statik, copy.statik);
+            assertEquals(method.descriptor, copy.descriptor);
+            assertEquals(method.rtn, copy.rtn);
+            assertEquals(method.oreturn, copy.oreturn);
+            assertEquals(method.arguments, copy.arguments);
+            assertEquals(method.originals, copy.originals);
+            assertEquals(method.getMethod(), copy.getMethod());
+            ++count;
+        }
+
+        assertEquals(count, actual.size());
+    }
+
+    private static void assertFields(final Struct struct, final Iterable<Field> expected,
+                                     final java.util.Map<String, Field> actual) {
+        int count = 0;
+
+        for (final Field field : expected) {
+            final Field copy = actual.get(field.name);
+            assertNotNull("missing [" + field.name + "] in [" + struct.name + "]", copy);
+            assertEquals(field.type, copy.type);
+            assertEquals(field.statik, copy.statik);
+            assertEquals(field.readonly, copy.readonly);
+            assertEquals(field.getField(), copy.getField());
+            ++count;
+        }
+
+        assertEquals(count, actual.size());
+    }
+
+    private static void assertTransforms(final java.util.Map<Cast, Transform> expected,
+                                         final java.util.Map<Cast, Transform> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+
+        for (final Transform transform : expected.values()) {
+            final Transform copy = actual.get(new Cast(transform.from, transform.to));
+            assertEquals(transform.method.owner, copy.method.owner);
+            assertEquals(transform.method.name, copy.method.name);
+            assertEquals(transform.upcast, copy.upcast);
+            assertEquals(transform.downcast, copy.downcast);
+        }
+    }
+
+    public void testStaleSnapshotIsIgnored() throws IOException {
+        final byte[] snapshot = write(Definition.loadFromProperties());
+        final Properties properties = Definition.loadProperties();
+        properties.setProperty("struct.extra", "extra java.lang.StringBuilder");
+
+        assertNull(Definition.loadFromSnapshot(new ByteArrayInputStream(snapshot), properties));
+    }
+
+    public void testScriptsUseTheDefaultDefinition() {
+        assertEquals(Definition.loadFromProperties().fingerprint, Default.DEFAULT_DEFINITION.fingerprint);
+        assertEquals(10, exec("smap s = shashmap.new(); s.put(\"x\", 10); return s.get(\"x\");"));
+        assertEquals("abc", exec("string s = \"ab\"; return s..\"c\";"));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.plan.a;
+
+import org.elasticsearch.bootstrap.BootstrapInfo;
+
+import java.util.HashMap;
+
+public class LoaderPoolTests extends ScriptTestCase {
+    public void testScriptsShareLoaders() {
+        final CompilerStats stats = new CompilerStats();
+        final CompilerSettings settings = new CompilerSettings().setLoaderCapacity(2).setStats(stats);
+
+        final Executable first = compile("return 1;", settings);
+        final Executable second = compile("return 2;", settings);
+        final Executable third = compile("return 3;", settings);
+
+        assertSame(first.getClass().getClassLoader(), second.getClass().getClassLoader());
+        assertNotSame(first.getClass().getClassLoader(), third.getClass().getClassLoader());
+        assertNotSame(first.getClass(), second.getClass());
+
+        assertEquals(1, first.execute(new HashMap<String, Object>()));
+        assertEquals(2, second.execute(new HashMap<String, Object>()));
+        assertEquals(3, third.execute(new HashMap<String, Object>()));
+
+        assertEquals(2L, stats.getLoaderCount());
+        assertEquals(3L, stats.getLiveClassCount());
+    }
+
+    public void testCapacityOfOne() {
+        final CompilerSettings settings = new CompilerSettings().setLoaderCapacity(1);
+
+        final Executable first = compile("return 1;", settings);
+        final Executable second = compile("return 1;", settings);
+
+        assertNotSame(first.getClass().getClassLoader(), second.getClass().getClassLoader());
+    }
+
+    public void testSharedLoaderKeepsUntrustedCodeSource() {
+        final CompilerSettings settings = new CompilerSettings();
+
+        compile("return 1;", settings);
+        final Executable executable = compile("return 2;", settings);
+
+        final String location = executable.getClass().getProtectionDomain().getCodeSource().getLocation().toString();
+        assertTrue(location.endsWith(BootstrapInfo.UNTRUSTED_CODEBASE));
+    }
+
+    public void testDefLinksInSharedLoader() {
+        final CompilerSettings settings = new CompilerSettings();
+
+        compile("def l = arraylist.new(); return l.size();", settings);
+        final Executable executable = compile("def l = arraylist.new(); l.addlast(1); return l.size();", settings);
+
+        assertEquals(1, executable.execute(new HashMap<String, Object>()));
+    }
+
+    public void testInvalidCapacity() {
+        try {
+            new CompilerSettings().setLoaderCapacity(0);
+            fail("should have rejected an empty loader");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("at least 1"));
+        }
+    }
+
+    private Executable compile(final String script, final CompilerSettings settings) {
+        return Compiler.compile(getTestName(), script, getClass().getClassLoader(), null, settings);
+    }
+}
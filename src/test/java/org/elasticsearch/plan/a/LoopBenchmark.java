@@ -0,0 +1,110 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.SuppressForbidden;
+
+/**
+ * Measures the average time to run scoring scripts that loop over a list, once compiled with every optimization
+ * pass and once without loop-invariant code motion.  The two are measured in alternating rounds and the best
+ * round of each is printed, so neither one gains from being measured after the other.  Run it with the test
+ * classpath, for example:
+ * {@code java -cp target/classes:target/test-classes:<dependencies> org.elasticsearch.plan.a.LoopBenchmark}
+ */
+@SuppressForbidden(reason = "benchmark prints its results")
+public final class LoopBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 50000;
+    private static final int ROUNDS = 5;
+    private static final int SIZE = 100;
+
+    static final String[] SCRIPTS = {
+        "list values = (list)input.get(\"values\"); double total = 0;" +
+            " for (int index = 0; index < values.size(); ++index) {" +
+            " total += (int)values.get(index) * (double)input.get(\"factor\"); } return total;",
+        "list values = (list)input.get(\"values\"); long total = 0; int index = 0;" +
+            " while (index < values.size()) { total += (int)values.get(index) * ((int)input.get(\"weight\") + 1); ++index; }" +
+            " return total;",
+        "list values = (list)input.get(\"values\"); double best = 0; int weight = (int)input.get(\"weight\");" +
+            " for (int index = 0; index < values.size(); ++index) {" +
+            " double score = (int)values.get(index) * (weight * 0.5 + 1.0); if (score > best) best = score; } return best;"
+    };
+
+    public static void main(final String[] args) {
+        final List<Object> values = new ArrayList<>();
+
+        for (int value = 0; value < SIZE; ++value) {
+            values.add(value);
+        }
+
+        final Map<String, Object> input = new HashMap<>();
+        input.put("values", values);
+        input.put("factor", 1.5);
+        input.put("weight", 3);
+
+        final CompilerSettings hoisted = new CompilerSettings();
+        final CompilerSettings unhoisted = new CompilerSettings().setPassEnabled(LoopInvariantPass.NAME, false);
+
+        for (int script = 0; script < SCRIPTS.length; ++script) {
+            final Executable with = Compiler.compile("benchmark", SCRIPTS[script],
+                    LoopBenchmark.class.getClassLoader(), null, hoisted);
+            final Executable without = Compiler.compile("benchmark", SCRIPTS[script],
+                    LoopBenchmark.class.getClassLoader(), null, unhoisted);
+            long best = Long.MAX_VALUE;
+            long baseline = Long.MAX_VALUE;
+
+            for (int round = 0; round < ROUNDS; ++round) {
+                best = Math.min(best, measure(with, input));
+                baseline = Math.min(baseline, measure(without, input));
+            }
+
+            System.out.println("script " + script + ": " + best + " ns/op hoisted, " + baseline + " ns/op not hoisted");
+        }
+    }
+
+    private static long measure(final Executable executable, final Map<String, Object> input) {
+        Object sink = null;
+
+        for (int iteration = 0; iteration < WARMUP; ++iteration) {
+            sink = executable.execute(input);
+        }
+
+        final long start = System.nanoTime();
+
+        for (int iteration = 0; iteration < ITERATIONS; ++iteration) {
+            sink = executable.execute(input);
+        }
+
+        final long elapsed = System.nanoTime() - start;
+
+        if (sink == null) {
+            throw new IllegalStateException("benchmark script returned null");
+        }
+
+        return elapsed / ITERATIONS;
+    }
+
+    private LoopBenchmark() {}
+}
@@ -0,0 +1,717 @@
+package org.elasticsearch.plan.a;
+
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.Scorer;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.LeafSearchScript;
+import org.elasticsearch.script.ScriptService;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Checks that scripts give the same results whether the optimization passes run or not. */
+public class OptimizerTests extends ScriptTestCase {
+    private static CompilerSettings unoptimized() {
+        final CompilerSettings settings = new CompilerSettings();
+
+        for (final PassManager.Pass pass : PassManager.PASSES) {
+            settings.setPassEnabled(pass.name, false);
+        }
+
+        return settings;
+    }
+
+    /**
+     * Returns the size of the class generated for the script with the settings.  Staging is left out since it
+     * trades a larger class for less work per document.
+     */
+    private long bytecodeSize(final String script, final CompilerSettings settings) {
+        final CompilerStats stats = new CompilerStats();
+        settings.setPassEnabled(StagingPass.NAME, false).setStats(stats);
+        Compiler.compile(getTestName(), script, getClass().getClassLoader(), null, settings);
+
+        return stats.getBytecodeSize().getMax();
+    }
+
+    /** A list that counts the calls to size, to check how often a loop evaluates it. */
+    private static class CountingList extends java.util.ArrayList<Object> {
+        int sizes = 0;
+
+        @Override
+        public int size() {
+            ++sizes;
+
+            return super.size();
+        }
+    }
+
+    /** Compiles the script with every optimization pass disabled and returns the result. */
+    private Object execUnoptimized(final String script, final Map<String, Object> vars) {
+        final CompilerSettings settings = unoptimized();
+        final Executable executable = Compiler.compile(getTestName(), script, getClass().getClassLoader(), null, settings);
+
+        return executable.execute(vars == null ? new HashMap<String, Object>() : vars);
+    }
+
+    private void assertOptimized(final Object expected, final String script) {
+        assertOptimized(expected, script, null);
+    }
+
+    private void assertOptimized(final Object expected, final String script, final Map<String, Object> vars) {
+        assertEquals(expected, exec(script, vars));
+        assertEquals(expected, execUnoptimized(script, vars));
+    }
+
+    public void testUnknownPass() {
+        try {
+            new CompilerSettings().setPassEnabled("bogus", false);
+            fail("unknown pass should have been rejected");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("bogus"));
+        }
+    }
+
+    public void testIncrement() {
+        assertOptimized(10, "int x = 0; for (int y = 0; y < 10; ++y) { x += 1; } return x;");
+        assertOptimized(-5, "int x = 0; x -= 5; return x;");
+        assertOptimized(3, "int x = 1; int y = x++; return x + y;");
+        assertOptimized(4, "int x = 1; int y = ++x; return x + y;");
+        assertOptimized(100001, "int x = 1; x += 100000; return x;");
+        assertOptimized(3L, "long x = 1L; x += 2; return x;");
+        assertOptimized((byte)-128, "byte x = (byte)127; ++x; return x;");
+    }
+
+    public void testIncrementIsSmaller() {
+        final String script = "int x = 0; x += 1; --x; return x;";
+
+        assertTrue(bytecodeSize(script, new CompilerSettings()) < bytecodeSize(script, unoptimized()));
+    }
+
+    public void testDoWhileContinueChecksCondition() {
+        assertOptimized(3, "int x = 0; do { ++x; if (x > 0) continue; x = 100; } while (x < 3); return x;");
+    }
+
+    public void testNaNComparisons() {
+        assertOptimized(false, "double d = 0.0 / 0.0; return d < 1.0;");
+        assertOptimized(false, "double d = 0.0 / 0.0; return d >= 1.0;");
+        assertOptimized(true, "double d = 0.0 / 0.0; return !(d < 1.0);");
+        assertOptimized(0, "float f = 0.0F / 0.0F; if (f < 1.0F) return 1; return 0;");
+        assertOptimized(1, "float f = 0.0F / 0.0F; if (f != f) return 1; return 0;");
+    }
+
+    public void testCompoundAssignments() {
+        assertOptimized(8L, "long x = 1L; x <<= 3L; return x;");
+        assertOptimized(14, "int[] a = int.makearray(1); a[0] = 5; int b = a[0] += 2; return a[0] + b;");
+        assertOptimized(3L, "long[] a = long.makearray(1); a[0] = 1L; long b = a[0]++; return a[0] + b;");
+        assertOptimized("abc", "string[] a = string.makearray(1); a[0] = \"a\"; a[0] ..= \"b\" .. \"c\"; return a[0];");
+        assertOptimized("ab1", "string s = \"a\"; string t = s ..= 'b'; return t .. 1;");
+    }
+
+    public void testComputedStringReferences() {
+        assertOptimized(false, "string a = \"a\"; string b = a .. \"b\"; return b === \"ab\";");
+        assertOptimized(true, "string a = \"a\"; string b = a .. \"b\"; return b !== \"ab\";");
+        assertOptimized(false, "string a = \"a\"; string b = \"b\"; return (a .. b) === (a .. b);");
+        assertOptimized(false, "string s = \"a\"; s ..= \"b\"; return s === \"ab\";");
+        assertOptimized(true, "string a = \"a\"; string b = a .. \"b\"; return b == \"ab\";");
+        assertOptimized(true, "string a = \"a\"; string b = a; return a === b;");
+        assertOptimized(0, "string a = \"x\"; string prev = null; int n = 0; for (int i = 0; i < 2; ++i) {" +
+                " string s = a .. \"y\"; if (s === prev) ++n; prev = s; } return n;");
+        assertOptimized(2, "string a = \"x\"; string prev = null; int n = 0; for (int i = 0; i < 2; ++i) {" +
+                " string s = a .. \"y\"; if (s !== prev) ++n; prev = s; } return n;");
+    }
+
+    public void testConditions() {
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("x", 5);
+
+        assertOptimized(1, "int x = (int)input.get(\"x\"); if (x > 1 && x < 10 || x == 20) return 1; return 0;", vars);
+        assertOptimized(0, "int x = (int)input.get(\"x\"); if (!(x > 1) || x >= 10 && x != 20) return 1; return 0;", vars);
+        assertOptimized(true, "return input.get(\"y\") == null;", vars);
+        assertOptimized(false, "return (int)input.get(\"x\") != 5;", vars);
+        assertOptimized(2, "int x = 0; bool b = true; while (b) { ++x; b = x < 2; } return x;", vars);
+    }
+
+    public void testConstantPropagation() {
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("a", 1);
+
+        assertOptimized(4000, "int x = 4; return x * 1000;");
+        assertOptimized(3, "int x = 1; if (input.get(\"a\") == null) x = 2; else x = 2; return x + 1;", vars);
+        assertOptimized(4, "int x = 1; if (input.get(\"a\") == null) x = 2; else x = 3; return x + 1;", vars);
+        assertOptimized(2, "int x = 1; if (input.get(\"a\") != null) { x = 5; return x - 3; } return x;", vars);
+        assertOptimized(10, "int x = 4; while (x < 10) { x += 1; } return x;");
+        assertOptimized(7, "int x = 4; for (int y = 0; y < 3; ++y) { ++x; } return x;");
+        assertOptimized(10, "int x = 1; do { x *= 2; } while (x < 5); return x + x / 4;");
+        assertOptimized(11, "int x = 5; int y = x++ + x; return y;");
+        assertOptimized(true, "int x = 1; bool b = input.get(\"a\") != null && (x = 2) == 2; return b && x == 2;", vars);
+        assertOptimized("ab12.5", "string s = \"a\"; s ..= \"b\"; s = s .. 1 .. 2.5; return s;");
+        assertOptimized(-2147483648, "return intobj.max + 1;");
+        assertOptimized(1, "return utility.z2i(true);");
+        assertOptimized(false, "double d = 0.0 / 0.0; return d == d;");
+        assertOptimized(true, "double d = -0.0; return d == 0.0;");
+    }
+
+    public void testConstantPropagationIsSmaller() {
+        final String script = "int x = 4; int y = x * 1000; return y - x * 2;";
+
+        assertTrue(bytecodeSize(script, new CompilerSettings()) < bytecodeSize(script, unoptimized()));
+    }
+
+    public void testDivisionByZeroIsNotFolded() {
+        try {
+            exec("int x = 0; return 1 / x;");
+            fail("division by zero should have failed when run");
+        } catch (ArithmeticException expected) {
+            // expected
+        }
+    }
+
+    public void testDeadCode() {
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("a", 1);
+
+        assertOptimized(2, "if (false) return 1; return 2;");
+        assertOptimized(1, "if (true) { return 1; } return 2;");
+        assertOptimized(3, "bool debug = false; int x = 3; if (debug) { x = 4; } else { int y = x * 2; } return x;");
+        assertOptimized(5, "int x = 0; int y = 5; x = 7; return y;");
+        assertOptimized(1, "int x = 0; for (int y = 0; y < 3; ++y) { x += 2; } return (int)input.get(\"a\");", vars);
+        assertOptimized(2, "int x = (int)input.get(\"a\"); int y = ++x; return x;", vars);
+        assertOptimized(null, "bool on = false; while (on) { on = false; }");
+    }
+
+    public void testDeadStoreKeepsSideEffects() {
+        final java.util.List<Object> list = new java.util.ArrayList<>();
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("l", list);
+
+        assertEquals(1, exec("list l = (list)input.get(\"l\"); bool b = l.addlast(1); return l.size();", vars));
+        assertEquals(1, list.size());
+
+        try {
+            exec("int x = 1; x /= 0; return 1;");
+            fail("division by zero should have failed when run");
+        } catch (ArithmeticException expected) {
+            // expected
+        }
+
+        vars.put("m", "m");
+
+        try {
+            exec("def x = input.get(\"m\"); x -= 1; return 1;", vars);
+            fail("subtracting from a string should have failed when run");
+        } catch (ClassCastException expected) {
+            // expected
+        }
+    }
+
+    public void testDeadCodeIsRecorded() {
+        final String script = "bool debug = false; int x = 3; if (debug) { x = x * 4 + 2; return x; } return x;";
+        final CompilerStats stats = new CompilerStats();
+
+        Compiler.compile(getTestName(), script, getClass().getClassLoader(), null, new CompilerSettings().setStats(stats));
+
+        assertEquals(1L, stats.getEliminatedBytecode().getCount());
+        assertTrue(stats.getEliminatedBytecode().getMax() > 0);
+        assertTrue(bytecodeSize(script, new CompilerSettings()) < bytecodeSize(script, unoptimized()));
+    }
+
+    public void testLoopInvariantCallIsEvaluatedOnce() {
+        final CountingList list = new CountingList();
+        list.add(1);
+        list.add(2);
+        list.add(3);
+
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("l", list);
+
+        assertEquals(6L, exec("list l = (list)input.get(\"l\"); long t = 0;" +
+                " for (int i = 0; i < l.size(); ++i) { t += (int)l.get(i); } return t;", vars));
+        assertEquals(1, list.sizes);
+
+        list.sizes = 0;
+        assertEquals(6L, execUnoptimized("list l = (list)input.get(\"l\"); long t = 0;" +
+                " for (int i = 0; i < l.size(); ++i) { t += (int)l.get(i); } return t;", vars));
+        assertEquals(4, list.sizes);
+    }
+
+    public void testLoopChangingStateIsNotHoisted() {
+        final CountingList list = new CountingList();
+        list.add(1);
+
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("l", list);
+
+        assertEquals(2, exec("list l = (list)input.get(\"l\"); int i = 0;" +
+                " while (i < l.size()) { if (i == 0) l.addlast(2); ++i; } return i;", vars));
+        assertEquals(2, list.size());
+    }
+
+    public void testLoopInvariantKeepsExceptions() {
+        assertOptimized(0, "list l = null; int x = 0; while (x < 0) { x += l.size(); } return x;");
+        assertOptimized(0, "int d = 0; int x = 0; for (int i = 0; i < 0; ++i) { x += 10 / d; } return x;");
+        assertOptimized(0, "list l = null; int x = 0; while (x > 0 && x < l.size()) { --x; } return x;");
+
+        try {
+            exec("list l = null; int x = 0; for (int i = 0; i < l.size(); ++i) { ++x; } return x;");
+            fail("the bound on null should have failed on entry to the loop");
+        } catch (NullPointerException expected) {
+            // expected
+        }
+
+        try {
+            exec("list l = null; int x = 0; while (x < 1) { x += l.size(); } return x;");
+            fail("the call on null should have failed when run");
+        } catch (NullPointerException expected) {
+            // expected
+        }
+    }
+
+    public void testLoopInvariants() {
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("a", 3);
+        vars.put("b", 4);
+        vars.put("f", 2.0);
+
+        assertOptimized(120, "int a = (int)input.get(\"a\"); int b = (int)input.get(\"b\"); int t = 0;" +
+                " for (int i = 0; i < 10; ++i) { t += a * b; } return t;", vars);
+        assertOptimized(36.0, "double t = 0; int i = 0; do { t += (double)input.get(\"f\") * (int)input.get(\"a\");" +
+                " ++i; } while (i < 6); return t;", vars);
+        assertOptimized(87, "int a = (int)input.get(\"a\"); int t = 0; for (int i = 0; i < 4; ++i) {" +
+                " for (int j = 0; j < a; ++j) { t += a + (int)input.get(\"b\"); } } return t + a;", vars);
+        assertOptimized(10, "int a = (int)input.get(\"a\"); int t = 0; for (int i = 0; i < 10; ++i) {" +
+                " int c = a * 2; c = 1; t += c; } return t;", vars);
+    }
+
+    public void testCommonSubexpressionIsEvaluatedOnce() {
+        final CountingList list = new CountingList();
+        list.add(1);
+        list.add(2);
+
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("l", list);
+
+        final String script = "list l = (list)input.get(\"l\"); int a = l.size() * 2;" +
+                " if (l.size() > 1) { return a + l.size(); } return l.size();";
+
+        assertEquals(6, exec(script, vars));
+        assertEquals(1, list.sizes);
+
+        list.sizes = 0;
+        assertEquals(6, execUnoptimized(script, vars));
+        assertEquals(3, list.sizes);
+    }
+
+    public void testCommonSubexpressionReducesBytecode() {
+        final String script = "double p = (double)((smap)input.get(\"doc\")).get(\"price\");" +
+                " if ((double)((smap)input.get(\"doc\")).get(\"price\") > 10) {" +
+                " return (double)((smap)input.get(\"doc\")).get(\"price\") * 2; } return p + 1;";
+        final Map<String, Object> doc = new HashMap<>();
+        doc.put("price", 12.5);
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("doc", doc);
+
+        assertEquals(25.0, exec(script, vars));
+        assertTrue(bytecodeSize(script, new CompilerSettings()) <
+                bytecodeSize(script, new CompilerSettings().setPassEnabled(CommonSubexpressionPass.NAME, false)));
+    }
+
+    public void testCommonSubexpressionForgetsWrites() {
+        final CountingList list = new CountingList();
+        list.add(1);
+
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("l", list);
+        vars.put("a", 3);
+
+        assertEquals(3, exec("list l = (list)input.get(\"l\"); int a = l.size(); l.addlast(2); return a + l.size();", vars));
+        assertEquals(2, list.sizes);
+
+        assertOptimized(13, "int x = (int)input.get(\"a\"); int a = x * x; x = 2; return a + x * x;", vars);
+        assertOptimized(5, "smap m = (smap)input; int a = (int)m.get(\"a\"); m.put(\"a\", 2);" +
+                " return a + (int)m.get(\"a\");", new HashMap<String, Object>(vars));
+        assertOptimized(12, "int[] a = int.makearray(1); a[0] = 2; int b = a[0] * 3; a[0] = 3; return b + a[0] * 2;");
+        assertOptimized(5, "int x = (int)input.get(\"a\"); int y = 0; if (x > 1) { y = x * x; x = 1; } return y - 5 + x * x;",
+                vars);
+        assertOptimized(2, "int x = (int)input.get(\"a\"); int t = 0; for (int i = 0; i < 2; ++i) { t += x * 2; x = 0; }" +
+                " return t - 4 + x * 2;", vars);
+    }
+
+    private ExecutableScript executable(final String script, final Map<String, Object> vars) {
+        final Object compiled = scriptEngine.compile(script);
+
+        return scriptEngine.executable(new CompiledScript(ScriptService.ScriptType.INLINE, getTestName(), "plan-a", compiled), vars);
+    }
+
+    public void testStagedValuesAreComputedOncePerQuery() {
+        final CountingList list = new CountingList();
+        list.add(1);
+
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("l", list);
+        vars.put("x", 2);
+
+        final ExecutableScript script = executable("return ((list)input.get(\"l\")).size() * (int)input.get(\"x\");", vars);
+
+        assertEquals(2, script.run());
+        assertEquals(2, script.run());
+        assertEquals(2, script.run());
+        assertEquals(1, list.sizes);
+    }
+
+    public void testStagedValuesFollowInputs() {
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("x", 1);
+
+        final ExecutableScript script = executable("return (int)input.get(\"x\") * 2;", vars);
+
+        assertEquals(2, script.run());
+        script.setNextVar("x", 5);
+        assertEquals(10, script.run());
+
+        // a stage that fails leaves the script to fail only if it reaches the value
+        assertEquals(0, exec("if (input.get(\"x\") == null) return 0; return (int)input.get(\"x\") + 1;"));
+
+        final Map<String, Object> ctx = new HashMap<>();
+        ctx.put("value", 1);
+        vars.put("ctx", ctx);
+
+        final ExecutableScript update = executable("return (int)((smap)input.get(\"ctx\")).get(\"value\") + 1;", vars);
+
+        assertEquals(2, update.run());
+        ctx.put("value", 2);
+        assertEquals(3, update.run());
+
+        final Map<String, Object> lists = new HashMap<>();
+        lists.put("l", new ArrayList<>());
+
+        final ExecutableScript changes = executable("list l = (list)input.get(\"l\"); l.addlast(1); return l.size();", lists);
+
+        assertEquals(1, changes.run());
+        assertEquals(2, changes.run());
+    }
+
+    public void testStagedConcatenations() {
+        final Map<String, Object> input = new HashMap<>();
+        input.put("p", "a");
+
+        // a concatenation is shared by every document unless the script could tell it apart from a new one
+        final Executable shared = Compiler.compile(getTestName(), "return (string)input.get(\"p\") .. \"!\";",
+                getClass().getClassLoader(), null);
+        final Object[] values = shared.query(input);
+
+        assertEquals("a!", shared.execute(input, values));
+        assertSame(shared.execute(input, values), shared.execute(input, values));
+
+        final Executable compared = Compiler.compile(getTestName(), "string s = (string)input.get(\"p\") .. \"!\";" +
+                " if (s === input.get(\"q\")) return null; return s;", getClass().getClassLoader(), null);
+        final Object[] query = compared.query(input);
+
+        assertEquals("a!", compared.execute(input, query));
+        assertNotSame(compared.execute(input, query), compared.execute(input, query));
+    }
+
+    public void testSegmentStage() {
+        final Executable executable = Compiler.compile(getTestName(), "smap d = (smap)input.get(\"doc\");" +
+                " return (int)d.get(\"v\") * ((int)input.get(\"w\") + 1);", getClass().getClassLoader(), null);
+        final Map<String, Object> params = new HashMap<>();
+        params.put("w", 2);
+
+        final Object[] query = executable.query(params);
+        assertNotNull(query);
+
+        final Map<String, Object> doc = new HashMap<>();
+        final Map<String, Object> input = new HashMap<>(params);
+        input.put("doc", doc);
+
+        final Object[] values = executable.segment(input, query);
+        assertNotSame(query, values);
+
+        doc.put("v", 1);
+        assertEquals(3, executable.execute(input, values));
+        doc.put("v", 4);
+        assertEquals(12, executable.execute(input, values));
+        assertEquals(12, executable.execute(input));
+    }
+
+    public void testNumericExecutes() throws Exception {
+        final Executable constant = Compiler.compile(getTestName(), "return 2.5;", getClass().getClassLoader(), null);
+        assertEquals(2.5, constant.executeAsDouble(null), 0.0);
+        assertEquals(2L, constant.executeAsLong(null));
+        assertNotNull(constant.getClass().getDeclaredMethod("executeAsDouble", Map.class));
+
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("x", 3);
+
+        // the search script the engine runs for scores and sorts
+        final LeafSearchScript script =
+                (LeafSearchScript)executable("int x = (int)input.get(\"x\"); if (x > 1) return x * 2; return 1.5;", vars);
+        assertEquals(6.0, script.runAsDouble(), 0.0);
+        assertEquals(6L, script.runAsLong());
+        assertEquals(6.0f, script.runAsFloat(), 0.0f);
+        script.setNextVar("x", 0);
+        assertEquals(1.5, script.runAsDouble(), 0.0);
+        assertEquals(1L, script.runAsLong());
+
+        // a script that may return something other than a number still unboxes the result of execute
+        final Executable boxed = Compiler.compile(getTestName(), "if (input.get(\"x\") == null) return \"x\"; return 1;",
+                getClass().getClassLoader(), null);
+        assertEquals(1.0, boxed.executeAsDouble(vars), 0.0);
+
+        try {
+            boxed.getClass().getDeclaredMethod("executeAsDouble", Map.class);
+            fail("should have left the boxed execute to the base class");
+        } catch (NoSuchMethodException expected) {
+            // every return must be a number
+        }
+
+        final Map<String, Object> doubles = Collections.<String, Object>singletonMap("y", 7.0);
+        assertEquals(7.0, ((LeafSearchScript)executable("return (double)input.get(\"y\");", doubles)).runAsDouble(), 0.0);
+
+        // a long is rounded to a float once, which gives a different float than rounding it through a double
+        final long large = (1L << 60) + (1L << 36) + 1;
+        final Map<String, Object> longs = Collections.<String, Object>singletonMap("z", large);
+        assertTrue((float)large != (float)(double)large);
+        assertEquals((float)large, ((LeafSearchScript)executable("return (long)input.get(\"z\");", longs)).runAsFloat(), 0.0f);
+        final Executable narrowed = Compiler.compile(getTestName(), "return (long)input.get(\"z\");",
+                getClass().getClassLoader(), null);
+        assertEquals((float)large, narrowed.executeAsFloat(longs), 0.0f);
+        assertNotNull(narrowed.getClass().getDeclaredMethod("executeAsFloat", Map.class));
+    }
+
+    public void testBoundInputs() {
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("x", 1);
+        vars.put("y", 2);
+        vars.put("unread", 3);
+
+        final ScriptImpl script = (ScriptImpl)executable("return (int)input.get(\"x\") * 10 + (int)input.get(\"y\");", vars);
+        assertTrue(script.variables instanceof Bindings);
+        assertEquals(12, script.run());
+        assertNull(script.variables.get("unread"));
+
+        script.setNextVar("x", 5);
+        assertEquals(52, script.run());
+        script.setNextVar("unread", 4);
+        assertEquals(52, script.run());
+
+        // a script run without bindings reads the same inputs by name
+        final Executable executable = Compiler.compile(getTestName(), "return (int)input.get(\"x\") + 1;",
+                getClass().getClassLoader(), null);
+        assertEquals(Collections.singletonMap("x", 0), executable.getBindings());
+        assertEquals(2, executable.execute(vars));
+
+        // any other use of the input map leaves every input in the map
+        final ScriptImpl unbound = (ScriptImpl)executable("smap m = input; return m.size();", vars);
+        assertFalse(unbound.variables instanceof Bindings);
+        assertEquals(3, unbound.run());
+        assertEquals(1, exec("input.put(\"z\", 1); return input.get(\"z\");", vars));
+    }
+
+    public void testDocValues() {
+        final Executable executable = Compiler.compile(getTestName(),
+                "smap d = (smap)input.get(\"doc\"); long a = (long)((list)d.get(\"a\")).get(0);" +
+                " return a + (double)((list)((smap)input.get(\"doc\")).get(\"b\")).get(0) * 2;", getClass().getClassLoader(), null);
+        assertEquals(2, executable.getFields().size());
+
+        final long[] a = {1, 2};
+        final long[] b = {10, 20};
+        final Map<String, Object> doc = new HashMap<>();
+        doc.put("a", new ScriptDocValues.Longs(values(a)));
+        doc.put("b", new ScriptDocValues.Longs(values(b)));
+
+        final Bindings bindings = new Bindings(executable.getBindings(), executable.getFields());
+        bindings.put("doc", doc);
+        bindings.bindFields(doc);
+
+        bindings.setDocument(0);
+        assertEquals(21.0, executable.execute(bindings));
+        bindings.setDocument(1);
+        assertEquals(42.0, executable.executeAsDouble(bindings), 0.0);
+
+        // the bound doc values are read without going through the doc map, which is read without bindings
+        final ScriptDocValues.Longs replaced = new ScriptDocValues.Longs(values(new long[] {100, 200}));
+        replaced.setNextDocId(1);
+        doc.put("a", replaced);
+        assertEquals(42.0, executable.execute(bindings));
+
+        final Map<String, Object> input = new HashMap<>();
+        input.put("doc", doc);
+        assertEquals(240.0, executable.execute(input));
+
+        // a doc replaced through putAll is read through its map until its doc values are bound
+        bindings.putAll(input);
+        assertEquals(240.0, executable.execute(bindings));
+
+        // a conversion the doc values may fail leaves the read as it is
+        assertEquals(0, Compiler.compile(getTestName(), "return (double)((arraylist)((smap)input.get(\"doc\")).get(\"a\")).get(0);",
+                getClass().getClassLoader(), null).getFields().size());
+        assertEquals(0, Compiler.compile(getTestName(), "return (int)((list)((smap)input.get(\"doc\")).get(\"a\")).get(0);",
+                getClass().getClassLoader(), null).getFields().size());
+    }
+
+    private static SortedNumericDocValues values(final long[] values) {
+        return new SortedNumericDocValues() {
+            private int doc;
+
+            @Override
+            public void setDocument(final int doc) {
+                this.doc = doc;
+            }
+
+            @Override
+            public long valueAt(final int index) {
+                return values[doc];
+            }
+
+            @Override
+            public int count() {
+                return 1;
+            }
+        };
+    }
+
+    /** A leaf that moves the input _value to the value of each document. */
+    private static LeafSearchScript leaf(final Map<String, Object> input, final int[] values) {
+        return new LeafSearchScript() {
+            @Override
+            public void setDocument(final int doc) {
+                input.put("_value", values[doc]);
+            }
+
+            @Override
+            public void setSource(final Map<String, Object> source) {}
+
+            @Override
+            public void setScorer(final Scorer scorer) {}
+
+            @Override
+            public void setNextVar(final String name, final Object value) {}
+
+            @Override
+            public Object run() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public float runAsFloat() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long runAsLong() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public double runAsDouble() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Object unwrap(final Object value) {
+                return value;
+            }
+        };
+    }
+
+    public void testBatchExecute() throws Exception {
+        final Map<String, Object> input = new HashMap<>();
+        final int[] values = {1, 2, 3, 4};
+        final int[] docs = {3, 0, 2, 1};
+        final double[] out = new double[docs.length];
+
+        final String script = "int x = (int)input.get(\"_value\"); if (x > 2) return x * 1.5; long y = x; return y * 10;";
+        final Executable executable = Compiler.compile(getTestName(), script, getClass().getClassLoader(), null);
+        assertNotNull(executable.getClass().getDeclaredMethod("executeAsDoubles", Map.class, Object[].class,
+                LeafSearchScript.class, int[].class, int.class, double[].class));
+
+        executable.executeAsDoubles(input, null, leaf(input, values), docs, 3, out);
+        assertArrayEquals(new double[] {6.0, 10.0, 4.5, 0.0}, out, 0.0);
+
+        // a script that may return something other than a number runs each document through executeAsDouble
+        final Executable boxed = Compiler.compile(getTestName(), "if (input.get(\"_value\") == null) return \"x\";" +
+                " for (int i = 0; i < 10; ++i) { if (i == (int)input.get(\"_value\")) return i; } return 0;",
+                getClass().getClassLoader(), null);
+        boxed.executeAsDoubles(input, null, leaf(input, values), docs, docs.length, out);
+        assertArrayEquals(new double[] {4.0, 1.0, 3.0, 2.0}, out, 0.0);
+
+        // the staged values are shared by every document of the block
+        final Map<String, Object> params = new HashMap<>();
+        params.put("w", 2);
+        final Executable staged = Compiler.compile(getTestName(), "return (int)input.get(\"_value\") * (int)input.get(\"w\");",
+                getClass().getClassLoader(), null);
+        final Object[] query = staged.query(params);
+        assertNotNull(query);
+        input.putAll(params);
+        staged.executeAsDoubles(input, query, leaf(input, values), docs, docs.length, out);
+        assertArrayEquals(new double[] {8.0, 2.0, 6.0, 4.0}, out, 0.0);
+    }
+
+    public void testColumns() {
+        final Executable executable = Compiler.compile(getTestName(),
+                "double price = (double)input.get(\"price\"); long count = (long)input.get(\"count\");" +
+                " return price * count + (int)input.get(\"bonus\");", getClass().getClassLoader(), null);
+        final ByteBuffer counts = ByteBuffer.allocateDirect(4 * 8);
+        counts.asLongBuffer().put(new long[] {1, 2, 3, 4});
+
+        final double[] out = new double[4];
+        final Columns columns = new Columns(executable).bind("price", new double[] {1.5, 2.0, 0.5, 3.0})
+                .bindLongs("count", counts).set("bonus", 1).bind("unread", new long[0]);
+        columns.execute(1, 4, out);
+        assertArrayEquals(new double[] {0.0, 5.0, 2.5, 13.0}, out, 0.0);
+
+        // the script still runs with a map for its input
+        final Map<String, Object> input = new HashMap<>();
+        input.put("price", 1.5);
+        input.put("count", 2L);
+        input.put("bonus", 1);
+        assertEquals(4.0, executable.executeAsDouble(input), 0.0);
+
+        // a column of doubles read as a long is converted like the boxed number would be
+        final ByteBuffer prices = ByteBuffer.allocateDirect(2 * 8);
+        prices.asDoubleBuffer().put(new double[] {2.5, 4.0});
+        final long[] sums = new long[2];
+        new Columns(Compiler.compile(getTestName(), "return (long)input.get(\"price\") + (long)input.get(\"count\");",
+                getClass().getClassLoader(), null)).bindDoubles("price", prices).bind("count", new long[] {10, 20})
+                .execute(0, 2, sums);
+        assertArrayEquals(new long[] {12, 24}, sums);
+
+        // an input set for every row replaces its column, and a column read as an object is boxed
+        columns.set("price", 2.0).execute(0, 2, out);
+        assertArrayEquals(new double[] {3.0, 5.0, 2.5, 13.0}, out, 0.0);
+        new Columns(Compiler.compile(getTestName(), "return input.get(\"count\") == null ? 0 : 1;",
+                getClass().getClassLoader(), null)).bind("count", new long[] {7}).execute(0, 1, sums);
+        assertEquals(1, sums[0]);
+
+        try {
+            new Columns(Compiler.compile(getTestName(), "return input.size();", getClass().getClassLoader(), null));
+            fail("a script that reads its input other than by constant names can not run over columns");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("constant names"));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.plan.a;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PackedTests extends ScriptTestCase {
+    public void testScriptsShareOneClass() {
+        final Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("sum", "int x = 0; for (int y = 0; y < 5; ++y) { x += y; } return x;");
+        sources.put("concat", "string s = \"a\"; s ..= \"b\"; return s;");
+        sources.put("input", "return (int)input.get(\"w\") * 2;");
+        sources.put("none", "int x = 1;");
+
+        final Map<String, Executable> executables = compileAll(sources, new CompilerSettings());
+        assertEquals(4, executables.size());
+
+        final Map<String, Object> input = new HashMap<>();
+        input.put("w", 3);
+
+        assertEquals(10, executables.get("sum").execute(input));
+        assertEquals("ab", executables.get("concat").execute(input));
+        assertEquals(6, executables.get("input").execute(input));
+        assertNull(executables.get("none").execute(input));
+
+        assertSame(executables.get("sum").getClass(), executables.get("concat").getClass());
+        assertEquals("concat", executables.get("concat").getName());
+        assertEquals(sources.get("input"), executables.get("input").getSource());
+    }
+
+    public void testNumericAndInheritedEntryPoints() {
+        final Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("numeric", "return 2.5;");
+        sources.put("boxed", "return input.get(\"w\");");
+
+        final Map<String, Executable> executables = compileAll(sources, new CompilerSettings());
+        final Map<String, Object> input = new HashMap<>();
+        input.put("w", 4);
+
+        assertEquals(2.5, executables.get("numeric").executeAsDouble(input), 0.0);
+        assertEquals(4L, executables.get("boxed").executeAsLong(input));
+        assertNull(executables.get("numeric").query(input));
+        assertNotNull(executables.get("boxed").query(input));
+    }
+
+    public void testStagedScript() {
+        final Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("plain", "return 1;");
+        sources.put("staged", "smap d = (smap)input.get(\"doc\"); return (int)d.get(\"v\") * ((int)input.get(\"w\") + 1);");
+
+        final Executable executable = compileAll(sources, new CompilerSettings()).get("staged");
+        final Map<String, Object> params = new HashMap<>();
+        params.put("w", 2);
+
+        final Object[] query = executable.query(params);
+        assertNotNull(query);
+
+        final Map<String, Object> doc = new HashMap<>();
+        doc.put("v", 5);
+        final Map<String, Object> input = new HashMap<>(params);
+        input.put("doc", doc);
+
+        assertEquals(15, executable.execute(input, executable.segment(input, query)));
+        assertEquals(15, executable.execute(input));
+    }
+
+    public void testDefInPackedScripts() {
+        final Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("list", "def l = arraylist.new(); l.addlast(1); return l.size();");
+        sources.put("map", "def m = hashmap.new(); m.x = 5; return m.x;");
+
+        final Map<String, Executable> executables = compileAll(sources, new CompilerSettings());
+
+        assertEquals(1, executables.get("list").execute(new HashMap<String, Object>()));
+        assertEquals(5, executables.get("map").execute(new HashMap<String, Object>()));
+    }
+
+    public void testStatsRecordOneClass() {
+        final CompilerStats stats = new CompilerStats();
+        final Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("a", "return 1;");
+        sources.put("b", "return 2;");
+        sources.put("c", "return 3;");
+
+        compileAll(sources, new CompilerSettings().setStats(stats));
+
+        assertEquals(3L, stats.getCompiledCount());
+        assertEquals(1L, stats.getDefinedClassCount());
+        assertEquals(1L, stats.getBytecodeSize().getCount());
+        assertEquals(3L, stats.getPhase(CompilerStats.Phase.PARSE).getCount());
+        assertEquals(1L, stats.getPhase(CompilerStats.Phase.DEFINE).getCount());
+    }
+
+    public void testInvalidScriptFailsTheBatch() {
+        final CompilerStats stats = new CompilerStats();
+        final Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("good", "return 1;");
+        sources.put("bad", "return 1");
+
+        try {
+            compileAll(sources, new CompilerSettings().setStats(stats));
+            fail("should have failed to compile");
+        } catch (RuntimeException expected) {
+            // the second script does not parse
+        }
+
+        assertEquals(1L, stats.getFailedCount());
+        assertEquals(0L, stats.getDefinedClassCount());
+    }
+
+    public void testNoScripts() {
+        assertTrue(compileAll(new LinkedHashMap<String, String>(), new CompilerSettings()).isEmpty());
+    }
+
+    private Map<String, Executable> compileAll(final Map<String, String> sources, final CompilerSettings settings) {
+        return Compiler.compileAll(sources, getClass().getClassLoader(), null, settings);
+    }
+}
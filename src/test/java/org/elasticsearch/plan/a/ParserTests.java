@@ -0,0 +1,551 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.elasticsearch.common.settings.Settings;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Differential tests comparing the hand-written {@link ScriptParser} against the generated ANTLR parser.
+ */
+public class ParserTests extends ScriptTestCase {
+    private static final List<String> RULES = Arrays.asList(PlanAParser.ruleNames);
+
+    private static final String[] VALID = {
+        "return 1;",
+        "return 1 + 2 * 3 - 4 / 5 % 6;",
+        "return 1 - 2 - 3;",
+        "return -1 .. 2 .. 3;",
+        "return a ? b : c ? d : e;",
+        "return a ? b ? c : d : e;",
+        "return a || b && c | d ^ e & f == g != h < i <= j > k >= l << m >> n >>> o + p - q * r / s % t .. u;",
+        "return a === b !== c;",
+        "return !~+-x;",
+        "return (int)x;",
+        "return (int)x + 1;",
+        "return (int)-x;",
+        "return (int)(long)x;",
+        "return (int[])x;",
+        "return (int[][])x[0];",
+        "return (x);",
+        "return ((x));",
+        "return (x).y;",
+        "return ((x)).y[0].z(1, 2);",
+        "return ((int)x).y;",
+        "return (int)x.y;",
+        "(int)x = 5;",
+        "(x) = 5;",
+        "(x).y = 5;",
+        "(x)++;",
+        "x = y = z;",
+        "x += 1; x -= 1; x *= 1; x /= 1; x %= 1; x &= 1; x ^= 1; x |= 1; x <<= 1; x >>= 1; x >>>= 1; x ..= 1;",
+        "return a + b = c;",
+        "return a ? b : c = d;",
+        "x++; x--; ++x; --x;",
+        "return x++ + ++x - x-- - --x;",
+        "return x.y.z;",
+        "return x[0][1];",
+        "return x.y(1).z[2];",
+        "return x.y().z();",
+        "return input.get(\"x\");",
+        "return int.makearray(1, 2);",
+        "return string.valueOf(1);",
+        "x.int(); return x.string();",
+        "int x;",
+        "int x = 1, y, z = 2;",
+        "int[] x = int.makearray(1);",
+        "int[][] x;",
+        "if (x) y = 1;",
+        "if (x) { y = 1; } else { y = 2; }",
+        "if (x) if (y) z = 1; else z = 2;",
+        "if (x) {} else if (y) {} else {}",
+        "while (x) ++y;",
+        "while (x);",
+        "while (x) {}",
+        "while (x) { if (y) break; else continue; }",
+        "do { x++; } while (x < 10);",
+        "do x++; while (x < 10);",
+        "for (;;);",
+        "for (;;) {}",
+        "for (int x = 0; x < 10; ++x) {}",
+        "for (int x = 0, y = 1; ; x = y) y++;",
+        "for (; x < 10;) x++;",
+        "return 0;",
+        "return 00;",
+        "return 07L;",
+        "return 0x1F;",
+        "return 0xffL;",
+        "return 12l;",
+        "return 1.5;",
+        "return 1.;",
+        "return .5;",
+        "return 1e10;",
+        "return 1.5E-3f;",
+        "return 2f;",
+        "return \"\";",
+        "return \"a\\\"b\\\\c\";",
+        "return 'c';",
+        "return ''';",
+        "return true; return false; return null;",
+        "return iffy + returned + do_it + true_x + nullable;",
+        "int x = 0;\nwhile (x < 5) {\n  x++;\n}\nreturn x;",
+        "return input.get(\"x\") == null ? -1 : (int)input.get(\"x\");"
+    };
+
+    private static final String[] INVALID = {
+        "",
+        "return 1",
+        "return;",
+        "x y;",
+        "int;",
+        "int int;",
+        "int x = ;",
+        "if (x);",
+        "if x y = 1;",
+        "for (x = 0;;);",
+        "return (int);",
+        "return (x + 1).y;",
+        "(x + 1) = 2;",
+        "(x + 1)++;",
+        "return x.int;",
+        "return f(x);",
+        "return x(;",
+        "return (x;",
+        "return x);",
+        "return {};",
+        "{ x = 1;",
+        "}",
+        "return \"abc;",
+        "return \"a\\b\";",
+        "return 'ab';",
+        "return 08;",
+        "return 1..2;",
+        "return #;",
+        "return x ++ y;",
+        "return int;",
+        "void x;",
+        "return 1 + ;",
+        "return ? : ;",
+        "x = 1 = 2; +"
+    };
+
+    private static final String[] TYPES = { "int", "long", "string", "list", "smap", "object", "intobj" };
+    private static final String[] NAMES = { "x", "y", "input", "size", "get" };
+    private static final String[] LITERALS = {
+        "0", "7", "012", "0x1f", "3L", "1.5", ".25", "2e3", "4f", "\"s\"", "\"a\\\"b\"", "'c'", "true", "false", "null"
+    };
+    private static final String[] BINARY = {
+        "..", "*", "/", "%", "+", "-", "<<", ">>", ">>>", "<", "<=", ">", ">=", "==", "===", "!=", "!==",
+        "&", "^", "|", "&&", "||"
+    };
+    private static final String[] ASSIGN = {
+        "=", "+=", "-=", "*=", "/=", "%=", "&=", "^=", "|=", "<<=", ">>=", ">>>=", "..="
+    };
+
+    public void testValidScripts() {
+        for (final String source : VALID) {
+            assertSameResult(source);
+            parse(source);
+        }
+    }
+
+    public void testInvalidScripts() {
+        for (final String source : INVALID) {
+            assertSameResult(source);
+
+            try {
+                parse(source);
+                fail("script [" + source + "] should not have parsed");
+            } catch (RuntimeException expected) {
+                assertTrue(expected.getCause() instanceof ParseException);
+            }
+        }
+    }
+
+    public void testRandomScripts() {
+        final Random random = random();
+
+        for (int iteration = 0; iteration < 500; ++iteration) {
+            final StringBuilder builder = new StringBuilder();
+            final int statements = 1 + random.nextInt(3);
+
+            for (int statement = 0; statement < statements; ++statement) {
+                statement(random, builder, 3);
+                builder.append(random.nextBoolean() ? " " : "\n");
+            }
+
+            assertSameResult(builder.toString());
+        }
+    }
+
+    public void testMutatedScripts() {
+        final Random random = random();
+
+        for (int iteration = 0; iteration < 500; ++iteration) {
+            final StringBuilder builder = new StringBuilder();
+            statement(random, builder, 3);
+
+            final String[] tokens = builder.toString().split(" ");
+            final StringBuilder mutated = new StringBuilder();
+            final int mutation = random.nextInt(tokens.length);
+
+            for (int token = 0; token < tokens.length; ++token) {
+                if (token == mutation) {
+                    if (random.nextBoolean()) {
+                        continue;
+                    }
+
+                    mutated.append(tokens[random.nextInt(tokens.length)]).append(' ');
+                }
+
+                mutated.append(tokens[token]).append(' ');
+            }
+
+            assertSameResult(mutated.toString());
+        }
+    }
+
+    public void testDescentParserEngine() {
+        scriptEngine = new PlanAScriptEngineService(Settings.settingsBuilder()
+                .put(PlanAScriptEngineService.PARSER_SETTING, "descent").build());
+
+        assertEquals(10, exec("int x = 0; for (int y = 0; y < 10; ++y) { x += 1; } return x;"));
+        assertEquals("ab", exec("string s = \"a\"; s ..= 'b'; return s;"));
+        assertEquals(2, exec("return ((list)input.get(\"l\")).size();",
+                java.util.Collections.<String, Object>singletonMap("l", Arrays.asList(1, 2))));
+        assertEquals(0L, scriptEngine.stats().getParseFallbackCount());
+
+        try {
+            exec("return 1");
+            fail("script should have failed to parse");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getCause() instanceof ParseException);
+        }
+    }
+
+    public void testUnknownParser() {
+        try {
+            new PlanAScriptEngineService(Settings.settingsBuilder().put(PlanAScriptEngineService.PARSER_SETTING, "yacc").build());
+            fail("engine should not accept an unknown parser");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("yacc"));
+        }
+    }
+
+    private static ParserRuleContext parse(final String source) {
+        return ScriptParser.parse(source, Default.DEFAULT_DEFINITION.structs.keySet());
+    }
+
+    private static ParserRuleContext antlr(final String source) {
+        final ErrorHandlingLexer lexer = new ErrorHandlingLexer(new ANTLRInputStream(source));
+        final PlanAParser parser = new PlanAParser(new CommonTokenStream(lexer));
+
+        lexer.removeErrorListeners();
+        parser.setTypes(Default.DEFAULT_DEFINITION.structs.keySet());
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new ParserErrorStrategy());
+
+        return parser.source();
+    }
+
+    private static void assertSameResult(final String source) {
+        ParserRuleContext expected = null;
+        ParserRuleContext actual = null;
+
+        try {
+            expected = antlr(source);
+        } catch (RuntimeException exception) {
+            assertTrue(exception.getCause() instanceof ParseException);
+        }
+
+        try {
+            actual = parse(source);
+        } catch (RuntimeException exception) {
+            assertTrue(exception.getCause() instanceof ParseException);
+        }
+
+        if (expected == null) {
+            assertTrue("script [" + source + "] should not have parsed", actual == null);
+        } else {
+            assertTrue("script [" + source + "] should have parsed", actual != null);
+            assertEquals("tree mismatch for [" + source + "]", expected.toStringTree(RULES), actual.toStringTree(RULES));
+            assertSameTree(source, expected, actual);
+        }
+    }
+
+    private static void assertSameTree(final String source, final ParseTree expected, final ParseTree actual) {
+        assertEquals("node mismatch for [" + source + "]", expected.getClass(), actual.getClass());
+        assertEquals("child count mismatch for [" + source + "]", expected.getChildCount(), actual.getChildCount());
+
+        if (expected instanceof TerminalNode) {
+            assertSameToken(source, ((TerminalNode)expected).getSymbol(), ((TerminalNode)actual).getSymbol());
+        } else {
+            assertSameToken(source, ((ParserRuleContext)expected).start, ((ParserRuleContext)actual).start);
+
+            // whether the stop token of a rule that matched EOF is EOF depends on the version of the runtime
+            if (expected.getParent() != null) {
+                assertSameToken(source, ((ParserRuleContext)expected).stop, ((ParserRuleContext)actual).stop);
+            }
+        }
+
+        for (int child = 0; child < expected.getChildCount(); ++child) {
+            assertTrue("parent mismatch for [" + source + "]", actual.getChild(child).getParent() == actual);
+            assertSameTree(source, expected.getChild(child), actual.getChild(child));
+        }
+    }
+
+    private static void assertSameToken(final String source, final Token expected, final Token actual) {
+        assertEquals("token mismatch for [" + source + "]", expected.getType(), actual.getType());
+        assertEquals("token mismatch for [" + source + "]", expected.getText(), actual.getText());
+        assertEquals("token mismatch for [" + source + "]", expected.getTokenIndex(), actual.getTokenIndex());
+        assertEquals("token mismatch for [" + source + "]", expected.getLine(), actual.getLine());
+        assertEquals("token mismatch for [" + source + "]", expected.getCharPositionInLine(), actual.getCharPositionInLine());
+        assertEquals("token mismatch for [" + source + "]", expected.getStartIndex(), actual.getStartIndex());
+    }
+
+    private static void statement(final Random random, final StringBuilder builder, final int depth) {
+        switch (depth <= 0 ? 7 + random.nextInt(2) : random.nextInt(10)) {
+            case 0:
+                builder.append("if ( ");
+                expression(random, builder, depth - 1);
+                builder.append(" ) ");
+                statement(random, builder, depth - 1);
+
+                if (random.nextBoolean()) {
+                    builder.append(" else ");
+                    statement(random, builder, depth - 1);
+                }
+
+                break;
+            case 1:
+                builder.append("while ( ");
+                expression(random, builder, depth - 1);
+                builder.append(" ) ");
+
+                if (random.nextBoolean()) {
+                    builder.append(";");
+                } else {
+                    statement(random, builder, depth - 1);
+                }
+
+                break;
+            case 2:
+                builder.append("do ");
+                statement(random, builder, depth - 1);
+                builder.append(" while ( ");
+                expression(random, builder, depth - 1);
+                builder.append(" ) ;");
+
+                break;
+            case 3:
+                builder.append("for ( ");
+
+                if (random.nextBoolean()) {
+                    declaration(random, builder, depth - 1);
+                }
+
+                builder.append(" ; ");
+
+                if (random.nextBoolean()) {
+                    expression(random, builder, depth - 1);
+                }
+
+                builder.append(" ; ");
+
+                if (random.nextBoolean()) {
+                    expression(random, builder, depth - 1);
+                }
+
+                builder.append(" ) ");
+                statement(random, builder, depth - 1);
+
+                break;
+            case 4:
+                builder.append("{ ");
+
+                for (int statement = random.nextInt(3); statement > 0; --statement) {
+                    statement(random, builder, depth - 1);
+                    builder.append(' ');
+                }
+
+                builder.append("}");
+
+                break;
+            case 5:
+                builder.append(random.nextBoolean() ? "break ;" : "continue ;");
+
+                break;
+            case 6:
+                declaration(random, builder, depth);
+                builder.append(" ;");
+
+                break;
+            case 7:
+                builder.append("return ");
+                expression(random, builder, depth);
+                builder.append(" ;");
+
+                break;
+            default:
+                expression(random, builder, depth);
+                builder.append(" ;");
+        }
+    }
+
+    private static void declaration(final Random random, final StringBuilder builder, final int depth) {
+        builder.append(TYPES[random.nextInt(TYPES.length)]);
+
+        if (random.nextInt(4) == 0) {
+            builder.append(" [ ]");
+        }
+
+        for (int variable = 1 + random.nextInt(2); variable > 0; --variable) {
+            builder.append(' ').append(NAMES[random.nextInt(NAMES.length)]);
+
+            if (random.nextBoolean()) {
+                builder.append(" = ");
+                expression(random, builder, depth - 1);
+            }
+
+            if (variable > 1) {
+                builder.append(" ,");
+            }
+        }
+    }
+
+    private static void expression(final Random random, final StringBuilder builder, final int depth) {
+        switch (depth <= 0 ? random.nextInt(2) : random.nextInt(11)) {
+            case 0:
+                builder.append(LITERALS[random.nextInt(LITERALS.length)]);
+
+                break;
+            case 1:
+                external(random, builder, depth);
+
+                break;
+            case 2:
+                expression(random, builder, depth - 1);
+                builder.append(' ').append(BINARY[random.nextInt(BINARY.length)]).append(' ');
+                expression(random, builder, depth - 1);
+
+                break;
+            case 3:
+                builder.append("!~+-".charAt(random.nextInt(4))).append(' ');
+                expression(random, builder, depth - 1);
+
+                break;
+            case 4:
+                builder.append("( ").append(TYPES[random.nextInt(TYPES.length)]).append(" ) ");
+                expression(random, builder, depth - 1);
+
+                break;
+            case 5:
+                builder.append("( ");
+                expression(random, builder, depth - 1);
+                builder.append(" )");
+
+                break;
+            case 6:
+                expression(random, builder, depth - 1);
+                builder.append(" ? ");
+                expression(random, builder, depth - 1);
+                builder.append(" : ");
+                expression(random, builder, depth - 1);
+
+                break;
+            case 7:
+                external(random, builder, depth - 1);
+                builder.append(' ').append(ASSIGN[random.nextInt(ASSIGN.length)]).append(' ');
+                expression(random, builder, depth - 1);
+
+                break;
+            case 8:
+                external(random, builder, depth - 1);
+                builder.append(random.nextBoolean() ? " ++" : " --");
+
+                break;
+            case 9:
+                builder.append(random.nextBoolean() ? "++ " : "-- ");
+                external(random, builder, depth - 1);
+
+                break;
+            default:
+                expression(random, builder, depth - 1);
+                builder.append(' ').append(BINARY[random.nextInt(BINARY.length)]).append(' ');
+                external(random, builder, depth - 1);
+        }
+    }
+
+    private static void external(final Random random, final StringBuilder builder, final int depth) {
+        switch (depth <= 0 ? 0 : random.nextInt(4)) {
+            case 0:
+                builder.append(NAMES[random.nextInt(NAMES.length)]);
+
+                break;
+            case 1:
+                builder.append(TYPES[random.nextInt(TYPES.length)]);
+
+                break;
+            case 2:
+                builder.append("( ");
+                external(random, builder, depth - 1);
+                builder.append(" )");
+
+                break;
+            default:
+                builder.append("( ").append(TYPES[random.nextInt(TYPES.length)]).append(" ) ");
+                external(random, builder, depth - 1);
+        }
+
+        for (int link = depth <= 0 ? 0 : random.nextInt(3); link > 0; --link) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    builder.append(" . ").append(NAMES[random.nextInt(NAMES.length)]);
+
+                    break;
+                case 1:
+                    builder.append(" . ").append(NAMES[random.nextInt(NAMES.length)]).append(" ( ");
+
+                    for (int argument = random.nextInt(3); argument > 0; --argument) {
+                        expression(random, builder, depth - 1);
+                        builder.append(argument > 1 ? " , " : " ");
+                    }
+
+                    builder.append(")");
+
+                    break;
+                default:
+                    builder.append(" [ ");
+                    expression(random, builder, depth - 1);
+                    builder.append(" ]");
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SchemaTests extends ScriptTestCase {
+    private Executable compile(final String script, final String schema) {
+        return Compiler.compile(getTestName(), script, getClass().getClassLoader(), null,
+                new CompilerSettings().setSchema(Schema.parse(schema)));
+    }
+
+    public void testTypedParameters() {
+        final Executable executable = compile("double total = timestamp; for (int i = 0; i < weights.length; ++i)" +
+                " total += weights[i] * _score; return total;", "double _score, long timestamp, double[] weights");
+        final Map<String, Object> input = new HashMap<>();
+        input.put("_score", 2.0);
+        input.put("timestamp", 10L);
+        input.put("weights", new double[] {1.5, 0.5});
+
+        assertEquals(14.0, executable.execute(input));
+        assertEquals(14.0, executable.executeAsDouble(input), 0.0);
+        assertTrue(executable.needsScores());
+        assertEquals(3, executable.getBindings().size());
+    }
+
+    public void testParametersSetWithoutBoxing() {
+        final Executable executable = compile("return count * price + bonus;", "long count, double price, int bonus");
+        final Bindings bindings = new Bindings(executable);
+        bindings.setLong("count", 3);
+        bindings.setDouble("price", 1.5);
+        bindings.put("bonus", 2);
+
+        assertEquals(6.5, executable.executeAsDouble(bindings), 0.0);
+
+        bindings.setLong("count", 5);
+        assertEquals(9.5, executable.executeAsDouble(bindings), 0.0);
+        assertEquals(5L, bindings.get("count"));
+        assertFalse(executable.needsScores());
+    }
+
+    public void testBindingsOfAnotherScript() {
+        final Executable first = compile("return x * 10 + y;", "long x, long y");
+        final Executable second = compile("return y;", "long y");
+        final Executable third = Compiler.compile(getTestName(), "def z = input.get(\"z\"); def w = input.get(\"w\");" +
+                " return w == null ? input.get(\"y\") : z;", getClass().getClassLoader(), null, new CompilerSettings());
+
+        final Bindings bindings = new Bindings(first);
+        bindings.setLong("x", 1);
+        bindings.setLong("y", 2);
+
+        // the slots of other bindings hold other inputs, so they are read by name
+        assertEquals(12L, first.execute(bindings));
+        assertEquals(2L, second.execute(bindings));
+        assertEquals(2L, second.executeAsLong(bindings));
+
+        final Bindings others = new Bindings(second);
+        others.setLong("y", 3);
+
+        assertEquals(3L, third.execute(others));
+        assertEquals(3L, third.executeAsLong(others));
+    }
+
+    public void testParametersAlongWithInputs() {
+        final Executable executable = compile("return input.get(\"name\") .. \":\" .. count;", "int count");
+        final Map<String, Object> input = new HashMap<>();
+        input.put("name", "a");
+        input.put("count", 4);
+
+        assertEquals("a:4", executable.execute(input));
+    }
+
+    public void testInvalidSchemas() {
+        try {
+            compile("return 1;", "double");
+            fail("a parameter must have a type and a name");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("type and a name"));
+        }
+
+        try {
+            compile("return 1;", "double x, long x");
+            fail("a parameter may only be defined once");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("already defined"));
+        }
+
+        try {
+            compile("return 1;", "double input");
+            fail("a parameter may not hide the input");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("already defined"));
+        }
+
+        try {
+            compile("return 1;", "unknown x");
+            fail("a parameter must have a type of the definition");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("unknown"));
+        }
+
+        try {
+            compile("double x = 1; return x;", "double x");
+            fail("a script may not declare a variable with the name of a parameter");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("already defined"));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ScriptCacheTests extends ScriptTestCase {
+
+    public void testIdenticalSourceIsCompiledOnce() {
+        final Object first = scriptEngine.compile("return 1 + 2;");
+        final Object second = scriptEngine.compile("return 1 + 2;");
+        assertTrue(first == second);
+        assertEquals(1L, scriptEngine.getCache().misses());
+        assertEquals(1L, scriptEngine.getCache().hits());
+        assertEquals(3, exec("return 1 + 2;"));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        scriptEngine = new PlanAScriptEngineService(Settings.settingsBuilder()
+                .put(PlanAScriptEngineService.CACHE_MAX_SIZE_SETTING, 2).build());
+
+        final Object one = scriptEngine.compile("return 1;");
+        scriptEngine.compile("return 2;");
+        assertTrue(one == scriptEngine.compile("return 1;"));
+        scriptEngine.compile("return 3;");
+        assertEquals(2, scriptEngine.getCache().size());
+        assertEquals(1L, scriptEngine.getCache().evictions());
+        assertTrue(one == scriptEngine.compile("return 1;"));
+        assertEquals(4, exec("return 4;"));
+        assertEquals(2L, scriptEngine.getCache().evictions());
+    }
+
+    public void testDisabledCache() {
+        scriptEngine = new PlanAScriptEngineService(Settings.settingsBuilder()
+                .put(PlanAScriptEngineService.CACHE_MAX_SIZE_SETTING, 0).build());
+
+        assertTrue(scriptEngine.compile("return 1;") != scriptEngine.compile("return 1;"));
+        assertEquals(0, scriptEngine.getCache().size());
+        assertEquals(2L, scriptEngine.getCache().misses());
+    }
+
+    public void testFailedCompileIsNotCached() {
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            try {
+                exec("int x = 1 return x;");
+                fail("script should have failed to compile");
+            } catch (RuntimeException expected) {
+                // expected
+            }
+        }
+
+        assertEquals(0, scriptEngine.getCache().size());
+        assertEquals(2L, scriptEngine.getCache().misses());
+    }
+
+    public void testFingerprintIsPartOfTheKey() {
+        final ScriptCache cache = new ScriptCache(10);
+        final Executable executable = PlanA.compile("test", "return 1;");
+        final Callable<Executable> compiler = new Callable<Executable>() {
+            @Override
+            public Executable call() {
+                return executable;
+            }
+        };
+
+        cache.compile("a", "return 1;", compiler);
+        cache.compile("b", "return 1;", compiler);
+        cache.compile("a", "return 1;", compiler);
+        assertEquals(2, cache.size());
+        assertEquals(2L, cache.misses());
+        assertEquals(1L, cache.hits());
+    }
+
+    public void testConcurrentCompilesShareOneResult() throws Exception {
+        final ScriptCache cache = new ScriptCache(10);
+        final AtomicInteger compiles = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Executable executable = PlanA.compile("test", "return 1;");
+        final Executable[] results = new Executable[8];
+        final Thread[] threads = new Thread[results.length];
+
+        final Callable<Executable> compiler = new Callable<Executable>() {
+            @Override
+            public Executable call() throws Exception {
+                compiles.incrementAndGet();
+                started.countDown();
+                release.await();
+
+                return executable;
+            }
+        };
+
+        for (int thread = 0; thread < threads.length; ++thread) {
+            final int index = thread;
+            threads[thread] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = cache.compile(null, "return 1;", compiler);
+                }
+            };
+            threads[thread].start();
+        }
+
+        started.await();
+
+        while (cache.hits() + cache.misses() < threads.length) {
+            Thread.sleep(1);
+        }
+
+        release.countDown();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, compiles.get());
+        assertEquals(1L, cache.misses());
+        assertEquals(threads.length - 1L, cache.hits());
+
+        for (final Executable result : results) {
+            assertTrue(result == executable);
+        }
+    }
+
+    public void testConcurrentLookupsStayBounded() throws Exception {
+        final ScriptCache cache = new ScriptCache(4);
+        final Executable executable = PlanA.compile("test", "return 1;");
+        final AtomicInteger mismatches = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        final int lookups = 500;
+
+        final Callable<Executable> compiler = new Callable<Executable>() {
+            @Override
+            public Executable call() {
+                return executable;
+            }
+        };
+
+        for (int thread = 0; thread < threads.length; ++thread) {
+            final int index = thread;
+            threads[thread] = new Thread() {
+                @Override
+                public void run() {
+                    for (int lookup = 0; lookup < lookups; ++lookup) {
+                        if (cache.compile(null, "return " + (lookup + index) % 6 + ";", compiler) != executable) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[thread].start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, mismatches.get());
+        assertEquals(4, cache.size());
+        assertEquals(threads.length * (long)lookups, cache.hits() + cache.misses());
+        assertEquals(cache.misses() - cache.size(), cache.evictions());
+    }
+}
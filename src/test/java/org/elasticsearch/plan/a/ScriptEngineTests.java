@@ -106,4 +106,24 @@ public class ScriptEngineTests extends ScriptTestCase {
         value = script.run();
         assertEquals(2, ((Number)value).intValue());
     }
+
+    private boolean needsScores(final String script) {
+        final Object compiled = scriptEngine.compile(script);
+
+        return scriptEngine.search(new CompiledScript(ScriptService.ScriptType.INLINE, getTestName(), "plan-a", compiled),
+                null, new HashMap<String, Object>()).needsScores();
+    }
+
+    public void testNeedsScores() {
+        assertFalse(needsScores("return 1;"));
+        assertFalse(needsScores("return (int)input.get(\"x\") * 2;"));
+        assertFalse(needsScores("def d = input.get(\"doc\"); return d.size();"));
+
+        assertTrue(needsScores("return ((number)input.get(\"_score\")).double();"));
+        assertTrue(needsScores("return input.get(\"_sc\" .. \"ore\");"));
+        assertTrue(needsScores("string k = \"x\"; return input.get(k);"));
+        assertTrue(needsScores("smap m = input; return m.get(\"x\");"));
+        assertTrue(needsScores("return input.size();"));
+        assertTrue(needsScores("def m = input; return m.x;"));
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.plan.a;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.elasticsearch.common.SuppressForbidden;
+
+/**
+ * Measures the time to the first compile in a fresh JVM, which includes loading the default definition, followed
+ * by the time to load a definition from the properties file and from the binary snapshot.  Run it in a new JVM
+ * with the test classpath so the first measurement is not skewed by earlier loading, for example:
+ * {@code java -cp target/classes:target/test-classes:<dependencies> org.elasticsearch.plan.a.StartupBenchmark}
+ */
+@SuppressForbidden(reason = "benchmark prints its results")
+public final class StartupBenchmark {
+    private static final int ITERATIONS = 50;
+
+    public static void main(final String[] args) throws IOException {
+        final long start = System.nanoTime();
+        Compiler.compile("benchmark", "return 1;", StartupBenchmark.class.getClassLoader(), null);
+        final long first = System.nanoTime() - start;
+
+        final Properties definition = Definition.loadProperties();
+        final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        Definition.writeSnapshot(Default.DEFAULT_DEFINITION, snapshot);
+        final byte[] bytes = snapshot.toByteArray();
+
+        long properties = 0;
+        long binary = 0;
+
+        for (int iteration = 0; iteration < ITERATIONS; ++iteration) {
+            long mark = System.nanoTime();
+            Definition.loadFromProperties();
+            properties += System.nanoTime() - mark;
+
+            mark = System.nanoTime();
+            Definition.loadFromSnapshot(new ByteArrayInputStream(bytes), definition);
+            binary += System.nanoTime() - mark;
+        }
+
+        System.out.println("time to first compile: " + first / 1000000.0 + " ms");
+        System.out.println("snapshot size: " + bytes.length + " bytes");
+        System.out.println("load from properties: " + properties / ITERATIONS / 1000000.0 + " ms/op");
+        System.out.println("load from snapshot: " + binary / ITERATIONS / 1000000.0 + " ms/op");
+    }
+
+    private StartupBenchmark() {}
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.plan.a;
+
+import java.io.File;
+import java.io.FilePermission;
+import java.net.URISyntaxException;
+import java.security.AccessControlException;
+import java.security.AccessController;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+public class TieredTests extends ScriptTestCase {
+    public void testInterpretedResults() {
+        assertInterpreted(3, "return 1 + 2;", null);
+        assertInterpreted(45, "int x = 0; for (int y = 0; y < 10; ++y) { x += y; } return x;", null);
+        assertInterpreted(5, "int x = 0; while (true) { if (++x == 5) break; else continue; } return x;", null);
+        assertInterpreted("ab3", "string s = \"a\"; s ..= \"b\"; return s .. 3;", null);
+        assertInterpreted(7L, "long x = 3; x += 4; return x;", null);
+        assertInterpreted(2.5, "double d = 5; return d / 2;", null);
+        assertInterpreted(6, "int[] a = int.makearray(3); a[2] = 6; return a[2];", null);
+        assertInterpreted(5, "def m = hashmap.new(); m.x = 5; return m.x;", null);
+        assertInterpreted(2, "def m = hashmap.new(); m[\"k\"] = 2; return m[\"k\"];", null);
+        assertInterpreted(2, "def l = arraylist.new(); l.addlast(1); l.addlast(2); return l.size();", null);
+        assertInterpreted(3.5, "def x = 1.5; return x + 2;", null);
+        assertInterpreted(true, "def x = 1.5; return x > 1;", null);
+        assertInterpreted(6, "def x = 5; ++x; return x;", null);
+        assertInterpreted(7L, "def x = 5L; x += 2; return x;", null);
+        assertInterpreted(true, "def x = 5; def y = 5.0; return x == y;", null);
+        assertInterpreted("ab", "def x = \"a\"; return x .. \"b\";", null);
+        assertInterpreted(-1.5, "def x = 1.5; return -x;", null);
+        assertInterpreted(true, "string a = \"x\"; string b = \"x\"; return a === b;", null);
+        assertInterpreted(false, "string a = \"x\"; string b = a .. \"y\"; return b === \"xy\";", null);
+
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("w", 4);
+        assertInterpreted(12, "return (int)input.get(\"w\") * 3;", vars);
+    }
+
+    public void testInterpretedErrors() {
+        final Executable executable = compile("def x = null; return x.size();", 10, direct());
+
+        try {
+            executable.execute(new HashMap<String, Object>());
+            fail("should have failed for a null receiver");
+        } catch (NullPointerException expected) {
+            // the receiver is null
+        }
+
+        final Executable lossy = compile("def x = 5.5; int y = x; return y;", 10, direct());
+
+        try {
+            lossy.execute(new HashMap<String, Object>());
+            fail("should have failed to drop the fraction");
+        } catch (ClassCastException expected) {
+            assertTrue(expected.getMessage().contains("losing"));
+        }
+    }
+
+    /** A whitelisted check of a permission that the code of the tests has and an untrusted script does not. */
+    public static final class Probe {
+        public static boolean readable() {
+            try {
+                final File location = new File(Probe.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                AccessController.checkPermission(new FilePermission(location.getPath() + File.separator + "-", "read"));
+
+                return true;
+            } catch (final AccessControlException exception) {
+                return false;
+            } catch (final URISyntaxException exception) {
+                throw new IllegalStateException(exception);
+            }
+        }
+
+        private Probe() {}
+    }
+
+    public void testInterpretedPermissions() {
+        final Properties properties = Definition.loadProperties();
+        properties.setProperty("struct.probe", "probe " + Probe.class.getName());
+        properties.setProperty("function.probe.readable", "probe readable bool readable()");
+
+        assertTrue(Probe.readable());
+
+        final Executable executable = Compiler.compile(getTestName(), "return probe.readable();", getClass().getClassLoader(),
+                properties, new CompilerSettings().setTiers(1, direct()));
+
+        // the interpreted run is denied the same way the class is once it is defined
+        assertEquals(false, executable.execute(new HashMap<String, Object>()));
+        assertEquals(false, executable.execute(new HashMap<String, Object>()));
+        assertTrue(((TieredExecutable)executable).isPromoted());
+    }
+
+    public void testStagedValues() {
+        final Executable executable = compile("smap d = (smap)input.get(\"doc\");" +
+                " return (int)d.get(\"v\") * ((int)input.get(\"w\") + 1);", 10, direct());
+        final Map<String, Object> params = new HashMap<>();
+        params.put("w", 2);
+
+        final Object[] query = executable.query(params);
+        assertNotNull(query);
+
+        final Map<String, Object> doc = new HashMap<>();
+        doc.put("v", 5);
+        final Map<String, Object> input = new HashMap<>(params);
+        input.put("doc", doc);
+
+        assertEquals(15, executable.execute(input, executable.segment(input, query)));
+    }
+
+    public void testPromotedAfterThreshold() {
+        final CompilerStats stats = new CompilerStats();
+        final List<Runnable> pending = new ArrayList<>();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                pending.add(runnable);
+            }
+        };
+
+        final Executable executable = Compiler.compile(getTestName(), "int x = 0; for (int y = 0; y < 4; ++y) { x += y; } return x;",
+                getClass().getClassLoader(), null, new CompilerSettings().setTiers(3, executor).setStats(stats));
+        assertTrue(executable instanceof TieredExecutable);
+
+        for (int run = 0; run < 2; ++run) {
+            assertEquals(6, executable.execute(new HashMap<String, Object>()));
+        }
+
+        assertTrue(pending.isEmpty());
+        assertEquals(6, executable.execute(new HashMap<String, Object>()));
+        assertEquals(6, executable.execute(new HashMap<String, Object>()));
+        assertEquals(1, pending.size());
+        assertFalse(((TieredExecutable)executable).isPromoted());
+        assertEquals(0L, stats.getDefinedClassCount());
+
+        pending.get(0).run();
+        assertTrue(((TieredExecutable)executable).isPromoted());
+        assertEquals(6, executable.execute(new HashMap<String, Object>()));
+
+        assertEquals(1L, stats.getInterpretedCount());
+        assertEquals(1L, stats.getPromotedCount());
+        assertEquals(1L, stats.getDefinedClassCount());
+        assertEquals(1L, stats.getCompiledCount());
+    }
+
+    public void testFailedPromotionIsCounted() {
+        final CompilerStats stats = new CompilerStats();
+        // a parent that cannot load the base class makes defining the class of the script fail
+        final ClassLoader isolated = new ClassLoader(null) {};
+        final Executable executable = Compiler.compile(getTestName(), "return 1 + 2;", isolated, null,
+                new CompilerSettings().setTiers(1, direct()).setStats(stats));
+
+        assertEquals(3, executable.execute(new HashMap<String, Object>()));
+        assertEquals(3, executable.execute(new HashMap<String, Object>()));
+        assertFalse(((TieredExecutable)executable).isPromoted());
+        assertEquals(0L, stats.getPromotedCount());
+        assertEquals(1L, stats.getPromotionFailedCount());
+    }
+
+    public void testColdScriptDefinesNoClass() {
+        final CompilerStats stats = new CompilerStats();
+        final Executable executable = Compiler.compile(getTestName(), "return 1;", getClass().getClassLoader(), null,
+                new CompilerSettings().setTiers(100, direct()).setStats(stats));
+
+        assertEquals(1, executable.execute(new HashMap<String, Object>()));
+        assertFalse(((TieredExecutable)executable).isPromoted());
+        assertEquals(0L, stats.getDefinedClassCount());
+        assertEquals(0L, stats.getBytecodeSize().getCount());
+    }
+
+    public void testInvalidTiers() {
+        try {
+            new CompilerSettings().setTiers(-1, direct());
+            fail("should have rejected a negative threshold");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("negative"));
+        }
+
+        try {
+            new CompilerSettings().setTiers(1, null);
+            fail("should have required an executor");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("executor"));
+        }
+    }
+
+    /** Checks the script gives the same result interpreted and after its class is defined. */
+    private void assertInterpreted(final Object expected, final String script, final Map<String, Object> vars) {
+        final Executable executable = compile(script, 1, direct());
+
+        for (int run = 0; run < 3; ++run) {
+            assertEquals(expected, executable.execute(vars == null ? new HashMap<String, Object>() : new HashMap<>(vars)));
+        }
+
+        assertTrue(((TieredExecutable)executable).isPromoted());
+    }
+
+    private Executable compile(final String script, final int threshold, final Executor executor) {
+        return Compiler.compile(getTestName(), script, getClass().getClassLoader(), null,
+                new CompilerSettings().setTiers(threshold, executor));
+    }
+
+    /** An executor that runs the promotion on the thread that reached the threshold. */
+    private static Executor direct() {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                runnable.run();
+            }
+        };
+    }
+}